@@ -6,24 +6,31 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.LruCache;
 
 
+import com.edw.bitmapcachelibs.cache.disklrucache.CacheStats;
 import com.edw.bitmapcachelibs.cache.disklrucache.DiskLruCache;
+import com.edw.bitmapcachelibs.cache.disklrucache.GdsfPolicy;
+import com.edw.bitmapcachelibs.cache.disklrucache.MaintenanceScheduler;
+import com.edw.bitmapcachelibs.cache.disklrucache.TieredDiskLruCache;
+import com.edw.bitmapcachelibs.cache.memory.ClockMemoryCache;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.lang.ref.Reference;
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static android.os.Build.VERSION.SDK_INT;
 
@@ -43,23 +50,57 @@ import static android.os.Build.VERSION.SDK_INT;
  */
 public class BitmapCache {
     private static final String TAG = "BitmapCache";
+    //热点图片清单的文件名，保存在内部存储
+    private static final String HOT_SET_FILE = "bitmap_hot_set";
+    //清单最多记录的图片数
+    private static final int MAX_HOT_SET_ENTRIES = 64;
+    //使用中每隔1分钟保存一次清单，进程被杀也只丢失最近1分钟的变化
+    private static final long HOT_SET_SAVE_INTERVAL_MILLIS = 60 * 1000;
+    //启动预热最多用时500ms，之后的图片按需从磁盘解码
+    private static final long WARM_UP_TIME_BUDGET_MILLIS = 500;
     private Context mC;
-    //内存缓存
-    private LruCache<String, Bitmap> mCache;
-    //磁盘缓存
-    private DiskLruCache mDiskLruCache;
-    //复用池
-    private Set<WeakReference<Bitmap>> mReusePool;
-    //引用队列(用来监听弱引用，这里是实时监听复用池，以保证复用池中哪些图片可用和不可用)
-    private ReferenceQueue<Bitmap> mReferenceQueue;
-    //处理引用队列的线程
-    private Thread mClearThread;
-    //关闭
-    private boolean shutdown;
+    //内存缓存，分段加锁并用CLOCK近似LRU，UI线程和解码线程同时读写时不会争用同一把锁
+    private ClockMemoryCache<String, Bitmap> mCache;
+    //磁盘缓存，分为内部存储上的快速层和外部存储上的大容量层
+    private TieredDiskLruCache mDiskLruCache;
+    //磁盘缓存的异步写入队列，最多64张图片等待写入，满了丢弃最早的
+    private DiskWriteQueue mDiskWriteQueue;
+    //磁盘缓存的后台维护（压缩日志、淘汰、清理）调度器，空闲时才执行并限制磁盘带宽
+    private final MaintenanceScheduler mMaintenanceScheduler = new MaintenanceScheduler()
+            .setIdleDelayMillis(500)
+            .setMaxDelayMillis(30 * 1000)
+            .setMaxBytesPerSecond(2 * 1024 * 1024);
+    //复用池，按占用内存和Config分组，超出上限时回收最早放入的图片
+    private BitmapPool mReusePool;
+    //本缓存从磁盘解码出的图片的使用情况，只有这些图片会在不再显示后进入复用池
+    //调用方传入的图片（如BitmapCacheBean中的原图）不在其中，永远不会被复用或回收
+    //Bitmap没有重写equals，按对象本身查找，图片被GC回收后记录自动消失
+    private final Map<Bitmap, BitmapUsage> mUsages = new WeakHashMap<>();
+    //上次保存热点图片清单的时间
+    private long mLastHotSetSaveMillis;
+    //保存清单和启动预热的后台线程，空闲60秒后退出
+    private final ThreadPoolExecutor mHotSetExecutor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), r -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "BitmapCache warm-up"));
 
 
-    BitmapFactory.Options options = new BitmapFactory.Options();
-
+    /**
+     * 一张由本缓存解码的图片的使用情况
+     */
+    private static final class BitmapUsage {
+        //返回给调用方后还没有releaseBitmap的次数，大于0时图片可能正在显示
+        int displayCount;
+        //是否在内存缓存中
+        boolean cached = true;
+        //是否已交给复用池，之后只能由复用池取出重新解码
+        boolean pooled;
+
+        BitmapUsage(int displayCount) {
+            this.displayCount = displayCount;
+        }
+    }
 
     @SuppressLint("StaticFieldLeak")
     private volatile static BitmapCache instance = null;
@@ -81,14 +122,24 @@ public class BitmapCache {
      * @param mC
      */
     public void init(Context mC) {
+        init(mC, false);
+    }
+
+    /**
+     * 初始化缓存以及磁盘缓存
+     *
+     * @param mC
+     * @param multiProcess 是否与应用的其他进程（如后台同步进程）共用同一个磁盘缓存，各进程都要传true
+     */
+    public void init(Context mC, boolean multiProcess) {
         this.mC = mC;
         ActivityManager am = (ActivityManager) mC.getSystemService(Context.ACTIVITY_SERVICE);
         //获取手机的可用内存
         int memoryClass = am.getMemoryClass();
-        //复用池使用一个加锁可GC的弱引用HashSet数据结构
-        mReusePool = Collections.synchronizedSet(new HashSet<WeakReference<Bitmap>>());
+        //取1/16可用内存作为复用池，池中的图片由复用池持有，不会在解码前被GC回收
+        mReusePool = new BitmapPool(memoryClass / 16 * 1024 * 1024);
         //取1/8可用内存作为图片内存缓存
-        mCache = new LruCache<String, Bitmap>(memoryClass / 8 * 1024 * 1024) {
+        mCache = new ClockMemoryCache<String, Bitmap>(memoryClass / 8 * 1024 * 1024) {
             /**
              * 返回一张位图占用的内存大小
              * @param key 键
@@ -97,68 +148,158 @@ public class BitmapCache {
              */
             @Override
             protected int sizeOf(String key, Bitmap value) {
-                //兼容Android4.4以后的版本
-                if (SDK_INT > Build.VERSION_CODES.KITKAT) {
-                    return value.getAllocationByteCount();
-                }
-                //兼容Android4.4以前的版本
-                return value.getByteCount();
+                return byteCountOf(value);
             }
 
             /**
-             * 表示图片在缓存中占用的内存已经达到了极限，最先进入LruCache队列的那张图片就会被挤出来
+             * 表示图片在缓存中占用的内存已经达到了极限，时钟指针扫过后一直没被访问的图片就会被挤出来
              * @param evicted
              * @param key
-             * @param oldValue 从队列中挤出来的图片（也是最早添加到队列里的那张图片）
-             * @param newValue 从队列头新添加的那张图片
+             * @param oldValue 从缓存中挤出来的图片（近似最久未使用的那张图片）
+             * @param newValue 替换它的图片，被挤出时为null
              */
             @Override
             protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
                 super.entryRemoved(evicted, key, oldValue, newValue);
-                //被挤出来的图片先判断是否可利用的（就是被复用过的）,如果是则将图片添加到复用池，如果否，则回收此图片。
-                if (oldValue.isMutable()) {
-                    mReusePool.add(new WeakReference<>(oldValue, getReferenceQueue()));
-                } else {
-                    oldValue.recycle();
+                //同一张图片重新放入，仍在内存缓存中
+                if (oldValue == newValue) {
+                    return;
+                }
+                //还没写入磁盘的图片不能回收也不能复用，写完后交给GC回收
+                if (mDiskWriteQueue != null && mDiskWriteQueue.isPending(key, oldValue)) {
+                    return;
                 }
+                synchronized (mUsages) {
+                    BitmapUsage usage = mUsages.get(oldValue);
+                    //调用方传入的图片，交给GC回收
+                    if (usage == null) {
+                        return;
+                    }
+                    usage.cached = false;
+                    //还在显示的图片等releaseBitmap后再放入复用池
+                    if (usage.displayCount > 0 || usage.pooled) {
+                        return;
+                    }
+                    usage.pooled = true;
+                }
+                mReusePool.put(oldValue);
             }
         };
         try {
             //磁盘缓存初始化，默认给定最大15M大小的磁盘缓存，valueCount表示在磁盘中一张图片保存为一个文件
-            mDiskLruCache = DiskLruCache.open(new File(mC.getExternalFilesDir("").toString()), 1, 1, 15 * 1024 * 1024);
+            //日志使用二进制格式，旧的文本日志会在首次打开时自动升级
+            //读取不再逐条写日志，访问顺序只在内存中维护并定期写入检查点，滑动时命中磁盘缓存不产生磁盘写入
+            //32K以内的缩略图追加写入共享的pack文件，不再每张图片创建、重命名、删除一个文件，废弃空间由后台压缩回收
+            //日志每增长256K保存一次索引快照，启动时只需重放快照之后的日志
+            //按访问频率和大小淘汰(GDSF)，避免一张只看过一次的大图挤掉大量常用的小头像，访问次数随索引快照保存
+            //键由缓存内部哈希成128位的定长形式，URL等任意字符串都可以直接作为键，不会再因不符合文件名规则而写入失败
+            //记录命中率、读写字节数、淘汰次数和各操作耗时，通过getDiskCacheStats()查看，用于评估缓存大小是否合适
+            DiskLruCache.Options diskOptions = new DiskLruCache.Options()
+                    .setJournalFormat(DiskLruCache.JournalFormat.BINARY)
+                    .setJournalReads(false)
+                    .setPackThreshold(32 * 1024)
+                    .setIndexCheckpointBytes(256 * 1024)
+                    .setEvictionPolicy(GdsfPolicy.FACTORY)
+                    .setHashKeys(true)
+                    .setRecordStats(true)
+                    //多进程共用时通过文件锁协调，共用一份文本日志，一个进程提交的图片其他进程下次读取即可看到
+                    //此时二进制日志、pack文件和索引快照不生效，只有在没有其他进程打开缓存时才压缩日志
+                    .setMultiProcess(multiProcess)
+                    //压缩日志、淘汰和清理等维护工作推迟到缓存空闲500ms后执行，最多推迟30秒，每秒最多2M磁盘读写，避免滑动时卡顿
+                    .setMaintenanceScheduler(mMaintenanceScheduler);
+            //新图片写入外部存储上15M的慢速层，读取两次以上的图片在空闲时移到内部存储上5M的快速层
+            //快速层满时按淘汰顺序把图片移回慢速层而不是删除，只有慢速层满时才真正删除图片
+            mDiskLruCache = TieredDiskLruCache.open(new File(mC.getFilesDir(), "bitmap_cache"),
+                    new File(mC.getExternalFilesDir("").toString()), 1, 1, 5 * 1024 * 1024, 15 * 1024 * 1024, diskOptions);
+            //压缩和写入磁盘在后台线程执行，onBindViewHolder中调用pullBitmap不会再阻塞UI线程
+            mDiskWriteQueue = new DiskWriteQueue(mDiskLruCache, 64, DiskWriteQueue.OverflowPolicy.DROP_OLDEST);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        mHotSetExecutor.allowCoreThreadTimeOut(true);
+        mLastHotSetSaveMillis = SystemClock.uptimeMillis();
+        if (mDiskLruCache != null) {
+            warmUp();
+        }
+    }
 
+    /**
+     * 一张位图占用的内存大小
+     */
+    private static int byteCountOf(Bitmap bitmap) {
+        //兼容Android4.4以后的版本
+        if (SDK_INT > Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        //兼容Android4.4以前的版本
+        return bitmap.getByteCount();
     }
 
     /**
-     * 用于主动监听GC的API,加快引用回收，做这个操作主要是对某些版本垃圾回收机制在java中执行慢进行优化
-     * 直接调用native层的recycle()对图片实现立马垃圾回收。
-     *
-     * @return 引用队列
+     * 后台预热：按上次保存的热点图片清单，从热到冷把图片从磁盘缓存解码到内存缓存，
+     * 最多用时500ms、最多占用一半的内存缓存，首屏的图片直接命中内存
      */
-    private synchronized ReferenceQueue<Bitmap> getReferenceQueue() {
-        if (null == mReferenceQueue) {
-            mReferenceQueue = new ReferenceQueue<>();
-            mClearThread = new Thread(() -> {
-                while (!shutdown) {
-                    try {
-                        Reference<? extends Bitmap> reference = mReferenceQueue.remove();
-                        Bitmap bitmap = reference.get();
-                        if (null != bitmap && !bitmap.isRecycled()) {
-                            //这是直接使用Native层回收，回收速度快
-                            bitmap.recycle();
+    private void warmUp() {
+        final File file = new File(mC.getFilesDir(), HOT_SET_FILE);
+        mHotSetExecutor.execute(() -> {
+            List<HotSetManifest.Entry> entries;
+            try {
+                entries = HotSetManifest.read(file);
+            } catch (IOException e) {
+                //清单损坏，删掉后下次重新保存
+                Log.e(TAG, "热点图片清单损坏：" + e.getMessage());
+                file.delete();
+                return;
+            }
+            int loaded = HotSetManifest.warmUp(entries, mCache.maxSize() / 2,
+                    TimeUnit.MILLISECONDS.toNanos(WARM_UP_TIME_BUDGET_MILLIS), new HotSetManifest.Loader() {
+                        @Override
+                        public boolean isCached(String key) {
+                            return mCache.get(key) != null;
                         }
 
-                    } catch (Exception e) {
-                        Log.e(TAG, e.getMessage());
-                    }
-                }
-            });
-            mClearThread.start();
+                        @Override
+                        public boolean load(HotSetManifest.Entry entry) {
+                            //清单记录的是解码后的宽高，按它计算出的采样率与上次显示时相同
+                            return decodeFromDisk(entry.key, entry.width, entry.height, false, null) != null;
+                        }
+                    });
+            Log.d(TAG, "启动预热了" + loaded + "/" + entries.size() + "张图片");
+        });
+    }
+
+    /**
+     * 保存热点图片清单：内存缓存中最近使用的图片的键、宽高和占用内存，下次启动时据此预热。
+     * 可在Activity的onStop中调用，使用中也会每隔1分钟自动保存一次。
+     * 复制内存缓存和生成清单都在后台线程进行，调用线程（通常是UI线程）只提交任务
+     */
+    public void saveHotSet() {
+        if (mC == null || mCache == null) {
+            return;
         }
-        return mReferenceQueue;
+        mLastHotSetSaveMillis = SystemClock.uptimeMillis();
+        final ClockMemoryCache<String, Bitmap> cache = mCache;
+        final File file = new File(mC.getFilesDir(), HOT_SET_FILE);
+        mHotSetExecutor.execute(() -> {
+            //snapshot大致按从旧到新排列（先是最近没被访问的，再是最近访问过的），倒序后最近使用的在前
+            List<HotSetManifest.Entry> entries = new ArrayList<>();
+            for (Map.Entry<String, Bitmap> cached : cache.snapshot().entrySet()) {
+                Bitmap bitmap = cached.getValue();
+                if (!bitmap.isRecycled()) {
+                    entries.add(new HotSetManifest.Entry(cached.getKey(), bitmap.getWidth(), bitmap.getHeight(),
+                            byteCountOf(bitmap)));
+                }
+            }
+            Collections.reverse(entries);
+            if (entries.size() > MAX_HOT_SET_ENTRIES) {
+                entries = entries.subList(0, MAX_HOT_SET_ENTRIES);
+            }
+            try {
+                HotSetManifest.write(file, entries);
+            } catch (IOException e) {
+                Log.e(TAG, "保存热点图片清单失败：" + e.getMessage());
+            }
+        });
     }
 
     /**
@@ -178,153 +319,294 @@ public class BitmapCache {
      * @return 从缓存中拿到的图片
      */
     public Bitmap getBitmapFromCache(String key) {
-        return mCache.get(key);
+        return acquire(mCache.get(key));
     }
 
     /**
-     * 清除所有的缓存
+     * 图片不再显示时调用（例如列表条目换成另一张图片后），本缓存解码的图片在被挤出内存缓存后才能进入复用池。
+     * pullBitmap、getBitmapFromCache、getBitmapFromDisk每返回一次图片，对应调用一次；不调用时图片只是不会被复用
+     *
+     * @param bitmap 不再显示的图片
      */
-    public void clearAllCache() {
-        mCache.evictAll();
+    public void releaseBitmap(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (mUsages) {
+            BitmapUsage usage = mUsages.get(bitmap);
+            if (usage == null || usage.displayCount == 0) {
+                return;
+            }
+            usage.displayCount--;
+            if (usage.displayCount > 0 || usage.cached || usage.pooled) {
+                return;
+            }
+            usage.pooled = true;
+        }
+        mReusePool.put(bitmap);
     }
 
-    @SuppressLint("ObsoleteSdkInt")
-    public Bitmap getBitmapFromReusePool(int w, int h, int inSampleSize) {
-        if (SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+    /**
+     * 记录一次返回给调用方的图片，releaseBitmap之前不会被复用
+     *
+     * @return 图片，它刚被挤出内存缓存并交给复用池时返回null，当作没有命中
+     */
+    private Bitmap acquire(Bitmap bitmap) {
+        if (bitmap == null) {
             return null;
         }
-        Bitmap reuseBitmap = null;
-        //通过迭代器获取复用池的Bitmap
-        Iterator<WeakReference<Bitmap>> iterator = mReusePool.iterator();
-        while (iterator.hasNext()) {
-            Bitmap bitmap = iterator.next().get();
-            if (null != bitmap) {
-                //可复用
-                if (checkInBitmap(bitmap, w, h, inSampleSize)) {
-                    reuseBitmap = bitmap;
-                    iterator.remove();
-                } else {
-                    iterator.remove();
-                }
+        synchronized (mUsages) {
+            BitmapUsage usage = mUsages.get(bitmap);
+            if (usage == null) {
+                return bitmap;
             }
-
+            if (usage.pooled) {
+                return null;
+            }
+            usage.displayCount++;
         }
-        return reuseBitmap;
+        return bitmap;
+    }
 
+    /**
+     * 清除所有的缓存，并回收复用池中的图片
+     */
+    public void clearAllCache() {
+        mCache.evictAll();
+        mReusePool.clear();
     }
 
     /**
-     * 检查是否可复用
+     * 获取磁盘缓存的统计数据
      *
-     * @param bitmap       在复用池中的图片
-     * @param w
-     * @param h
-     * @param inSampleSize 采样率
-     * @return 是否可复用
+     * @return 命中率、读写字节数、淘汰次数和各操作耗时分布，磁盘缓存未初始化时返回null
      */
-    private boolean checkInBitmap(Bitmap bitmap, int w, int h, int inSampleSize) {
+    public CacheStats getDiskCacheStats() {
+        return mDiskLruCache == null ? null : mDiskLruCache.stats();
+    }
 
-        if (SDK_INT < Build.VERSION_CODES.KITKAT) {
-            return w == bitmap.getWidth() && h == bitmap.getHeight() && inSampleSize == 1;
-        }
+    /**
+     * 设置列表是否正在滑动，滑动期间磁盘缓存的维护工作会被推迟（最多30秒）
+     *
+     * @param scrolling 在RecyclerView的滑动状态回调中传入，SCROLL_STATE_IDLE时传false
+     */
+    public void setScrolling(boolean scrolling) {
+        mMaintenanceScheduler.setBusy(scrolling);
+    }
 
-        if (inSampleSize > 1) {
-            w /= inSampleSize;
-            h /= inSampleSize;
-        }
-        //一张图片大小=分辨率（w*h）*单个像素点所占的字符量。
-        int byteCount = w * h * perPixelForByte(bitmap.getConfig());
+    /**
+     * 获取磁盘缓存的维护调度器，可用于查询维护工作是否正在执行或监听其开始和结束
+     *
+     * @return 维护调度器
+     */
+    public MaintenanceScheduler getMaintenanceScheduler() {
+        return mMaintenanceScheduler;
+    }
 
-        return byteCount <= bitmap.getAllocationByteCount();
+    /**
+     * 获取图片复用池，可查询命中率，或在内存不足时清空
+     *
+     * @return 复用池
+     */
+    public BitmapPool getBitmapPool() {
+        return mReusePool;
     }
 
     /**
-     * 图片单个像素点所占用的内存空间
+     * 从复用池中取出一张可以作为inBitmap解码w*h图片的图片，池中其他图片保留。
+     * 取出的图片归调用方所有，可以传给getBitmapFromDisk(String, Bitmap)；复用池只保存releaseBitmap交还的图片
      *
-     * @param config 位图存储的类型，不同类型所占用内存也不同
-     * @return 单个像素点所占用的内存空间
+     * @param w            原图宽度
+     * @param h            原图高度
+     * @param inSampleSize 采样率
+     * @return 可复用的图片，没有时返回null
      */
-    private int perPixelForByte(Bitmap.Config config) {
-        if (config == Bitmap.Config.ARGB_8888) {
-            return 4;
+    public Bitmap getBitmapFromReusePool(int w, int h, int inSampleSize) {
+        //解码使用默认的ARGB_8888
+        Bitmap bitmap = mReusePool.get(w, h, inSampleSize, Bitmap.Config.ARGB_8888);
+        //取出后归调用方所有
+        if (bitmap != null) {
+            synchronized (mUsages) {
+                mUsages.remove(bitmap);
+            }
         }
-        return 2;
+        return bitmap;
     }
 
     /**
-     * 将图片缓存到磁盘
+     * 将图片缓存到磁盘，只加入写入队列后立即返回，可在UI线程调用
      *
      * @param key
      * @param bitmap
      */
     public void putBitmapToDisk(String key, Bitmap bitmap) {
-        OutputStream os = null;
-        try (DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key)) {
-            //如果磁盘快照中没有这个图片
-            if (null == snapshot) {
-                //生成文件
-                DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-                if (null != editor) {
-                    //通过降低质量压缩图片（0~100），100是未经过压缩的
-                    os = editor.newOutputStream(0);
-                    //按照50%质量压缩
-                    bitmap.compress(Bitmap.CompressFormat.JPEG, 50, os);
-                    editor.commit();
-                }
-            }
-            if (snapshot != null) {
-                snapshot.close();
-            }
-            if (os != null) {
-                os.close();
-            }
-        } catch (Exception e) {
-            Log.e(TAG, e.getMessage());
+        putBitmapToDisk(key, bitmap, 0);
+    }
+
+    /**
+     * 将图片缓存到磁盘（异步写入），并设置有效期，过期后读取不到并由后台清理，不再占用磁盘缓存空间
+     *
+     * @param key
+     * @param bitmap
+     * @param ttlMillis 有效期（毫秒），0表示永不过期
+     */
+    public void putBitmapToDisk(String key, Bitmap bitmap, long ttlMillis) {
+        if (mDiskWriteQueue == null) {
+            Log.e(TAG, "磁盘缓存未初始化");
+            return;
         }
+        //只加入写入队列，JPEG压缩和提交在后台线程执行
+        mDiskWriteQueue.enqueue(key, bitmap, ttlMillis);
+    }
+
+    /**
+     * 获取磁盘缓存的异步写入队列，可查询丢弃的图片数或等待写入完成
+     *
+     * @return 写入队列，磁盘缓存未初始化时返回null
+     */
+    public DiskWriteQueue getDiskWriteQueue() {
+        return mDiskWriteQueue;
+    }
+
+    /**
+     * 从磁盘中获取图片，按显示尺寸采样解码，优先解码到复用池中的图片里，不再显示时调用releaseBitmap
+     *
+     * @param key
+     * @param w   显示宽度
+     * @param h   显示高度
+     * @return
+     */
+    public Bitmap getBitmapFromDisk(String key, int w, int h) {
+        return decodeFromDisk(key, w, h, true, null);
     }
 
     /**
-     * 从磁盘中获取图片
+     * 从磁盘中按原图大小获取图片
      *
      * @param key
-     * @param reuseBitmap
+     * @param reuseBitmap 作为inBitmap的图片（例如getBitmapFromReusePool取出的图片），可以为null；
+     *                    解码成功时返回的就是这张图片，不合适时保留给调用方，重新分配内存解码
      * @return
+     * @deprecated 改用getBitmapFromDisk(String, int, int)，按显示尺寸采样并自动从复用池取图片
      */
+    @Deprecated
     public Bitmap getBitmapFromDisk(String key, Bitmap reuseBitmap) {
+        return decodeFromDisk(key, Integer.MAX_VALUE, Integer.MAX_VALUE, true, reuseBitmap);
+    }
+
+    /**
+     * 从磁盘中解码图片并放入内存缓存
+     *
+     * @param display     是否返回给调用方显示，预热时为false
+     * @param reuseBitmap 调用方指定的inBitmap，为null时从复用池中取
+     */
+    private Bitmap decodeFromDisk(String key, int w, int h, boolean display, Bitmap reuseBitmap) {
         DiskLruCache.Snapshot snapshot = null;
         Bitmap bitmap = null;
-        InputStream is = null;
         try {
+            //还在写入队列中的图片直接返回
+            if (mDiskWriteQueue != null) {
+                bitmap = mDiskWriteQueue.getPending(key);
+                if (bitmap != null) {
+                    mCache.put(key, bitmap);
+                    return bitmap;
+                }
+            }
             snapshot = mDiskLruCache.get(key);
             if (snapshot == null) {
                 return null;
             }
-            is = snapshot.getInputStream(0);
+            //单独存放的图片直接通过文件描述符在Native层解码，避免数据经过Java层的流缓冲区再拷贝一次
+            //解码不改变文件描述符的读取位置，同一个描述符可以先读宽高再解码
+            //32K以内的缩略图存放在共享的pack文件中，描述符会一直读到其他图片的数据里，只读取它自己的字节再解码
+            FileDescriptor fd = null;
+            byte[] data = null;
+            if (snapshot.isPacked(0)) {
+                data = readFully(snapshot.getInputStream(0), (int) snapshot.getLength(0));
+            } else {
+                fd = snapshot.getFileDescriptor(0);
+            }
+            //每次解码使用新的Options，后台预热线程和UI线程可能同时解码
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            //先只读取原图宽高，按显示尺寸计算采样率
+            options.inJustDecodeBounds = true;
+            decode(fd, data, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                Log.e(TAG, "磁盘缓存中的图片无法解码：" + key);
+                return null;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = BitmapDecodeCompress.compressionFactor(options.outWidth, options.outHeight, w, h);
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
             options.inMutable = true;
+            //按采样后的尺寸从复用池取图片
+            boolean pooled = reuseBitmap == null;
+            if (pooled) {
+                reuseBitmap = mReusePool.get(options.outWidth, options.outHeight, options.inSampleSize,
+                        options.inPreferredConfig);
+            }
             options.inBitmap = reuseBitmap;
-            bitmap = BitmapFactory.decodeStream(is, null, options);
-            //存到内存缓存里
+            try {
+                bitmap = decode(fd, data, options);
+            } catch (IllegalArgumentException e) {
+                //复用的图片不合适（解码器实际需要的内存比估算的大等），不算磁盘未命中
+                bitmap = null;
+            }
+            if (bitmap == null && reuseBitmap != null) {
+                //复用失败，池中取出的图片放回复用池（调用方指定的图片仍归调用方），重新分配内存解码
+                if (pooled) {
+                    mReusePool.put(reuseBitmap);
+                }
+                options.inBitmap = null;
+                bitmap = decode(fd, data, options);
+            }
+            //存到内存缓存里，先登记为本缓存解码的图片，放入时就被挤出也不会在显示前进入复用池
             if (null != bitmap) {
+                synchronized (mUsages) {
+                    mUsages.put(bitmap, new BitmapUsage(display ? 1 : 0));
+                }
                 mCache.put(key, bitmap);
             }
         } catch (Exception e) {
             Log.e(TAG, e.getMessage());
         } finally {
+            //关闭快照的同时会关闭文件描述符
             if (snapshot != null) {
                 snapshot.close();
             }
-            try {
-                if (is != null) {
-                    is.close();
-                }
-            } catch (Exception e) {
-                Log.e(TAG, e.getMessage());
-            }
         }
 
         return bitmap;
     }
 
+    /**
+     * 解码磁盘缓存中的图片
+     *
+     * @param fd   单独存放的图片的文件描述符
+     * @param data 存放在pack文件中的图片的数据，fd为null时使用
+     */
+    private static Bitmap decode(FileDescriptor fd, byte[] data, BitmapFactory.Options options) {
+        if (fd != null) {
+            return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        }
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    /**
+     * 读取length个字节，流提前结束时抛出EOFException
+     */
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        for (int read = 0; read < length; ) {
+            int count = in.read(data, read, length - read);
+            if (count == -1) {
+                throw new EOFException();
+            }
+            read += count;
+        }
+        return data;
+    }
+
     /**
      * 三级缓存的操作方法：
      * 首先先从内存缓存中获取数据，如果内存缓存没有数据，就在磁盘缓存中获取，如果磁盘缓存中也没有数据，
@@ -336,21 +618,23 @@ public class BitmapCache {
      * @return 要展示的图片
      */
     public <T extends BitmapCacheBean> Bitmap pullBitmap(List<T> mDatas, int position, int w, int h) {
+        //定期保存热点图片清单
+        if (SystemClock.uptimeMillis() - mLastHotSetSaveMillis >= HOT_SET_SAVE_INTERVAL_MILLIS) {
+            saveHotSet();
+        }
         //先从内存缓存中拿数据
         Bitmap bitmap = getBitmapFromCache(mDatas.get(position).getKey());
         //如果内存缓存中没有数据
         if (bitmap == null) {
-            //先从复用池中获取可复用的图片（如果不可复用复用池的图片就会被回收）
-            Bitmap reuseBitmap = getBitmapFromReusePool(w, h, 2);
-            //将复用池中可复用的图片取出放入磁盘缓存中
-            bitmap = getBitmapFromDisk(mDatas.get(position).getKey(), reuseBitmap);
+            //从磁盘缓存中按显示尺寸采样解码，优先复用复用池中大小合适的图片
+            bitmap = getBitmapFromDisk(mDatas.get(position).getKey(), w, h);
             //如果磁盘中没有图片，就需要从网络获取
             if (bitmap == null) {
                 //图片先压缩处理
                 bitmap = BitmapDecodeCompress.reSizeBitmap(mDatas.get(position).getmBitmap(), w, h, false);
                 //将数据保存至内存缓存里
                 putBitmapToCache(mDatas.get(position).getKey(), mDatas.get(position).getmBitmap());
-                //将数据保存至磁盘缓存里
+                //将数据加入磁盘缓存的写入队列，由后台线程压缩写入
                 putBitmapToDisk(mDatas.get(position).getKey(), mDatas.get(position).getmBitmap());
                 Log.e(TAG, "图片从网络中里获取~~~");
                 return bitmap;
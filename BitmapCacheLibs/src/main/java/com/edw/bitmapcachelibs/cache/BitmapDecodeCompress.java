@@ -202,7 +202,7 @@ public class BitmapDecodeCompress {
      * @param maxHeight 图片最大高度
      * @return 压缩系数
      */
-    private static int compressionFactor(int width, int height, int maxWidth, int maxHeight) {
+    static int compressionFactor(int width, int height, int maxWidth, int maxHeight) {
         //默认系数是2
         int inSampleSize = 1;
         //递归除以2，直到width的大小小于或等于maxWidth且height的大小小于或等于maxHeight为止
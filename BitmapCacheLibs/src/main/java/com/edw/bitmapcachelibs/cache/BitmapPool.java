@@ -0,0 +1,214 @@
+package com.edw.bitmapcachelibs.cache;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import static android.os.Build.VERSION.SDK_INT;
+
+/*****************************************************************************************************
+ * Project Name:    ImageLoaderLibCodeAnalysis
+ *
+ * Date:            2021-06-05
+ *
+ * Author:         EdwardWMD
+ *
+ * Github:          https://github.com/Edwardwmd
+ *
+ * Blog:            https://edwardwmd.github.io/
+ *
+ * Description:    图片复用池，按（占用内存字节数，Bitmap.Config）分组保存可复用的图片，
+ *                 解码时找到不小于所需内存的最小图片作为inBitmap；
+ *                 池中图片总大小不超过上限，超出时回收最久没放入的图片
+ ****************************************************************************************************
+ */
+public class BitmapPool {
+    //复用的图片最多是所需内存的8倍，再大就浪费了太多内存，不如让给后面更合适的解码
+    private static final int MAX_SIZE_MULTIPLE = 8;
+
+    //按Config分组保存图片，超出上限时回收最早放入的图片
+    private final BucketedPool<Bitmap> mPool;
+
+    /**
+     * @param maxSize 池中图片最多占用的内存（字节）
+     */
+    public BitmapPool(long maxSize) {
+        mPool = new BucketedPool<Bitmap>(maxSize) {
+            @Override
+            int byteCountOf(Bitmap bitmap) {
+                return allocationByteCountOf(bitmap);
+            }
+
+            @Override
+            Object groupOf(Bitmap bitmap) {
+                return bitmap.getConfig();
+            }
+
+            @Override
+            boolean hasSize(Bitmap bitmap, int width, int height) {
+                return bitmap.getWidth() == width && bitmap.getHeight() == height;
+            }
+
+            @Override
+            void recycle(Bitmap bitmap) {
+                bitmap.recycle();
+            }
+        };
+    }
+
+    /**
+     * 把不再显示的图片放入复用池，不可复用的图片（不可变、已回收、比整个池还大）直接回收
+     *
+     * @param bitmap 图片，放入后归复用池所有，调用方不能再使用
+     * @return 是否放入了复用池
+     */
+    @SuppressLint("ObsoleteSdkInt")
+    public boolean put(Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return false;
+        }
+        if (SDK_INT < Build.VERSION_CODES.HONEYCOMB || !bitmap.isMutable() || bitmap.getConfig() == null
+                || allocationByteCountOf(bitmap) > mPool.maxSize()) {
+            bitmap.recycle();
+            return false;
+        }
+        return mPool.put(bitmap);
+    }
+
+    /**
+     * 取出一张可以作为inBitmap解码w*h图片的复用图片
+     *
+     * @param w            原图宽度
+     * @param h            原图高度
+     * @param inSampleSize 采样率
+     * @param config       解码使用的Config
+     * @return 可复用的图片，从池中移除并归调用方所有；没有合适的图片时返回null
+     */
+    @SuppressLint("ObsoleteSdkInt")
+    public Bitmap get(int w, int h, int inSampleSize, Bitmap.Config config) {
+        if (SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return null;
+        }
+        if (SDK_INT < Build.VERSION_CODES.KITKAT) {
+            //Android4.4以前只能复用宽高完全相同且没有缩放的图片
+            if (inSampleSize != 1) {
+                mPool.recordMiss();
+                return null;
+            }
+            int byteCount = w * h * bytesPerPixel(config);
+            return mPool.get(config, byteCount, byteCount, w, h);
+        }
+        if (inSampleSize > 1) {
+            //解码器按向上取整计算采样后的宽高
+            w = (w + inSampleSize - 1) / inSampleSize;
+            h = (h + inSampleSize - 1) / inSampleSize;
+        }
+        //一张图片大小=分辨率（w*h）*单个像素点所占的字节数，找不小于它的最小的一组
+        int byteCount = w * h * bytesPerPixel(config);
+        return mPool.get(config, byteCount, (long) byteCount * MAX_SIZE_MULTIPLE, 0, 0);
+    }
+
+    /**
+     * 回收最久没放入的图片，直到池中图片总大小不超过maxSize
+     *
+     * @param maxSize 目标大小（字节），0表示清空
+     */
+    public void trimToSize(long maxSize) {
+        mPool.trimToSize(maxSize);
+    }
+
+    /**
+     * 回收池中所有图片，例如在内存不足（onTrimMemory）时调用
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * @return 池中图片占用的内存（字节）
+     */
+    public long size() {
+        return mPool.size();
+    }
+
+    /**
+     * @return 池中图片最多占用的内存（字节）
+     */
+    public long maxSize() {
+        return mPool.maxSize();
+    }
+
+    /**
+     * @return 池中的图片数
+     */
+    public int count() {
+        return mPool.count();
+    }
+
+    /**
+     * @return 取到可复用图片的次数
+     */
+    public int hitCount() {
+        return mPool.hitCount();
+    }
+
+    /**
+     * @return 没有合适图片的次数
+     */
+    public int missCount() {
+        return mPool.missCount();
+    }
+
+    /**
+     * @return 放入池中的图片数
+     */
+    public int putCount() {
+        return mPool.putCount();
+    }
+
+    /**
+     * @return 因超出上限被回收的图片数
+     */
+    public int evictionCount() {
+        return mPool.evictionCount();
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mPool) {
+            int hits = mPool.hitCount();
+            int accesses = hits + mPool.missCount();
+            int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+            return "BitmapPool[size=" + mPool.size() + ",maxSize=" + mPool.maxSize() + ",count=" + mPool.count()
+                    + ",hits=" + hits + ",misses=" + mPool.missCount() + ",hitRate=" + hitPercent + "%"
+                    + ",evictions=" + mPool.evictionCount() + "]";
+        }
+    }
+
+    /**
+     * 图片实际分配的内存，复用后可能大于当前宽高所需的内存
+     */
+    @SuppressLint("ObsoleteSdkInt")
+    private static int allocationByteCountOf(Bitmap bitmap) {
+        if (SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    /**
+     * 图片单个像素点所占用的内存空间
+     *
+     * @param config 位图存储的类型，不同类型所占用内存也不同
+     * @return 单个像素点所占用的内存空间
+     */
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
@@ -0,0 +1,203 @@
+package com.edw.bitmapcachelibs.cache;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*****************************************************************************************************
+ * Project Name:    ImageLoaderLibCodeAnalysis
+ *
+ * Date:            2021-06-05
+ *
+ * Author:         EdwardWMD
+ *
+ * Github:          https://github.com/Edwardwmd
+ *
+ * Blog:            https://edwardwmd.github.io/
+ *
+ * Description:    BitmapPool的存储部分：按（分组，占用内存字节数）保存对象，取出时找不小于所需内存的最小对象；
+ *                 总大小不超过上限，超出时回收最早放入的对象。不依赖Bitmap，可以在JVM上做单元测试
+ ****************************************************************************************************
+ */
+abstract class BucketedPool<T> {
+    private final long mMaxSize;
+    //每个分组一棵TreeMap：占用内存字节数 -> 这个大小的对象，先放入的在前
+    private final Map<Object, TreeMap<Integer, ArrayDeque<T>>> mGroups = new HashMap<>();
+    //池中所有对象，按放入的顺序排列，超出上限时从最前面开始回收
+    private final LinkedHashSet<T> mLru = new LinkedHashSet<>();
+    private long mSize;
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize 池中对象最多占用的内存（字节）
+     */
+    BucketedPool(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.mMaxSize = maxSize;
+    }
+
+    /**
+     * 对象实际占用的内存，放在池中时不能改变
+     */
+    abstract int byteCountOf(T item);
+
+    /**
+     * 对象所在的分组，只有同一组的对象可以互相替代（图片按Config分组）
+     */
+    abstract Object groupOf(T item);
+
+    /**
+     * 对象的宽高是否为width*height
+     */
+    abstract boolean hasSize(T item, int width, int height);
+
+    /**
+     * 回收因超出上限被移出池的对象
+     */
+    abstract void recycle(T item);
+
+    /**
+     * 放入对象，超出上限时回收最早放入的对象
+     *
+     * @return 对象是否已在池中（同一个对象放入两次只保存一份）
+     */
+    synchronized boolean put(T item) {
+        //同一个对象已经在池中
+        if (!mLru.add(item)) {
+            return true;
+        }
+        Object key = groupOf(item);
+        TreeMap<Integer, ArrayDeque<T>> sizes = mGroups.get(key);
+        if (sizes == null) {
+            sizes = new TreeMap<>();
+            mGroups.put(key, sizes);
+        }
+        int byteCount = byteCountOf(item);
+        ArrayDeque<T> group = sizes.get(byteCount);
+        if (group == null) {
+            group = new ArrayDeque<>();
+            sizes.put(byteCount, group);
+        }
+        group.addLast(item);
+        mSize += byteCount;
+        mPutCount++;
+        trimToSize(mMaxSize);
+        return true;
+    }
+
+    /**
+     * 取出占用内存在[minByteCount, maxByteCount]之间的最小的对象，同样大小的先放入的先取出
+     *
+     * @param width  大于0时只取宽为width、高为height的对象
+     * @return 对象，从池中移除并归调用方所有；没有合适的对象时返回null
+     */
+    synchronized T get(Object group, int minByteCount, long maxByteCount, int width, int height) {
+        T item = null;
+        TreeMap<Integer, ArrayDeque<T>> sizes = mGroups.get(group);
+        if (sizes != null) {
+            for (Map.Entry<Integer, ArrayDeque<T>> entry = sizes.ceilingEntry(minByteCount);
+                 item == null && entry != null && entry.getKey() <= maxByteCount;
+                 entry = sizes.higherEntry(entry.getKey())) {
+                item = removeMatching(sizes, entry.getKey(), entry.getValue(), width, height);
+            }
+        }
+        if (item == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return item;
+    }
+
+    /**
+     * 记录一次没有合适对象的获取，用于调用方不用查找就知道没有可用对象的情况
+     */
+    synchronized void recordMiss() {
+        mMissCount++;
+    }
+
+    /**
+     * 从一组中取出最早放入的对象，width大于0时只取宽高相同的对象
+     */
+    private T removeMatching(TreeMap<Integer, ArrayDeque<T>> sizes, int byteCount, ArrayDeque<T> group,
+                             int width, int height) {
+        T item = null;
+        for (Iterator<T> iterator = group.iterator(); iterator.hasNext(); ) {
+            T candidate = iterator.next();
+            if (width <= 0 || hasSize(candidate, width, height)) {
+                item = candidate;
+                iterator.remove();
+                break;
+            }
+        }
+        if (item == null) {
+            return null;
+        }
+        if (group.isEmpty()) {
+            sizes.remove(byteCount);
+        }
+        mLru.remove(item);
+        mSize -= byteCount;
+        return item;
+    }
+
+    /**
+     * 回收最早放入的对象，直到池中对象总大小不超过maxSize
+     *
+     * @param maxSize 目标大小（字节），0表示清空
+     */
+    synchronized void trimToSize(long maxSize) {
+        Iterator<T> iterator = mLru.iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            T eldest = iterator.next();
+            iterator.remove();
+            int byteCount = byteCountOf(eldest);
+            TreeMap<Integer, ArrayDeque<T>> sizes = mGroups.get(groupOf(eldest));
+            ArrayDeque<T> group = sizes.get(byteCount);
+            //同一组中最早放入的通常就在队首
+            group.removeFirstOccurrence(eldest);
+            if (group.isEmpty()) {
+                sizes.remove(byteCount);
+            }
+            mSize -= byteCount;
+            mEvictionCount++;
+            recycle(eldest);
+        }
+    }
+
+    synchronized long size() {
+        return mSize;
+    }
+
+    long maxSize() {
+        return mMaxSize;
+    }
+
+    synchronized int count() {
+        return mLru.size();
+    }
+
+    synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    synchronized int missCount() {
+        return mMissCount;
+    }
+
+    synchronized int putCount() {
+        return mPutCount;
+    }
+
+    synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+}
@@ -0,0 +1,177 @@
+package com.edw.bitmapcachelibs.cache;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.util.Log;
+
+import com.edw.bitmapcachelibs.cache.disklrucache.DiskLruCache;
+import com.edw.bitmapcachelibs.cache.disklrucache.TieredDiskLruCache;
+
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*****************************************************************************************************
+ * Project Name:    ImageLoaderLibCodeAnalysis
+ *
+ * Date:            2021-06-05
+ *
+ * Author:         EdwardWMD
+ *
+ * Github:          https://github.com/Edwardwmd
+ *
+ * Blog:            https://edwardwmd.github.io/
+ *
+ * Description:    磁盘缓存的异步写入队列，图片的JPEG压缩和提交都在后台线程执行，不占用调用线程（通常是UI线程）。
+ *                 同一个键的图片在队列中只保留一份，队列满时按溢出策略阻塞或丢弃。
+ ****************************************************************************************************
+ */
+public class DiskWriteQueue {
+    private static final String TAG = "DiskWriteQueue";
+    //按照50%质量压缩
+    private static final int JPEG_QUALITY = 50;
+
+    /**
+     * 队列满时的处理方式
+     */
+    public enum OverflowPolicy {
+        //阻塞调用线程，直到队列有空位（不要在UI线程使用）
+        BLOCK,
+        //丢弃最早进入队列的图片，优先写入最近显示的图片
+        DROP_OLDEST,
+        //丢弃新来的图片
+        DROP_NEWEST
+    }
+
+    private final TieredDiskLruCache mDiskLruCache;
+    //等待写入的图片，同一个键只保留一份，由后台线程逐个压缩写入
+    private final WriteBehindQueue<Bitmap> mQueue;
+
+    //单个后台线程，空闲60秒后退出，有新的写入时再启动
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    //后台优先级，压缩图片时不和UI线程抢CPU
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG);
+        }
+    });
+
+    /**
+     * @param diskLruCache   写入的磁盘缓存
+     * @param capacity       最多等待写入的图片数
+     * @param overflowPolicy 队列满时的处理方式
+     */
+    public DiskWriteQueue(TieredDiskLruCache diskLruCache, int capacity, OverflowPolicy overflowPolicy) {
+        this.mDiskLruCache = diskLruCache;
+        this.mQueue = new WriteBehindQueue<Bitmap>(mExecutor, capacity, overflowPolicy) {
+            @Override
+            void write(String key, Bitmap bitmap, long ttlMillis) {
+                DiskWriteQueue.this.write(key, bitmap, ttlMillis);
+            }
+        };
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 把图片加入写入队列，立即返回。磁盘中已有这个键时不会覆盖
+     *
+     * @param key       键
+     * @param bitmap    要保存的图片，写入完成前不能回收或复用
+     * @param ttlMillis 有效期（毫秒），0表示永不过期
+     * @return 图片是否进入了队列（或已在队列中），被丢弃时返回false
+     */
+    public boolean enqueue(String key, Bitmap bitmap, long ttlMillis) {
+        return mQueue.enqueue(key, bitmap, ttlMillis);
+    }
+
+    /**
+     * 获取还没写入磁盘的图片，读取磁盘缓存前先查这里，避免写入完成前读不到
+     *
+     * @param key 键
+     * @return 等待或正在写入的图片，没有时返回null
+     */
+    public Bitmap getPending(String key) {
+        return mQueue.getPending(key);
+    }
+
+    /**
+     * 图片是否还在等待或正在写入，内存缓存挤出这张图片时不能回收或放入复用池
+     */
+    public boolean isPending(String key, Bitmap bitmap) {
+        return mQueue.getPending(key) == bitmap;
+    }
+
+    /**
+     * @return 队列满时被丢弃的图片数
+     */
+    public int getDroppedCount() {
+        return mQueue.getDroppedCount();
+    }
+
+    /**
+     * @return 等待写入的图片数
+     */
+    public int size() {
+        return mQueue.size();
+    }
+
+    /**
+     * 等待队列中的图片全部写入磁盘，例如在onStop中调用（不要在UI线程调用）
+     */
+    public void flush() throws InterruptedException {
+        mQueue.flush();
+    }
+
+    /**
+     * 停止接收新的图片，已在队列中的图片仍会写完
+     */
+    public void shutdown() {
+        mQueue.shutdown();
+    }
+
+    private void write(String key, Bitmap bitmap, long ttlMillis) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+        DiskLruCache.Editor editor = null;
+        try {
+            //如果磁盘快照中没有这个图片
+            DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+            if (snapshot != null) {
+                snapshot.close();
+                return;
+            }
+            editor = mDiskLruCache.edit(key);
+            if (editor == null) {
+                //另一个线程正在写这个键
+                return;
+            }
+            if (ttlMillis > 0) {
+                editor.setTimeToLive(ttlMillis, TimeUnit.MILLISECONDS);
+            }
+            OutputStream os = editor.newOutputStream(0);
+            try {
+                //通过降低质量压缩图片（0~100），100是未经过压缩的
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, os);
+            } finally {
+                os.close();
+            }
+            editor.commit();
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage());
+        } finally {
+            if (editor != null) {
+                editor.abortUnlessCommitted();
+            }
+        }
+    }
+}
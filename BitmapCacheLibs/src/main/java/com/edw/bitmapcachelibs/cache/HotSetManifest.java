@@ -0,0 +1,160 @@
+package com.edw.bitmapcachelibs.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*****************************************************************************************************
+ * Project Name:    ImageLoaderLibCodeAnalysis
+ *
+ * Date:            2021-06-05
+ *
+ * Author:         EdwardWMD
+ *
+ * Github:          https://github.com/Edwardwmd
+ *
+ * Blog:            https://edwardwmd.github.io/
+ *
+ * Description:    内存缓存热点图片清单，记录最近使用的图片的键、宽高和占用内存，
+ *                 下次启动时按清单从磁盘缓存预先解码到内存缓存，首屏直接命中内存
+ ****************************************************************************************************
+ */
+public class HotSetManifest {
+    private static final int MAGIC = 0x484f5453;
+    private static final int VERSION = 1;
+
+    /**
+     * 清单中的一张图片
+     */
+    public static final class Entry {
+        public final String key;
+        public final int width;
+        public final int height;
+        //在内存缓存中占用的字节数
+        public final int byteCount;
+
+        public Entry(String key, int width, int height, int byteCount) {
+            this.key = key;
+            this.width = width;
+            this.height = height;
+            this.byteCount = byteCount;
+        }
+    }
+
+    /**
+     * 预热时加载清单中的图片
+     */
+    interface Loader {
+        /**
+         * 图片是否已在内存缓存中
+         */
+        boolean isCached(String key);
+
+        /**
+         * 从磁盘缓存解码图片放入内存缓存
+         *
+         * @return 是否加载成功（磁盘中没有或解码失败时返回false）
+         */
+        boolean load(Entry entry);
+    }
+
+    private HotSetManifest() {
+    }
+
+    /**
+     * 按清单从热到冷加载图片，直到用完时间或内存预算。超出剩余内存预算的大图跳过，后面的小图可能还放得下
+     *
+     * @param entries         按热度从高到低排列的图片
+     * @param byteBudget      最多加载的内存（字节）
+     * @param timeBudgetNanos 最多用时（纳秒）
+     * @return 加载的图片数
+     */
+    static int warmUp(List<Entry> entries, long byteBudget, long timeBudgetNanos, Loader loader) {
+        long start = System.nanoTime();
+        long budget = byteBudget;
+        int loaded = 0;
+        for (Entry entry : entries) {
+            if (System.nanoTime() - start >= timeBudgetNanos) {
+                break;
+            }
+            if (entry.byteCount > budget || loader.isCached(entry.key)) {
+                continue;
+            }
+            if (loader.load(entry)) {
+                budget -= entry.byteCount;
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * 读取清单
+     *
+     * @param file 清单文件
+     * @return 按热度从高到低排列的图片，文件不存在时返回空列表
+     * @throws IOException 文件损坏或读取失败
+     */
+    public static List<Entry> read(File file) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return Collections.emptyList();
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unexpected manifest header");
+            }
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("unexpected manifest size " + count);
+            }
+            List<Entry> entries = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                entries.add(new Entry(in.readUTF(), in.readInt(), in.readInt(), in.readInt()));
+            }
+            return entries;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 写入清单，先写临时文件再重命名，写到一半被杀进程也不会留下损坏的清单
+     *
+     * @param file    清单文件
+     * @param entries 按热度从高到低排列的图片
+     * @throws IOException 写入失败
+     */
+    public static void write(File file, List<Entry> entries) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.key);
+                out.writeInt(entry.width);
+                out.writeInt(entry.height);
+                out.writeInt(entry.byteCount);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("failed to rename " + tmp);
+        }
+    }
+}
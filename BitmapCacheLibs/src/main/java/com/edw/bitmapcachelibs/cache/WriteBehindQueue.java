@@ -0,0 +1,205 @@
+package com.edw.bitmapcachelibs.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+
+/*****************************************************************************************************
+ * Project Name:    ImageLoaderLibCodeAnalysis
+ *
+ * Date:            2021-06-05
+ *
+ * Author:         EdwardWMD
+ *
+ * Github:          https://github.com/Edwardwmd
+ *
+ * Blog:            https://edwardwmd.github.io/
+ *
+ * Description:    DiskWriteQueue的队列部分：同一个键只保留一份，队列满时按溢出策略阻塞或丢弃，由线程池在后台逐个写入。
+ *                 不依赖Bitmap和磁盘缓存，可以在JVM上做单元测试
+ ****************************************************************************************************
+ */
+abstract class WriteBehindQueue<T> {
+
+    /**
+     * 一个等待写入的对象
+     */
+    private static final class PendingWrite<T> {
+        final String key;
+        final T value;
+        final long ttlMillis;
+
+        PendingWrite(String key, T value, long ttlMillis) {
+            this.key = key;
+            this.value = value;
+            this.ttlMillis = ttlMillis;
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final int mCapacity;
+    private final DiskWriteQueue.OverflowPolicy mOverflowPolicy;
+    //等待写入的对象，按进入队列的顺序排列，键相同的合并为一个
+    private final LinkedHashMap<String, PendingWrite<T>> mPending = new LinkedHashMap<>();
+    //正在写入的对象
+    private PendingWrite<T> mWriting;
+    //后台线程是否已在处理队列
+    private boolean mDrainScheduled;
+    private int mDroppedCount;
+    private boolean shutdown;
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param executor       执行写入的线程池，同一时间只会有一个写入任务
+     * @param capacity       最多等待写入的对象数
+     * @param overflowPolicy 队列满时的处理方式
+     */
+    WriteBehindQueue(ExecutorService executor, int capacity, DiskWriteQueue.OverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        this.mExecutor = executor;
+        this.mCapacity = capacity;
+        this.mOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * 在后台线程写入一个对象
+     */
+    abstract void write(String key, T value, long ttlMillis);
+
+    /**
+     * 把对象加入写入队列，立即返回（BLOCK策略在队列满时等待）
+     *
+     * @return 对象是否进入了队列（或已在队列中），被丢弃时返回false
+     */
+    synchronized boolean enqueue(String key, T value, long ttlMillis) {
+        if (shutdown) {
+            return false;
+        }
+        //同一个键已经在等待或正在写入，只写一次
+        if (mPending.containsKey(key) || (mWriting != null && mWriting.key.equals(key))) {
+            return true;
+        }
+        while (mPending.size() >= mCapacity) {
+            if (mOverflowPolicy == DiskWriteQueue.OverflowPolicy.DROP_NEWEST) {
+                mDroppedCount++;
+                return false;
+            } else if (mOverflowPolicy == DiskWriteQueue.OverflowPolicy.DROP_OLDEST) {
+                Iterator<String> iterator = mPending.keySet().iterator();
+                iterator.next();
+                iterator.remove();
+                mDroppedCount++;
+            } else {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mDroppedCount++;
+                    return false;
+                }
+                if (shutdown) {
+                    return false;
+                }
+            }
+        }
+        mPending.put(key, new PendingWrite<>(key, value, ttlMillis));
+        if (!mDrainScheduled) {
+            mDrainScheduled = true;
+            mExecutor.execute(mDrainRunnable);
+        }
+        return true;
+    }
+
+    /**
+     * @return 等待或正在写入的对象，没有时返回null
+     */
+    synchronized T getPending(String key) {
+        PendingWrite<T> write = mPending.get(key);
+        if (write == null && mWriting != null && mWriting.key.equals(key)) {
+            write = mWriting;
+        }
+        return write == null ? null : write.value;
+    }
+
+    synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    synchronized int size() {
+        return mPending.size();
+    }
+
+    /**
+     * 等待队列中的对象全部写入
+     */
+    synchronized void flush() throws InterruptedException {
+        while (mDrainScheduled) {
+            wait();
+        }
+    }
+
+    /**
+     * 停止接收新的对象，已在队列中的对象仍会写完
+     */
+    synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+        mExecutor.shutdown();
+    }
+
+    private void drain() {
+        boolean drained = false;
+        try {
+            while (true) {
+                PendingWrite<T> write;
+                synchronized (this) {
+                    Iterator<PendingWrite<T>> iterator = mPending.values().iterator();
+                    if (!iterator.hasNext()) {
+                        mDrainScheduled = false;
+                        drained = true;
+                        notifyAll();
+                        return;
+                    }
+                    write = iterator.next();
+                    iterator.remove();
+                    mWriting = write;
+                    //唤醒因队列满而阻塞的线程
+                    notifyAll();
+                }
+                try {
+                    write(write.key, write.value, write.ttlMillis);
+                } finally {
+                    synchronized (this) {
+                        mWriting = null;
+                    }
+                }
+            }
+        } finally {
+            if (!drained) {
+                //write()抛出Error（例如压缩时内存不足）时也要复位，否则flush()一直等待，之后的对象也不会再调度写入
+                synchronized (this) {
+                    mDrainScheduled = false;
+                    if (!mPending.isEmpty()) {
+                        if (mExecutor.isShutdown()) {
+                            //已经停止，不能再调度，剩下的对象算作丢弃
+                            mDroppedCount += mPending.size();
+                            mPending.clear();
+                        } else {
+                            //剩下的对象由线程池换一个线程继续写入
+                            mDrainScheduled = true;
+                            mExecutor.execute(mDrainRunnable);
+                        }
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
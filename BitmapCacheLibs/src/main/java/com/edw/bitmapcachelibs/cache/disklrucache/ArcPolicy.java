@@ -0,0 +1,185 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Adaptive replacement: entries seen once ({@code t1}) and entries seen again
+ * ({@code t2}) are kept in separate LRU lists, and the share of the cache
+ * given to each adapts to the workload. The keys of recently evicted entries
+ * are remembered in ghost lists {@code b1} and {@code b2}; an entry that is
+ * published again while its key is in {@code b1} shows that {@code t1} is too
+ * small, and in {@code b2} that {@code t2} is. This variant measures the lists
+ * in bytes instead of entries.
+ */
+public final class ArcPolicy implements EvictionPolicy {
+  /** Least recently used first. Values are entry sizes. */
+  private final LinkedHashMap<String, Long> t1 = new LinkedHashMap<String, Long>();
+  private final LinkedHashMap<String, Long> t2 = new LinkedHashMap<String, Long>();
+  private final LinkedHashMap<String, Long> b1 = new LinkedHashMap<String, Long>();
+  private final LinkedHashMap<String, Long> b2 = new LinkedHashMap<String, Long>();
+  private long t1Size;
+  private long b1Size;
+  private long b2Size;
+  private long maxSize;
+
+  /** The number of bytes {@code t1} should hold. */
+  private long target;
+
+  public static final Factory FACTORY = new Factory() {
+    @Override public EvictionPolicy create() {
+      return new ArcPolicy();
+    }
+  };
+
+  @Override public void setMaxSize(long maxSize) {
+    this.maxSize = maxSize;
+    target = Math.min(target, maxSize);
+    trimGhosts();
+  }
+
+  @Override public void onAdd(String key, long size, int frequency) {
+    Long ghost = b1.remove(key);
+    if (ghost != null) {
+      b1Size -= ghost;
+      // A hit in b1: t1 was evicted too early.
+      long delta = Math.max(size, b1Size > 0 ? size * b2Size / b1Size : size);
+      target = Math.min(maxSize, target + delta);
+      t2.put(key, size);
+      return;
+    }
+    ghost = b2.remove(key);
+    if (ghost != null) {
+      b2Size -= ghost;
+      long delta = Math.max(size, b2Size > 0 ? size * b1Size / b2Size : size);
+      target = Math.max(0, target - delta);
+      t2.put(key, size);
+      return;
+    }
+    if (frequency > 1) {
+      t2.put(key, size);
+    } else {
+      t1.put(key, size);
+      t1Size += size;
+    }
+  }
+
+  @Override public void onAccess(String key) {
+    Long size = t1.remove(key);
+    if (size != null) {
+      t1Size -= size;
+    } else {
+      size = t2.remove(key);
+      if (size == null) {
+        return;
+      }
+    }
+    t2.put(key, size);
+  }
+
+  @Override public void onUpdate(String key, long size) {
+    remove(key);
+    t2.put(key, size);
+  }
+
+  @Override public void onRemove(String key) {
+    remove(key);
+  }
+
+  @Override public void onEvict(String key) {
+    Long size = t1.remove(key);
+    if (size != null) {
+      t1Size -= size;
+      b1.put(key, size);
+      b1Size += size;
+    } else {
+      size = t2.remove(key);
+      if (size == null) {
+        return;
+      }
+      b2.put(key, size);
+      b2Size += size;
+    }
+    trimGhosts();
+  }
+
+  private void remove(String key) {
+    Long size = t1.remove(key);
+    if (size != null) {
+      t1Size -= size;
+    } else {
+      t2.remove(key);
+    }
+  }
+
+  /**
+   * Forgets the oldest evicted keys so that {@code t1} and {@code b1} together,
+   * and both ghost lists together, describe at most one cache's worth.
+   */
+  private void trimGhosts() {
+    trimGhosts(b1, true, t1Size + b1Size - maxSize);
+    trimGhosts(b2, false, b1Size + b2Size - maxSize);
+  }
+
+  private void trimGhosts(LinkedHashMap<String, Long> ghosts, boolean isB1, long excess) {
+    for (Iterator<Map.Entry<String, Long>> i = ghosts.entrySet().iterator();
+        excess > 0 && i.hasNext(); ) {
+      long size = i.next().getValue();
+      i.remove();
+      excess -= size;
+      if (isB1) {
+        b1Size -= size;
+      } else {
+        b2Size -= size;
+      }
+    }
+  }
+
+  /**
+   * Takes from {@code t1} while it holds more than its target, then from
+   * {@code t2}, and from the other list once one runs out.
+   */
+  @Override public Iterator<String> victims() {
+    final Iterator<Map.Entry<String, Long>> first = t1.entrySet().iterator();
+    final Iterator<String> second = t2.keySet().iterator();
+    return new Iterator<String>() {
+      long remainingT1 = t1Size;
+
+      @Override public boolean hasNext() {
+        return first.hasNext() || second.hasNext();
+      }
+
+      @Override public String next() {
+        if (first.hasNext() && (remainingT1 > target || !second.hasNext())) {
+          Map.Entry<String, Long> entry = first.next();
+          remainingT1 -= entry.getValue();
+          return entry.getKey();
+        }
+        if (second.hasNext()) {
+          return second.next();
+        }
+        throw new NoSuchElementException();
+      }
+
+      @Override public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
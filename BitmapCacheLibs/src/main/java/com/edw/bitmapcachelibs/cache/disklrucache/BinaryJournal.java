@@ -0,0 +1,531 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * The compact journal format. A binary journal looks like this:
+ *
+ * <pre>
+ *     89 'D' 'L' 'R' 'U' 0d 0a 1a     magic
+ *     varint                          format version
+ *     varint                          application version
+ *     varint                          value count
+ *     record*
+ * </pre>
+ *
+ * Every record is a varint length followed by that many bytes: a one byte
+ * type and a type-specific payload. Keys are stored once per journal in a
+ * {@code KEY} record that assigns them the next sequential id; every other
+ * record refers to its key by that id.
+ * <ul>
+ * <li>{@code KEY id utf8-bytes}
+ * <li>{@code CLEAN id length...} with one varint length per value
+ * <li>{@code PACKED id (length segment [offset])...}, a {@code CLEAN} record
+ *     for an entry with values in pack files. The segment is 0 for a value
+ *     in its own file, or its pack segment plus one followed by the offset.
+ * <li>{@code EXPIRING id expires-at (length segment [offset])...}, a {@code
+ *     PACKED} record for an entry that expires, in milliseconds since the
+ *     epoch.
+ * <li>{@code DIRTY id}, {@code REMOVE id} and {@code READ id}
+ * <li>{@code READS count id...}, a checkpoint of accesses in LRU order
+ * <li>{@code REMOVES count id...}, a batch of evicted entries
+ * </ul>
+ * A record cut short by a crash is detected through its length prefix and
+ * treated like an unterminated line in the text format. A record that can't
+ * be decoded is skipped over by its length prefix; reading stops at a length
+ * prefix that is itself corrupt.
+ */
+final class BinaryJournal {
+  static final byte[] MAGIC = {(byte) 0x89, 'D', 'L', 'R', 'U', '\r', '\n', 0x1a};
+  static final int VERSION = 2;
+
+  static final int END = -1;
+  static final int KEY = 1;
+  static final int CLEAN = 2;
+  static final int DIRTY = 3;
+  static final int REMOVE = 4;
+  static final int READ = 5;
+  static final int READS = 6;
+  static final int PACKED = 7;
+  static final int REMOVES = 8;
+  static final int EXPIRING = 9;
+
+  private BinaryJournal() {
+  }
+
+  /** Returns true if {@code file} starts with the binary journal magic. */
+  static boolean isBinary(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] magic = new byte[MAGIC.length];
+      int count = 0;
+      while (count < magic.length) {
+        int read = in.read(magic, count, magic.length - count);
+        if (read == -1) {
+          return false;
+        }
+        count += read;
+      }
+      return Arrays.equals(magic, MAGIC);
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Decodes records one at a time without allocating per record. */
+  static final class Reader implements Closeable {
+    private final InputStream in;
+    private final byte[] buf = new byte[8192];
+    private int pos;
+    private int end;
+
+    private byte[] body = new byte[256];
+    private int bodyPos;
+    private int bodyEnd;
+
+    /** Keys by id. A null key was defined by a record that was corrupt. */
+    private final ArrayList<String> keys = new ArrayList<String>();
+    private boolean truncated;
+    private int corruptRecords;
+
+    /** The key of the last record returned by {@link #next}. */
+    String key;
+
+    /**
+     * The value lengths, {@link PackStore} locations and expiry time of the
+     * last {@link #CLEAN} record.
+     */
+    long[] lengths;
+    long[] locations;
+    long expiresAt;
+
+    /**
+     * The keys of the last {@link #READS} or {@link #REMOVES} record are the
+     * first {@code batchCount} of these.
+     */
+    String[] batchKeys = new String[16];
+    int batchCount;
+
+    Reader(InputStream in) {
+      this.in = in;
+    }
+
+    /** Reads and validates the header. */
+    void readHeader(int appVersion, int valueCount) throws IOException {
+      for (byte b : MAGIC) {
+        if (readByte() != (b & 0xff)) {
+          throw new IOException("unexpected journal magic");
+        }
+      }
+      long version = readVarint();
+      long appVersionRead = readVarint();
+      long valueCountRead = readVarint();
+      if (version != VERSION || appVersionRead != appVersion || valueCountRead != valueCount) {
+        throw new IOException("unexpected journal header: [" + version + ", " + appVersionRead
+            + ", " + valueCountRead + "]");
+      }
+      lengths = new long[valueCount];
+      locations = new long[valueCount];
+    }
+
+    /**
+     * Prepares to read records from the middle of a journal, as if the header
+     * and the records defining {@code keys} had just been read.
+     */
+    void resume(int valueCount, String[] keys) {
+      this.keys.addAll(Arrays.asList(keys));
+      lengths = new long[valueCount];
+      locations = new long[valueCount];
+    }
+
+    /**
+     * Advances to the next entry record and returns its type, or {@link #END}
+     * when the journal is exhausted. Key definitions are consumed here.
+     */
+    int next() throws IOException {
+      while (true) {
+        if (!readRecord()) {
+          return END;
+        }
+        try {
+          int type = decodeRecord();
+          if (type != KEY) {
+            return type;
+          }
+        } catch (IOException e) {
+          corruptRecords++; // Salvage the records around it.
+        }
+      }
+    }
+
+    private int decodeRecord() throws IOException {
+      int type = body[bodyPos++];
+      if (type == KEY) {
+        long id = bodyVarint();
+        if (id < keys.size() || id > Integer.MAX_VALUE) {
+          throw new IOException("unexpected key id " + id + ", expected " + keys.size());
+        }
+        while (keys.size() < id) {
+          keys.add(null); // Lost with a corrupt record.
+        }
+        String string = new String(body, bodyPos, bodyEnd - bodyPos, Util.UTF_8);
+        if (!DiskLruCache.isLegalKey(string)) {
+          keys.add(null); // Records using this id are skipped too.
+          throw new IOException("unexpected key: " + string);
+        }
+        keys.add(string);
+        return KEY;
+      }
+
+      if (type == READS || type == REMOVES) {
+        long count = bodyVarint();
+        if (count > bodyEnd - bodyPos) {
+          throw new IOException("unexpected journal record length for type " + type);
+        }
+        batchCount = (int) count;
+        if (batchKeys.length < batchCount) {
+          batchKeys = new String[batchCount];
+        }
+        for (int i = 0; i < batchCount; i++) {
+          batchKeys[i] = key(bodyVarint());
+        }
+        key = null;
+      } else {
+        key = key(bodyVarint());
+      }
+      switch (type) {
+        case CLEAN:
+          for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = bodyVarint();
+            locations[i] = PackStore.LOOSE;
+          }
+          expiresAt = 0;
+          break;
+        case PACKED:
+        case EXPIRING:
+          expiresAt = type == EXPIRING ? bodyVarint() : 0;
+          for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = bodyVarint();
+            long segment = bodyVarint();
+            locations[i] = segment == 0
+                ? PackStore.LOOSE
+                : PackStore.location((int) (segment - 1), bodyVarint());
+          }
+          type = CLEAN;
+          break;
+        case DIRTY:
+        case REMOVE:
+        case READ:
+        case READS:
+        case REMOVES:
+          break;
+        default:
+          throw new IOException("unexpected journal record type " + type);
+      }
+      if (bodyPos != bodyEnd) {
+        throw new IOException("unexpected journal record length for type " + type);
+      }
+      return type;
+    }
+
+    private String key(long id) throws IOException {
+      if (id < 0 || id >= keys.size() || keys.get((int) id) == null) {
+        throw new IOException("unknown key id " + id);
+      }
+      return keys.get((int) id);
+    }
+
+    /** Returns true if the journal ended in the middle of a record. */
+    boolean isTruncated() {
+      return truncated;
+    }
+
+    /** Returns the number of records that were skipped because they were corrupt. */
+    int corruptRecords() {
+      return corruptRecords;
+    }
+
+    /** Returns the ids of the keys defined so far, for appending to this journal. */
+    HashMap<String, Integer> keyIds() {
+      HashMap<String, Integer> keyIds = new HashMap<String, Integer>(keys.size() * 4 / 3 + 1);
+      for (int i = 0, size = keys.size(); i < size; i++) {
+        if (keys.get(i) != null) {
+          keyIds.put(keys.get(i), i);
+        }
+      }
+      return keyIds;
+    }
+
+    private boolean readRecord() throws IOException {
+      if (pos == end && !fill()) {
+        return false; // Clean end of journal.
+      }
+      long length;
+      try {
+        length = readVarint();
+      } catch (EOFException e) {
+        truncated = true;
+        return false;
+      } catch (IOException e) {
+        length = -1; // Malformed.
+      }
+      if (length <= 0 || length > Integer.MAX_VALUE) {
+        // The following records can't be found anymore.
+        corruptRecords++;
+        truncated = true;
+        return false;
+      }
+      int size = (int) length;
+      if (body.length < size) {
+        body = new byte[Math.max(size, body.length * 2)];
+      }
+      int count = 0;
+      while (count < size) {
+        if (pos == end && !fill()) {
+          truncated = true;
+          return false;
+        }
+        int chunk = Math.min(size - count, end - pos);
+        System.arraycopy(buf, pos, body, count, chunk);
+        pos += chunk;
+        count += chunk;
+      }
+      bodyPos = 0;
+      bodyEnd = size;
+      return true;
+    }
+
+    private boolean fill() throws IOException {
+      int read = in.read(buf, 0, buf.length);
+      if (read == -1) {
+        return false;
+      }
+      pos = 0;
+      end = read;
+      return true;
+    }
+
+    private int readByte() throws IOException {
+      if (pos == end && !fill()) {
+        throw new EOFException();
+      }
+      return buf[pos++] & 0xff;
+    }
+
+    private long readVarint() throws IOException {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = readByte();
+        result |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return result;
+        }
+      }
+      throw new IOException("malformed varint");
+    }
+
+    private long bodyVarint() throws IOException {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (bodyPos == bodyEnd) {
+          throw new IOException("unexpected end of journal record");
+        }
+        int b = body[bodyPos++] & 0xff;
+        result |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return result;
+        }
+      }
+      throw new IOException("malformed varint");
+    }
+
+    @Override public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /** Encodes each record in a scratch buffer and appends it in one piece. */
+  static final class Writer extends JournalWriter {
+    /** Room reserved in front of a record for its varint length. */
+    private static final int PREFIX_SPACE = 5;
+
+    private final HashMap<String, Integer> keyIds;
+    private int nextKeyId;
+
+    private byte[] record = new byte[64];
+    private int recordLength;
+
+    Writer(FileOutputStream out, long start, HashMap<String, Integer> keyIds) {
+      super(out, start);
+      this.keyIds = keyIds;
+      this.nextKeyId = keyIds.size();
+    }
+
+    @Override void writeHeader(int appVersion, int valueCount) throws IOException {
+      recordLength = 0;
+      ensureRecordCapacity(MAGIC.length);
+      System.arraycopy(MAGIC, 0, record, 0, MAGIC.length);
+      recordLength = MAGIC.length;
+      putVarint(VERSION);
+      putVarint(appVersion);
+      putVarint(valueCount);
+      append(record, 0, recordLength);
+    }
+
+    @Override void writeClean(String key, long[] lengths, long[] locations, long expiresAt)
+        throws IOException {
+      int id = keyId(key);
+      boolean packed = expiresAt != 0;
+      for (long location : locations) {
+        packed |= location != PackStore.LOOSE;
+      }
+      beginRecord(expiresAt != 0 ? EXPIRING : packed ? PACKED : CLEAN);
+      putVarint(id);
+      if (expiresAt != 0) {
+        putVarint(expiresAt);
+      }
+      for (int i = 0; i < lengths.length; i++) {
+        putVarint(lengths[i]);
+        if (packed) {
+          if (locations[i] == PackStore.LOOSE) {
+            putVarint(0);
+          } else {
+            putVarint(PackStore.segment(locations[i]) + 1L);
+            putVarint(PackStore.offset(locations[i]));
+          }
+        }
+      }
+      endRecord();
+    }
+
+    @Override void writeDirty(String key) throws IOException {
+      writeKeyRecord(DIRTY, key);
+    }
+
+    @Override void writeRemove(String key) throws IOException {
+      writeKeyRecord(REMOVE, key);
+    }
+
+    @Override void writeRead(String key) throws IOException {
+      writeKeyRecord(READ, key);
+    }
+
+    @Override int writeReads(Collection<String> keys) throws IOException {
+      return writeBatch(READS, keys);
+    }
+
+    @Override int writeRemoves(Collection<String> keys) throws IOException {
+      return writeBatch(REMOVES, keys);
+    }
+
+    private int writeBatch(int type, Collection<String> keys) throws IOException {
+      if (keys.isEmpty()) {
+        return 0;
+      }
+      // Define any new keys first so that the batch itself is a single record.
+      int[] ids = new int[keys.size()];
+      int count = 0;
+      for (String key : keys) {
+        ids[count++] = keyId(key);
+      }
+      beginRecord(type);
+      putVarint(count);
+      for (int i = 0; i < count; i++) {
+        putVarint(ids[i]);
+      }
+      endRecord();
+      return 1;
+    }
+
+    @Override HashMap<String, Integer> keyIds() {
+      return keyIds;
+    }
+
+    private void writeKeyRecord(int type, String key) throws IOException {
+      int id = keyId(key);
+      beginRecord(type);
+      putVarint(id);
+      endRecord();
+    }
+
+    /** Returns the id for {@code key}, defining it in the journal if necessary. */
+    private int keyId(String key) throws IOException {
+      Integer id = keyIds.get(key);
+      if (id != null) {
+        return id;
+      }
+      int newId = nextKeyId++;
+      byte[] bytes = key.getBytes(Util.UTF_8);
+      beginRecord(KEY);
+      putVarint(newId);
+      ensureRecordCapacity(bytes.length);
+      System.arraycopy(bytes, 0, record, recordLength, bytes.length);
+      recordLength += bytes.length;
+      endRecord();
+      keyIds.put(key, newId);
+      return newId;
+    }
+
+    private void beginRecord(int type) {
+      recordLength = PREFIX_SPACE;
+      record[recordLength++] = (byte) type;
+    }
+
+    /** Writes the length in front of the record and appends both together. */
+    private void endRecord() throws IOException {
+      int length = recordLength - PREFIX_SPACE;
+      int prefixLength = 1;
+      for (int v = length >>> 7; v != 0; v >>>= 7) {
+        prefixLength++;
+      }
+      int start = PREFIX_SPACE - prefixLength;
+      int pos = start;
+      int value = length;
+      while ((value & ~0x7f) != 0) {
+        record[pos++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      record[pos] = (byte) value;
+      append(record, start, prefixLength + length);
+    }
+
+    private void putVarint(long value) {
+      ensureRecordCapacity(10);
+      while ((value & ~0x7fL) != 0) {
+        record[recordLength++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      record[recordLength++] = (byte) value;
+    }
+
+    private void ensureRecordCapacity(int extra) {
+      if (recordLength + extra > record.length) {
+        record = Arrays.copyOf(record, Math.max(recordLength + extra, record.length * 2));
+      }
+    }
+  }
+}
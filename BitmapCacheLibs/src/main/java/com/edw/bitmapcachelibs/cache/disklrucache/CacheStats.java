@@ -0,0 +1,298 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.util.Locale;
+
+/**
+ * The counters and latencies of a {@link DiskLruCache} since it was opened,
+ * as returned by {@link DiskLruCache#stats}. Statistics are only recorded
+ * when enabled with {@link DiskLruCache.Options#setRecordStats}; otherwise
+ * all of them are 0. The counters are read one by one while the cache is in
+ * use, so they needn't be consistent with each other to the last operation.
+ */
+public final class CacheStats {
+  /** The operations whose latency is recorded. */
+  public enum Operation {
+    /** {@link DiskLruCache#get}, including the wait for the cache lock. */
+    GET,
+    /** {@link DiskLruCache#edit} and {@link DiskLruCache.Snapshot#edit}. */
+    EDIT,
+    /** {@link DiskLruCache.Editor#commit}, including the wait until it is durable. */
+    COMMIT,
+    /** {@link DiskLruCache#remove}. */
+    REMOVE,
+    /** Rewriting the journal without its redundant records. */
+    REBUILD,
+    /** Waiting for the cache lock in any of the above but rebuilds. */
+    LOCK_WAIT
+  }
+
+  /**
+   * A histogram of latencies. Buckets are a quarter of a power of two wide,
+   * so percentiles are accurate to within 25%.
+   */
+  public static final class Latency {
+    /** Values below 2^MIN_SHIFT nanoseconds share the first bucket. */
+    static final int MIN_SHIFT = 6;
+    static final int SUB_BUCKETS = 4;
+    /** Up to 2^40 nanoseconds, about 18 minutes; the last bucket holds longer ones. */
+    static final int BUCKET_COUNT = 1 + (40 - MIN_SHIFT) * SUB_BUCKETS;
+
+    private final long[] counts;
+    private final long count;
+    private final long totalNanos;
+
+    Latency(long[] counts, long totalNanos) {
+      this.counts = counts;
+      long count = 0;
+      for (long c : counts) {
+        count += c;
+      }
+      this.count = count;
+      this.totalNanos = totalNanos;
+    }
+
+    /** Returns the bucket of a latency of {@code nanos}. */
+    static int bucket(long nanos) {
+      if (nanos < (1L << MIN_SHIFT)) {
+        return 0;
+      }
+      int log = 63 - Long.numberOfLeadingZeros(nanos);
+      int sub = (int) (nanos >>> (log - 2)) & (SUB_BUCKETS - 1);
+      return Math.min(1 + (log - MIN_SHIFT) * SUB_BUCKETS + sub, BUCKET_COUNT - 1);
+    }
+
+    /** Returns the smallest latency that falls past bucket {@code bucket}. */
+    static long upperBound(int bucket) {
+      if (bucket == 0) {
+        return 1L << MIN_SHIFT;
+      }
+      int log = (bucket - 1) / SUB_BUCKETS + MIN_SHIFT;
+      int sub = (bucket - 1) % SUB_BUCKETS;
+      return (long) (SUB_BUCKETS + sub + 1) << (log - 2);
+    }
+
+    /** Returns how many operations were recorded. */
+    public long count() {
+      return count;
+    }
+
+    public long totalNanos() {
+      return totalNanos;
+    }
+
+    /** Returns the mean latency, or 0 if none was recorded. */
+    public long meanNanos() {
+      return count == 0 ? 0 : totalNanos / count;
+    }
+
+    /**
+     * Returns an upper bound of the latency that {@code percentile} percent
+     * of the operations didn't exceed, or 0 if none was recorded.
+     */
+    public long percentileNanos(double percentile) {
+      if (percentile < 0 || percentile > 100) {
+        throw new IllegalArgumentException("percentile must be between 0 and 100");
+      }
+      long rank = (long) Math.ceil(count * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank && seen > 0) {
+          return upperBound(i);
+        }
+      }
+      return 0;
+    }
+
+    Latency plus(Latency other) {
+      long[] sum = new long[counts.length];
+      for (int i = 0; i < sum.length; i++) {
+        sum[i] = counts[i] + other.counts[i];
+      }
+      return new Latency(sum, totalNanos + other.totalNanos);
+    }
+
+    @Override public String toString() {
+      return "{count=" + count + ", mean=" + meanNanos() / 1000 + "us, p50="
+          + percentileNanos(50) / 1000 + "us, p99=" + percentileNanos(99) / 1000 + "us}";
+    }
+  }
+
+  private final long hitCount;
+  private final long missCount;
+  private final long bytesRead;
+  private final long bytesWritten;
+  private final long abortCount;
+  private final long evictionCount;
+  private final long evictedBytes;
+  private final long expirationCount;
+  private final long corruptRecordCount;
+  private final long droppedEntryCount;
+  private final long migratedFileCount;
+  private final long discardedJournalCount;
+  private final Latency[] latencies;
+
+  CacheStats(long hitCount, long missCount, long bytesRead, long bytesWritten, long abortCount,
+      long evictionCount, long evictedBytes, long expirationCount, long corruptRecordCount,
+      long droppedEntryCount, long migratedFileCount, long discardedJournalCount,
+      Latency[] latencies) {
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.bytesRead = bytesRead;
+    this.bytesWritten = bytesWritten;
+    this.abortCount = abortCount;
+    this.evictionCount = evictionCount;
+    this.evictedBytes = evictedBytes;
+    this.expirationCount = expirationCount;
+    this.corruptRecordCount = corruptRecordCount;
+    this.droppedEntryCount = droppedEntryCount;
+    this.migratedFileCount = migratedFileCount;
+    this.discardedJournalCount = discardedJournalCount;
+    this.latencies = latencies;
+  }
+
+  /** Returns how many times {@link DiskLruCache#get} returned a snapshot. */
+  public long hitCount() {
+    return hitCount;
+  }
+
+  /** Returns how many times {@link DiskLruCache#get} returned null. */
+  public long missCount() {
+    return missCount;
+  }
+
+  public long requestCount() {
+    return hitCount + missCount;
+  }
+
+  /** Returns the ratio of hits to requests, or 1 if there were no requests. */
+  public double hitRate() {
+    long requestCount = requestCount();
+    return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+  }
+
+  /** Returns the total length of the values that snapshots opened. */
+  public long bytesRead() {
+    return bytesRead;
+  }
+
+  /** Returns the total length of the values that commits published. */
+  public long bytesWritten() {
+    return bytesWritten;
+  }
+
+  /** Returns how many edits were aborted, or failed to commit. */
+  public long abortCount() {
+    return abortCount;
+  }
+
+  /** Returns how many entries were evicted to stay within the maximum size. */
+  public long evictionCount() {
+    return evictionCount;
+  }
+
+  /** Returns the total size of the entries that were evicted or expired. */
+  public long evictedBytes() {
+    return evictedBytes;
+  }
+
+  /** Returns how many entries were dropped because their time to live ended. */
+  public long expirationCount() {
+    return expirationCount;
+  }
+
+  /** Returns how many corrupt journal records were skipped while opening the cache. */
+  public long corruptRecordCount() {
+    return corruptRecordCount;
+  }
+
+  /**
+   * Returns how many entries were dropped while opening the cache because
+   * their journal records were corrupt or their files were missing.
+   */
+  public long droppedEntryCount() {
+    return droppedEntryCount;
+  }
+
+  /**
+   * Returns how many value files were moved while opening the cache because
+   * they were stored with other directory levels.
+   */
+  public long migratedFileCount() {
+    return migratedFileCount;
+  }
+
+  /**
+   * Returns how many times the cache couldn't be read while opening it, such
+   * as because of an unexpected journal header, and its contents were
+   * deleted instead.
+   */
+  public long discardedJournalCount() {
+    return discardedJournalCount;
+  }
+
+  public Latency latency(Operation operation) {
+    return latencies[operation.ordinal()];
+  }
+
+  /** Returns the sum of these statistics and {@code other}, such as those of another shard. */
+  public CacheStats plus(CacheStats other) {
+    Latency[] sum = new Latency[latencies.length];
+    for (int i = 0; i < sum.length; i++) {
+      sum[i] = latencies[i].plus(other.latencies[i]);
+    }
+    return new CacheStats(hitCount + other.hitCount, missCount + other.missCount,
+        bytesRead + other.bytesRead, bytesWritten + other.bytesWritten,
+        abortCount + other.abortCount, evictionCount + other.evictionCount,
+        evictedBytes + other.evictedBytes, expirationCount + other.expirationCount,
+        corruptRecordCount + other.corruptRecordCount,
+        droppedEntryCount + other.droppedEntryCount,
+        migratedFileCount + other.migratedFileCount,
+        discardedJournalCount + other.discardedJournalCount, sum);
+  }
+
+  /**
+   * Returns these statistics without the misses, such as those of a tier
+   * whose misses are looked up in another one.
+   */
+  CacheStats withoutMisses() {
+    return new CacheStats(hitCount, 0, bytesRead, bytesWritten, abortCount, evictionCount,
+        evictedBytes, expirationCount, corruptRecordCount, droppedEntryCount, migratedFileCount,
+        discardedJournalCount, latencies);
+  }
+
+  @Override public String toString() {
+    StringBuilder result = new StringBuilder()
+        .append("CacheStats{hits=").append(hitCount)
+        .append(", misses=").append(missCount)
+        .append(", bytesRead=").append(bytesRead)
+        .append(", bytesWritten=").append(bytesWritten)
+        .append(", aborts=").append(abortCount)
+        .append(", evictions=").append(evictionCount)
+        .append(", evictedBytes=").append(evictedBytes)
+        .append(", expirations=").append(expirationCount)
+        .append(", corruptRecords=").append(corruptRecordCount)
+        .append(", droppedEntries=").append(droppedEntryCount)
+        .append(", migratedFiles=").append(migratedFileCount)
+        .append(", discardedJournals=").append(discardedJournalCount);
+    for (Operation operation : Operation.values()) {
+      result.append(", ").append(operation.name().toLowerCase(Locale.US))
+          .append('=').append(latencies[operation.ordinal()]);
+    }
+    return result.append('}').toString();
+  }
+}
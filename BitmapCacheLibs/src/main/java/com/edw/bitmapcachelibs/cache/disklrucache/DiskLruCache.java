@@ -16,10 +16,10 @@
 
 package com.edw.bitmapcachelibs.cache.disklrucache;
 
-import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -27,38 +27,53 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.Callable;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A cache that uses a bounded amount of space on a filesystem. Each cache
  * entry has a string key and a fixed number of values. Each key must match
- * the regex <strong>[a-z0-9_-]{1,120}</strong>. Values are byte sequences,
+ * the regex <strong>[a-z0-9_-]{1,120}</strong>, unless the cache hashes its
+ * keys; see {@link Options#setHashKeys}. Values are byte sequences,
  * accessible as streams or files. Each value must be between {@code 0} and
  * {@code Integer.MAX_VALUE} bytes in length.
  *
  * <p>The cache stores its data in a directory on the filesystem. This
  * directory must be exclusive to the cache; the cache may delete or overwrite
  * files from its directory. It is an error for multiple processes to use the
- * same cache directory at the same time.
+ * same cache directory at the same time, unless all of them opened it with
+ * {@link Options#setMultiProcess}.
  *
  * <p>This cache limits the number of bytes that it will store on the
  * filesystem. When the number of stored bytes exceeds the limit, the cache will
- * remove entries in the background until the limit is satisfied. The limit is
- * not strict: the cache may temporarily exceed it while waiting for files to be
- * deleted. The limit does not include filesystem overhead or the cache
- * journal so space-sensitive applications should set a conservative limit.
+ * remove entries in the background, in one batch, until the size is back under
+ * a lower watermark (see {@link Options#setEvictionWatermarks}). Entries are
+ * evicted least recently used first unless an {@link EvictionPolicy} is set
+ * with {@link Options#setEvictionPolicy}. The limit is not strict: the cache
+ * may temporarily exceed it while waiting for files to be deleted. The limit
+ * does not include filesystem overhead or the cache journal so
+ * space-sensitive applications should set a conservative limit.
  *
  * <p>Clients call {@link #edit} to create or update the values of an entry. An
  * entry may have only one editor at one time; if a value is not available to be
@@ -81,6 +96,9 @@ import java.util.regex.Pattern;
  *
  * <p>This class is tolerant of some I/O errors. If files are missing from the
  * filesystem, the corresponding entries will be dropped from the cache. If
+ * records of the journal are corrupt, they are skipped and the entries they
+ * described are recovered from their files where possible; only a journal
+ * with an unexpected header clears the cache. If
  * an error occurs while writing a cache value, the edit will fail silently.
  * Callers should handle other problems by catching {@code IOException} and
  * responding appropriately.
@@ -92,12 +110,25 @@ public final class DiskLruCache implements Closeable {
   static final String MAGIC = "libcore.io.DiskLruCache";
   static final String VERSION_1 = "1";
   static final long ANY_SEQUENCE_NUMBER = -1;
+  static final int MAX_UNJOURNALED_READS = 2000;
   static final String STRING_KEY_PATTERN = "[a-z0-9_-]{1,120}";
-  static final Pattern LEGAL_KEY_PATTERN = Pattern.compile(STRING_KEY_PATTERN);
-  private static final String CLEAN = "CLEAN";
-  private static final String DIRTY = "DIRTY";
-  private static final String REMOVE = "REMOVE";
-  private static final String READ = "READ";
+  static final int MAX_KEY_LENGTH = 120;
+  static final String CLEAN = "CLEAN";
+  static final String DIRTY = "DIRTY";
+  static final String REMOVE = "REMOVE";
+  static final String READ = "READ";
+  static final String EXPIRES = "expires=";
+  static final String DIRTY_SUFFIX = ".tmp";
+  /** Records how many levels of subdirectories hold the value files. */
+  static final String LAYOUT_FILE = "layout";
+  static final int MAX_DIRECTORY_LEVELS = 4;
+  /** Locked by the processes that share a cache; see {@link ProcessLock}. */
+  static final String LOCK_FILE = "journal.lock";
+  static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+  /** The reads and commits after which an entry keeps its value files instead of rebuilding them. */
+  static final int HOT_FREQUENCY = 4;
+  /** The most bytes an editor moves with one {@link FileChannel#transferFrom} call. */
+  static final long TRANSFER_SIZE = 8 * 1024 * 1024;
 
     /*
      * This cache uses a journal file named "journal". A typical journal file
@@ -116,6 +147,9 @@ public final class DiskLruCache implements Closeable {
      *     READ 335c4c6028171cfddfbaae1a9c313c52
      *     READ 3400330d1dfc7f3f7f4b8d4d803dfcf6
      *
+     * Entries evicted together are logged as consecutive REMOVE lines, or as
+     * one REMOVES record in the binary format.
+     *
      * The first five lines of the journal form its header. They are the
      * constant string "libcore.io.DiskLruCache", the disk cache's version,
      * the application's version, the value count, and a blank line.
@@ -129,29 +163,122 @@ public final class DiskLruCache implements Closeable {
      *     temporary files may need to be deleted.
      *   o CLEAN lines track a cache entry that has been successfully published
      *     and may be read. A publish line is followed by the lengths of each of
-     *     its values.
-     *   o READ lines track accesses for LRU.
+     *     its values. The length of a value stored in a pack file is followed by
+     *     "@segment:offset", as in "CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832@0:4096".
+     *     The line of an entry that expires ends with "expires=" and the expiry
+     *     time in milliseconds since the epoch.
+     *   o READ lines track accesses for LRU. When reads aren't journaled (see
+     *     Options.setJournalReads()), accesses are instead logged periodically as
+     *     a batch of READ lines, or as one READS record in the binary format.
      *   o REMOVE lines track entries that have been deleted.
      *
      * The journal file is appended to as cache operations occur. The journal may
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * The cache may also checkpoint its entries to "journal.idx", as described
+     * on JournalIndex. Opening the cache then loads the checkpoint and replays
+     * only the journal records appended after it.
+     *
+     * The same records may instead be stored in the compact format described on
+     * BinaryJournal, selected with Options.setJournalFormat(). Either format is
+     * read on open; a journal in the other format is rewritten in the
+     * configured one before anything is appended to it.
+     *
+     * Caches opened with Options.setMultiProcess() share one text journal
+     * between processes, guarded by "journal.lock". Each process appends its
+     * records while holding the lock, and first applies those the others
+     * appended since it last held it. A DIRTY record of another process keeps
+     * the entry from being edited until the matching CLEAN or REMOVE record.
      */
 
   private final File directory;
   private final File journalFile;
   private final File journalFileTmp;
   private final File journalFileBackup;
+  private final File indexFile;
+  private final File indexFileTmp;
   private final int appVersion;
   private long maxSize;
   private final int valueCount;
+  private final JournalFormat journalFormat;
+  private final Durability durability;
+  private final long syncIntervalNanos;
+  private final boolean journalReads;
+  private final long readCheckpointIntervalNanos;
+  private final int packThreshold;
+  private final PackStore packStore;
+  private final float highWatermark;
+  private final float lowWatermark;
+  private final long indexCheckpointBytes;
+  /** Chooses the entries to evict, or null to evict in {@link #lruEntries} order. */
+  private final EvictionPolicy evictionPolicy;
+  private final long expirySweepIntervalMillis;
+  private final boolean hashKeys;
+  private final StatsCounter stats;
+  private final int directoryLevels;
+  /**
+   * Value file names are built from these, without formatting the value
+   * index each time: the path of each bucket directory with a trailing
+   * separator, and the suffix for each value index.
+   */
+  private final String[] bucketPrefixes;
+  private final String[] cleanSuffixes;
+  private final String[] dirtySuffixes;
   private long size = 0;
-  private Writer journalWriter;
-  private final LinkedHashMap<String, Entry> lruEntries =
-      new LinkedHashMap<String, Entry>(0, 0.75f, true);
+  private JournalWriter journalWriter;
+  private final EntryTable<Entry> lruEntries;
   private int redundantOpCount;
 
+  /** Coordinates with the other processes that share this cache, or null if it isn't shared. */
+  private ProcessLock processLock;
+  /** How many nested operations hold the journal lock. */
+  private int journalLockCount;
+  /** The end of the last journal record this process applied or appended. */
+  private long journalTail;
+  /** True while opening a cache that other processes have open. */
+  private boolean othersOpen;
+  /** Rebuilding the shared journal failed; don't retry before this many redundant records. */
+  private int rebuildRetryOpCount;
+
+  /**
+   * Keys read since the last read checkpoint, least recently read first. Only
+   * used when reads aren't journaled individually.
+   */
+  private final LinkedHashSet<String> unjournaledReads = new LinkedHashSet<String>();
+  private long lastReadCheckpointNanos = System.nanoTime();
+  private boolean readCheckpointScheduled;
+
+  /** No entry expires before this time, in milliseconds since the epoch. */
+  private long nextExpiry = Long.MAX_VALUE;
+  private long lastExpirySweepMillis;
+  private boolean expirySweepScheduled;
+
+  /**
+   * Keys of evicted entries whose files haven't been deleted yet, and those
+   * being deleted right now. An edit of such a key deletes or waits for the
+   * old files first, so that the deletion can't hit the new ones.
+   */
+  private final HashSet<String> pendingDeletes = new HashSet<String>();
+  private final HashSet<String> deletingKeys = new HashSet<String>();
+
+  /**
+   * Keys the eviction policy returned that {@link #lruEntries} doesn't hold.
+   * They are skipped, and the policy forgets them once the iteration is over.
+   */
+  private final ArrayList<String> staleVictims = new ArrayList<String>();
+
+  /** The journal position covered by the latest index checkpoint. */
+  private long indexPosition;
+  /** True from scheduling an index checkpoint until its file is in place. */
+  private boolean indexCheckpointScheduled;
+  /** Incremented whenever the journal is rebuilt, which invalidates index checkpoints. */
+  private int journalGeneration;
+
+  /** Notified whenever {@link #size} changes; null unless this cache is a shard. */
+  private SizeListener sizeListener;
+
   /**
    * To differentiate between old and current snapshots, each entry is given
    * a sequence number each time an edit is committed. A snapshot is stale if
@@ -159,9 +286,99 @@ public final class DiskLruCache implements Closeable {
    */
   private long nextSequenceNumber = 0;
 
-  /** This cache uses a single background thread to evict entries. */
-  final ThreadPoolExecutor executorService =
-      new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+  /** Runs the background work of this cache, and maybe of others. */
+  private final MaintenanceScheduler scheduler;
+  /** True if the scheduler was created for this cache and is shut down with it. */
+  private final boolean ownsScheduler;
+  private final AtomicBoolean journalFlushScheduled = new AtomicBoolean();
+  private final Callable<Void> journalFlushCallable = new Callable<Void>() {
+    @Override
+    public Void call() throws Exception {
+      journalFlushScheduled.set(false);
+      JournalWriter writer;
+      synchronized (DiskLruCache.this) {
+        if (journalWriter == null) {
+          return null; // Closed.
+        }
+        writer = journalWriter;
+      }
+      long position = writer.position();
+      if (durability == Durability.PERIODIC && writer.nanosSinceSync() >= syncIntervalNanos) {
+        writer.awaitSynced(position);
+      } else {
+        writer.awaitWritten(position);
+      }
+      return null;
+    }
+  };
+  private final Callable<Void> orphanSweepCallable = new Callable<Void>() {
+    @Override
+    public Void call() throws Exception {
+      deleteOrphanFiles();
+      return null;
+    }
+  };
+  private final Callable<Void> expirySweepCallable = new Callable<Void>() {
+    @Override
+    public Void call() throws Exception {
+      synchronized (DiskLruCache.this) {
+        expirySweepScheduled = false;
+        if (journalWriter == null) {
+          return null; // Closed.
+        }
+        lockJournal();
+        try {
+          removeExpired(System.currentTimeMillis());
+        } finally {
+          unlockJournal();
+        }
+      }
+      return null;
+    }
+  };
+  private final Callable<Void> readCheckpointCallable = new Callable<Void>() {
+    @Override
+    public Void call() throws Exception {
+      synchronized (DiskLruCache.this) {
+        readCheckpointScheduled = false;
+        if (journalWriter == null) {
+          return null; // Closed.
+        }
+        lockJournal();
+        try {
+          checkpointReads();
+        } finally {
+          unlockJournal();
+        }
+      }
+      return null;
+    }
+  };
+  private final AtomicBoolean deletionScheduled = new AtomicBoolean();
+  private final Callable<Void> deletionCallable = new Callable<Void>() {
+    @Override
+    public Void call() throws Exception {
+      deletionScheduled.set(false);
+      deleteEvictedFiles();
+      return null;
+    }
+  };
+  private final Callable<Void> indexCheckpointCallable = new Callable<Void>() {
+    @Override
+    public Void call() throws Exception {
+      checkpointIndex();
+      return null;
+    }
+  };
+  private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+  private final Callable<Void> compactionCallable = new Callable<Void>() {
+    @Override
+    public Void call() throws Exception {
+      compactionScheduled.set(false);
+      compactPack();
+      return null;
+    }
+  };
   private final Callable<Void> cleanupCallable = new Callable<Void>() {
     @Override
     public Void call() throws Exception {
@@ -169,24 +386,71 @@ public final class DiskLruCache implements Closeable {
         if (journalWriter == null) {
           return null; // Closed.
         }
-        trimToSize();
-        if (journalRebuildRequired()) {
-          rebuildJournal();
-          redundantOpCount = 0;
+        lockJournal();
+        try {
+          trimToSize();
+          if (journalRebuildRequired()) {
+            compactJournal();
+          }
+        } finally {
+          unlockJournal();
         }
       }
       return null;
     }
   };
 
-  private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+  private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+      Options options) {
     this.directory = directory;
     this.appVersion = appVersion;
     this.journalFile = new File(directory, JOURNAL_FILE);
     this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
     this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+    this.indexFile = new File(directory, JournalIndex.INDEX_FILE);
+    this.indexFileTmp = new File(directory, JournalIndex.INDEX_FILE_TEMP);
     this.valueCount = valueCount;
     this.maxSize = maxSize;
+    // Key ids, pack locations and checkpoints would describe one process's view of the files.
+    this.journalFormat = options.multiProcess ? JournalFormat.TEXT : options.journalFormat;
+    this.durability = options.durability;
+    this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(options.syncIntervalMillis);
+    this.journalReads = options.journalReads;
+    this.readCheckpointIntervalNanos =
+        TimeUnit.MILLISECONDS.toNanos(options.readCheckpointIntervalMillis);
+    this.packThreshold = options.multiProcess ? 0 : options.packThreshold;
+    this.packStore = new PackStore(directory, options.packSegmentSize,
+        durability != Durability.NONE);
+    this.highWatermark = options.highWatermark;
+    this.lowWatermark = options.lowWatermark;
+    this.indexCheckpointBytes = options.multiProcess ? 0 : options.indexCheckpointBytes;
+    this.evictionPolicy = options.evictionPolicyFactory != null
+        ? options.evictionPolicyFactory.create()
+        : null;
+    if (evictionPolicy != null) {
+      evictionPolicy.setMaxSize(maxSize);
+    }
+    this.expirySweepIntervalMillis = options.expirySweepIntervalMillis;
+    this.hashKeys = options.hashKeys;
+    this.lruEntries = new EntryTable<Entry>(hashKeys);
+    this.stats = new StatsCounter(options.recordStats);
+    this.ownsScheduler = options.maintenanceScheduler == null;
+    this.scheduler = ownsScheduler ? new MaintenanceScheduler() : options.maintenanceScheduler;
+    this.directoryLevels = options.directoryLevels;
+    this.bucketPrefixes = new String[1 << (4 * directoryLevels)];
+    for (int b = 0; b < bucketPrefixes.length; b++) {
+      StringBuilder prefix = new StringBuilder(directory.getPath()).append(File.separatorChar);
+      for (int level = directoryLevels - 1; level >= 0; level--) {
+        prefix.append(Character.forDigit((b >>> (4 * level)) & 0xf, 16)).append(File.separatorChar);
+      }
+      bucketPrefixes[b] = prefix.toString();
+    }
+    this.cleanSuffixes = new String[valueCount];
+    this.dirtySuffixes = new String[valueCount];
+    for (int i = 0; i < valueCount; i++) {
+      cleanSuffixes[i] = "." + i;
+      dirtySuffixes[i] = "." + i + DIRTY_SUFFIX;
+    }
   }
 
   /**
@@ -200,90 +464,409 @@ public final class DiskLruCache implements Closeable {
    */
   public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
       throws IOException {
+    return open(directory, appVersion, valueCount, maxSize, new Options());
+  }
+
+  /**
+   * Opens the cache in {@code directory} configured by {@code options},
+   * creating a cache if none exists there.
+   *
+   * @param directory a writable directory
+   * @param valueCount the number of values per cache entry. Must be positive.
+   * @param maxSize the maximum number of bytes this cache should use to store
+   * @param options how the cache stores its data. Later changes to {@code
+   *     options} do not affect the opened cache.
+   * @throws IOException if reading or writing the cache directory fails
+   */
+  public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+      Options options) throws IOException {
     if (maxSize <= 0) {
       throw new IllegalArgumentException("maxSize <= 0");
     }
     if (valueCount <= 0) {
       throw new IllegalArgumentException("valueCount <= 0");
     }
-
-    // If a bkp file exists, use it instead.
-    File backupFile = new File(directory, JOURNAL_FILE_BACKUP);
-    if (backupFile.exists()) {
-      File journalFile = new File(directory, JOURNAL_FILE);
-      // If journal file also exists just delete backup file.
-      if (journalFile.exists()) {
-        backupFile.delete();
-      } else {
-        renameTo(backupFile, journalFile, false);
-      }
+    if (options.multiProcess) {
+      return openShared(directory, appVersion, valueCount, maxSize, options);
     }
 
+    useBackupJournal(directory);
+
     // Prefer to pick up where we left off.
-    DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+    DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
+    boolean discarded = false;
     if (cache.journalFile.exists()) {
       try {
+        cache.migrateLayout();
         cache.readJournal();
         cache.processJournal();
         return cache;
       } catch (IOException journalIsCorrupt) {
-        System.out
-            .println("DiskLruCache "
-                + directory
-                + " is corrupt: "
-                + journalIsCorrupt.getMessage()
-                + ", removing");
+        // Reported through stats().discardedJournalCount().
         cache.delete();
+        discarded = true;
       }
     }
 
     // Create a new empty cache.
     directory.mkdirs();
-    cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+    cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
+    if (discarded) {
+      cache.stats.journalDiscarded();
+    }
+    cache.migrateLayout();
     cache.rebuildJournal();
     return cache;
   }
 
+  /** If a bkp file exists, use it instead. */
+  private static void useBackupJournal(File directory) throws IOException {
+    File backupFile = new File(directory, JOURNAL_FILE_BACKUP);
+    if (backupFile.exists()) {
+      File journalFile = new File(directory, JOURNAL_FILE);
+      // If journal file also exists just delete backup file.
+      if (journalFile.exists()) {
+        backupFile.delete();
+      } else {
+        renameTo(backupFile, journalFile, false);
+      }
+    }
+  }
+
+  /**
+   * Opens a cache that other processes may have open too. The journal is
+   * read with its lock held, so that no process appends to it meanwhile. The
+   * first process to open the cache repairs or replaces its journal like an
+   * unshared cache does; the others only read it.
+   */
+  private static DiskLruCache openShared(File directory, int appVersion, int valueCount,
+      long maxSize, Options options) throws IOException {
+    directory.mkdirs();
+    ProcessLock processLock = ProcessLock.open(new File(directory, LOCK_FILE));
+    boolean success = false;
+    try {
+      processLock.lockJournal();
+      boolean othersOpen = !processLock.tryExclusive();
+      if (!othersOpen) {
+        useBackupJournal(directory);
+      }
+      DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
+      if (!cache.loadSharedJournal(processLock, othersOpen)) {
+        // Create a new empty cache.
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
+        cache.stats.journalDiscarded();
+        cache.loadSharedJournal(processLock, false);
+      }
+      success = true;
+      return cache;
+    } finally {
+      if (!success) {
+        processLock.close();
+      }
+    }
+  }
+
+  /**
+   * Reads or creates the journal of a shared cache while this process holds
+   * the journal lock, and releases it. Returns false, still holding the
+   * lock, if the journal was corrupt and the cache's files were deleted.
+   */
+  private synchronized boolean loadSharedJournal(ProcessLock processLock, boolean othersOpen)
+      throws IOException {
+    this.processLock = processLock;
+    this.othersOpen = othersOpen;
+    journalLockCount = 1;
+    try {
+      if (!journalFile.exists()) {
+        migrateLayout();
+        rebuildJournal();
+        return true;
+      }
+      try {
+        if (othersOpen && BinaryJournal.isBinary(journalFile)) {
+          throw new IOException("journal is binary");
+        }
+        migrateLayout();
+        readJournal();
+        processJournal();
+        return true;
+      } catch (IOException journalIsCorrupt) {
+        Util.closeQuietly(journalWriter);
+        journalWriter = null;
+        if (othersOpen) {
+          throw journalIsCorrupt; // Their entries are still in use.
+        }
+        deleteContents();
+        return false;
+      }
+    } finally {
+      this.othersOpen = false;
+      if (journalWriter != null) {
+        processLock.share();
+        unlockJournal();
+      }
+    }
+  }
+
   private void readJournal() throws IOException {
-    StrictLineReader reader = new StrictLineReader(new FileInputStream(journalFile), Util.US_ASCII);
+    JournalIndex.Reader index;
     try {
-      String magic = reader.readLine();
-      String version = reader.readLine();
-      String appVersionString = reader.readLine();
-      String valueCountString = reader.readLine();
-      String blank = reader.readLine();
-      if (!MAGIC.equals(magic)
-          || !VERSION_1.equals(version)
-          || !Integer.toString(appVersion).equals(appVersionString)
-          || !Integer.toString(valueCount).equals(valueCountString)
-          || !"".equals(blank)) {
-        throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
-            + valueCountString + ", " + blank + "]");
+      index = JournalIndex.Reader.open(indexFile, journalFile, appVersion, valueCount);
+    } catch (IOException e) {
+      index = null; // Replay the whole journal instead.
+    }
+    if (BinaryJournal.isBinary(journalFile)) {
+      readBinaryJournal(index);
+    } else {
+      readTextJournal(index);
+    }
+    indexPosition = index != null ? index.journalOffset : 0;
+  }
+
+  /**
+   * Adds the entries of an index checkpoint, whose journal records the reader
+   * has skipped, and returns the number of records they stand for.
+   */
+  private int readIndex(JournalIndex.Reader index) throws IOException {
+    for (int i = 0; i < index.entryCount; i++) {
+      index.nextEntry();
+      Entry entry = new Entry(index.key);
+      System.arraycopy(index.lengths, 0, entry.lengths, 0, valueCount);
+      System.arraycopy(index.locations, 0, entry.locations, 0, valueCount);
+      entry.frequency = index.frequency;
+      entry.expiresAt = index.expiresAt;
+      if (index.editing) {
+        entry.currentEditor = new Editor(entry);
+      } else {
+        entry.readable = true;
+      }
+      lruEntries.put(entry);
+    }
+    return (int) (index.redundantOpCount + index.entryCount);
+  }
+
+  private static void skipFully(InputStream in, long byteCount) throws IOException {
+    while (byteCount > 0) {
+      long skipped = in.skip(byteCount);
+      if (skipped <= 0) {
+        throw new EOFException();
       }
+      byteCount -= skipped;
+    }
+  }
 
+  private void readTextJournal(JournalIndex.Reader index) throws IOException {
+    FileInputStream in = new FileInputStream(journalFile);
+    StrictLineReader reader = new StrictLineReader(in, Util.US_ASCII);
+    try {
       int lineCount = 0;
+      int corruptLines = 0;
+      if (index != null) {
+        skipFully(in, index.journalOffset);
+        lineCount = readIndex(index);
+      } else {
+        readTextHeader(reader);
+      }
+
       while (true) {
+        String line;
         try {
-          readJournalLine(reader.readLine());
-          lineCount++;
+          line = reader.readLine();
         } catch (EOFException endOfJournal) {
           break;
         }
+        try {
+          readJournalLine(line);
+          lineCount++;
+        } catch (IOException corruptLine) {
+          corruptLines++; // Salvage the lines around it.
+        }
       }
       redundantOpCount = lineCount - lruEntries.size();
 
       // If we ended on a truncated line, rebuild the journal before appending to it.
-      if (reader.hasUnterminatedLine()) {
+      if (othersOpen) {
+        // Other processes append to this journal; it can only be terminated.
+        journalWriter = JournalWriter.open(journalFormat, journalFile, true, null);
+        if (reader.hasUnterminatedLine()) {
+          journalWriter.append(NEWLINE, 0, 1);
+        }
+      } else if (corruptLines > 0) {
+        recoverEntries(corruptLines);
+        rebuildJournal();
+      } else if (reader.hasUnterminatedLine() || journalFormat != JournalFormat.TEXT) {
+        rebuildJournal();
+      } else {
+        journalWriter = JournalWriter.open(journalFormat, journalFile, true, null);
+      }
+    } finally {
+      Util.closeQuietly(reader);
+    }
+  }
+
+  private void readTextHeader(StrictLineReader reader) throws IOException {
+    String magic = reader.readLine();
+    String version = reader.readLine();
+    String appVersionString = reader.readLine();
+    String valueCountString = reader.readLine();
+    String blank = reader.readLine();
+    if (!MAGIC.equals(magic)
+        || !VERSION_1.equals(version)
+        || !Integer.toString(appVersion).equals(appVersionString)
+        || !Integer.toString(valueCount).equals(valueCountString)
+        || !"".equals(blank)) {
+      throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
+          + valueCountString + ", " + blank + "]");
+    }
+  }
+
+  private void readBinaryJournal(JournalIndex.Reader index) throws IOException {
+    FileInputStream in = new FileInputStream(journalFile);
+    BinaryJournal.Reader reader = new BinaryJournal.Reader(in);
+    try {
+      int recordCount = 0;
+      if (index != null) {
+        skipFully(in, index.journalOffset);
+        reader.resume(valueCount, index.keys);
+        recordCount = readIndex(index);
+      } else {
+        reader.readHeader(appVersion, valueCount);
+      }
+
+      for (int type; (type = reader.next()) != BinaryJournal.END; recordCount++) {
+        String key = reader.key;
+        if (type == BinaryJournal.REMOVE) {
+          lruEntries.remove(key);
+          continue;
+        }
+        if (type == BinaryJournal.READS) {
+          for (int i = 0; i < reader.batchCount; i++) {
+            // Moves the entry to the head of the LRU queue.
+            Entry entry = lruEntries.get(reader.batchKeys[i]);
+            if (entry != null) {
+              entry.countAccess();
+            }
+          }
+          continue;
+        }
+        if (type == BinaryJournal.REMOVES) {
+          for (int i = 0; i < reader.batchCount; i++) {
+            lruEntries.remove(reader.batchKeys[i]);
+          }
+          continue;
+        }
+
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+          entry = new Entry(key);
+          lruEntries.put(entry);
+        }
+
+        if (type == BinaryJournal.CLEAN) {
+          entry.readable = true;
+          entry.currentEditor = null;
+          entry.countAccess();
+          entry.expiresAt = reader.expiresAt;
+          System.arraycopy(reader.lengths, 0, entry.lengths, 0, valueCount);
+          System.arraycopy(reader.locations, 0, entry.locations, 0, valueCount);
+        } else if (type == BinaryJournal.DIRTY) {
+          entry.currentEditor = new Editor(entry);
+        } else {
+          // READ: the LRU order was already updated by calling lruEntries.get().
+          entry.countAccess();
+        }
+      }
+      redundantOpCount = recordCount - lruEntries.size();
+
+      // If we ended on a truncated record, rebuild the journal before appending to it.
+      if (reader.corruptRecords() > 0) {
+        recoverEntries(reader.corruptRecords());
+        rebuildJournal();
+      } else if (reader.isTruncated() || journalFormat != JournalFormat.BINARY) {
         rebuildJournal();
       } else {
-        journalWriter = new BufferedWriter(new OutputStreamWriter(
-            new FileOutputStream(journalFile, true), Util.US_ASCII));
+        journalWriter = JournalWriter.open(journalFormat, journalFile, true, reader.keyIds());
       }
     } finally {
       Util.closeQuietly(reader);
     }
   }
 
+  /**
+   * Repairs the entries salvaged from a journal with corrupt records. Entries
+   * whose files are gone are dropped, and entries whose records were lost
+   * are found again by their files, if all of them are there. Recovered
+   * entries become the least recently used ones. Packed values are kept if
+   * their entry's record survived and {@link #processJournal} finds their
+   * bytes in the pack segment. Without a record they can't be found: a
+   * segment holds only value bytes, not keys, so their range becomes dead
+   * space for compaction. The skipped records and dropped entries are
+   * counted in the {@link #stats statistics}.
+   */
+  private void recoverEntries(int corruptRecords) {
+    ArrayList<Entry> salvaged = lruEntries.toList();
+    lruEntries.clear();
+
+    HashSet<String> salvagedKeys = new HashSet<String>();
+    for (Entry entry : salvaged) {
+      salvagedKeys.add(entry.key);
+    }
+    LinkedHashSet<String> foundKeys = new LinkedHashSet<String>();
+    ArrayList<File> files = new ArrayList<File>();
+    listFiles(directory, directoryLevels, files);
+    for (File file : files) {
+      String name = file.getName();
+      int dot = name.lastIndexOf('.');
+      if (dot > 0 && valueIndex(name.substring(dot + 1)) != -1
+          && !name.startsWith(PackStore.PREFIX)) {
+        foundKeys.add(name.substring(0, dot));
+      }
+    }
+    for (String key : foundKeys) {
+      if (salvagedKeys.contains(key) || !isLegalKey(key)) {
+        continue;
+      }
+      Entry entry = new Entry(key);
+      if (entry.filesExist()) {
+        entry.readable = true;
+        lruEntries.put(entry);
+      }
+    }
+
+    int dropped = 0;
+    for (Entry entry : salvaged) {
+      if (entry.currentEditor != null && !entry.readable && entry.filesExist()) {
+        // Published, but the clean record was lost.
+        entry.currentEditor = null;
+        entry.readable = true;
+      }
+      boolean valid = isLegalKey(entry.key)
+          && (entry.currentEditor != null || entry.readable && entry.filesExist());
+      if (valid) {
+        lruEntries.put(entry);
+      } else {
+        dropped++; // Its files are deleted as orphans.
+      }
+    }
+    stats.salvaged(corruptRecords, dropped);
+  }
+
+  /** Returns the value index in a file name, or -1 if it isn't one. */
+  private int valueIndex(String string) {
+    if (string.length() == 0 || string.length() > 9) {
+      return -1;
+    }
+    int result = 0;
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      result = result * 10 + (c - '0');
+    }
+    return result < valueCount ? result : -1;
+  }
+
   private void readJournalLine(String line) throws IOException {
     int firstSpace = line.indexOf(' ');
     if (firstSpace == -1) {
@@ -305,19 +888,24 @@ public final class DiskLruCache implements Closeable {
 
     Entry entry = lruEntries.get(key);
     if (entry == null) {
+      if (!isLegalKey(key)) {
+        throw new IOException("unexpected journal line: " + line);
+      }
       entry = new Entry(key);
-      lruEntries.put(key, entry);
+      lruEntries.put(entry);
     }
 
     if (secondSpace != -1 && firstSpace == CLEAN.length() && line.startsWith(CLEAN)) {
       String[] parts = line.substring(secondSpace + 1).split(" ");
       entry.readable = true;
       entry.currentEditor = null;
+      entry.countAccess();
       entry.setLengths(parts);
     } else if (secondSpace == -1 && firstSpace == DIRTY.length() && line.startsWith(DIRTY)) {
       entry.currentEditor = new Editor(entry);
     } else if (secondSpace == -1 && firstSpace == READ.length() && line.startsWith(READ)) {
-      // This work was already done by calling lruEntries.get().
+      // The LRU order was already updated by calling lruEntries.get().
+      entry.countAccess();
     } else {
       throw new IOException("unexpected journal line: " + line);
     }
@@ -329,12 +917,36 @@ public final class DiskLruCache implements Closeable {
    */
   private void processJournal() throws IOException {
     deleteIfExists(journalFileTmp);
-    for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
+    deleteIfExists(indexFileTmp);
+    long accessTime = System.nanoTime() - lruEntries.size();
+    for (Iterator<Entry> i = lruEntries.iterator(); i.hasNext(); ) {
       Entry entry = i.next();
-      if (entry.currentEditor == null) {
+      // Edits of other processes that are open go on; they log how they end.
+      boolean foreignEdit = entry.currentEditor != null && othersOpen;
+      if (foreignEdit || entry.currentEditor == null && entry.packedValuesExist()) {
         for (int t = 0; t < valueCount; t++) {
           size += entry.lengths[t];
+          if (entry.locations[t] != PackStore.LOOSE) {
+            packStore.addLive(entry.locations[t], entry.lengths[t]);
+          }
+        }
+        // Journal order is LRU order; keep it when comparing against other shards.
+        entry.accessTime = accessTime++;
+        if (entry.expiresAt != 0) {
+          nextExpiry = Math.min(nextExpiry, entry.expiresAt);
+        }
+        if (evictionPolicy != null && entry.readable) {
+          evictionPolicy.onAdd(entry.key, entry.totalLength(), Math.max(1, entry.frequency));
+        }
+      } else if (entry.currentEditor == null) {
+        // Its pack segment is gone, so the entry can't be read anymore.
+        for (int t = 0; t < valueCount; t++) {
+          deleteIfExists(entry.getCleanFile(t));
         }
+        redundantOpCount++;
+        journalWriter.writeRemove(entry.key);
+        i.remove();
+        stats.salvaged(0, 1);
       } else {
         entry.currentEditor = null;
         for (int t = 0; t < valueCount; t++) {
@@ -344,40 +956,47 @@ public final class DiskLruCache implements Closeable {
         i.remove();
       }
     }
+    packStore.finishOpen(packThreshold > 0);
+    scheduleCompactionIfNeeded();
+    scheduleIndexCheckpointIfNeeded();
+    scheduleExpirySweepIfNeeded(System.currentTimeMillis());
+    scheduler.schedule(orphanSweepCallable);
   }
 
   /**
    * Creates a new journal that omits redundant information. This replaces the
-   * current journal if it exists.
+   * current journal if it exists. Package-private for the benchmarks.
    */
-  private synchronized void rebuildJournal() throws IOException {
+  synchronized void rebuildJournal() throws IOException {
+    long start = stats.start();
+    boolean sync = durability != Durability.NONE;
     if (journalWriter != null) {
-      journalWriter.close();
+      journalWriter.close(sync);
     }
 
-    Writer writer = new BufferedWriter(
-        new OutputStreamWriter(new FileOutputStream(journalFileTmp), Util.US_ASCII));
+    // Index checkpoints point into the old journal.
+    journalGeneration++;
+    deleteIfExists(indexFile);
+
+    // The rebuilt journal lists entries in LRU order, which covers any pending reads.
+    unjournaledReads.clear();
+    lastReadCheckpointNanos = System.nanoTime();
+
+    JournalWriter writer = JournalWriter.open(journalFormat, journalFileTmp, false, null);
     try {
-      writer.write(MAGIC);
-      writer.write("\n");
-      writer.write(VERSION_1);
-      writer.write("\n");
-      writer.write(Integer.toString(appVersion));
-      writer.write("\n");
-      writer.write(Integer.toString(valueCount));
-      writer.write("\n");
-      writer.write("\n");
-
-      for (Entry entry : lruEntries.values()) {
+      writer.writeHeader(appVersion, valueCount);
+
+      for (Entry entry : lruEntries) {
         if (entry.currentEditor != null) {
-          writer.write(DIRTY + ' ' + entry.key + '\n');
+          writer.writeDirty(entry.key);
         } else {
-          writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+          writer.writeClean(entry.key, entry.lengths, entry.locations, entry.expiresAt);
         }
       }
     } finally {
-      writer.close();
+      writer.close(sync);
     }
+    scheduler.charge(writer.position());
 
     if (journalFile.exists()) {
       renameTo(journalFile, journalFileBackup, true);
@@ -385,69 +1004,410 @@ public final class DiskLruCache implements Closeable {
     renameTo(journalFileTmp, journalFile, false);
     journalFileBackup.delete();
 
-    journalWriter = new BufferedWriter(
-        new OutputStreamWriter(new FileOutputStream(journalFile, true), Util.US_ASCII));
+    journalWriter = JournalWriter.open(journalFormat, journalFile, true, writer.keyIds());
+    indexPosition = journalWriter.position(); // A compact journal is as good as a checkpoint.
+    stats.record(CacheStats.Operation.REBUILD, start);
   }
 
-  private static void deleteIfExists(File file) throws IOException {
-    if (file.exists() && !file.delete()) {
-      throw new IOException();
+  /**
+   * Rebuilds the journal, unless other processes share it: they append to
+   * the file they opened, so it can't be replaced while they have it open.
+   * The rebuild is then retried once as many redundant records again were
+   * logged.
+   */
+  private void compactJournal() throws IOException {
+    if (processLock == null) {
+      rebuildJournal();
+      redundantOpCount = 0;
+      return;
+    }
+    if (!processLock.tryExclusive()) {
+      rebuildRetryOpCount = redundantOpCount + REDUNDANT_OP_COMPACT_THRESHOLD;
+      return;
+    }
+    try {
+      discardDeadEdits();
+      rebuildJournal();
+      redundantOpCount = 0;
+      rebuildRetryOpCount = 0;
+    } finally {
+      processLock.share();
     }
   }
 
-  private static void renameTo(File from, File to, boolean deleteDestination) throws IOException {
-    if (deleteDestination) {
-      deleteIfExists(to);
-    }
-    if (!from.renameTo(to)) {
-      throw new IOException();
+  /**
+   * Drops the entries that other processes were editing when they closed
+   * the cache or died, like opening the cache does. Must only be called
+   * while no other process has the cache open.
+   */
+  private void discardDeadEdits() throws IOException {
+    for (Iterator<Entry> i = lruEntries.iterator(); i.hasNext(); ) {
+      Entry entry = i.next();
+      if (entry.currentEditor == null || entry.currentEditor.journal != null) {
+        continue; // Not being edited, or edited by this process.
+      }
+      entry.currentEditor = null;
+      for (int t = 0; t < valueCount; t++) {
+        deleteIfExists(entry.getCleanFile(t));
+        deleteIfExists(entry.getDirtyFile(t));
+        if (entry.locations[t] != PackStore.LOOSE) {
+          packStore.release(entry.locations[t], entry.lengths[t]);
+        }
+        adjustSize(-entry.lengths[t]);
+      }
+      if (evictionPolicy != null && entry.readable) {
+        evictionPolicy.onRemove(entry.key);
+      }
+      unjournaledReads.remove(entry.key);
+      i.remove();
     }
   }
 
   /**
-   * Returns a snapshot of the entry named {@code key}, or null if it doesn't
-   * exist is not currently readable. If a value is returned, it is moved to
-   * the head of the LRU queue.
+   * Takes the journal lock of a shared cache, and applies the records that
+   * other processes appended since this one last held it. Calls nest; each
+   * must be followed by {@link #unlockJournal}. Does nothing unless the
+   * cache is shared.
    */
-  public synchronized Snapshot get(String key) throws IOException {
+  private void lockJournal() throws IOException {
+    if (processLock == null) {
+      return;
+    }
     checkNotClosed();
-    validateKey(key);
+    if (journalLockCount++ > 0) {
+      return;
+    }
+    boolean success = false;
+    try {
+      processLock.lockJournal();
+      readJournalTail();
+      success = true;
+    } finally {
+      if (!success) {
+        journalLockCount = 0;
+        processLock.unlockJournal();
+      }
+    }
+  }
+
+  /**
+   * Releases the journal lock once the outermost call does, after writing
+   * this process's records so that the others can read them.
+   */
+  private void unlockJournal() throws IOException {
+    if (processLock == null || journalLockCount == 0 || --journalLockCount > 0) {
+      return;
+    }
+    try {
+      if (journalWriter != null) {
+        journalWriter.flush();
+        journalTail = journalFile.length();
+      }
+    } finally {
+      processLock.unlockJournal();
+    }
+  }
+
+  /** Applies the journal lines that other processes appended after {@link #journalTail}. */
+  private void readJournalTail() throws IOException {
+    long length = journalFile.length();
+    if (journalWriter == null || length <= journalTail) {
+      return;
+    }
+    byte[] tail = new byte[(int) (length - journalTail)];
+    RandomAccessFile file = new RandomAccessFile(journalFile, "r");
+    try {
+      file.seek(journalTail);
+      file.readFully(tail);
+    } finally {
+      file.close();
+    }
+
+    int lineStart = 0;
+    for (int i = 0; i < tail.length; i++) {
+      if (tail[i] != '\n') {
+        continue;
+      }
+      try {
+        readForeignLine(new String(tail, lineStart, i - lineStart, Util.US_ASCII));
+      } catch (IOException corruptLine) {
+        // Skip it, as opening the cache would.
+      }
+      redundantOpCount++;
+      lineStart = i + 1;
+    }
+    journalTail += lineStart;
+    if (lineStart < tail.length) {
+      // A process died while appending. Terminate its line so that ours are read correctly.
+      journalWriter.append(NEWLINE, 0, 1);
+    }
+  }
+
+  /**
+   * Applies a journal line that another process appended. Unlike the lines
+   * read on open, these change entries that may be in use by this process.
+   */
+  private void readForeignLine(String line) throws IOException {
+    int firstSpace = line.indexOf(' ');
+    if (firstSpace == -1) {
+      throw new IOException("unexpected journal line: " + line);
+    }
+    int keyBegin = firstSpace + 1;
+    int secondSpace = line.indexOf(' ', keyBegin);
+    String key = secondSpace == -1
+        ? line.substring(keyBegin)
+        : line.substring(keyBegin, secondSpace);
+    if (!isLegalKey(key)) {
+      throw new IOException("unexpected journal line: " + line);
+    }
+
+    if (secondSpace == -1 && firstSpace == REMOVE.length() && line.startsWith(REMOVE)) {
+      Entry entry = lruEntries.remove(key);
+      if (entry == null) {
+        return;
+      }
+      openPinnedValues(entry);
+      for (int i = 0; i < valueCount; i++) {
+        if (entry.locations[i] != PackStore.LOOSE) {
+          packStore.release(entry.locations[i], entry.lengths[i]);
+        }
+        adjustSize(-entry.lengths[i]);
+      }
+      unjournaledReads.remove(key);
+      if (evictionPolicy != null && entry.readable) {
+        evictionPolicy.onRemove(key);
+      }
+      return;
+    }
+
     Entry entry = lruEntries.get(key);
+    if (secondSpace != -1 && firstSpace == CLEAN.length() && line.startsWith(CLEAN)) {
+      Entry published = new Entry(key);
+      published.setLengths(line.substring(secondSpace + 1).split(" "));
+      boolean added = entry == null || !entry.readable;
+      if (entry == null) {
+        entry = new Entry(key);
+        lruEntries.put(entry);
+      }
+      openPinnedValues(entry);
+      for (int i = 0; i < valueCount; i++) {
+        if (entry.locations[i] != PackStore.LOOSE) {
+          packStore.release(entry.locations[i], entry.lengths[i]);
+        }
+        if (published.locations[i] != PackStore.LOOSE) {
+          packStore.addLive(published.locations[i], published.lengths[i]);
+        }
+        adjustSize(published.lengths[i] - entry.lengths[i]);
+        entry.lengths[i] = published.lengths[i];
+        entry.locations[i] = published.locations[i];
+      }
+      entry.expiresAt = published.expiresAt;
+      entry.readable = true;
+      entry.currentEditor = null;
+      entry.sequenceNumber = nextSequenceNumber++; // Snapshots of the old values are stale.
+      entry.accessTime = System.nanoTime();
+      entry.countAccess();
+      if (evictionPolicy != null && added) {
+        evictionPolicy.onAdd(key, entry.totalLength(), entry.frequency);
+      } else if (evictionPolicy != null) {
+        evictionPolicy.onUpdate(key, entry.totalLength());
+      }
+      if (entry.expiresAt != 0) {
+        nextExpiry = Math.min(nextExpiry, entry.expiresAt);
+      }
+    } else if (secondSpace == -1 && firstSpace == DIRTY.length() && line.startsWith(DIRTY)) {
+      if (entry == null) {
+        entry = new Entry(key);
+        lruEntries.put(entry);
+      }
+      entry.currentEditor = new Editor(entry);
+    } else if (secondSpace == -1 && firstSpace == READ.length() && line.startsWith(READ)) {
+      if (entry != null) {
+        // The LRU order was already updated by calling lruEntries.get().
+        entry.accessTime = System.nanoTime();
+        entry.countAccess();
+        if (evictionPolicy != null && entry.readable) {
+          evictionPolicy.onAccess(key);
+        }
+      }
+    } else {
+      throw new IOException("unexpected journal line: " + line);
+    }
+  }
+
+  private static void deleteIfExists(File file) throws IOException {
+    if (file.exists() && !file.delete()) {
+      throw new IOException();
+    }
+  }
+
+  private static void renameTo(File from, File to, boolean deleteDestination) throws IOException {
+    if (deleteDestination) {
+      deleteIfExists(to);
+    }
+    if (!from.renameTo(to)) {
+      throw new IOException();
+    }
+  }
+
+  /**
+   * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+   * exist is not currently readable. If a value is returned, it is moved to
+   * the head of the LRU queue.
+   *
+   * <p>When entries have several values, the snapshot opens each one when it
+   * is first read, so reading one value costs one file open. A snapshot
+   * still reads all of its values from the same edit: an edit or removal of
+   * the entry first opens the values its snapshots haven't read yet. A value
+   * whose file was deleted manually fails when it is read instead of making
+   * this return null.
+   */
+  public Snapshot get(String key) throws IOException {
+    long[] hash = null;
+    if (hashKeys) {
+      if (key == null) {
+        throw new NullPointerException("key == null");
+      }
+      hash = Murmur3.hash128(key); // Looked up as is, without writing out the entry key.
+    } else {
+      validateKey(key);
+    }
+    return get(key, hash);
+  }
+
+  /** Returns a snapshot of the entry stored under {@code entryKey} (see {@link #entryKey}). */
+  Snapshot getEntry(String entryKey) throws IOException {
+    return get(entryKey, null);
+  }
+
+  private Snapshot get(String key, long[] hash) throws IOException {
+    long start = stats.start();
+    scheduler.noteActivity();
+    Snapshot snapshot;
+    synchronized (this) {
+      stats.lockAcquired(start);
+      lockJournal();
+      try {
+        snapshot = lookup(key, hash);
+      } finally {
+        unlockJournal();
+      }
+    }
+    if (snapshot != null) {
+      stats.hit();
+    } else {
+      stats.miss();
+    }
+    stats.record(CacheStats.Operation.GET, start);
+    return snapshot;
+  }
+
+  /** Returns a snapshot of the entry of {@code key}, or of {@code hash} if keys are hashed. */
+  private synchronized Snapshot lookup(String key, long[] hash) throws IOException {
+    checkNotClosed();
+    Entry entry = hash != null ? lruEntries.get(hash[0], hash[1]) : lruEntries.get(key);
     if (entry == null) {
       return null;
     }
+    key = entry.key;
 
     if (!entry.readable) {
       return null;
     }
 
-    // Open all streams eagerly to guarantee that we see a single published
-    // snapshot. If we opened streams lazily then the streams could come
-    // from different edits.
-    InputStream[] ins = new InputStream[valueCount];
-    try {
-      for (int i = 0; i < valueCount; i++) {
-        ins[i] = new FileInputStream(entry.getCleanFile(i));
+    long now = System.currentTimeMillis();
+    if (entry.isExpired(now)) {
+      if (entry.currentEditor == null) {
+        lruEntries.remove(entry);
+        evict(entry, true);
+        logEvictions(Collections.singletonList(key));
       }
-    } catch (FileNotFoundException e) {
-      // A file must have been deleted manually!
-      for (int i = 0; i < valueCount; i++) {
-        if (ins[i] != null) {
-          Util.closeQuietly(ins[i]);
-        } else {
-          break;
+      return null;
+    }
+    scheduleExpirySweepIfNeeded(now);
+
+    // Values are opened lazily. To guarantee that we see a single published
+    // snapshot, the snapshot is pinned to the entry until it opened them all;
+    // see openPinnedValues().
+    Snapshot snapshot = new Snapshot(entry);
+    if (valueCount == 1 || processLock != null) {
+      // There's nothing to defer; the one value is about to be read. Other
+      // processes don't know about pins, so a shared cache opens all values.
+      try {
+        for (int i = 0; i < valueCount; i++) {
+          snapshot.open(i);
         }
+      } catch (FileNotFoundException e) {
+        snapshot.close();
+        return null; // A file must have been deleted manually!
       }
-      return null;
+    } else {
+      snapshot.pin();
     }
 
-    redundantOpCount++;
-    journalWriter.append(READ + ' ' + key + '\n');
-    if (journalRebuildRequired()) {
-      executorService.submit(cleanupCallable);
+    entry.accessTime = System.nanoTime();
+    entry.countAccess();
+    if (evictionPolicy != null) {
+      evictionPolicy.onAccess(key);
+    }
+    if (journalReads) {
+      redundantOpCount++;
+      journalWriter.writeRead(key);
+      scheduleJournalFlush();
+      if (journalRebuildRequired()) {
+        scheduler.schedule(cleanupCallable);
+      }
+    } else {
+      // Only the in-memory LRU order changes; a checkpoint persists it later.
+      unjournaledReads.remove(key);
+      unjournaledReads.add(key);
+      if (!readCheckpointScheduled
+          && (unjournaledReads.size() >= MAX_UNJOURNALED_READS
+          || entry.accessTime - lastReadCheckpointNanos >= readCheckpointIntervalNanos)) {
+        readCheckpointScheduled = true;
+        scheduler.schedule(readCheckpointCallable);
+      }
+    }
+
+    return snapshot;
+  }
+
+  /**
+   * Opens the values that the pinned snapshots of {@code entry} haven't
+   * opened yet, and unpins them. This must be called before the entry's
+   * values are replaced, moved or deleted. Values that can't be opened fail
+   * when they are read.
+   */
+  private void openPinnedValues(Entry entry) {
+    if (entry.snapshots == null) {
+      return;
     }
+    for (Snapshot snapshot : entry.snapshots) {
+      for (int i = 0; i < valueCount; i++) {
+        try {
+          snapshot.open(i);
+        } catch (IOException ignored) {
+        }
+      }
+      snapshot.pinned = false;
+    }
+    entry.snapshots = null;
+  }
 
-    return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths);
+  /** Opens the value at {@code index} of {@code entry}, positioned at its first byte. */
+  private FileInputStream openValue(Entry entry, int index) throws IOException {
+    long location = entry.locations[index];
+    if (location == PackStore.LOOSE) {
+      return new FileInputStream(entry.getCleanFile(index));
+    }
+    FileInputStream in = new FileInputStream(packStore.segmentFile(PackStore.segment(location)));
+    try {
+      in.skip(PackStore.offset(location));
+    } catch (IOException e) {
+      Util.closeQuietly(in);
+      throw e;
+    }
+    return in;
   }
 
   /**
@@ -455,20 +1415,51 @@ public final class DiskLruCache implements Closeable {
    * edit is in progress.
    */
   public Editor edit(String key) throws IOException {
-    return edit(key, ANY_SEQUENCE_NUMBER);
+    return edit(entryKey(key), ANY_SEQUENCE_NUMBER);
+  }
+
+  /** Returns an editor for the entry stored under {@code entryKey}, or null. */
+  Editor editEntry(String entryKey) throws IOException {
+    return edit(entryKey, ANY_SEQUENCE_NUMBER);
+  }
+
+  private Editor edit(String key, long expectedSequenceNumber) throws IOException {
+    long start = stats.start();
+    scheduler.noteActivity();
+    Editor editor;
+    synchronized (this) {
+      stats.lockAcquired(start);
+      lockJournal();
+      try {
+        editor = newEditor(key, expectedSequenceNumber);
+      } finally {
+        unlockJournal();
+      }
+    }
+    stats.record(CacheStats.Operation.EDIT, start);
+    return editor;
   }
 
-  private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+  private synchronized Editor newEditor(String key, long expectedSequenceNumber)
+      throws IOException {
     checkNotClosed();
-    validateKey(key);
     Entry entry = lruEntries.get(key);
+    if (entry != null && entry.currentEditor == null
+        && entry.isExpired(System.currentTimeMillis())) {
+      // Start over instead of keeping values that expired.
+      lruEntries.remove(entry);
+      evict(entry, true);
+      logEvictions(Collections.singletonList(key));
+    }
+    deleteEvictedFiles(key);
+    entry = lruEntries.get(key);
     if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
         || entry.sequenceNumber != expectedSequenceNumber)) {
       return null; // Snapshot is stale.
     }
     if (entry == null) {
       entry = new Entry(key);
-      lruEntries.put(key, entry);
+      lruEntries.put(entry);
     } else if (entry.currentEditor != null) {
       return null; // Another edit is in progress.
     }
@@ -476,12 +1467,25 @@ public final class DiskLruCache implements Closeable {
     Editor editor = new Editor(entry);
     entry.currentEditor = editor;
 
-    // Flush the journal before creating files to prevent file leaks.
-    journalWriter.write(DIRTY + ' ' + key + '\n');
-    journalWriter.flush();
+    // With COMMIT durability the editor writes this record out before creating
+    // files to prevent file leaks; otherwise it is written in the background.
+    journalWriter.writeDirty(key);
+    editor.journal = journalWriter;
+    editor.dirtyPosition = journalWriter.position();
+    if (durability != Durability.COMMIT) {
+      scheduleJournalFlush();
+    }
     return editor;
   }
 
+  /**
+   * Returns the statistics recorded since this cache was opened; all 0
+   * unless enabled with {@link Options#setRecordStats}.
+   */
+  public CacheStats stats() {
+    return stats.snapshot();
+  }
+
   /** Returns the directory where this cache stores its data. */
   public File getDirectory() {
     return directory;
@@ -501,7 +1505,10 @@ public final class DiskLruCache implements Closeable {
    */
   public synchronized void setMaxSize(long maxSize) {
     this.maxSize = maxSize;
-    executorService.submit(cleanupCallable);
+    if (evictionPolicy != null) {
+      evictionPolicy.setMaxSize(maxSize);
+    }
+    scheduler.schedule(cleanupCallable);
   }
 
   /**
@@ -516,6 +1523,7 @@ public final class DiskLruCache implements Closeable {
   private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
     Entry entry = editor.entry;
     if (entry.currentEditor != editor) {
+      editor.releasePackedValues();
       throw new IllegalStateException();
     }
 
@@ -526,23 +1534,48 @@ public final class DiskLruCache implements Closeable {
           editor.abort();
           throw new IllegalStateException("Newly created entry didn't create value for index " + i);
         }
-        if (!entry.getDirtyFile(i).exists()) {
+        if (!editor.isPacked(i) && !entry.getDirtyFile(i).exists()) {
           editor.abort();
           return;
         }
       }
     }
 
+    if (success) {
+      openPinnedValues(entry);
+    } else {
+      editor.releasePackedValues();
+    }
+
     for (int i = 0; i < valueCount; i++) {
       File dirty = entry.getDirtyFile(i);
       if (success) {
-        if (dirty.exists()) {
+        if (editor.isPacked(i)) {
+          deleteIfExists(dirty);
+          if (entry.locations[i] == PackStore.LOOSE) {
+            deleteIfExists(entry.getCleanFile(i));
+          } else {
+            packStore.release(entry.locations[i], entry.lengths[i]);
+          }
+          long oldLength = entry.lengths[i];
+          long newLength = editor.buffers[i].count;
+          entry.lengths[i] = newLength;
+          entry.locations[i] = editor.packedLocations[i]; // Counted as live since appended.
+          editor.packedLocations[i] = PackStore.LOOSE;
+          adjustSize(newLength - oldLength);
+          stats.written(newLength);
+        } else if (dirty.exists()) {
           File clean = entry.getCleanFile(i);
           dirty.renameTo(clean);
+          if (entry.locations[i] != PackStore.LOOSE) {
+            packStore.release(entry.locations[i], entry.lengths[i]);
+            entry.locations[i] = PackStore.LOOSE;
+          }
           long oldLength = entry.lengths[i];
           long newLength = clean.length();
           entry.lengths[i] = newLength;
-          size = size - oldLength + newLength;
+          adjustSize(newLength - oldLength);
+          stats.written(newLength);
         }
       } else {
         deleteIfExists(dirty);
@@ -551,141 +1584,1508 @@ public final class DiskLruCache implements Closeable {
 
     redundantOpCount++;
     entry.currentEditor = null;
+    if (!success) {
+      stats.aborted();
+    }
     if (entry.readable | success) {
+      boolean added = !entry.readable;
       entry.readable = true;
-      journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+      if (success) {
+        entry.expiresAt = editor.expiresAt;
+        if (entry.expiresAt != 0) {
+          nextExpiry = Math.min(nextExpiry, entry.expiresAt);
+        }
+      }
+      journalWriter.writeClean(entry.key, entry.lengths, entry.locations, entry.expiresAt);
       if (success) {
         entry.sequenceNumber = nextSequenceNumber++;
+        entry.accessTime = System.nanoTime();
+        entry.countAccess();
+        if (evictionPolicy != null && added) {
+          evictionPolicy.onAdd(entry.key, entry.totalLength(), entry.frequency);
+        } else if (evictionPolicy != null) {
+          evictionPolicy.onUpdate(entry.key, entry.totalLength());
+        }
       }
     } else {
-      lruEntries.remove(entry.key);
-      journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+      lruEntries.remove(entry);
+      unjournaledReads.remove(entry.key);
+      journalWriter.writeRemove(entry.key);
+    }
+    if (durability != Durability.COMMIT) {
+      scheduleJournalFlush();
     }
-    journalWriter.flush();
 
-    if (size > maxSize || journalRebuildRequired()) {
-      executorService.submit(cleanupCallable);
+    if (exceedsHighWatermark() || journalRebuildRequired()) {
+      scheduler.schedule(cleanupCallable);
     }
+    scheduleCompactionIfNeeded();
+    scheduleIndexCheckpointIfNeeded();
+    scheduleExpirySweepIfNeeded(System.currentTimeMillis());
   }
 
   /**
-   * We only rebuild the journal when it will halve the size of the journal
-   * and eliminate at least 2000 ops.
+   * Moves the live values of the sparsest pack segment to the end of the
+   * current one and deletes it. The values are copied without holding the
+   * cache lock: segments are append-only, so their bytes can't change.
    */
-  private boolean journalRebuildRequired() {
-    final int redundantOpCompactThreshold = 2000;
-    return redundantOpCount >= redundantOpCompactThreshold //
-        && redundantOpCount >= lruEntries.size();
-  }
+  private void compactPack() throws IOException {
+    int segment;
+    ArrayList<Entry> entries = new ArrayList<Entry>();
+    long[][] from;
+    long[][] lengths;
+    synchronized (this) {
+      if (journalWriter == null) {
+        return; // Closed.
+      }
+      segment = packStore.compactionCandidate();
+      if (segment == -1) {
+        return;
+      }
+      for (Entry entry : lruEntries) {
+        if (entry.hasValueIn(segment)) {
+          entries.add(entry);
+        }
+      }
+      from = new long[entries.size()][];
+      lengths = new long[entries.size()][];
+      for (int e = 0; e < entries.size(); e++) {
+        from[e] = entries.get(e).locations.clone();
+        lengths[e] = entries.get(e).lengths.clone();
+      }
+    }
 
-  /**
-   * Drops the entry for {@code key} if it exists and can be removed. Entries
-   * actively being edited cannot be removed.
-   *
-   * @return true if an entry was removed.
-   */
-  public synchronized boolean remove(String key) throws IOException {
-    checkNotClosed();
-    validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (entry == null || entry.currentEditor != null) {
-      return false;
+    long[][] to = new long[entries.size()][valueCount];
+    RandomAccessFile file = new RandomAccessFile(packStore.segmentFile(segment), "r");
+    try {
+      byte[] buffer = new byte[8192];
+      for (int e = 0; e < entries.size(); e++) {
+        for (int i = 0; i < valueCount; i++) {
+          to[e][i] = PackStore.LOOSE;
+          if (from[e][i] == PackStore.LOOSE || PackStore.segment(from[e][i]) != segment) {
+            continue;
+          }
+          int length = (int) lengths[e][i];
+          if (buffer.length < length) {
+            buffer = new byte[length];
+          }
+          scheduler.throttle(2L * length); // Read once, written once.
+          file.seek(PackStore.offset(from[e][i]));
+          file.readFully(buffer, 0, length);
+          to[e][i] = packStore.append(buffer, 0, length);
+        }
+      }
+    } finally {
+      file.close();
+    }
+    if (durability != Durability.NONE) {
+      packStore.sync(); // The copies must be on disk before the journal points at them.
     }
 
-    for (int i = 0; i < valueCount; i++) {
-      File file = entry.getCleanFile(i);
-      if (file.exists() && !file.delete()) {
-        throw new IOException("failed to delete " + file);
+    JournalWriter writer;
+    long position;
+    synchronized (this) {
+      if (journalWriter == null) {
+        return; // Closed. The copies are dead space in the current segment.
       }
-      size -= entry.lengths[i];
-      entry.lengths[i] = 0;
+      for (int e = 0; e < entries.size(); e++) {
+        Entry entry = entries.get(e);
+        // An entry being edited keeps its values where they are: its DIRTY
+        // record must be followed by the editor's own CLEAN record.
+        boolean editing = entry.currentEditor != null;
+        boolean moved = false;
+        for (int i = 0; i < valueCount; i++) {
+          if (to[e][i] == PackStore.LOOSE) {
+            continue;
+          }
+          if (!editing && entry.locations[i] == from[e][i]) {
+            if (!moved) {
+              openPinnedValues(entry);
+            }
+            packStore.release(from[e][i], entry.lengths[i]);
+            entry.locations[i] = to[e][i];
+            moved = true;
+          } else {
+            packStore.release(to[e][i], lengths[e][i]); // The copy is dead space.
+          }
+        }
+        if (moved) {
+          redundantOpCount++;
+          journalWriter.writeClean(entry.key, entry.lengths, entry.locations, entry.expiresAt);
+        }
+      }
+      writer = journalWriter;
+      position = writer.position();
     }
 
-    redundantOpCount++;
-    journalWriter.append(REMOVE + ' ' + key + '\n');
-    lruEntries.remove(key);
+    // The journal must stop pointing into the segment before it can go.
+    if (durability == Durability.NONE) {
+      writer.awaitWritten(position);
+    } else {
+      writer.awaitSynced(position);
+    }
+    synchronized (this) {
+      if (packStore.deleteIfUnreferenced(segment) && packStore.compactionCandidate() != -1) {
+        scheduleCompaction();
+      }
+      if (journalWriter != null && journalRebuildRequired()) {
+        scheduler.schedule(cleanupCallable);
+      }
+    }
+  }
+
+  private void scheduleCompactionIfNeeded() {
+    // Other processes might be reading the values that compaction moves.
+    if (packStore.takeCompactionNeeded() && processLock == null) {
+      scheduleCompaction();
+    }
+  }
 
+  private void scheduleCompaction() {
+    if (compactionScheduled.compareAndSet(false, true)) {
+      scheduler.schedule(compactionCallable);
+    }
+  }
+
+  /** Logs the reads that were only tracked in memory as one compact checkpoint. */
+  private void checkpointReads() throws IOException {
+    lastReadCheckpointNanos = System.nanoTime();
+    if (unjournaledReads.isEmpty()) {
+      return;
+    }
+    redundantOpCount += journalWriter.writeReads(unjournaledReads);
+    unjournaledReads.clear();
+    scheduleJournalFlush();
     if (journalRebuildRequired()) {
-      executorService.submit(cleanupCallable);
+      scheduler.schedule(cleanupCallable);
     }
+  }
 
-    return true;
+  private void scheduleJournalFlush() {
+    if (journalFlushScheduled.compareAndSet(false, true)) {
+      scheduler.execute(journalFlushCallable);
+    }
+    scheduleIndexCheckpointIfNeeded();
   }
 
-  /** Returns true if this cache has been closed. */
-  public synchronized boolean isClosed() {
-    return journalWriter == null;
+  private void scheduleIndexCheckpointIfNeeded() {
+    if (indexCheckpointBytes > 0 && !indexCheckpointScheduled
+        && journalWriter.position() - indexPosition >= indexCheckpointBytes) {
+      indexCheckpointScheduled = true;
+      scheduler.schedule(indexCheckpointCallable);
+    }
   }
 
-  private void checkNotClosed() {
-    if (journalWriter == null) {
-      throw new IllegalStateException("cache is closed");
+  /**
+   * Writes an index checkpoint of the current entries. They are encoded while
+   * holding the cache lock; the file is written without it.
+   */
+  private void checkpointIndex() throws IOException {
+    JournalWriter writer;
+    JournalIndex.Writer index;
+    long position;
+    int generation;
+    synchronized (this) {
+      if (journalWriter == null) {
+        indexCheckpointScheduled = false;
+        return; // Closed.
+      }
+      writer = journalWriter;
+      position = writer.position();
+      generation = journalGeneration;
+      index = encodeIndex(position);
+      indexPosition = position;
+    }
+
+    try {
+      // The checkpoint must not be ahead of the journal on disk.
+      if (durability == Durability.NONE) {
+        writer.awaitWritten(position);
+      } else {
+        writer.awaitSynced(position);
+      }
+      index.writeTo(indexFileTmp, JournalIndex.journalCheck(journalFile, position),
+          durability != Durability.NONE);
+      scheduler.throttle(indexFileTmp.length());
+    } finally {
+      synchronized (this) {
+        indexCheckpointScheduled = false;
+        if (generation == journalGeneration && indexFileTmp.exists()) {
+          renameTo(indexFileTmp, indexFile, true);
+        } else {
+          deleteIfExists(indexFileTmp); // Failed, or the journal was rebuilt meanwhile.
+        }
+      }
     }
   }
 
-  /** Force buffered operations to the filesystem. */
-  public synchronized void flush() throws IOException {
-    checkNotClosed();
-    trimToSize();
-    journalWriter.flush();
+  private JournalIndex.Writer encodeIndex(long position) {
+    JournalIndex.Writer index =
+        new JournalIndex.Writer(appVersion, valueCount, position, redundantOpCount);
+    // A binary journal's records refer to its key dictionary; a text journal's name their keys.
+    HashMap<String, Integer> keyIds = journalWriter.keyIds();
+    String[] keys;
+    if (keyIds != null) {
+      keys = new String[keyIds.size()];
+      for (Map.Entry<String, Integer> keyId : keyIds.entrySet()) {
+        keys[keyId.getValue()] = keyId.getKey();
+      }
+    } else {
+      keys = new String[lruEntries.size()];
+      int i = 0;
+      for (Entry entry : lruEntries) {
+        keys[i++] = entry.key;
+      }
+    }
+    index.keys(keys, keys.length);
+    index.entryCount(lruEntries.size());
+    int keyIndex = 0;
+    for (Entry entry : lruEntries) {
+      index.entry(keyIds != null ? keyIds.get(entry.key) : keyIndex++,
+          entry.currentEditor != null, entry.lengths, entry.locations, entry.frequency,
+          entry.expiresAt);
+    }
+    return index;
   }
 
-  /** Closes this cache. Stored values will remain on the filesystem. */
-  public synchronized void close() throws IOException {
-    if (journalWriter == null) {
-      return; // Already closed.
+  /**
+   * With {@link Durability#COMMIT}, blocks until the records logged so far are
+   * on disk. Must be called without holding the cache lock so that concurrent
+   * callers can share one write and fsync.
+   */
+  private void awaitDurable() throws IOException {
+    if (durability != Durability.COMMIT) {
+      return; // The background flush takes care of it.
     }
-    for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-      if (entry.currentEditor != null) {
-        entry.currentEditor.abort();
+    JournalWriter writer;
+    synchronized (this) {
+      if (journalWriter == null) {
+        return; // Closed, which synced the journal.
       }
+      writer = journalWriter;
     }
-    trimToSize();
-    journalWriter.close();
-    journalWriter = null;
+    writer.awaitSynced(writer.position());
   }
 
+  /**
+   * We only rebuild the journal when it will halve the size of the journal
+   * and eliminate at least 2000 ops.
+   */
+  private boolean journalRebuildRequired() {
+    return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD //
+        && redundantOpCount >= lruEntries.size()
+        && redundantOpCount >= rebuildRetryOpCount;
+  }
+
+  /**
+   * Drops the entry for {@code key} if it exists and can be removed. Entries
+   * actively being edited cannot be removed.
+   *
+   * @return true if an entry was removed.
+   */
+  public boolean remove(String key) throws IOException {
+    return removeEntry(entryKey(key));
+  }
+
+  /** Drops the entry stored under {@code entryKey}, like {@link #remove}. */
+  boolean removeEntry(String key) throws IOException {
+    long start = stats.start();
+    scheduler.noteActivity();
+    boolean removed;
+    synchronized (this) {
+      stats.lockAcquired(start);
+      lockJournal();
+      try {
+        removed = dropEntry(key);
+      } finally {
+        unlockJournal();
+      }
+    }
+    if (removed) {
+      awaitDurable();
+    }
+    stats.record(CacheStats.Operation.REMOVE, start);
+    return removed;
+  }
+
+  private synchronized boolean dropEntry(String key) throws IOException {
+    checkNotClosed();
+    Entry entry = lruEntries.get(key);
+    if (entry == null || entry.currentEditor != null) {
+      return false;
+    }
+
+    openPinnedValues(entry);
+    for (int i = 0; i < valueCount; i++) {
+      if (entry.locations[i] == PackStore.LOOSE) {
+        File file = entry.getCleanFile(i);
+        if (file.exists() && !file.delete()) {
+          throw new IOException("failed to delete " + file);
+        }
+      } else {
+        packStore.release(entry.locations[i], entry.lengths[i]);
+        entry.locations[i] = PackStore.LOOSE;
+      }
+      adjustSize(-entry.lengths[i]);
+      entry.lengths[i] = 0;
+    }
+
+    redundantOpCount++;
+    journalWriter.writeRemove(key);
+    lruEntries.remove(key);
+    unjournaledReads.remove(key);
+    if (evictionPolicy != null && entry.readable) {
+      evictionPolicy.onRemove(key);
+    }
+    if (durability != Durability.COMMIT) {
+      scheduleJournalFlush();
+    }
+
+    if (journalRebuildRequired()) {
+      scheduler.schedule(cleanupCallable);
+    }
+    scheduleCompactionIfNeeded();
+    scheduleIndexCheckpointIfNeeded();
+
+    return true;
+  }
+
+  /** Returns true if this cache has been closed. */
+  public synchronized boolean isClosed() {
+    return journalWriter == null;
+  }
+
+  private void checkNotClosed() {
+    if (journalWriter == null) {
+      throw new IllegalStateException("cache is closed");
+    }
+  }
+
+  /**
+   * Force buffered operations to the filesystem. Unless the durability is
+   * {@link Durability#NONE}, this also syncs the journal to disk.
+   */
+  public synchronized void flush() throws IOException {
+    checkNotClosed();
+    lockJournal();
+    try {
+      trimToSize();
+      checkpointReads();
+      if (durability == Durability.NONE) {
+        journalWriter.flush();
+      } else {
+        journalWriter.awaitSynced(journalWriter.position());
+      }
+    } finally {
+      unlockJournal();
+    }
+  }
+
+  /** Closes this cache. Stored values will remain on the filesystem. */
+  public synchronized void close() throws IOException {
+    if (journalWriter == null) {
+      return; // Already closed.
+    }
+    lockJournal();
+    try {
+      for (Entry entry : lruEntries.toList()) {
+        // Edits of other processes are theirs to complete.
+        if (entry.currentEditor != null && entry.currentEditor.journal != null) {
+          entry.currentEditor.abort();
+        }
+      }
+      trimToSize();
+      checkpointReads();
+      for (String key : pendingDeletes) {
+        for (int i = 0; i < valueCount; i++) {
+          getCleanFile(key, i).delete();
+        }
+      }
+      pendingDeletes.clear();
+
+      // Leave a checkpoint so that the next open replays nothing, unless one is being written.
+      long position = journalWriter.position();
+      JournalIndex.Writer index = indexCheckpointBytes > 0 && !indexCheckpointScheduled
+          && position != indexPosition ? encodeIndex(position) : null;
+      boolean sync = durability != Durability.NONE;
+      journalWriter.close(sync);
+      journalWriter = null;
+      packStore.close();
+      if (index != null) {
+        index.writeTo(indexFileTmp, JournalIndex.journalCheck(journalFile, position), sync);
+        renameTo(indexFileTmp, indexFile, true);
+      }
+    } finally {
+      unlockJournal();
+      if (processLock != null && journalWriter == null) {
+        processLock.close();
+      }
+      if (ownsScheduler && journalWriter == null) {
+        scheduler.shutdown();
+      }
+    }
+  }
+
+  private boolean exceedsHighWatermark() {
+    return size > (long) (maxSize * (double) highWatermark);
+  }
+
+  /**
+   * Once the size exceeds the high watermark, evicts entries in eviction
+   * order until it is at most the low watermark. The victims are logged
+   * together and their files are deleted later by the scheduler, so that the
+   * cache lock is only held for the bookkeeping.
+   */
   private void trimToSize() throws IOException {
-    while (size > maxSize) {
-      Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-      remove(toEvict.getKey());
+    if (!exceedsHighWatermark()) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (nextExpiry <= now) {
+      removeExpired(now); // Expired entries go first.
+      if (!exceedsHighWatermark()) {
+        return;
+      }
+    }
+    long target = (long) (maxSize * (double) lowWatermark);
+    ArrayList<Entry> victims = new ArrayList<Entry>();
+    long remaining = size;
+    for (Iterator<Entry> i = evictionOrder(); remaining > target && i.hasNext(); ) {
+      Entry entry = i.next();
+      if (entry.currentEditor != null) {
+        continue; // The editor completes or aborts it.
+      }
+      victims.add(entry);
+      remaining -= entry.totalLength();
+    }
+    forgetStaleVictims();
+
+    ArrayList<String> keys = new ArrayList<String>(victims.size());
+    for (Entry entry : victims) {
+      lruEntries.remove(entry);
+      evict(entry, false);
+      keys.add(entry.key);
+    }
+    logEvictions(keys);
+  }
+
+  /**
+   * Returns the published entries in the order they should be evicted. The
+   * policy's order is only valid until the next change of the cache.
+   */
+  private Iterator<Entry> evictionOrder() {
+    if (evictionPolicy == null) {
+      return lruEntries.iterator();
+    }
+    final Iterator<String> keys = evictionPolicy.victims();
+    return new Iterator<Entry>() {
+      private Entry next;
+
+      @Override public boolean hasNext() {
+        while (next == null && keys.hasNext()) {
+          String key = keys.next();
+          next = lruEntries.peek(key);
+          if (next == null) {
+            staleVictims.add(key);
+          }
+        }
+        return next != null;
+      }
+
+      @Override public Entry next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Entry result = next;
+        next = null;
+        return result;
+      }
+
+      @Override public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Forgets {@code entry}, which is no longer in {@link #lruEntries}, and
+   * queues its files. The caller logs the eviction.
+   */
+  private void evict(Entry entry, boolean expired) {
+    if (evictionPolicy != null && expired) {
+      evictionPolicy.onRemove(entry.key);
+    } else if (evictionPolicy != null) {
+      evictionPolicy.onEvict(entry.key);
+    }
+    stats.evicted(entry.totalLength(), expired);
+    openPinnedValues(entry);
+    boolean hasFiles = false;
+    for (int i = 0; i < valueCount; i++) {
+      if (entry.locations[i] == PackStore.LOOSE) {
+        hasFiles = true;
+      } else {
+        packStore.release(entry.locations[i], entry.lengths[i]);
+        entry.locations[i] = PackStore.LOOSE;
+      }
+      adjustSize(-entry.lengths[i]);
+      entry.lengths[i] = 0;
+    }
+    unjournaledReads.remove(entry.key);
+    if (hasFiles) {
+      pendingDeletes.add(entry.key);
+    }
+  }
+
+  /**
+   * Evicts the published entries that expired by {@code now}, as one batch,
+   * and finds out when the next one expires.
+   */
+  private void removeExpired(long now) throws IOException {
+    lastExpirySweepMillis = now;
+    long next = Long.MAX_VALUE;
+    ArrayList<String> expired = new ArrayList<String>();
+    for (Iterator<Entry> i = lruEntries.iterator(); i.hasNext(); ) {
+      Entry entry = i.next();
+      if (entry.expiresAt == 0) {
+        continue;
+      }
+      if (entry.isExpired(now) && entry.readable && entry.currentEditor == null) {
+        i.remove();
+        evict(entry, true);
+        expired.add(entry.key);
+      } else {
+        next = Math.min(next, entry.expiresAt); // Being edited entries are retried later.
+      }
+    }
+    nextExpiry = next;
+    logEvictions(expired);
+  }
+
+  private void scheduleExpirySweepIfNeeded(long now) {
+    if (expirySweepIntervalMillis > 0 && !expirySweepScheduled && nextExpiry <= now
+        && now - lastExpirySweepMillis >= expirySweepIntervalMillis) {
+      expirySweepScheduled = true;
+      scheduler.schedule(expirySweepCallable);
+    }
+  }
+
+  private void logEvictions(List<String> victims) throws IOException {
+    if (victims.isEmpty()) {
+      return;
+    }
+    redundantOpCount += journalWriter.writeRemoves(victims);
+    scheduleJournalFlush();
+    if (processLock != null) {
+      // Other processes may create new files for these keys once they read the records.
+      for (String key : victims) {
+        if (pendingDeletes.remove(key)) {
+          for (int i = 0; i < valueCount; i++) {
+            getCleanFile(key, i).delete();
+          }
+        }
+      }
+    } else if (deletionScheduled.compareAndSet(false, true)) {
+      scheduler.schedule(deletionCallable);
+    }
+    scheduleCompactionIfNeeded();
+  }
+
+  /** Deletes the files of evicted entries. Runs on the scheduler, mostly without the lock. */
+  private void deleteEvictedFiles() throws IOException {
+    synchronized (this) {
+      if (pendingDeletes.isEmpty()) {
+        return;
+      }
+      deletingKeys.addAll(pendingDeletes);
+      pendingDeletes.clear();
+    }
+    try {
+      for (String key : deletingKeys) {
+        for (int i = 0; i < valueCount; i++) {
+          if (getCleanFile(key, i).delete()) {
+            scheduler.throttle(MaintenanceScheduler.FILE_OPERATION_BYTES);
+          }
+        }
+      }
+    } finally {
+      synchronized (this) {
+        deletingKeys.clear();
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Deletes the files left by evicting an entry named {@code key}, or waits
+   * until the scheduler did, before new files are created for that key.
+   */
+  private void deleteEvictedFiles(String key) throws IOException {
+    while (deletingKeys.contains(key)) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+      checkNotClosed();
+    }
+    if (pendingDeletes.remove(key)) {
+      for (int i = 0; i < valueCount; i++) {
+        deleteIfExists(getCleanFile(key, i));
+      }
+    }
+  }
+
+  /**
+   * Deletes the value files that no entry refers to. They are left behind by
+   * edits whose DIRTY record didn't reach the journal before a crash, by
+   * evictions whose files weren't deleted yet, and by recovering a corrupt
+   * journal. The directory is listed without the lock; files are checked and
+   * deleted with it, so that no edit can create them meanwhile.
+   */
+  private void deleteOrphanFiles() throws IOException {
+    ArrayList<File> files = new ArrayList<File>();
+    listFiles(directory, directoryLevels, files);
+    synchronized (this) {
+      if (journalWriter == null) {
+        return; // Closed.
+      }
+      lockJournal();
+      try {
+        deleteOrphanFiles(files);
+      } finally {
+        unlockJournal();
+      }
+    }
+  }
+
+  private void deleteOrphanFiles(ArrayList<File> files) {
+    for (File file : files) {
+      String name = file.getName();
+      boolean dirty = name.endsWith(DIRTY_SUFFIX);
+      String base = dirty ? name.substring(0, name.length() - DIRTY_SUFFIX.length()) : name;
+      int dot = base.lastIndexOf('.');
+      int index = dot > 0 ? valueIndex(base.substring(dot + 1)) : -1;
+      if (index == -1 || name.startsWith(PackStore.PREFIX)) {
+        continue; // Not a value file.
+      }
+      String key = base.substring(0, dot);
+      Entry entry = lruEntries.peek(key);
+      boolean orphan = dirty
+          ? entry == null || entry.currentEditor == null
+          : entry == null || !entry.readable || entry.locations[index] != PackStore.LOOSE;
+      if (orphan && isLegalKey(key) && file.delete()) {
+        scheduler.charge(MaintenanceScheduler.FILE_OPERATION_BYTES);
+      }
+    }
+  }
+
+  private void adjustSize(long delta) {
+    size += delta;
+    if (sizeListener != null && delta != 0) {
+      sizeListener.onSizeChanged(delta);
+    }
+  }
+
+  synchronized void setSizeListener(SizeListener sizeListener) {
+    this.sizeListener = sizeListener;
+  }
+
+  /**
+   * Returns the {@link System#nanoTime} of the last access to the entry that
+   * would be evicted next, or {@code Long.MAX_VALUE} if no entry could be
+   * evicted now.
+   */
+  synchronized long eldestAccessTime() {
+    Entry eldest = eldestEvictable();
+    return eldest != null ? eldest.accessTime : Long.MAX_VALUE;
+  }
+
+  /**
+   * Evicts the first entry in eviction order that is not being edited.
+   *
+   * @return false if no entry could be evicted.
+   */
+  synchronized boolean evictEldest() throws IOException {
+    if (journalWriter == null) {
+      return false; // Closed.
+    }
+    lockJournal();
+    try {
+      Entry eldest = eldestEvictable();
+      if (eldest == null) {
+        return false;
+      }
+      evictOne(eldest);
+      return true;
+    } finally {
+      unlockJournal();
+    }
+  }
+
+  /**
+   * Evicts the entry stored under {@code entryKey}, if it is still there,
+   * unless it is being edited.
+   *
+   * @return false if the entry is being edited.
+   */
+  synchronized boolean evictEntry(String entryKey) throws IOException {
+    if (journalWriter == null) {
+      return false; // Closed.
+    }
+    lockJournal();
+    try {
+      Entry entry = lruEntries.peek(entryKey);
+      if (entry == null) {
+        return true;
+      }
+      if (entry.currentEditor != null) {
+        return false;
+      }
+      evictOne(entry);
+      return true;
+    } finally {
+      unlockJournal();
+    }
+  }
+
+  private void evictOne(Entry entry) throws IOException {
+    lruEntries.remove(entry);
+    evict(entry, false);
+    logEvictions(Collections.singletonList(entry.key));
+    if (journalRebuildRequired()) {
+      scheduler.schedule(cleanupCallable);
+    }
+  }
+
+  private Entry eldestEvictable() {
+    Entry eldest = null;
+    for (Iterator<Entry> i = evictionOrder(); i.hasNext(); ) {
+      Entry entry = i.next();
+      if (entry.currentEditor == null) {
+        eldest = entry;
+        break;
+      }
+    }
+    forgetStaleVictims();
+    return eldest;
+  }
+
+  /**
+   * Removes the keys {@link #evictionOrder} skipped from the policy, which
+   * can't be changed while it is iterated.
+   */
+  private void forgetStaleVictims() {
+    for (String key : staleVictims) {
+      evictionPolicy.onRemove(key);
+    }
+    staleVictims.clear();
+  }
+
+  /**
+   * Returns the stored key (see {@link #entryKey}) of the entry that would
+   * be evicted next, or null if no entry could be evicted now.
+   */
+  synchronized String eldestEntryKey() {
+    Entry eldest = eldestEvictable();
+    return eldest != null ? eldest.key : null;
+  }
+
+  /** Returns true if the entry stored under {@code entryKey} can be read. */
+  synchronized boolean containsEntry(String entryKey) {
+    Entry entry = lruEntries.peek(entryKey);
+    return entry != null && entry.readable && !entry.isExpired(System.currentTimeMillis());
+  }
+
+  /** Returns how often the entry stored under {@code entryKey} was used, or 0 if it is absent. */
+  synchronized int frequency(String entryKey) {
+    Entry entry = lruEntries.peek(entryKey);
+    return entry != null && entry.readable ? entry.frequency : 0;
+  }
+
+  /**
+   * Copies the entry stored under {@code entryKey} to {@code target}, which
+   * must store keys the same way, and removes it here. The entry can't be
+   * edited here meanwhile; a copy that {@code target} already has is
+   * replaced. Neither lock is held while the values are copied.
+   *
+   * @return false if the entry can't be read here or either cache is
+   *     editing it.
+   */
+  boolean transferEntry(String entryKey, DiskLruCache target) throws IOException {
+    Snapshot snapshot;
+    Editor source;
+    synchronized (this) {
+      if (journalWriter == null) {
+        return false; // Closed.
+      }
+      lockJournal();
+      try {
+        Entry entry = lruEntries.peek(entryKey);
+        if (entry == null || !entry.readable || entry.currentEditor != null
+            || entry.isExpired(System.currentTimeMillis())) {
+          return false;
+        }
+        snapshot = new Snapshot(entry);
+        try {
+          for (int i = 0; i < valueCount; i++) {
+            snapshot.open(i);
+          }
+        } catch (FileNotFoundException e) {
+          snapshot.close();
+          return false; // A file must have been deleted manually!
+        }
+        // Holding an edit keeps the entry as it is until it is removed.
+        source = newEditor(entryKey, entry.sequenceNumber);
+      } finally {
+        unlockJournal();
+      }
+    }
+
+    boolean copied = false;
+    try {
+      Editor editor;
+      synchronized (target) {
+        if (target.journalWriter == null) {
+          return false; // Closed.
+        }
+        target.lockJournal();
+        try {
+          editor = target.newEditor(entryKey, ANY_SEQUENCE_NUMBER);
+        } finally {
+          target.unlockJournal();
+        }
+      }
+      if (editor == null) {
+        return false;
+      }
+      try {
+        for (int i = 0; i < valueCount; i++) {
+          scheduler.throttle(2 * snapshot.getLength(i));
+          editor.transferFrom(i, Channels.newChannel(snapshot.getInputStream(i)));
+        }
+        editor.setExpiresAt(source.expiresAt);
+        editor.commit();
+        copied = !editor.hasErrors;
+      } finally {
+        editor.abortUnlessCommitted();
+      }
+    } finally {
+      snapshot.close();
+      synchronized (this) {
+        if (journalWriter != null) {
+          lockJournal();
+          try {
+            completeEdit(source, false);
+            if (copied) {
+              dropEntry(entryKey);
+            }
+          } finally {
+            unlockJournal();
+          }
+        }
+      }
+    }
+    awaitDurable();
+    return copied;
+  }
+
+  /**
+   * Closes the cache and deletes all of its stored values. This will delete
+   * all files in the cache directory including files that weren't created by
+   * the cache. No other process may have a shared cache open meanwhile.
+   */
+  public void delete() throws IOException {
+    close();
+    deleteContents();
+  }
+
+  /**
+   * Deletes all files in the cache directory. A shared cache keeps its lock
+   * file, which other processes may be locking; deleting it would let the
+   * next process lock a new file instead.
+   */
+  private void deleteContents() throws IOException {
+    if (processLock == null) {
+      Util.deleteContents(directory);
+      return;
+    }
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("not a readable directory: " + directory);
+    }
+    for (File file : files) {
+      if (file.getName().equals(LOCK_FILE)) {
+        continue;
+      }
+      if (file.isDirectory()) {
+        Util.deleteContents(file);
+      }
+      if (!file.delete()) {
+        throw new IOException("failed to delete file: " + file);
+      }
+    }
+  }
+
+  private File getCleanFile(String key, int i) {
+    return new File(bucketPrefixes[bucket(key)] + key + cleanSuffixes[i]);
+  }
+
+  /** Returns the index of the subdirectory holding the value files of {@code key}. */
+  private int bucket(String key) {
+    if (directoryLevels == 0) {
+      return 0;
+    }
+    // The top bits of a multiplicative hash, so buckets stay even within a shard.
+    return (key.hashCode() * 0x9e3779b9) >>> (32 - 4 * directoryLevels);
+  }
+
+  /**
+   * Adds the files in {@code dir}, and in its bucket subdirectories up to
+   * {@code levels} deep, to {@code files}. Only names of one hex digit are
+   * checked for being a directory, so that listing doesn't stat every file.
+   */
+  private static void listFiles(File dir, int levels, ArrayList<File> files) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      if (levels > 0 && isBucketName(child.getName()) && child.isDirectory()) {
+        listFiles(child, levels - 1, files);
+      } else {
+        files.add(child);
+      }
+    }
+  }
+
+  private static boolean isBucketName(String name) {
+    return name.length() == 1 && Character.digit(name.charAt(0), 16) != -1
+        && !Character.isUpperCase(name.charAt(0));
+  }
+
+  /**
+   * Moves the value files into the bucket subdirectories of this cache's
+   * layout if they were stored in another one, for example by a version
+   * without subdirectories. The layout is recorded in {@link #LAYOUT_FILE},
+   * so that nothing is listed when it didn't change. The moved files are
+   * counted in the {@link #stats statistics}.
+   */
+  private void migrateLayout() throws IOException {
+    int layout = readLayout();
+    if (layout == directoryLevels) {
+      return;
+    }
+    ArrayList<File> files = new ArrayList<File>();
+    listFiles(directory, MAX_DIRECTORY_LEVELS, files);
+    int moved = 0;
+    for (File file : files) {
+      String name = file.getName();
+      boolean dirty = name.endsWith(DIRTY_SUFFIX);
+      String base = dirty ? name.substring(0, name.length() - DIRTY_SUFFIX.length()) : name;
+      int dot = base.lastIndexOf('.');
+      int index = dot > 0 ? valueIndex(base.substring(dot + 1)) : -1;
+      String key = index != -1 ? base.substring(0, dot) : null;
+      if (key == null || !isLegalKey(key) || name.startsWith(PackStore.PREFIX)) {
+        continue; // Not a value file.
+      }
+      if (dirty) {
+        file.delete(); // Its edit can't complete anymore.
+        continue;
+      }
+      File target = getCleanFile(key, index);
+      if (!target.equals(file)) {
+        target.getParentFile().mkdirs();
+        renameTo(file, target, true);
+        moved++;
+      }
+    }
+    deleteEmptyBuckets(directory, MAX_DIRECTORY_LEVELS);
+    writeLayout();
+    stats.migrated(moved);
+  }
+
+  private static void deleteEmptyBuckets(File dir, int levels) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      if (isBucketName(child.getName()) && child.isDirectory()) {
+        if (levels > 1) {
+          deleteEmptyBuckets(child, levels - 1);
+        }
+        child.delete(); // Fails unless empty.
+      }
+    }
+  }
+
+  /** Returns the directory levels recorded in {@link #LAYOUT_FILE}; 0 if there is none. */
+  private int readLayout() {
+    File layoutFile = new File(directory, LAYOUT_FILE);
+    if (!layoutFile.exists()) {
+      return 0; // Older versions had no subdirectories.
+    }
+    try {
+      String layout = Util.readFully(
+          new InputStreamReader(new FileInputStream(layoutFile), Util.US_ASCII));
+      return Integer.parseInt(layout.trim());
+    } catch (IOException e) {
+      return -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private void writeLayout() throws IOException {
+    OutputStream out = new FileOutputStream(new File(directory, LAYOUT_FILE));
+    try {
+      out.write((directoryLevels + "\n").getBytes(Util.US_ASCII));
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Returns the key that the entry of {@code key} is stored under: its hash
+   * if this cache hashes keys, and {@code key} itself otherwise.
+   */
+  String entryKey(String key) {
+    if (hashKeys) {
+      if (key == null) {
+        throw new NullPointerException("key == null");
+      }
+      return Murmur3.hash128Hex(key);
+    }
+    validateKey(key);
+    return key;
+  }
+
+  private void validateKey(String key) {
+    if (!isLegalKey(key)) {
+      throw new IllegalArgumentException("keys must match regex "
+              + STRING_KEY_PATTERN + ": \"" + key + "\"");
+    }
+  }
+
+  /** Returns true if {@code key} matches {@link #STRING_KEY_PATTERN}. */
+  static boolean isLegalKey(String key) {
+    int length = key.length();
+    if (length == 0 || length > MAX_KEY_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      char c = key.charAt(i);
+      if (!(c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '_' || c == '-')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String inputStreamToString(InputStream in) throws IOException {
+    return Util.readFully(new InputStreamReader(in, Util.UTF_8));
+  }
+
+  private static final byte[] NEWLINE = {'\n'};
+
+  /** The on-disk encodings of the journal. */
+  public enum JournalFormat {
+    /** The original line-based {@code libcore.io.DiskLruCache} format. */
+    TEXT,
+    /**
+     * Length-prefixed records with varint lengths and a key dictionary. Opens
+     * much faster than {@link #TEXT} when a cache holds many entries.
+     */
+    BINARY
+  }
+
+  /** How hard the cache tries to get journal records onto disk before returning. */
+  public enum Durability {
+    /**
+     * Records are written to the file system by a background thread, in
+     * batches, and never fsynced. A crash may lose the most recent records.
+     */
+    NONE,
+    /**
+     * Like {@link #NONE}, but the background thread also fsyncs the journal
+     * once the configured sync interval has passed since the previous sync.
+     */
+    PERIODIC,
+    /**
+     * Commits and removes return only after their records were written and
+     * fsynced. Concurrent callers share a single write and fsync.
+     */
+    COMMIT
+  }
+
+  /**
+   * Settings for {@link #open(File, int, int, long, Options)}. The defaults
+   * match {@link #open(File, int, int, long)}.
+   */
+  public static final class Options {
+    JournalFormat journalFormat = JournalFormat.TEXT;
+    Durability durability = Durability.NONE;
+    long syncIntervalMillis = 1000;
+    boolean journalReads = true;
+    long readCheckpointIntervalMillis = 30 * 1000;
+    int packThreshold = 0;
+    long packSegmentSize = 4 * 1024 * 1024;
+    float highWatermark = 1f;
+    float lowWatermark = 0.9f;
+    long indexCheckpointBytes = 0;
+    EvictionPolicy.Factory evictionPolicyFactory;
+    long expirySweepIntervalMillis = 60 * 1000;
+    boolean hashKeys;
+    int directoryLevels = 0;
+    boolean recordStats;
+    boolean multiProcess;
+    MaintenanceScheduler maintenanceScheduler;
+
+    /**
+     * Sets the format new journal records are written in. An existing journal
+     * in another format is converted when the cache is opened.
+     */
+    public Options setJournalFormat(JournalFormat journalFormat) {
+      if (journalFormat == null) {
+        throw new NullPointerException("journalFormat == null");
+      }
+      this.journalFormat = journalFormat;
+      return this;
+    }
+
+    /** Sets how journal records are made durable. Defaults to {@link Durability#NONE}. */
+    public Options setDurability(Durability durability) {
+      if (durability == null) {
+        throw new NullPointerException("durability == null");
+      }
+      this.durability = durability;
+      return this;
+    }
+
+    /**
+     * Sets the minimum time between two fsyncs of the journal when the
+     * durability is {@link Durability#PERIODIC}. Defaults to one second.
+     */
+    public Options setSyncIntervalMillis(long syncIntervalMillis) {
+      if (syncIntervalMillis < 0) {
+        throw new IllegalArgumentException("syncIntervalMillis < 0");
+      }
+      this.syncIntervalMillis = syncIntervalMillis;
+      return this;
+    }
+
+    /**
+     * Sets whether every {@link DiskLruCache#get} appends a record to the
+     * journal. When false, reads only update the in-memory LRU order, which is
+     * persisted as a compact checkpoint at most every checkpoint interval, on
+     * {@link DiskLruCache#flush} and on {@link DiskLruCache#close}. Reads then
+     * do no journal I/O, and the LRU order survives a crash approximately.
+     * Defaults to true.
+     */
+    public Options setJournalReads(boolean journalReads) {
+      this.journalReads = journalReads;
+      return this;
+    }
+
+    /**
+     * Sets how often reads that aren't journaled individually are
+     * checkpointed. Defaults to 30 seconds.
+     */
+    public Options setReadCheckpointIntervalMillis(long readCheckpointIntervalMillis) {
+      if (readCheckpointIntervalMillis < 0) {
+        throw new IllegalArgumentException("readCheckpointIntervalMillis < 0");
+      }
+      this.readCheckpointIntervalMillis = readCheckpointIntervalMillis;
+      return this;
+    }
+
+    /**
+     * Sets the size, in bytes, up to which a value is appended to a shared
+     * pack file instead of being stored in a file of its own. Packed values
+     * cost no file creation, rename or deletion and no file system block
+     * rounding; the space of replaced and removed values is reclaimed by
+     * compacting pack files in the background. Values are held in memory
+     * until their edit is committed. Defaults to 0, which packs nothing.
+     */
+    public Options setPackThreshold(int packThreshold) {
+      if (packThreshold < 0) {
+        throw new IllegalArgumentException("packThreshold < 0");
+      }
+      this.packThreshold = packThreshold;
+      return this;
+    }
+
+    /** Sets the size at which a pack file is closed and the next one started. Defaults to 4 MiB. */
+    public Options setPackSegmentSize(long packSegmentSize) {
+      if (packSegmentSize <= 0 || packSegmentSize > PackStore.MAX_SEGMENT_SIZE) {
+        throw new IllegalArgumentException("packSegmentSize out of range: " + packSegmentSize);
+      }
+      this.packSegmentSize = packSegmentSize;
+      return this;
+    }
+
+    /**
+     * Sets when entries are evicted, as fractions of the max size. Once the
+     * size exceeds {@code high}, entries are evicted in
+     * one batch until it is at most {@code low}. Leaving room below the limit
+     * makes evictions rarer and larger. Defaults to 1.0 and 0.9.
+     */
+    public Options setEvictionWatermarks(float high, float low) {
+      if (!(low > 0 && low <= high && high <= 1)) {
+        throw new IllegalArgumentException("expected 0 < low <= high <= 1: " + low + ", " + high);
+      }
+      this.highWatermark = high;
+      this.lowWatermark = low;
+      return this;
+    }
+
+    /**
+     * Sets how many bytes may be appended to the journal before the cache
+     * checkpoints its entries to an index file. Opening the cache loads the
+     * latest checkpoint and replays only the journal records after it, so it
+     * takes time proportional to the number of entries rather than to the
+     * age of the journal. A checkpoint is also written on close. Defaults to
+     * 0, which writes no checkpoints.
+     */
+    public Options setIndexCheckpointBytes(long indexCheckpointBytes) {
+      if (indexCheckpointBytes < 0) {
+        throw new IllegalArgumentException("indexCheckpointBytes < 0");
+      }
+      this.indexCheckpointBytes = indexCheckpointBytes;
+      return this;
+    }
+
+    /**
+     * Sets the policy that chooses which entries are evicted, or null to
+     * evict the least recently used entries. A {@link ShardedDiskLruCache}
+     * creates a policy per shard. Policies that count accesses should be
+     * combined with {@link #setIndexCheckpointBytes index checkpoints}, which
+     * persist the counts; otherwise they restart from the journal, which
+     * forgets them whenever it is compacted. Defaults to null.
+     */
+    public Options setEvictionPolicy(EvictionPolicy.Factory evictionPolicyFactory) {
+      this.evictionPolicyFactory = evictionPolicyFactory;
+      return this;
+    }
+
+    /**
+     * Sets how often the cache looks for expired entries (see {@link
+     * Editor#setExpiresAt}) and evicts them in the background. An expired
+     * entry is also evicted when it is read, and before others when the
+     * cache is trimmed. Defaults to one minute; 0 disables the background
+     * sweep.
+     */
+    public Options setExpirySweepIntervalMillis(long expirySweepIntervalMillis) {
+      if (expirySweepIntervalMillis < 0) {
+        throw new IllegalArgumentException("expirySweepIntervalMillis < 0");
+      }
+      this.expirySweepIntervalMillis = expirySweepIntervalMillis;
+      return this;
+    }
+
+    /**
+     * Sets whether the cache accepts any string as a key, such as a URL, and
+     * stores each entry under the 128-bit MurmurHash3 of its key, written as
+     * 32 hex digits. File names, the journal and the index then hold only
+     * these fixed-width hashes. Keys must otherwise match {@code
+     * [a-z0-9_-]{1,120}}. Entries stored with the other setting aren't found,
+     * and are evicted eventually. Defaults to false.
+     */
+    public Options setHashKeys(boolean hashKeys) {
+      this.hashKeys = hashKeys;
+      return this;
+    }
+
+    /**
+     * Sets how many levels of subdirectories the value files are spread
+     * over, so that no directory holds too many files. Each level has 16
+     * subdirectories named by a hex digit of the key's hash; two levels
+     * spread the files over 256 directories. Journal and pack files stay in
+     * the cache directory. When a cache is opened with another setting than
+     * it was written with, including caches from versions without
+     * subdirectories, its files are moved. Defaults to 0, which keeps all
+     * files in the cache directory.
+     */
+    public Options setDirectoryLevels(int directoryLevels) {
+      if (directoryLevels < 0 || directoryLevels > MAX_DIRECTORY_LEVELS) {
+        throw new IllegalArgumentException("directoryLevels must be between 0 and "
+            + MAX_DIRECTORY_LEVELS);
+      }
+      this.directoryLevels = directoryLevels;
+      return this;
+    }
+
+    /**
+     * Sets whether the cache records the statistics returned by {@link
+     * DiskLruCache#stats}: hits and misses, bytes read and written,
+     * evictions, and the latencies of reads, edits, commits, removals,
+     * journal rebuilds and of waiting for the cache lock. Recording reads the
+     * clock twice per operation. Defaults to false.
+     */
+    public Options setRecordStats(boolean recordStats) {
+      this.recordStats = recordStats;
+      return this;
+    }
+
+    /**
+     * Sets whether several processes may open the cache directory at once,
+     * such as an app's UI and a background worker. The processes share one
+     * text journal, coordinated with {@code FileChannel} locks: each takes
+     * the journal lock for every operation that reads or changes entries,
+     * first applies the records the others appended since, and writes its
+     * own before releasing it. So a commit in one process is visible to the
+     * next read in every other, without reopening the cache.
+     *
+     * <p>Snapshots then open all values right away. The binary journal
+     * format, pack files and index checkpoints are ignored, since they
+     * describe one process's view of the files; and the journal is only
+     * compacted by a process that finds itself alone. An edit left
+     * unfinished by a process that died blocks its key until then. Each
+     * process may open the directory only once, and all of them must use
+     * this setting. Defaults to false.
+     */
+    public Options setMultiProcess(boolean multiProcess) {
+      this.multiProcess = multiProcess;
+      return this;
     }
-  }
 
-  /**
-   * Closes the cache and deletes all of its stored values. This will delete
-   * all files in the cache directory including files that weren't created by
-   * the cache.
-   */
-  public void delete() throws IOException {
-    close();
-    Util.deleteContents(directory);
-  }
+    /**
+     * Sets the scheduler that runs the background work of the cache: journal
+     * writes, and maintenance such as trims, journal rebuilds and sweeps,
+     * which it can defer to idle windows and throttle. Several caches may
+     * share one scheduler, and with it its threads. A {@link
+     * ShardedDiskLruCache} shares it between its shards and a {@link
+     * TieredDiskLruCache} between its tiers. Defaults to null, which gives
+     * each cache a scheduler of its own that runs work right away and is
+     * shut down when the cache is closed.
+     */
+    public Options setMaintenanceScheduler(MaintenanceScheduler maintenanceScheduler) {
+      this.maintenanceScheduler = maintenanceScheduler;
+      return this;
+    }
 
-  private void validateKey(String key) {
-    Matcher matcher = LEGAL_KEY_PATTERN.matcher(key);
-    if (!matcher.matches()) {
-      throw new IllegalArgumentException("keys must match regex "
-              + STRING_KEY_PATTERN + ": \"" + key + "\"");
+    /** Returns a copy of these options that shares their policy factory and scheduler. */
+    Options copy() {
+      Options copy = new Options();
+      copy.journalFormat = journalFormat;
+      copy.durability = durability;
+      copy.syncIntervalMillis = syncIntervalMillis;
+      copy.journalReads = journalReads;
+      copy.readCheckpointIntervalMillis = readCheckpointIntervalMillis;
+      copy.packThreshold = packThreshold;
+      copy.packSegmentSize = packSegmentSize;
+      copy.highWatermark = highWatermark;
+      copy.lowWatermark = lowWatermark;
+      copy.indexCheckpointBytes = indexCheckpointBytes;
+      copy.evictionPolicyFactory = evictionPolicyFactory;
+      copy.expirySweepIntervalMillis = expirySweepIntervalMillis;
+      copy.hashKeys = hashKeys;
+      copy.directoryLevels = directoryLevels;
+      copy.recordStats = recordStats;
+      copy.multiProcess = multiProcess;
+      copy.maintenanceScheduler = maintenanceScheduler;
+      return copy;
     }
   }
 
-  private static String inputStreamToString(InputStream in) throws IOException {
-    return Util.readFully(new InputStreamReader(in, Util.UTF_8));
+  /** Observes the byte size of a cache that shares a budget with other caches. */
+  interface SizeListener {
+    /** Called with the cache lock held; must not call back into the cache. */
+    void onSizeChanged(long delta);
   }
 
   /** A snapshot of the values for an entry. */
   public final class Snapshot implements Closeable {
+    private final Entry entry;
     private final String key;
     private final long sequenceNumber;
-    private final InputStream[] ins;
     private final long[] lengths;
+    private final long[] locations;
+    private final long[] offsets;
+
+    /** Guarded by the cache lock; null until opened. */
+    private final FileInputStream[] ins;
+    private final InputStream[] streams;
+
+    /** True while the unopened values are the entry's current ones. Guarded by the cache lock. */
+    private boolean pinned;
+    private boolean closed;
+
+    private Snapshot(Entry entry) {
+      this.entry = entry;
+      this.key = entry.key;
+      this.sequenceNumber = entry.sequenceNumber;
+      // Copy the lengths: a later commit must not change what this snapshot reports or maps.
+      this.lengths = entry.lengths.clone();
+      this.locations = entry.locations.clone();
+      this.offsets = new long[valueCount];
+      this.ins = new FileInputStream[valueCount];
+      this.streams = new InputStream[valueCount];
+      for (int i = 0; i < valueCount; i++) {
+        if (locations[i] != PackStore.LOOSE) {
+          offsets[i] = PackStore.offset(locations[i]);
+        }
+      }
+    }
+
+    private void pin() {
+      if (entry.snapshots == null) {
+        entry.snapshots = new ArrayList<Snapshot>(2);
+      }
+      entry.snapshots.add(this);
+      pinned = true;
+    }
+
+    private void unpin() {
+      entry.snapshots.remove(this);
+      if (entry.snapshots.isEmpty()) {
+        entry.snapshots = null;
+      }
+      pinned = false;
+    }
 
-    private Snapshot(String key, long sequenceNumber, InputStream[] ins, long[] lengths) {
-      this.key = key;
-      this.sequenceNumber = sequenceNumber;
-      this.ins = ins;
-      this.lengths = lengths;
+    /** Opens the value at {@code index} unless it is open. Called with the cache lock held. */
+    private void open(int index) throws IOException {
+      if (ins[index] != null) {
+        return;
+      }
+      FileInputStream in = openValue(entry, index);
+      ins[index] = in;
+      stats.read(lengths[index]);
+      // A packed value is a range of a shared file; don't read past its end.
+      streams[index] = locations[index] == PackStore.LOOSE
+          ? in
+          : new PackStore.ValueInputStream(in, lengths[index]);
+    }
+
+    /** Opens the value at {@code index} for reading by the calling thread. */
+    private FileInputStream in(int index) throws IOException {
+      synchronized (DiskLruCache.this) {
+        if (ins[index] == null) {
+          if (closed) {
+            throw new IOException("snapshot is closed");
+          }
+          if (!pinned) {
+            // The entry changed and this value couldn't be opened before.
+            throw new FileNotFoundException("value " + index + " of " + key + " is gone");
+          }
+          open(index);
+          if (isOpen()) {
+            unpin(); // Later edits can't affect this snapshot anymore.
+          }
+        }
+        return ins[index];
+      }
+    }
+
+    private boolean isOpen() {
+      for (FileInputStream in : ins) {
+        if (in == null) {
+          return false;
+        }
+      }
+      return true;
     }
 
     /**
@@ -698,8 +3098,41 @@ public final class DiskLruCache implements Closeable {
     }
 
     /** Returns the unbuffered stream with the value for {@code index}. */
-    public InputStream getInputStream(int index) {
-      return ins[index];
+    public InputStream getInputStream(int index) throws IOException {
+      in(index);
+      return streams[index];
+    }
+
+    /**
+     * Returns the channel of the value for {@code index}. It shares its
+     * position with {@link #getInputStream} and is closed with this snapshot.
+     * A value stored in a pack file starts at {@link #getOffset} in its
+     * channel, which holds other values too; read at most {@link #getLength}
+     * bytes from it.
+     */
+    public FileChannel getChannel(int index) throws IOException {
+      return in(index).getChannel();
+    }
+
+    /**
+     * Maps the value for {@code index} into memory read-only. The buffer
+     * remains valid after this snapshot is closed, and is not affected by
+     * later edits of the entry.
+     */
+    public MappedByteBuffer map(int index) throws IOException {
+      return getChannel(index).map(FileChannel.MapMode.READ_ONLY, offsets[index], lengths[index]);
+    }
+
+    /**
+     * Returns the file descriptor of the value for {@code index}, positioned
+     * like {@link #getInputStream}. Decoders that read descriptors natively
+     * avoid copying the value through Java buffers. The descriptor is valid
+     * until this snapshot is closed. Like {@link #getChannel}, the descriptor
+     * of a packed value continues past its end: check {@link #isPacked} first
+     * unless the decoder reads at most {@link #getLength} bytes.
+     */
+    public FileDescriptor getFileDescriptor(int index) throws IOException {
+      return in(index).getFD();
     }
 
     /** Returns the string value for {@code index}. */
@@ -712,7 +3145,29 @@ public final class DiskLruCache implements Closeable {
       return lengths[index];
     }
 
+    /**
+     * Returns true if the value for {@code index} is stored in a pack file
+     * with other values, rather than in a file of its own.
+     */
+    public boolean isPacked(int index) {
+      return locations[index] != PackStore.LOOSE;
+    }
+
+    /**
+     * Returns the position of the value for {@code index} in its file. This
+     * is 0 unless the value is stored in a pack file.
+     */
+    public long getOffset(int index) {
+      return offsets[index];
+    }
+
     public void close() {
+      synchronized (DiskLruCache.this) {
+        if (pinned) {
+          unpin();
+        }
+        closed = true;
+      }
       for (InputStream in : ins) {
         Util.closeQuietly(in);
       }
@@ -733,9 +3188,34 @@ public final class DiskLruCache implements Closeable {
     private boolean hasErrors;
     private boolean committed;
 
+    /**
+     * The journal holding this edit's DIRTY record and the position just past
+     * it. Null for edits read from the journal, such as another process's.
+     */
+    private JournalWriter journal;
+    private long dirtyPosition;
+
+    /** Values held in memory to be packed on commit, and where they were packed. */
+    private final SpillingOutputStream[] buffers;
+    private final long[] packedLocations;
+
+    /** When the entry expires once committed, or 0. */
+    private long expiresAt;
+
     private Editor(Entry entry) {
       this.entry = entry;
+      this.expiresAt = entry.expiresAt;
       this.written = (entry.readable) ? null : new boolean[valueCount];
+      this.buffers = packThreshold > 0 ? new SpillingOutputStream[valueCount] : null;
+      this.packedLocations = packThreshold > 0 ? new long[valueCount] : null;
+      if (packedLocations != null) {
+        Arrays.fill(packedLocations, PackStore.LOOSE);
+      }
+    }
+
+    /** Returns true if the value at {@code index} was written to a pack file. */
+    private boolean isPacked(int index) {
+      return buffers != null && buffers[index] != null && !buffers[index].isSpilled();
     }
 
     /**
@@ -751,7 +3231,10 @@ public final class DiskLruCache implements Closeable {
           return null;
         }
         try {
-          return new FileInputStream(entry.getCleanFile(index));
+          FileInputStream in = openValue(entry, index);
+          return entry.locations[index] == PackStore.LOOSE
+              ? in
+              : new PackStore.ValueInputStream(in, entry.lengths[index]);
         } catch (FileNotFoundException e) {
           return null;
         }
@@ -775,11 +3258,159 @@ public final class DiskLruCache implements Closeable {
      * IOExceptions.
      */
     public OutputStream newOutputStream(int index) throws IOException {
+      File dirtyFile = beginWrite(index, true);
+      if (buffers != null) {
+        return new FaultHidingOutputStream(buffers[index]);
+      }
+      try {
+        return new FaultHidingOutputStream(openDirtyFile(dirtyFile));
+      } catch (FileNotFoundException e) {
+        // We are unable to recover. Silently eat the writes.
+        return NULL_OUTPUT_STREAM;
+      }
+    }
+
+    /**
+     * Sets the value at {@code index} to the remaining bytes of {@code value}
+     * and advances its position to its limit. Unless the value is small enough
+     * to be packed, it is written to its file with channel writes, straight
+     * from the buffer. Errors writing the file are handled like those of
+     * {@link #newOutputStream}.
+     */
+    public void set(int index, ByteBuffer value) throws IOException {
+      boolean pack = buffers != null && value.remaining() <= packThreshold;
+      File dirtyFile = beginWrite(index, pack);
+      if (pack) {
+        bufferValue(index, value);
+        return;
+      }
+      FileOutputStream out;
+      try {
+        out = openDirtyFile(dirtyFile);
+      } catch (FileNotFoundException e) {
+        value.position(value.limit());
+        return;
+      }
+      try {
+        FileChannel channel = out.getChannel();
+        while (value.hasRemaining()) {
+          channel.write(value);
+        }
+      } catch (IOException e) {
+        hasErrors = true;
+      } finally {
+        Util.closeQuietly(out);
+      }
+    }
+
+    /**
+     * Sets the value at {@code index} to the bytes read from {@code source}
+     * until its end, and returns their number. The bytes are moved with
+     * {@link FileChannel#transferFrom}, which copies from a file channel in
+     * the kernel, and from other channels through a single direct buffer.
+     * {@code source} must be in blocking mode and isn't closed.
+     *
+     * <p>If reading {@code source} or writing the value fails, the exception
+     * is thrown and this edit is aborted when {@link #commit} is called.
+     */
+    public long transferFrom(int index, ReadableByteChannel source) throws IOException {
+      ByteBuffer head = null;
+      if (buffers != null) {
+        // Read ahead to find out whether the value is small enough to be packed.
+        head = ByteBuffer.allocate(packThreshold + 1);
+        try {
+          int read;
+          do {
+            read = source.read(head);
+          } while (read != -1 && head.hasRemaining());
+        } catch (IOException e) {
+          failWrite(index);
+          throw e;
+        }
+        head.flip();
+        if (head.remaining() <= packThreshold) {
+          long length = head.remaining();
+          beginWrite(index, true);
+          bufferValue(index, head);
+          return length;
+        }
+      }
+
+      File dirtyFile = beginWrite(index, false);
+      FileOutputStream out = null;
+      try {
+        out = openDirtyFile(dirtyFile);
+        FileChannel channel = out.getChannel();
+        long position = 0;
+        if (head != null) {
+          while (head.hasRemaining()) {
+            position += channel.write(head);
+          }
+        }
+        for (long count; (count = channel.transferFrom(source, position, TRANSFER_SIZE)) > 0; ) {
+          position += count;
+        }
+        return position;
+      } catch (IOException e) {
+        hasErrors = true;
+        throw e;
+      } finally {
+        Util.closeQuietly(out);
+      }
+    }
+
+    /**
+     * Sets the value at {@code index} to a copy of the file {@code source}.
+     * See {@link #transferFrom(int, ReadableByteChannel)}.
+     */
+    public void copyFrom(int index, File source) throws IOException {
+      FileInputStream in;
+      try {
+        in = new FileInputStream(source);
+      } catch (FileNotFoundException e) {
+        failWrite(index);
+        throw e;
+      }
+      try {
+        transferFrom(index, in.getChannel());
+      } finally {
+        Util.closeQuietly(in);
+      }
+    }
+
+    /**
+     * Sets the value at {@code index} to the file {@code source}, which must
+     * not be used afterwards. It is renamed into the cache if it is on the
+     * same file system and too large to be packed, and copied and deleted
+     * otherwise.
+     */
+    public void moveFrom(int index, File source) throws IOException {
+      long length = source.length();
+      if (buffers == null || length > packThreshold) {
+        File dirtyFile = beginWrite(index, false);
+        if (source.renameTo(dirtyFile)
+            || dirtyFile.getParentFile().mkdirs() && source.renameTo(dirtyFile)) {
+          return;
+        }
+      }
+      copyFrom(index, source);
+      source.delete();
+    }
+
+    /**
+     * Checks that this edit may write the value at {@code index} and returns
+     * the dirty file to write it to. {@code packable} is true if the value
+     * should be held in memory so it can be packed.
+     */
+    private File beginWrite(int index, boolean packable) throws IOException {
       if (index < 0 || index >= valueCount) {
         throw new IllegalArgumentException("Expected index " + index + " to "
                 + "be greater than 0 and less than the maximum value count "
                 + "of " + valueCount);
       }
+      if (durability == Durability.COMMIT) {
+        journal.awaitWritten(dirtyPosition);
+      }
       synchronized (DiskLruCache.this) {
         if (entry.currentEditor != this) {
           throw new IllegalStateException();
@@ -788,20 +3419,38 @@ public final class DiskLruCache implements Closeable {
           written[index] = true;
         }
         File dirtyFile = entry.getDirtyFile(index);
-        FileOutputStream outputStream;
-        try {
-          outputStream = new FileOutputStream(dirtyFile);
-        } catch (FileNotFoundException e) {
-          // Attempt to recreate the cache directory.
-          directory.mkdirs();
-          try {
-            outputStream = new FileOutputStream(dirtyFile);
-          } catch (FileNotFoundException e2) {
-            // We are unable to recover. Silently eat the writes.
-            return NULL_OUTPUT_STREAM;
-          }
+        if (buffers != null) {
+          buffers[index] = packable ? new SpillingOutputStream(dirtyFile) : null;
         }
-        return new FaultHidingOutputStream(outputStream);
+        return dirtyFile;
+      }
+    }
+
+    /** Marks the value at {@code index} as written and this edit as failed. */
+    private void failWrite(int index) throws IOException {
+      beginWrite(index, false);
+      hasErrors = true;
+    }
+
+    private void bufferValue(int index, ByteBuffer value) throws IOException {
+      int length = value.remaining();
+      if (value.hasArray()) {
+        buffers[index].write(value.array(), value.arrayOffset() + value.position(), length);
+        value.position(value.limit());
+      } else {
+        byte[] bytes = new byte[length];
+        value.get(bytes);
+        buffers[index].write(bytes, 0, length);
+      }
+    }
+
+    private FileOutputStream openDirtyFile(File dirtyFile) throws FileNotFoundException {
+      try {
+        return new FileOutputStream(dirtyFile);
+      } catch (FileNotFoundException e) {
+        // Attempt to recreate the cache directory or its bucket.
+        dirtyFile.getParentFile().mkdirs();
+        return new FileOutputStream(dirtyFile);
       }
     }
 
@@ -816,18 +3465,63 @@ public final class DiskLruCache implements Closeable {
       }
     }
 
+    /**
+     * Sets when the entry expires, in milliseconds since the epoch, or 0 if
+     * it never does. An expired entry is no longer returned by {@link
+     * DiskLruCache#get} and is evicted. Edits keep the previous expiry time
+     * unless it is changed; new entries never expire by default.
+     */
+    public void setExpiresAt(long expiresAtMillis) {
+      if (expiresAtMillis < 0) {
+        throw new IllegalArgumentException("expiresAtMillis < 0");
+      }
+      this.expiresAt = expiresAtMillis;
+    }
+
+    /** Sets the entry to expire {@code timeToLive} after now. */
+    public void setTimeToLive(long timeToLive, TimeUnit unit) {
+      if (timeToLive <= 0) {
+        throw new IllegalArgumentException("timeToLive <= 0");
+      }
+      setExpiresAt(System.currentTimeMillis() + unit.toMillis(timeToLive));
+    }
+
     /**
      * Commits this edit so it is visible to readers.  This releases the
      * edit lock so another edit may be started on the same key.
      */
     public void commit() throws IOException {
-      if (hasErrors) {
-        completeEdit(this, false);
-        remove(entry.key); // The previous entry is stale.
-      } else {
-        completeEdit(this, true);
+      long start = stats.start();
+      scheduler.noteActivity();
+      if (!hasErrors) {
+        // Appended without the cache lock, as loose values are written to
+        // their dirty files before commit.
+        try {
+          packValues();
+          if (durability == Durability.COMMIT) {
+            packStore.sync(); // Before the CLEAN record pointing at the bytes is synced.
+          }
+        } catch (IOException e) {
+          hasErrors = true;
+        }
+      }
+      synchronized (DiskLruCache.this) {
+        stats.lockAcquired(start);
+        lockJournal();
+        try {
+          if (hasErrors) {
+            completeEdit(this, false);
+            dropEntry(entry.key); // The previous entry is stale.
+          } else {
+            completeEdit(this, true);
+          }
+        } finally {
+          unlockJournal();
+        }
       }
       committed = true;
+      awaitDurable();
+      stats.record(CacheStats.Operation.COMMIT, start);
     }
 
     /**
@@ -835,7 +3529,40 @@ public final class DiskLruCache implements Closeable {
      * started on the same key.
      */
     public void abort() throws IOException {
-      completeEdit(this, false);
+      synchronized (DiskLruCache.this) {
+        lockJournal();
+        try {
+          completeEdit(this, false);
+        } finally {
+          unlockJournal();
+        }
+      }
+      awaitDurable();
+    }
+
+    /** Appends the values held in memory to the pack files. */
+    private void packValues() throws IOException {
+      if (buffers == null) {
+        return;
+      }
+      for (int i = 0; i < valueCount; i++) {
+        if (isPacked(i) && packedLocations[i] == PackStore.LOOSE) {
+          packedLocations[i] = packStore.append(buffers[i].buffer, 0, buffers[i].count);
+        }
+      }
+    }
+
+    /** Turns the values this edit appended but didn't publish into dead space. */
+    private void releasePackedValues() {
+      if (packedLocations == null) {
+        return;
+      }
+      for (int i = 0; i < valueCount; i++) {
+        if (packedLocations[i] != PackStore.LOOSE) {
+          packStore.release(packedLocations[i], buffers[i].count);
+          packedLocations[i] = PackStore.LOOSE;
+        }
+      }
     }
 
     public void abortUnlessCommitted() {
@@ -847,6 +3574,71 @@ public final class DiskLruCache implements Closeable {
       }
     }
 
+    /**
+     * Holds a value in memory so that it can be packed, and moves it to the
+     * dirty file once it grows past the pack threshold.
+     */
+    private final class SpillingOutputStream extends OutputStream {
+      private final File dirtyFile;
+      private byte[] buffer = new byte[Math.min(packThreshold, 8192)];
+      private int count;
+      private OutputStream spill;
+
+      private SpillingOutputStream(File dirtyFile) {
+        this.dirtyFile = dirtyFile;
+      }
+
+      boolean isSpilled() {
+        return spill != null;
+      }
+
+      @Override public void write(int oneByte) throws IOException {
+        if (spill == null && count == buffer.length) {
+          grow(1);
+        }
+        if (spill != null) {
+          spill.write(oneByte);
+        } else {
+          buffer[count++] = (byte) oneByte;
+        }
+      }
+
+      @Override public void write(byte[] data, int offset, int length) throws IOException {
+        if (spill == null && count + length > buffer.length) {
+          grow(length);
+        }
+        if (spill != null) {
+          spill.write(data, offset, length);
+        } else {
+          System.arraycopy(data, offset, buffer, count, length);
+          count += length;
+        }
+      }
+
+      private void grow(int length) throws IOException {
+        if (count + length > packThreshold) {
+          spill = openDirtyFile(dirtyFile);
+          spill.write(buffer, 0, count);
+          buffer = null;
+        } else {
+          buffer = Arrays.copyOf(buffer,
+              Math.min(packThreshold, Math.max(count + length, buffer.length * 2)));
+        }
+      }
+
+      @Override public void flush() throws IOException {
+        if (spill != null) {
+          spill.flush();
+        }
+      }
+
+      @Override public void close() throws IOException {
+        if (spill != null) {
+          spill.close();
+        }
+      }
+    }
+
     private class FaultHidingOutputStream extends FilterOutputStream {
       private FaultHidingOutputStream(OutputStream out) {
         super(out);
@@ -886,12 +3678,13 @@ public final class DiskLruCache implements Closeable {
     }
   }
 
-  private final class Entry {
-    private final String key;
-
+  private final class Entry extends EntryTable.Node {
     /** Lengths of this entry's files. */
     private final long[] lengths;
 
+    /** {@link PackStore} locations of this entry's values, or {@link PackStore#LOOSE}. */
+    private final long[] locations;
+
     /** True if this entry has ever been published. */
     private boolean readable;
 
@@ -901,44 +3694,142 @@ public final class DiskLruCache implements Closeable {
     /** The sequence number of the most recently committed edit to this entry. */
     private long sequenceNumber;
 
+    /** The {@link System#nanoTime} of the most recent read or commit. */
+    private long accessTime;
+
+    /** The number of reads and commits, saved in index checkpoints. */
+    private int frequency;
+
+    /** When this entry expires, in milliseconds since the epoch, or 0 if it never does. */
+    private long expiresAt;
+
+    /** Snapshots of the current values that haven't opened all of them yet, or null. */
+    private ArrayList<Snapshot> snapshots;
+
+    /**
+     * The value files of a hot entry, or null. Only entries used {@link
+     * #HOT_FREQUENCY} times keep them: most entries are read a few times at
+     * most, and a File with its path costs more heap than the entry itself.
+     */
+    private File[] cleanFiles;
+
     private Entry(String key) {
-      this.key = key;
+      super(key, hashKeys);
       this.lengths = new long[valueCount];
+      this.locations = new long[valueCount];
+      Arrays.fill(locations, PackStore.LOOSE);
     }
 
-    public String getLengths() throws IOException {
-      StringBuilder result = new StringBuilder();
-      for (long size : lengths) {
-        result.append(' ').append(size);
-      }
-      return result.toString();
-    }
-
-    /** Set lengths using decimal numbers like "10123". */
+    /**
+     * Set lengths using decimal numbers like "10123", or "10123@2:4096" for
+     * packed values, optionally followed by the expiry time.
+     */
     private void setLengths(String[] strings) throws IOException {
-      if (strings.length != valueCount) {
+      boolean expires = strings.length == valueCount + 1
+          && strings[valueCount].startsWith(EXPIRES);
+      if (strings.length != valueCount && !expires) {
         throw invalidLengths(strings);
       }
 
       try {
-        for (int i = 0; i < strings.length; i++) {
-          lengths[i] = Long.parseLong(strings[i]);
+        expiresAt = expires ? Long.parseLong(strings[valueCount].substring(EXPIRES.length())) : 0;
+        for (int i = 0; i < valueCount; i++) {
+          String string = strings[i];
+          int at = string.indexOf('@');
+          if (at == -1) {
+            lengths[i] = Long.parseLong(string);
+            locations[i] = PackStore.LOOSE;
+            continue;
+          }
+          int colon = string.indexOf(':', at);
+          if (colon == -1) {
+            throw invalidLengths(strings);
+          }
+          lengths[i] = Long.parseLong(string.substring(0, at));
+          locations[i] = PackStore.location(Integer.parseInt(string.substring(at + 1, colon)),
+              Long.parseLong(string.substring(colon + 1)));
         }
       } catch (NumberFormatException e) {
         throw invalidLengths(strings);
       }
     }
 
+    private boolean isExpired(long now) {
+      return expiresAt != 0 && expiresAt <= now;
+    }
+
+    private void countAccess() {
+      if (frequency < Integer.MAX_VALUE) {
+        frequency++;
+      }
+    }
+
+    /** Returns the sum of the lengths of this entry's values. */
+    private long totalLength() {
+      long result = 0;
+      for (long length : lengths) {
+        result += length;
+      }
+      return result;
+    }
+
+    /**
+     * Returns true if every value that is stored in its own file exists,
+     * taking its length from the file.
+     */
+    private boolean filesExist() {
+      for (int i = 0; i < valueCount; i++) {
+        if (locations[i] == PackStore.LOOSE) {
+          File file = getCleanFile(i);
+          if (!file.exists()) {
+            return false;
+          }
+          lengths[i] = file.length();
+        }
+      }
+      return true;
+    }
+
+    /** Returns false if a value of this entry is missing from its pack segment. */
+    private boolean packedValuesExist() {
+      for (int i = 0; i < valueCount; i++) {
+        if (locations[i] != PackStore.LOOSE && !packStore.contains(locations[i], lengths[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Returns true if a value of this entry is stored in pack {@code segment}. */
+    private boolean hasValueIn(int segment) {
+      for (long location : locations) {
+        if (location != PackStore.LOOSE && PackStore.segment(location) == segment) {
+          return true;
+        }
+      }
+      return false;
+    }
+
     private IOException invalidLengths(String[] strings) throws IOException {
-      throw new IOException("unexpected journal line: " + java.util.Arrays.toString(strings));
+      throw new IOException("unexpected journal line: " + Arrays.toString(strings));
     }
 
     public File getCleanFile(int i) {
-      return new File(directory, key + "." + i);
+      File[] files = cleanFiles;
+      if (files == null) {
+        if (frequency < HOT_FREQUENCY) {
+          return DiskLruCache.this.getCleanFile(key, i);
+        }
+        files = cleanFiles = new File[valueCount];
+      }
+      if (files[i] == null) {
+        files[i] = DiskLruCache.this.getCleanFile(key, i);
+      }
+      return files[i];
     }
 
     public File getDirtyFile(int i) {
-      return new File(directory, key + "." + i + ".tmp");
+      return new File(bucketPrefixes[bucket(key)] + key + dirtySuffixes[i]);
     }
   }
 }
@@ -0,0 +1,321 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The entries of a cache by key, least recently accessed first. Behaves like
+ * a {@code LinkedHashMap} in access order, but the entries are the nodes:
+ * they carry their key's hash and their links in the access order
+ * themselves, and are stored in an open-addressing array with linear
+ * probing. That saves the map's node object per entry and allocates nothing
+ * per lookup or access. Not thread safe.
+ *
+ * <p>In a table of hashed keys, whose keys are the hex digits of a {@link
+ * Murmur3} hash, the two halves of the hash identify an entry instead of its
+ * key: nodes keep them as longs, lookups compare the longs rather than the
+ * strings, and a hash can be looked up without writing it out as a key.
+ * Keys stored before the cache hashed its keys stay plain keys, apart from
+ * any hash.
+ */
+final class EntryTable<N extends EntryTable.Node> implements Iterable<N> {
+  private static final int MIN_CAPACITY = 16;
+
+  /** Extended by the entries stored in an {@link EntryTable}. */
+  static class Node {
+    final String key;
+
+    /** Whether {@code key} isn't a hashed key, and lookups must compare it. */
+    final boolean plainKey;
+
+    /** The first half of a hashed key, or the spread hash code of any other key. */
+    final long hash1;
+
+    /** The second half of a hashed key, or 0. */
+    final long hash2;
+
+    Node before;
+    Node after;
+
+    Node(String key, boolean hashedKey) {
+      this.key = key;
+      this.plainKey = !hashedKey || !Murmur3.isHex(key);
+      if (!plainKey) {
+        this.hash1 = Murmur3.fromHex(key, 0);
+        this.hash2 = Murmur3.fromHex(key, 16);
+      } else {
+        this.hash1 = spread(key.hashCode());
+        this.hash2 = 0;
+      }
+    }
+  }
+
+  private final boolean hashedKeys;
+
+  /** The head of the circular access order list; its {@code after} is the eldest. */
+  private final Node header = new Node("", false);
+  private Node[] slots = new Node[MIN_CAPACITY];
+  private int size;
+  private int modCount;
+
+  /**
+   * @param hashedKeys true if the keys are {@link Murmur3} hashes, and nodes
+   *     are created with {@code hashedKey} set.
+   */
+  EntryTable(boolean hashedKeys) {
+    this.hashedKeys = hashedKeys;
+    header.before = header;
+    header.after = header;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** Returns the entry for {@code key} and makes it the most recently accessed one. */
+  N get(String key) {
+    N node = peek(key);
+    if (node != null && node != header.before) {
+      unlink(node);
+      linkLast(node);
+      modCount++;
+    }
+    return node;
+  }
+
+  /**
+   * Returns the entry for the hashed key whose halves are {@code hash1} and
+   * {@code hash2}, and makes it the most recently accessed one.
+   */
+  N get(long hash1, long hash2) {
+    N node = peek(hash1, hash2);
+    if (node != null && node != header.before) {
+      unlink(node);
+      linkLast(node);
+      modCount++;
+    }
+    return node;
+  }
+
+  /** Returns the entry for {@code key} without changing the access order. */
+  @SuppressWarnings("unchecked")
+  N peek(String key) {
+    int i = find(key);
+    return i != -1 ? (N) slots[i] : null;
+  }
+
+  /** Returns the entry for a hashed key without changing the access order. */
+  @SuppressWarnings("unchecked")
+  N peek(long hash1, long hash2) {
+    if (!hashedKeys) {
+      throw new IllegalStateException("keys aren't hashed");
+    }
+    int i = find(hash1, hash2, null);
+    return i != -1 ? (N) slots[i] : null;
+  }
+
+  private int find(String key) {
+    if (hashedKeys && Murmur3.isHex(key)) {
+      return find(Murmur3.fromHex(key, 0), Murmur3.fromHex(key, 16), null);
+    }
+    return find(spread(key.hashCode()), 0, key);
+  }
+
+  /**
+   * Returns the slot of the entry with these hashes, or -1. With a null
+   * {@code key} this finds a hashed key; otherwise it finds the plain key
+   * that equals {@code key}.
+   */
+  private int find(long hash1, long hash2, String key) {
+    int mask = slots.length - 1;
+    for (int i = (int) hash1 & mask; slots[i] != null; i = (i + 1) & mask) {
+      Node node = slots[i];
+      if (node.hash1 == hash1 && node.hash2 == hash2
+          && (key == null ? !node.plainKey : node.plainKey && node.key.equals(key))) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Adds {@code node} as the most recently accessed entry, replacing the
+   * entry with the same key. Returns the replaced entry, or null.
+   */
+  @SuppressWarnings("unchecked")
+  N put(N node) {
+    int i = find(node.hash1, node.hash2, node.plainKey ? node.key : null);
+    N previous = i != -1 ? (N) removeSlot(i) : null;
+    if ((size + 1) * 4 > slots.length * 3) {
+      resize(slots.length * 2);
+    }
+    insert(slots, node);
+    linkLast(node);
+    size++;
+    modCount++;
+    return previous;
+  }
+
+  /** Removes and returns the entry for {@code key}, or null if there is none. */
+  @SuppressWarnings("unchecked")
+  N remove(String key) {
+    int i = find(key);
+    return i != -1 ? (N) removeSlot(i) : null;
+  }
+
+  /** Removes {@code node} without comparing keys. Returns false if it isn't in this table. */
+  boolean remove(N node) {
+    int mask = slots.length - 1;
+    for (int i = (int) node.hash1 & mask; slots[i] != null; i = (i + 1) & mask) {
+      if (slots[i] == node) {
+        removeSlot(i);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Node removeSlot(int i) {
+    Node node = slots[i];
+    deleteSlot(i);
+    unlink(node);
+    size--;
+    modCount++;
+    return node;
+  }
+
+  void clear() {
+    slots = new Node[MIN_CAPACITY];
+    for (Node node = header.after; node != header; ) {
+      Node next = node.after;
+      node.before = null;
+      node.after = null;
+      node = next;
+    }
+    header.before = header;
+    header.after = header;
+    size = 0;
+    modCount++;
+  }
+
+  /** Returns a new list of the entries, least recently accessed first. */
+  @SuppressWarnings("unchecked")
+  ArrayList<N> toList() {
+    ArrayList<N> list = new ArrayList<N>(size);
+    for (Node node = header.after; node != header; node = node.after) {
+      list.add((N) node);
+    }
+    return list;
+  }
+
+  /** Returns the entries, least recently accessed first. Supports {@link Iterator#remove}. */
+  @Override public Iterator<N> iterator() {
+    return new Iterator<N>() {
+      private Node next = header.after;
+      private Node last;
+      private int expectedModCount = modCount;
+
+      @Override public boolean hasNext() {
+        return next != header;
+      }
+
+      @SuppressWarnings("unchecked")
+      @Override public N next() {
+        if (modCount != expectedModCount) {
+          throw new ConcurrentModificationException();
+        }
+        if (next == header) {
+          throw new NoSuchElementException();
+        }
+        last = next;
+        next = next.after;
+        return (N) last;
+      }
+
+      @SuppressWarnings("unchecked")
+      @Override public void remove() {
+        if (last == null) {
+          throw new IllegalStateException();
+        }
+        if (modCount != expectedModCount) {
+          throw new ConcurrentModificationException();
+        }
+        EntryTable.this.remove((N) last);
+        last = null;
+        expectedModCount = modCount;
+      }
+    };
+  }
+
+  private void linkLast(Node node) {
+    node.after = header;
+    node.before = header.before;
+    header.before.after = node;
+    header.before = node;
+  }
+
+  private static void unlink(Node node) {
+    node.before.after = node.after;
+    node.after.before = node.before;
+    node.before = null;
+    node.after = null;
+  }
+
+  private static void insert(Node[] slots, Node node) {
+    int mask = slots.length - 1;
+    int i = (int) node.hash1 & mask;
+    while (slots[i] != null) {
+      i = (i + 1) & mask;
+    }
+    slots[i] = node;
+  }
+
+  /** Empties slot {@code i} and moves later nodes of its probe run back, so no tombstones are needed. */
+  private void deleteSlot(int i) {
+    int mask = slots.length - 1;
+    slots[i] = null;
+    for (int j = (i + 1) & mask; slots[j] != null; j = (j + 1) & mask) {
+      int home = (int) slots[j].hash1 & mask;
+      // Move the node at j into the hole at i unless its home lies cyclically in (i, j].
+      if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+        slots[i] = slots[j];
+        slots[j] = null;
+        i = j;
+      }
+    }
+  }
+
+  private void resize(int capacity) {
+    Node[] resized = new Node[capacity];
+    for (Node node = header.after; node != header; node = node.after) {
+      insert(resized, node);
+    }
+    slots = resized;
+  }
+
+  /** Spreads the hash so that keys that differ in their high bits don't share a probe run. */
+  private static int spread(int h) {
+    h *= 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.util.Iterator;
+
+/**
+ * Decides which entries a {@link DiskLruCache} evicts when it grows past its
+ * high watermark. Without a policy the cache evicts in least recently used
+ * order; {@link SegmentedLruPolicy}, {@link ArcPolicy} and {@link GdsfPolicy}
+ * also take the access frequency into account, and the last also the size.
+ *
+ * <p>A policy tracks the published entries of one cache by key and size, the
+ * size being the sum of an entry's value lengths. It is only called while the
+ * cache lock is held and needn't be thread safe. The cache counts how often
+ * each entry was accessed and saves these frequencies in its index
+ * checkpoints, so a policy is told the frequency of the entries it gets back
+ * when the cache is opened again; see {@link
+ * DiskLruCache.Options#setIndexCheckpointBytes}.
+ */
+public interface EvictionPolicy {
+  /** Creates the policy of one cache, or of one shard. */
+  interface Factory {
+    EvictionPolicy create();
+  }
+
+  /** Sets the size the cache trims to. Called before any entry is added. */
+  void setMaxSize(long maxSize);
+
+  /**
+   * Adds an entry that was just published, or loaded when opening the cache.
+   * Entries are loaded least recently used first.
+   *
+   * @param frequency how many times the entry was published or read so far,
+   *     at least 1.
+   */
+  void onAdd(String key, long size, int frequency);
+
+  /** Records a read of the entry {@code key}. */
+  void onAccess(String key);
+
+  /** Records that the values of the entry {@code key} were replaced, which counts as an access. */
+  void onUpdate(String key, long size);
+
+  /** Forgets the entry {@code key}, which was removed by the application. */
+  void onRemove(String key);
+
+  /** Forgets the entry {@code key}, which the cache evicted after it was returned by {@link #victims}. */
+  void onEvict(String key);
+
+  /**
+   * Returns the keys of the entries, in the order they should be evicted.
+   * The cache skips the entries being edited and stops iterating once enough
+   * space would be freed; it then calls {@link #onEvict} for each victim. The
+   * iterator is only used before the policy is changed again.
+   */
+  Iterator<String> victims();
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * GreedyDual-Size-Frequency: evicts the entry with the lowest priority {@code
+ * clock + frequency / size}. Small entries that are accessed often are kept
+ * longest, so one large entry that is read once can't push out many small
+ * ones that are read all the time. The clock rises to the priority of each
+ * evicted entry, so that entries that stop being accessed age out however
+ * often they were accessed before.
+ */
+public final class GdsfPolicy implements EvictionPolicy {
+  private final HashMap<String, Node> nodes = new HashMap<String, Node>();
+  private final TreeSet<Node> queue = new TreeSet<Node>(new Comparator<Node>() {
+    @Override public int compare(Node a, Node b) {
+      int result = Double.compare(a.priority, b.priority);
+      if (result != 0) {
+        return result;
+      }
+      return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+    }
+  });
+  private double clock;
+  private long nextOrder;
+
+  public static final Factory FACTORY = new Factory() {
+    @Override public EvictionPolicy create() {
+      return new GdsfPolicy();
+    }
+  };
+
+  @Override public void setMaxSize(long maxSize) {
+  }
+
+  @Override public void onAdd(String key, long size, int frequency) {
+    Node node = new Node(key, size, frequency);
+    nodes.put(key, node);
+    enqueue(node);
+  }
+
+  @Override public void onAccess(String key) {
+    Node node = nodes.get(key);
+    if (node != null) {
+      queue.remove(node);
+      node.frequency++;
+      enqueue(node);
+    }
+  }
+
+  @Override public void onUpdate(String key, long size) {
+    Node node = nodes.get(key);
+    if (node != null) {
+      queue.remove(node);
+      node.size = size;
+      node.frequency++;
+      enqueue(node);
+    }
+  }
+
+  @Override public void onRemove(String key) {
+    Node node = nodes.remove(key);
+    if (node != null) {
+      queue.remove(node);
+    }
+  }
+
+  @Override public void onEvict(String key) {
+    Node node = nodes.remove(key);
+    if (node != null) {
+      queue.remove(node);
+      clock = Math.max(clock, node.priority);
+    }
+  }
+
+  private void enqueue(Node node) {
+    // Sizes are at least 1 so that empty entries don't get an infinite priority.
+    node.priority = clock + (double) node.frequency / Math.max(1, node.size);
+    node.order = nextOrder++;
+    queue.add(node);
+  }
+
+  @Override public Iterator<String> victims() {
+    final Iterator<Node> i = queue.iterator();
+    return new Iterator<String>() {
+      @Override public boolean hasNext() {
+        return i.hasNext();
+      }
+
+      @Override public String next() {
+        return i.next().key;
+      }
+
+      @Override public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private static final class Node {
+    final String key;
+    long size;
+    int frequency;
+    double priority;
+
+    /** Breaks ties in favor of evicting the least recently used entry. */
+    long order;
+
+    Node(String key, long size, int frequency) {
+      this.key = key;
+      this.size = size;
+      this.frequency = frequency;
+    }
+  }
+}
@@ -0,0 +1,318 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A checkpoint of the cache's entries, so that opening the cache only needs
+ * to replay the journal records appended after it. An index looks like this:
+ *
+ * <pre>
+ *     89 'D' 'L' 'R' 'U' 'I' 'D' 'X'     magic
+ *     varint                             format version
+ *     varint                             application version
+ *     varint                             value count
+ *     varint                             journal offset
+ *     varint                             redundant journal records before the offset
+ *     varint                             key count
+ *     (varint length, utf8-bytes)*       keys
+ *     varint                             entry count
+ *     entry*                             in LRU order
+ *     4 bytes                            CRC32 of the journal bytes before the offset
+ *     4 bytes                            CRC32 of everything above
+ * </pre>
+ *
+ * Each entry is a varint index into the keys, a flag that is 1 if the entry
+ * was being edited, its access count, its expiry time in milliseconds since
+ * the epoch or 0, and for each value its varint length
+ * followed by its pack segment plus one and offset, or 0 for a value in its
+ * own file. For a binary
+ * journal the keys are the journal's key dictionary in id order, which the
+ * records after the offset refer to.
+ *
+ * <p>The index describes the state after every journal record before the
+ * offset. It is only valid for the journal it was written against: the cache
+ * deletes it before rebuilding the journal, and the checksum of the journal
+ * bytes just before the offset guards against any other replacement.
+ */
+final class JournalIndex {
+  static final String INDEX_FILE = "journal.idx";
+  static final String INDEX_FILE_TEMP = "journal.idx.tmp";
+  static final byte[] MAGIC = {(byte) 0x89, 'D', 'L', 'R', 'U', 'I', 'D', 'X'};
+  static final int VERSION = 3;
+
+  /** How many journal bytes before the offset are checksummed. */
+  private static final int JOURNAL_CHECK_LENGTH = 64;
+
+  private JournalIndex() {
+  }
+
+  /** Returns the checksum of the journal bytes just before {@code offset}, or -1 if too short. */
+  static long journalCheck(File journal, long offset) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(journal, "r");
+    try {
+      if (file.length() < offset) {
+        return -1;
+      }
+      int count = (int) Math.min(offset, JOURNAL_CHECK_LENGTH);
+      byte[] bytes = new byte[count];
+      file.seek(offset - count);
+      file.readFully(bytes);
+      CRC32 crc = new CRC32();
+      crc.update(bytes, 0, count);
+      return crc.getValue();
+    } finally {
+      file.close();
+    }
+  }
+
+  /** Encodes an index in memory; the caller writes it once the journal check is known. */
+  static final class Writer {
+    private byte[] bytes = new byte[8192];
+    private int count;
+
+    Writer(int appVersion, int valueCount, long journalOffset, long redundantOpCount) {
+      System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+      count = MAGIC.length;
+      putVarint(VERSION);
+      putVarint(appVersion);
+      putVarint(valueCount);
+      putVarint(journalOffset);
+      putVarint(redundantOpCount);
+    }
+
+    void keys(String[] keys, int keyCount) {
+      putVarint(keyCount);
+      for (int i = 0; i < keyCount; i++) {
+        byte[] key = keys[i].getBytes(Util.UTF_8);
+        putVarint(key.length);
+        ensureCapacity(key.length);
+        System.arraycopy(key, 0, bytes, count, key.length);
+        count += key.length;
+      }
+    }
+
+    void entryCount(int entryCount) {
+      putVarint(entryCount);
+    }
+
+    void entry(int keyIndex, boolean editing, long[] lengths, long[] locations, int frequency,
+        long expiresAt) {
+      putVarint(keyIndex);
+      putVarint(editing ? 1 : 0);
+      putVarint(frequency);
+      putVarint(expiresAt);
+      for (int i = 0; i < lengths.length; i++) {
+        putVarint(lengths[i]);
+        if (locations[i] == PackStore.LOOSE) {
+          putVarint(0);
+        } else {
+          putVarint(PackStore.segment(locations[i]) + 1L);
+          putVarint(PackStore.offset(locations[i]));
+        }
+      }
+    }
+
+    /** Writes the index to {@code file}, replacing it. */
+    void writeTo(File file, long journalCheck, boolean sync) throws IOException {
+      putInt((int) journalCheck);
+      CRC32 crc = new CRC32();
+      crc.update(bytes, 0, count);
+      putInt((int) crc.getValue());
+
+      FileOutputStream out = new FileOutputStream(file);
+      try {
+        out.write(bytes, 0, count);
+        if (sync) {
+          out.getFD().sync();
+        }
+      } finally {
+        out.close();
+      }
+    }
+
+    private void putInt(int value) {
+      ensureCapacity(4);
+      bytes[count++] = (byte) (value >>> 24);
+      bytes[count++] = (byte) (value >>> 16);
+      bytes[count++] = (byte) (value >>> 8);
+      bytes[count++] = (byte) value;
+    }
+
+    private void putVarint(long value) {
+      ensureCapacity(10);
+      while ((value & ~0x7fL) != 0) {
+        bytes[count++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      bytes[count++] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+      if (count + extra > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(count + extra, bytes.length * 2));
+      }
+    }
+  }
+
+  /** Decodes an index that was read into memory and checked in full. */
+  static final class Reader {
+    private final byte[] bytes;
+    private int pos;
+    private final int end;
+
+    long journalOffset;
+    long redundantOpCount;
+    String[] keys;
+    int entryCount;
+
+    /** The fields of the last entry returned by {@link #nextEntry}. */
+    String key;
+    boolean editing;
+    int frequency;
+    long expiresAt;
+    long[] lengths;
+    long[] locations;
+
+    private Reader(byte[] bytes, int end) {
+      this.bytes = bytes;
+      this.end = end;
+    }
+
+    /**
+     * Returns the index in {@code file} if it is intact and was written for
+     * {@code journal}, or null.
+     */
+    static Reader open(File file, File journal, int appVersion, int valueCount)
+        throws IOException {
+      if (!file.exists()) {
+        return null;
+      }
+      byte[] bytes = readFully(file);
+      if (bytes.length < MAGIC.length + 8) {
+        return null;
+      }
+      int end = bytes.length - 8;
+      CRC32 crc = new CRC32();
+      crc.update(bytes, 0, bytes.length - 4);
+      if ((int) crc.getValue() != getInt(bytes, bytes.length - 4)) {
+        return null; // Torn write.
+      }
+      for (int i = 0; i < MAGIC.length; i++) {
+        if (bytes[i] != MAGIC[i]) {
+          return null;
+        }
+      }
+
+      Reader reader = new Reader(bytes, end);
+      reader.pos = MAGIC.length;
+      if (reader.varint() != VERSION
+          || reader.varint() != appVersion
+          || reader.varint() != valueCount) {
+        return null;
+      }
+      reader.journalOffset = reader.varint();
+      reader.redundantOpCount = reader.varint();
+      if (journalCheck(journal, reader.journalOffset) != (getInt(bytes, end) & 0xffffffffL)) {
+        return null; // Not written for this journal.
+      }
+
+      int keyCount = (int) reader.varint();
+      reader.keys = new String[keyCount];
+      for (int i = 0; i < keyCount; i++) {
+        int length = (int) reader.varint();
+        if (length < 0 || length > end - reader.pos) {
+          throw new IOException("unexpected index key length " + length);
+        }
+        reader.keys[i] = new String(bytes, reader.pos, length, Util.UTF_8);
+        reader.pos += length;
+      }
+      reader.entryCount = (int) reader.varint();
+      reader.lengths = new long[valueCount];
+      reader.locations = new long[valueCount];
+      return reader;
+    }
+
+    void nextEntry() throws IOException {
+      long keyIndex = varint();
+      if (keyIndex < 0 || keyIndex >= keys.length) {
+        throw new IOException("unknown index key " + keyIndex);
+      }
+      key = keys[(int) keyIndex];
+      editing = varint() != 0;
+      frequency = (int) Math.min(varint(), Integer.MAX_VALUE);
+      expiresAt = varint();
+      for (int i = 0; i < lengths.length; i++) {
+        lengths[i] = varint();
+        long segment = varint();
+        locations[i] = segment == 0
+            ? PackStore.LOOSE
+            : PackStore.location((int) (segment - 1), varint());
+      }
+    }
+
+    private long varint() throws IOException {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (pos == end) {
+          throw new IOException("unexpected end of index");
+        }
+        int b = bytes[pos++] & 0xff;
+        result |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return result;
+        }
+      }
+      throw new IOException("malformed varint");
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+      return (bytes[offset] & 0xff) << 24
+          | (bytes[offset + 1] & 0xff) << 16
+          | (bytes[offset + 2] & 0xff) << 8
+          | (bytes[offset + 3] & 0xff);
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+      InputStream in = new FileInputStream(file);
+      try {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+          throw new IOException("index too large: " + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        int count = 0;
+        while (count < bytes.length) {
+          int read = in.read(bytes, count, bytes.length - count);
+          if (read == -1) {
+            return Arrays.copyOf(bytes, count);
+          }
+          count += read;
+        }
+        return bytes;
+      } finally {
+        in.close();
+      }
+    }
+  }
+}
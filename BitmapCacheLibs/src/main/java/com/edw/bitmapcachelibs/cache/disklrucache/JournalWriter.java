@@ -0,0 +1,326 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Appends records to a cache journal. The cache decides what to log; a writer
+ * only knows how to encode it in one {@link DiskLruCache.JournalFormat}.
+ *
+ * <p>Records are encoded into memory while the cache lock is held and reach
+ * the file later, in batches. Every appended byte has a position; a caller
+ * that needs its records on disk passes the position it observed to {@link
+ * #awaitWritten} or {@link #awaitSynced} after releasing the cache lock. The
+ * first waiter writes (and optionally fsyncs) everything buffered so far on
+ * behalf of all the others, so concurrent editors share a single write.
+ * Positions are offsets in the journal file, unless other processes append
+ * to it too; then they only count this writer's bytes.
+ */
+abstract class JournalWriter implements Closeable, Flushable {
+  private final FileOutputStream out;
+
+  /** Records not yet handed to the file. Guarded by this. */
+  private byte[] pending = new byte[8192];
+  private int pendingCount;
+  /** The buffer being written by the current leader. */
+  private byte[] spare = new byte[8192];
+
+  /** Positions of the end of all appended, written and synced records. Guarded by this. */
+  private long appended;
+  private long written;
+  private long synced;
+  private long lastSyncNanos = System.nanoTime();
+
+  /** True while a leader is writing outside of the lock. Guarded by this. */
+  private boolean writing;
+  private IOException failure;
+  private boolean closed;
+
+  JournalWriter(FileOutputStream out, long start) {
+    this.out = out;
+    this.appended = start;
+    this.written = start;
+    this.synced = start;
+  }
+
+  /** Writes the journal header. Must be called first on a new journal. */
+  abstract void writeHeader(int appVersion, int valueCount) throws IOException;
+
+  /**
+   * Logs that the entry {@code key} was published with {@code lengths}. Each
+   * value is stored in its own file unless its location is a {@link
+   * PackStore} location rather than {@link PackStore#LOOSE}. The entry
+   * expires at {@code expiresAt}, or never if it is 0.
+   */
+  abstract void writeClean(String key, long[] lengths, long[] locations, long expiresAt)
+      throws IOException;
+
+  /** Logs that the entry {@code key} is being created or updated. */
+  abstract void writeDirty(String key) throws IOException;
+
+  /** Logs that the entry {@code key} was deleted. */
+  abstract void writeRemove(String key) throws IOException;
+
+  /** Logs an access to the entry {@code key} for LRU ordering. */
+  abstract void writeRead(String key) throws IOException;
+
+  /**
+   * Logs accesses to {@code keys}, least recently used first.
+   *
+   * @return the number of records written.
+   */
+  int writeReads(Collection<String> keys) throws IOException {
+    for (String key : keys) {
+      writeRead(key);
+    }
+    return keys.size();
+  }
+
+  /**
+   * Logs that the entries {@code keys} were evicted.
+   *
+   * @return the number of records written.
+   */
+  int writeRemoves(Collection<String> keys) throws IOException {
+    for (String key : keys) {
+      writeRemove(key);
+    }
+    return keys.size();
+  }
+
+  /** Returns the ids of the keys defined in this journal so far, or null if it has none. */
+  HashMap<String, Integer> keyIds() {
+    return null;
+  }
+
+  /** Buffers one complete record. */
+  final synchronized void append(byte[] bytes, int offset, int length) throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+    if (closed) {
+      throw new IllegalStateException("journal is closed");
+    }
+    if (pendingCount + length > pending.length) {
+      byte[] grown = new byte[Math.max(pendingCount + length, pending.length * 2)];
+      System.arraycopy(pending, 0, grown, 0, pendingCount);
+      pending = grown;
+    }
+    System.arraycopy(bytes, offset, pending, pendingCount, length);
+    pendingCount += length;
+    appended += length;
+  }
+
+  /** Returns the position just past the last appended record. */
+  final synchronized long position() {
+    return appended;
+  }
+
+  /** Returns the nanoseconds since the last fsync, or 0 if no appended record is unsynced. */
+  final synchronized long nanosSinceSync() {
+    return synced == appended ? 0 : System.nanoTime() - lastSyncNanos;
+  }
+
+  /** Blocks until every record before {@code position} was handed to the file system. */
+  final void awaitWritten(long position) throws IOException {
+    await(position, false);
+  }
+
+  /** Blocks until every record before {@code position} is durable on disk. */
+  final void awaitSynced(long position) throws IOException {
+    await(position, true);
+  }
+
+  private void await(long position, boolean sync) throws IOException {
+    byte[] batch;
+    int batchCount;
+    long batchEnd;
+    synchronized (this) {
+      while (true) {
+        if (failure != null) {
+          throw failure;
+        }
+        if (closed || written >= position && (!sync || synced >= position)) {
+          return; // Closing wrote everything out.
+        }
+        if (!writing) {
+          break;
+        }
+        waitUninterruptibly();
+      }
+
+      // Become the leader: take everything buffered so far, including other callers' records.
+      writing = true;
+      batch = pending;
+      batchCount = pendingCount;
+      batchEnd = appended;
+      pending = spare;
+      pendingCount = 0;
+    }
+
+    IOException thrown = null;
+    try {
+      if (batchCount > 0) {
+        out.write(batch, 0, batchCount);
+      }
+      if (sync) {
+        out.getFD().sync();
+      }
+    } catch (IOException e) {
+      thrown = e;
+    }
+
+    synchronized (this) {
+      spare = batch;
+      writing = false;
+      if (thrown != null) {
+        failure = thrown;
+      } else {
+        written = batchEnd;
+        if (sync) {
+          synced = batchEnd;
+          lastSyncNanos = System.nanoTime();
+        }
+      }
+      notifyAll();
+    }
+    if (thrown != null) {
+      throw thrown;
+    }
+  }
+
+  private void waitUninterruptibly() {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        wait();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Hands every buffered record to the file system. */
+  @Override public void flush() throws IOException {
+    awaitWritten(position());
+  }
+
+  /** Writes every buffered record, fsyncing them if {@code sync}, and closes the file. */
+  void close(boolean sync) throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+    }
+    try {
+      await(position(), sync);
+    } finally {
+      synchronized (this) {
+        closed = true;
+      }
+      out.close();
+    }
+  }
+
+  @Override public void close() throws IOException {
+    close(false);
+  }
+
+  /**
+   * Opens a writer for {@code file}. When {@code append} is true the journal
+   * already holds a header and defines the keys in {@code keyIds}.
+   */
+  static JournalWriter open(DiskLruCache.JournalFormat format, File file, boolean append,
+      HashMap<String, Integer> keyIds) throws IOException {
+    long start = append ? file.length() : 0;
+    FileOutputStream out = new FileOutputStream(file, append);
+    if (format == DiskLruCache.JournalFormat.BINARY) {
+      return new BinaryJournal.Writer(out, start,
+          keyIds != null ? keyIds : new HashMap<String, Integer>());
+    }
+    return new Text(out, start);
+  }
+
+  /** The original line-based format, as documented on {@link DiskLruCache}. */
+  static final class Text extends JournalWriter {
+    private byte[] line = new byte[160];
+
+    Text(FileOutputStream out, long start) {
+      super(out, start);
+    }
+
+    @Override void writeHeader(int appVersion, int valueCount) throws IOException {
+      String header = DiskLruCache.MAGIC + "\n"
+          + DiskLruCache.VERSION_1 + "\n"
+          + appVersion + "\n"
+          + valueCount + "\n"
+          + "\n";
+      byte[] bytes = header.getBytes(Util.US_ASCII);
+      append(bytes, 0, bytes.length);
+    }
+
+    @Override void writeClean(String key, long[] lengths, long[] locations, long expiresAt)
+        throws IOException {
+      StringBuilder result = new StringBuilder(DiskLruCache.CLEAN).append(' ').append(key);
+      for (int i = 0; i < lengths.length; i++) {
+        result.append(' ').append(lengths[i]);
+        if (locations[i] != PackStore.LOOSE) {
+          result.append('@').append(PackStore.segment(locations[i]))
+              .append(':').append(PackStore.offset(locations[i]));
+        }
+      }
+      if (expiresAt != 0) {
+        result.append(' ').append(DiskLruCache.EXPIRES).append(expiresAt);
+      }
+      writeLine(result);
+    }
+
+    @Override void writeDirty(String key) throws IOException {
+      writeLine(new StringBuilder(DiskLruCache.DIRTY).append(' ').append(key));
+    }
+
+    @Override void writeRemove(String key) throws IOException {
+      writeLine(new StringBuilder(DiskLruCache.REMOVE).append(' ').append(key));
+    }
+
+    @Override void writeRead(String key) throws IOException {
+      writeLine(new StringBuilder(DiskLruCache.READ).append(' ').append(key));
+    }
+
+    /** Appends {@code text} and a newline. Journal lines are always ASCII. */
+    private void writeLine(CharSequence text) throws IOException {
+      int length = text.length();
+      if (line.length < length + 1) {
+        line = new byte[length + 1];
+      }
+      for (int i = 0; i < length; i++) {
+        line[i] = (byte) text.charAt(i);
+      }
+      line[length] = '\n';
+      append(line, 0, length + 1);
+    }
+  }
+}
@@ -0,0 +1,408 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the background work of one or more caches on two threads.
+ *
+ * <p>Work that callers wait for, such as writing journal records, runs right
+ * away on a thread of its own, so that it never queues behind maintenance
+ * that is being throttled. Maintenance (journal rebuilds, trims, expiry and orphan sweeps,
+ * deleting evicted files, pack compaction and checkpoints) waits for an
+ * idle window: until none of the caches was used for the idle delay and the
+ * app isn't {@link #setBusy busy}. Maintenance that waited for the max delay
+ * runs anyway, so that a cache that is always in use still stays within its
+ * size. A cache may exceed its max size meanwhile.
+ *
+ * <p>The I/O of maintenance can be capped at a number of bytes per second.
+ * Work that holds a cache lock is never slowed down; its bytes are charged
+ * against the cap, and the next maintenance waits until they are paid for.
+ *
+ * <p>A scheduler with the default settings runs everything right away; a
+ * cache opened without a scheduler gets one of its own, which it shuts down
+ * when it is closed. The threads are daemons; each stops after a minute
+ * without work and is started again when needed.
+ */
+public final class MaintenanceScheduler {
+  /** The bytes charged for creating or deleting a file, about one block written. */
+  static final long FILE_OPERATION_BYTES = 4096;
+  private static final long KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+  /** Notified on the scheduler thread around each maintenance task. */
+  public interface Listener {
+    void onMaintenanceStarted();
+
+    void onMaintenanceFinished();
+  }
+
+  private final ArrayDeque<Callable<?>> urgent = new ArrayDeque<Callable<?>>();
+  /** Maintenance tasks in submission order, with the time they must run by. */
+  private final LinkedHashMap<Callable<?>, Long> deferred =
+      new LinkedHashMap<Callable<?>, Long>();
+  /**
+   * The threads running the urgent and the maintenance tasks, or null.
+   * Guarded by this; read without the lock to ignore their own activity.
+   */
+  private volatile Thread urgentWorker;
+  private volatile Thread worker;
+
+  private long idleDelayNanos;
+  private long maxDelayNanos = TimeUnit.SECONDS.toNanos(30);
+  private boolean busy;
+  /** Set by every foreground operation, and cleared by the scheduler when it notices. */
+  private volatile boolean active;
+  private long quietSince;
+  private volatile boolean running;
+  private volatile Listener listener;
+  /** Set by {@link #shutdown}; cleared when work is submitted again. */
+  private boolean shutdown;
+
+  /** Bytes per second, or 0 for no cap. Guarded by {@link #limiterLock}. */
+  private final Object limiterLock = new Object();
+  private long bytesPerSecond;
+  private long available;
+  private long lastRefillNanos = System.nanoTime();
+
+  /**
+   * Sets how long none of the caches must have been used before maintenance
+   * runs. Defaults to 0, which runs it right away.
+   */
+  public synchronized MaintenanceScheduler setIdleDelayMillis(long idleDelayMillis) {
+    if (idleDelayMillis < 0) {
+      throw new IllegalArgumentException("idleDelayMillis < 0");
+    }
+    this.idleDelayNanos = TimeUnit.MILLISECONDS.toNanos(idleDelayMillis);
+    notifyAll();
+    return this;
+  }
+
+  /**
+   * Sets how long maintenance waits for an idle window at most. Defaults to
+   * 30 seconds.
+   */
+  public synchronized MaintenanceScheduler setMaxDelayMillis(long maxDelayMillis) {
+    if (maxDelayMillis < 0) {
+      throw new IllegalArgumentException("maxDelayMillis < 0");
+    }
+    this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    notifyAll();
+    return this;
+  }
+
+  /**
+   * Caps the bytes maintenance reads, writes and deletes per second, or
+   * removes the cap if 0. Up to one second's worth may be used at once.
+   * Defaults to 0.
+   */
+  public MaintenanceScheduler setMaxBytesPerSecond(long bytesPerSecond) {
+    if (bytesPerSecond < 0) {
+      throw new IllegalArgumentException("bytesPerSecond < 0");
+    }
+    synchronized (limiterLock) {
+      this.bytesPerSecond = bytesPerSecond;
+      this.available = Math.min(available, bytesPerSecond);
+      limiterLock.notifyAll();
+    }
+    return this;
+  }
+
+  public MaintenanceScheduler setListener(Listener listener) {
+    this.listener = listener;
+    return this;
+  }
+
+  /**
+   * Defers maintenance while {@code busy}, for example while a list is
+   * scrolling, up to the max delay.
+   */
+  public synchronized void setBusy(boolean busy) {
+    this.busy = busy;
+    if (!busy) {
+      active = true; // The idle delay starts now.
+    }
+    notifyAll();
+  }
+
+  /** Returns true while a maintenance task is running. */
+  public boolean isMaintenanceRunning() {
+    return running;
+  }
+
+  /** Returns the number of maintenance tasks waiting for an idle window. */
+  public synchronized int pendingMaintenanceCount() {
+    return deferred.size();
+  }
+
+  /**
+   * Records a foreground operation, which postpones the idle window. The
+   * operations of maintenance tasks don't count.
+   */
+  void noteActivity() {
+    Thread current = Thread.currentThread();
+    if (!active && current != worker && current != urgentWorker) {
+      active = true;
+    }
+  }
+
+  /** Runs {@code task} as soon as possible. */
+  synchronized void execute(Callable<?> task) {
+    urgent.add(task);
+    shutdown = false;
+    if (urgentWorker == null) {
+      urgentWorker = startThread("DiskLruCache journal", new Runnable() {
+        @Override public void run() {
+          runUrgentTasks();
+        }
+      });
+    } else {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Runs {@code task} in the next idle window. A task that is already
+   * waiting isn't queued again.
+   */
+  synchronized void schedule(Callable<?> task) {
+    if (!deferred.containsKey(task)) {
+      deferred.put(task, System.nanoTime() + maxDelayNanos);
+    }
+    shutdown = false;
+    if (worker == null) {
+      worker = startThread("DiskLruCache maintenance", new Runnable() {
+        @Override public void run() {
+          runMaintenance();
+        }
+      });
+    } else {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Drops the waiting maintenance and stops the threads once the urgent work
+   * is done, rather than after the keep-alive time. For the owner of a
+   * scheduler whose caches are all closed; work submitted later starts the
+   * threads again.
+   */
+  synchronized void shutdown() {
+    shutdown = true;
+    deferred.clear();
+    notifyAll();
+  }
+
+  private static Thread startThread(String name, Runnable runnable) {
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true); // Idle caches must not keep the process alive.
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Charges {@code bytes} of maintenance I/O against the cap without
+   * waiting, for work that holds a cache lock.
+   */
+  void charge(long bytes) {
+    synchronized (limiterLock) {
+      if (bytesPerSecond > 0) {
+        refill();
+        available -= bytes;
+      }
+    }
+  }
+
+  /**
+   * Charges {@code bytes} of maintenance I/O and waits until the cap allows
+   * more. Must be called without holding a cache lock.
+   */
+  void throttle(long bytes) throws InterruptedIOException {
+    synchronized (limiterLock) {
+      if (bytesPerSecond == 0) {
+        return;
+      }
+      refill();
+      available -= bytes;
+      while (available < 0 && bytesPerSecond > 0) {
+        long waitMillis = Math.max(1, -available * 1000 / bytesPerSecond);
+        try {
+          limiterLock.wait(waitMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+        refill();
+      }
+    }
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    long elapsed = now - lastRefillNanos;
+    lastRefillNanos = now;
+    if (elapsed > 0) {
+      long refill = elapsed >= TimeUnit.SECONDS.toNanos(1)
+          ? bytesPerSecond
+          : elapsed * bytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+      available = Math.min(bytesPerSecond, available + refill);
+    }
+  }
+
+  private void runUrgentTasks() {
+    try {
+      while (true) {
+        Callable<?> task;
+        synchronized (this) {
+          if (!awaitUrgentTask()) {
+            urgentWorker = null;
+            return; // Kept alive without work for too long, or shut down.
+          }
+          task = urgent.poll();
+        }
+        call(task);
+        task = null; // Don't keep its cache reachable while waiting.
+      }
+    } finally {
+      synchronized (this) {
+        if (urgentWorker == Thread.currentThread()) {
+          urgentWorker = null; // Died of an error; the next task starts a new thread.
+        }
+      }
+    }
+  }
+
+  private void runMaintenance() {
+    try {
+      while (true) {
+        Callable<?> task;
+        synchronized (this) {
+          if (!awaitMaintenance()) {
+            worker = null;
+            return; // Kept alive without work for too long, or shut down.
+          }
+          task = deferred.keySet().iterator().next();
+          deferred.remove(task);
+        }
+
+        try {
+          throttle(0); // Pay for the I/O of earlier maintenance first.
+        } catch (InterruptedIOException ignored) {
+          // Nothing interrupts this thread.
+        }
+        running = true;
+        Listener current = listener;
+        if (current != null) {
+          current.onMaintenanceStarted();
+        }
+        try {
+          call(task);
+        } finally {
+          running = false;
+          if (current != null) {
+            current.onMaintenanceFinished();
+          }
+        }
+        task = null; // Don't keep its cache reachable while waiting.
+      }
+    } finally {
+      synchronized (this) {
+        if (worker == Thread.currentThread()) {
+          worker = null; // Died of an error; the next task starts a new thread.
+        }
+      }
+    }
+  }
+
+  private static void call(Callable<?> task) {
+    try {
+      task.call();
+    } catch (Exception ignored) {
+      // Like the result of a submitted task, nobody looks at it.
+    }
+  }
+
+  /**
+   * Waits until there is an urgent task. Returns false after the keep-alive
+   * time without one, or once there is none left after a shutdown. Called
+   * with this locked.
+   */
+  private boolean awaitUrgentTask() {
+    long idleSince = System.nanoTime();
+    while (urgent.isEmpty()) {
+      long waitNanos = idleSince + KEEP_ALIVE_NANOS - System.nanoTime();
+      if (shutdown || waitNanos <= 0) {
+        return false;
+      }
+      try {
+        TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+      } catch (InterruptedException ignored) {
+        // Nothing interrupts this thread.
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Waits until the first maintenance task may run. Returns false after the
+   * keep-alive time without any task, or after a shutdown. Called with this
+   * locked.
+   */
+  private boolean awaitMaintenance() {
+    long idleSince = System.nanoTime();
+    while (true) {
+      if (shutdown) {
+        return false;
+      }
+      long now = System.nanoTime();
+      long waitNanos;
+      if (deferred.isEmpty()) {
+        waitNanos = idleSince + KEEP_ALIVE_NANOS - now;
+        if (waitNanos <= 0) {
+          return false;
+        }
+      } else {
+        long untilDeadline = deferred.values().iterator().next() - now;
+        long untilIdle = nanosUntilIdle(now);
+        if (untilDeadline <= 0 || untilIdle <= 0) {
+          return true;
+        }
+        waitNanos = Math.min(untilDeadline, untilIdle);
+        idleSince = now;
+      }
+      try {
+        TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+      } catch (InterruptedException ignored) {
+        // Nothing interrupts this thread.
+      }
+    }
+  }
+
+  /** Returns the nanoseconds until the caches are idle, or 0 or less if they are. */
+  private long nanosUntilIdle(long now) {
+    if (active) {
+      active = false;
+      quietSince = now;
+    }
+    if (busy) {
+      return Long.MAX_VALUE; // Until setBusy(false) or the deadline.
+    }
+    return quietSince + idleDelayNanos - now;
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+/**
+ * The 128-bit x64 variant of MurmurHash3, with seed 0, over the UTF-16
+ * little-endian encoding of a string. Hashing the chars directly doesn't
+ * allocate an encoded copy. The hash is written as 32 hex digits of its
+ * bytes, like Guava's {@code murmur3_128().hashUnencodedChars()}; its two
+ * halves can be read back from them without hashing again.
+ */
+final class Murmur3 {
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private Murmur3() {
+  }
+
+  static String hash128Hex(String string) {
+    long[] hash = hash128(string);
+    return toHex(hash[0], hash[1]);
+  }
+
+  /** Returns the two 64-bit halves of the hash of {@code string}. */
+  static long[] hash128(String string) {
+    long h1 = 0;
+    long h2 = 0;
+    int length = string.length();
+    int i = 0;
+    // Eight chars make a 16-byte block.
+    for (; i + 8 <= length; i += 8) {
+      long k1 = chars(string, i, 4);
+      long k2 = chars(string, i + 4, 4);
+
+      h1 ^= mixK1(k1);
+      h1 = Long.rotateLeft(h1, 27);
+      h1 += h2;
+      h1 = h1 * 5 + 0x52dce729;
+
+      h2 ^= mixK2(k2);
+      h2 = Long.rotateLeft(h2, 31);
+      h2 += h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    int remaining = length - i;
+    if (remaining > 0) {
+      h1 ^= mixK1(chars(string, i, Math.min(remaining, 4)));
+      if (remaining > 4) {
+        h2 ^= mixK2(chars(string, i + 4, remaining - 4));
+      }
+    }
+
+    long byteLength = 2L * length;
+    h1 ^= byteLength;
+    h2 ^= byteLength;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix64(h1);
+    h2 = fmix64(h2);
+    h1 += h2;
+    h2 += h1;
+    return new long[] {h1, h2};
+  }
+
+  /** Returns the 32 hex digits of the hash whose halves are {@code h1} and {@code h2}. */
+  static String toHex(long h1, long h2) {
+    char[] hex = new char[32];
+    toHex(h1, hex, 0);
+    toHex(h2, hex, 16);
+    return new String(hex);
+  }
+
+  /** Returns true if {@code string} is 32 lowercase hex digits, like a hash written by this class. */
+  static boolean isHex(String string) {
+    if (string.length() != 32) {
+      return false;
+    }
+    for (int i = 0; i < 32; i++) {
+      char c = string.charAt(i);
+      if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the half of a hash written at {@code offset}, 0 or 16, of {@code
+   * hex}, which must satisfy {@link #isHex}.
+   */
+  static long fromHex(String hex, int offset) {
+    long value = 0;
+    for (int i = 0; i < 8; i++) {
+      int b = Character.digit(hex.charAt(offset + 2 * i), 16) << 4
+          | Character.digit(hex.charAt(offset + 2 * i + 1), 16);
+      value |= (long) b << (8 * i);
+    }
+    return value;
+  }
+
+  /** Returns {@code count} chars starting at {@code offset} as a little-endian long. */
+  private static long chars(String string, int offset, int count) {
+    long result = 0;
+    for (int i = 0; i < count; i++) {
+      result |= (long) string.charAt(offset + i) << (16 * i);
+    }
+    return result;
+  }
+
+  private static long mixK1(long k1) {
+    k1 *= C1;
+    k1 = Long.rotateLeft(k1, 31);
+    return k1 * C2;
+  }
+
+  private static long mixK2(long k2) {
+    k2 *= C2;
+    k2 = Long.rotateLeft(k2, 33);
+    return k2 * C1;
+  }
+
+  private static long fmix64(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  /** Writes the bytes of {@code value}, least significant first, as hex digits. */
+  private static void toHex(long value, char[] hex, int offset) {
+    for (int i = 0; i < 8; i++) {
+      int b = (int) (value >>> (8 * i)) & 0xff;
+      hex[offset + 2 * i] = HEX_DIGITS[b >>> 4];
+      hex[offset + 2 * i + 1] = HEX_DIGITS[b & 0xf];
+    }
+  }
+}
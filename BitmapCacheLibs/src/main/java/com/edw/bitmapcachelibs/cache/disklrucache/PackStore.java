@@ -0,0 +1,334 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Append-only segment files holding small values. Instead of a file per
+ * value, a packed value is a range of bytes in one of the {@code pack.<n>}
+ * files of the cache directory, addressed by a location that combines the
+ * segment number and the offset of the value in that segment.
+ *
+ * <p>Bytes are never overwritten. Replacing or removing a packed value only
+ * turns its range into dead space; a segment whose live values take up less
+ * than half of it is copied forward by the cache and then deleted. Readers
+ * that opened a segment before it was deleted keep reading the unlinked file.
+ *
+ * <p>Editors append before taking the cache lock, like they write loose
+ * values to their dirty files. Appended bytes count as live right away, so
+ * the compactor leaves their segment alone until the commit publishes them
+ * or the bytes are released. The compactor copies values without the cache
+ * lock; it is the only one to delete segments and runs on a single thread.
+ * The cache lock is always acquired before this one.
+ */
+final class PackStore implements Closeable {
+  static final String PREFIX = "pack.";
+
+  /** The location of a value that is stored in its own file. */
+  static final long LOOSE = -1;
+
+  private static final int OFFSET_BITS = 40;
+  private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+  /** Segments can't be larger than the offsets a location can hold. */
+  static final long MAX_SEGMENT_SIZE = 1L << OFFSET_BITS;
+
+  private final File directory;
+  private final long segmentSize;
+
+  /** True to sync each segment before it is closed, because it is full or the store is. */
+  private final boolean durable;
+  private final HashMap<Integer, Segment> segments = new HashMap<Integer, Segment>();
+
+  /** The segment appended to, and its stream once opened. Guarded by this. */
+  private Segment current;
+  private FileOutputStream out;
+  private int nextSegmentId;
+  private boolean closed;
+
+  /** True once a segment became sparse since the last {@link #takeCompactionNeeded}. */
+  private boolean compactionNeeded;
+
+  PackStore(File directory, long segmentSize, boolean durable) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.durable = durable;
+  }
+
+  static long location(int segment, long offset) {
+    return ((long) segment << OFFSET_BITS) | offset;
+  }
+
+  static int segment(long location) {
+    return (int) (location >>> OFFSET_BITS);
+  }
+
+  static long offset(long location) {
+    return location & OFFSET_MASK;
+  }
+
+  File segmentFile(int segment) {
+    return new File(directory, PREFIX + segment);
+  }
+
+  /**
+   * Appends {@code length} bytes to the current segment, starting a new one
+   * when it is full, and returns their location. The bytes count as live
+   * until the caller calls {@link #release}.
+   */
+  synchronized long append(byte[] data, int offset, int length) throws IOException {
+    if (closed) {
+      throw new IOException("pack store is closed");
+    }
+    if (current == null || current.length > 0 && current.length + length > segmentSize) {
+      startSegment();
+    } else if (out == null) {
+      out = new FileOutputStream(current.file, true);
+    }
+    out.write(data, offset, length);
+    long location = location(current.id, current.length);
+    current.length += length;
+    current.live += length;
+    return location;
+  }
+
+  /**
+   * Forces the bytes appended so far to disk. Segments that filled up were
+   * synced when they were closed if this store is durable.
+   */
+  synchronized void sync() throws IOException {
+    if (out != null) {
+      out.getFD().sync();
+    }
+  }
+
+  private void startSegment() throws IOException {
+    closeSegment();
+    if (current != null && isSparse(current)) {
+      compactionNeeded = true; // It could not be compacted while it was appended to.
+    }
+    Segment segment = new Segment(nextSegmentId++, 0);
+    out = new FileOutputStream(segment.file);
+    segments.put(segment.id, segment);
+    current = segment;
+  }
+
+  /**
+   * Returns true if the segment of {@code location} exists and holds {@code
+   * length} bytes there. Used while opening the cache, when segments are
+   * discovered from the journal.
+   */
+  synchronized boolean contains(long location, long length) {
+    int id = segment(location);
+    Segment segment = segments.get(id);
+    if (segment == null) {
+      File file = segmentFile(id);
+      if (!file.exists()) {
+        return false;
+      }
+      segment = new Segment(id, file.length());
+      segments.put(id, segment);
+      nextSegmentId = Math.max(nextSegmentId, id + 1);
+    }
+    return offset(location) + length <= segment.length;
+  }
+
+  /** Counts the value at {@code location} as referenced by the cache. */
+  synchronized void addLive(long location, long length) {
+    segments.get(segment(location)).live += length;
+  }
+
+  /** Counts the value at {@code location} as dead space. */
+  synchronized void release(long location, long length) {
+    Segment segment = segments.get(segment(location));
+    segment.live -= length;
+    if (segment != current && isSparse(segment)) {
+      compactionNeeded = true;
+    }
+  }
+
+  /** Returns true if a segment should be compacted since this was last called. */
+  synchronized boolean takeCompactionNeeded() {
+    boolean result = compactionNeeded;
+    compactionNeeded = false;
+    return result;
+  }
+
+  private static boolean isSparse(Segment segment) {
+    return segment.live * 2 < segment.length;
+  }
+
+  /**
+   * Returns the sparsest segment that is worth compacting, or -1 if there is
+   * none. The segment being appended to is never compacted.
+   */
+  synchronized int compactionCandidate() {
+    Segment candidate = null;
+    for (Segment segment : segments.values()) {
+      if (segment != current && isSparse(segment) && (candidate == null
+          || (double) segment.live / segment.length
+          < (double) candidate.live / candidate.length)) {
+        candidate = segment;
+      }
+    }
+    return candidate != null ? candidate.id : -1;
+  }
+
+  /**
+   * Deletes {@code segment} if nothing references it anymore.
+   *
+   * @return true if the segment is gone.
+   */
+  synchronized boolean deleteIfUnreferenced(int segment) {
+    Segment s = segments.get(segment);
+    if (s == null) {
+      return true;
+    }
+    if (s != current && s.live == 0 && (!s.file.exists() || s.file.delete())) {
+      segments.remove(segment);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Finishes opening the store once every live value was added: deletes the
+   * segments without live values and resumes appending to the newest segment
+   * that has room. When {@code scan} is true the directory is also searched
+   * for segments the journal no longer mentions.
+   */
+  synchronized void finishOpen(boolean scan) {
+    if (scan) {
+      String[] names = directory.list(new FilenameFilter() {
+        @Override public boolean accept(File dir, String name) {
+          return name.startsWith(PREFIX);
+        }
+      });
+      if (names != null) {
+        for (String name : names) {
+          try {
+            int id = Integer.parseInt(name.substring(PREFIX.length()));
+            if (!segments.containsKey(id)) {
+              new File(directory, name).delete();
+            }
+          } catch (NumberFormatException ignored) {
+          }
+        }
+      }
+    }
+
+    for (Iterator<Segment> i = segments.values().iterator(); i.hasNext(); ) {
+      Segment segment = i.next();
+      if (segment.live == 0) {
+        segment.file.delete();
+        i.remove();
+      } else if (segment.length < segmentSize
+          && (current == null || segment.id > current.id)) {
+        current = segment;
+      }
+    }
+    compactionNeeded = compactionCandidate() != -1;
+  }
+
+  @Override public synchronized void close() throws IOException {
+    closed = true;
+    closeSegment();
+  }
+
+  private void closeSegment() throws IOException {
+    if (out != null) {
+      try {
+        if (durable) {
+          out.getFD().sync();
+        }
+      } finally {
+        out.close();
+        out = null;
+      }
+    }
+  }
+
+  private final class Segment {
+    final int id;
+    final File file;
+
+    /** Bytes in the segment file, live or dead. */
+    long length;
+
+    /** Bytes of the values that the cache still references. */
+    long live;
+
+    Segment(int id, long length) {
+      this.id = id;
+      this.file = segmentFile(id);
+      this.length = length;
+    }
+  }
+
+  /** Reads one packed value from a stream positioned at its first byte. */
+  static final class ValueInputStream extends FilterInputStream {
+    private long remaining;
+
+    ValueInputStream(InputStream in, long length) {
+      super(in);
+      this.remaining = length;
+    }
+
+    @Override public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int result = in.read();
+      if (result != -1) {
+        remaining--;
+      }
+      return result;
+    }
+
+    @Override public int read(byte[] buffer, int offset, int count) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int read = in.read(buffer, offset, (int) Math.min(count, remaining));
+      if (read > 0) {
+        remaining -= read;
+      }
+      return read;
+    }
+
+    @Override public long skip(long count) throws IOException {
+      long skipped = in.skip(Math.min(count, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override public boolean markSupported() {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+
+/**
+ * Coordinates the processes that share a cache directory, with locks on two
+ * bytes of a lock file. The first byte guards the journal: a process holds
+ * it exclusively while it reads the records of the others and appends its
+ * own. Every process that has the cache open holds a shared lock on the
+ * second byte, so a process that gets it exclusively knows it is alone and
+ * may replace the journal. To avoid deadlocks the second lock only changes
+ * hands while the first one is held.
+ *
+ * <p>File locks belong to the whole process and are released by the OS when
+ * it dies. They don't exclude threads of one process; the cache lock does.
+ * A channel is closed when a thread blocked on it is interrupted, so the
+ * interrupt status is cleared around every lock operation and a closed
+ * journal channel is reopened. Not thread safe.
+ */
+final class ProcessLock implements Closeable {
+  private static final long JOURNAL = 0;
+  private static final long PRESENCE = 1;
+
+  private final File file;
+  private FileChannel journalChannel;
+  private final FileChannel presenceChannel;
+  private FileLock journalLock;
+  private FileLock presenceLock;
+
+  private ProcessLock(File file, FileChannel journalChannel, FileChannel presenceChannel) {
+    this.file = file;
+    this.journalChannel = journalChannel;
+    this.presenceChannel = presenceChannel;
+  }
+
+  static ProcessLock open(File file) throws IOException {
+    FileChannel journalChannel = new RandomAccessFile(file, "rw").getChannel();
+    try {
+      return new ProcessLock(file, journalChannel, new RandomAccessFile(file, "rw").getChannel());
+    } catch (IOException e) {
+      Util.closeQuietly(journalChannel);
+      throw e;
+    }
+  }
+
+  /** Blocks until no other process holds the journal, and takes it. */
+  void lockJournal() throws IOException {
+    if (journalLock != null) {
+      throw new IllegalStateException("journal is locked");
+    }
+    boolean interrupted = Thread.interrupted();
+    try {
+      while (true) {
+        try {
+          if (!journalChannel.isOpen()) {
+            journalChannel = new RandomAccessFile(file, "rw").getChannel();
+          }
+          journalLock = journalChannel.lock(JOURNAL, 1, false);
+          return;
+        } catch (FileLockInterruptionException e) {
+          // Interrupted while waiting, which closed the channel.
+          interrupted = true;
+          Thread.interrupted();
+        } catch (ClosedChannelException e) {
+          interrupted |= Thread.interrupted();
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  void unlockJournal() throws IOException {
+    FileLock lock = journalLock;
+    journalLock = null;
+    if (lock != null && lock.isValid()) {
+      lock.release();
+    }
+  }
+
+  /**
+   * Returns true if no other process has the cache open, and keeps it that
+   * way until {@link #share}. Otherwise this holds a shared lock like the
+   * other processes. Must be called with the journal locked.
+   */
+  boolean tryExclusive() throws IOException {
+    checkJournalLocked();
+    boolean interrupted = Thread.interrupted();
+    try {
+      releasePresence();
+      presenceLock = presenceChannel.tryLock(PRESENCE, 1, false);
+      if (presenceLock != null) {
+        return true;
+      }
+      // Only the holder of the journal takes this lock exclusively, so this can't fail.
+      presenceLock = presenceChannel.tryLock(PRESENCE, 1, true);
+      if (presenceLock == null) {
+        throw new IOException("failed to lock " + file);
+      }
+      return false;
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Lets other processes open the cache again. Must be called with the journal locked. */
+  void share() throws IOException {
+    checkJournalLocked();
+    if (presenceLock != null && presenceLock.isShared()) {
+      return;
+    }
+    boolean interrupted = Thread.interrupted();
+    try {
+      releasePresence();
+      presenceLock = presenceChannel.tryLock(PRESENCE, 1, true);
+      if (presenceLock == null) {
+        throw new IOException("failed to lock " + file);
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void checkJournalLocked() {
+    if (journalLock == null) {
+      throw new IllegalStateException("journal is not locked");
+    }
+  }
+
+  private void releasePresence() throws IOException {
+    FileLock lock = presenceLock;
+    presenceLock = null;
+    if (lock != null && lock.isValid()) {
+      lock.release();
+    }
+  }
+
+  /** Releases both locks. */
+  @Override public void close() throws IOException {
+    journalLock = null;
+    presenceLock = null;
+    // Closing a channel releases its locks.
+    Util.closeQuietly(journalChannel);
+    presenceChannel.close();
+  }
+}
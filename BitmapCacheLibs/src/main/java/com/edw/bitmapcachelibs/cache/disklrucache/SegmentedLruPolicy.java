@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Segmented LRU: new entries start in a probationary segment and move to a
+ * protected segment when they are accessed again. Entries are evicted from
+ * the probationary segment first, so a large entry that is read once can't
+ * push out entries that are read repeatedly. When the protected segment
+ * outgrows its share of the cache, its least recently used entries are
+ * demoted to the probationary one.
+ */
+public final class SegmentedLruPolicy implements EvictionPolicy {
+  /** Least recently used first. Values are entry sizes. */
+  private final LinkedHashMap<String, Long> probation = new LinkedHashMap<String, Long>();
+  private final LinkedHashMap<String, Long> protect = new LinkedHashMap<String, Long>();
+  private final float protectedRatio;
+  private long protectedSize;
+  private long maxProtectedSize;
+
+  /**
+   * @param protectedRatio the share of the cache size that entries accessed
+   *     more than once may take, between 0 and 1.
+   */
+  public SegmentedLruPolicy(float protectedRatio) {
+    checkRatio(protectedRatio);
+    this.protectedRatio = protectedRatio;
+  }
+
+  /** Returns a factory of policies protecting {@code protectedRatio} of the cache. */
+  public static Factory factory(final float protectedRatio) {
+    checkRatio(protectedRatio);
+    return new Factory() {
+      @Override public EvictionPolicy create() {
+        return new SegmentedLruPolicy(protectedRatio);
+      }
+    };
+  }
+
+  private static void checkRatio(float protectedRatio) {
+    if (!(protectedRatio >= 0 && protectedRatio <= 1)) {
+      throw new IllegalArgumentException("protectedRatio must be between 0 and 1");
+    }
+  }
+
+  @Override public void setMaxSize(long maxSize) {
+    maxProtectedSize = (long) (maxSize * (double) protectedRatio);
+    demote();
+  }
+
+  @Override public void onAdd(String key, long size, int frequency) {
+    if (frequency > 1) {
+      protect(key, size);
+    } else {
+      probation.put(key, size);
+    }
+  }
+
+  @Override public void onAccess(String key) {
+    Long size = probation.remove(key);
+    if (size == null) {
+      size = protect.remove(key);
+      if (size == null) {
+        return;
+      }
+      protectedSize -= size;
+    }
+    protect(key, size);
+  }
+
+  @Override public void onUpdate(String key, long size) {
+    remove(key);
+    protect(key, size);
+  }
+
+  @Override public void onRemove(String key) {
+    remove(key);
+  }
+
+  @Override public void onEvict(String key) {
+    remove(key);
+  }
+
+  private void remove(String key) {
+    if (probation.remove(key) == null) {
+      Long size = protect.remove(key);
+      if (size != null) {
+        protectedSize -= size;
+      }
+    }
+  }
+
+  private void protect(String key, long size) {
+    protect.put(key, size);
+    protectedSize += size;
+    demote();
+  }
+
+  /** Moves protected entries to the probationary segment until the protected one fits. */
+  private void demote() {
+    for (Iterator<Map.Entry<String, Long>> i = protect.entrySet().iterator();
+        protectedSize > maxProtectedSize && protect.size() > 1 && i.hasNext(); ) {
+      Map.Entry<String, Long> eldest = i.next();
+      String key = eldest.getKey();
+      long size = eldest.getValue();
+      i.remove();
+      protectedSize -= size;
+      probation.put(key, size);
+    }
+  }
+
+  @Override public Iterator<String> victims() {
+    final Iterator<String> first = probation.keySet().iterator();
+    final Iterator<String> second = protect.keySet().iterator();
+    return new Iterator<String>() {
+      @Override public boolean hasNext() {
+        return first.hasNext() || second.hasNext();
+      }
+
+      @Override public String next() {
+        if (first.hasNext()) {
+          return first.next();
+        }
+        if (second.hasNext()) {
+          return second.next();
+        }
+        throw new NoSuchElementException();
+      }
+
+      @Override public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
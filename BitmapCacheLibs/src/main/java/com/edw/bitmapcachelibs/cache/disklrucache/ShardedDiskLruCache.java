@@ -0,0 +1,378 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link DiskLruCache} split into independent segments so that operations on
+ * different keys don't contend for the same lock.
+ *
+ * <p>Each key is hashed to one of {@code shardCount} shards. A shard is a
+ * complete {@link DiskLruCache} with its own lock, entries, size accounting
+ * and journal, stored in a numbered subdirectory of {@code directory}. The
+ * shards share a single {@code maxSize} budget: when the total size exceeds
+ * its high watermark, a background thread evicts entries across all shards
+ * until the total is under the low watermark, each time from the shard whose
+ * next victim was accessed least recently.
+ *
+ * <p>Snapshots and editors are those of the owning shard and behave exactly as
+ * documented on {@link DiskLruCache}. The number of shards is part of the
+ * on-disk layout, recorded in a layout file: opening a directory whose layout
+ * names a different shard count discards its contents. A directory that has
+ * files but no layout, such as a plain {@link DiskLruCache}, isn't opened.
+ *
+ * <p>Unless the options name a scheduler, the shards share one background
+ * thread, which is stopped when the cache is closed.
+ */
+public final class ShardedDiskLruCache implements Closeable {
+  static final String LAYOUT_FILE = "shards";
+  static final String LAYOUT_FILE_TMP = "shards.tmp";
+
+  private final File directory;
+  private final DiskLruCache[] shards;
+  private final AtomicLong size = new AtomicLong();
+  private volatile long maxSize;
+  private final float highWatermark;
+  private final float lowWatermark;
+
+  private final AtomicBoolean trimScheduled = new AtomicBoolean();
+
+  /** Enforces the shared budget in the background. */
+  private final MaintenanceScheduler scheduler;
+  /** True if the scheduler was created for this cache and is shut down with it. */
+  private final boolean ownsScheduler;
+  private final Callable<Void> trimCallable = new Callable<Void>() {
+    @Override
+    public Void call() throws Exception {
+      trimScheduled.set(false);
+      trimToSize();
+      return null;
+    }
+  };
+
+  private final DiskLruCache.SizeListener sizeListener = new DiskLruCache.SizeListener() {
+    @Override
+    public void onSizeChanged(long delta) {
+      if (size.addAndGet(delta) > highWatermarkSize()) {
+        scheduleTrim();
+      }
+    }
+  };
+
+  private ShardedDiskLruCache(File directory, DiskLruCache[] shards, long maxSize,
+      DiskLruCache.Options options, boolean ownsScheduler) {
+    this.directory = directory;
+    this.shards = shards;
+    this.maxSize = maxSize;
+    this.highWatermark = options.highWatermark;
+    this.lowWatermark = options.lowWatermark;
+    this.scheduler = options.maintenanceScheduler;
+    this.ownsScheduler = ownsScheduler;
+  }
+
+  /**
+   * Opens the sharded cache in {@code directory}, creating a cache if none
+   * exists there.
+   *
+   * @param directory a writable directory
+   * @param valueCount the number of values per cache entry. Must be positive.
+   * @param maxSize the maximum number of bytes all shards together should use
+   * @param shardCount the number of independently locked shards. Must be positive.
+   * @throws IOException if reading or writing the cache directory fails
+   */
+  public static ShardedDiskLruCache open(File directory, int appVersion, int valueCount,
+      long maxSize, int shardCount) throws IOException {
+    return open(directory, appVersion, valueCount, maxSize, shardCount,
+        new DiskLruCache.Options());
+  }
+
+  /**
+   * Opens the sharded cache in {@code directory} with every shard configured
+   * by {@code options}, creating a cache if none exists there.
+   *
+   * @param directory a writable directory
+   * @param valueCount the number of values per cache entry. Must be positive.
+   * @param maxSize the maximum number of bytes all shards together should use
+   * @param shardCount the number of independently locked shards. Must be positive.
+   * @param options how each shard stores its data
+   * @throws IOException if reading or writing the cache directory fails, or
+   *     if the directory has files but no shard layout
+   */
+  public static ShardedDiskLruCache open(File directory, int appVersion, int valueCount,
+      long maxSize, int shardCount, DiskLruCache.Options options) throws IOException {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    if (shardCount <= 0) {
+      throw new IllegalArgumentException("shardCount <= 0");
+    }
+
+    directory.mkdirs();
+    int layout = readLayout(directory);
+    if (layout == -1) {
+      // Never wipe files that aren't known to belong to a sharded cache.
+      new File(directory, LAYOUT_FILE_TMP).delete();
+      String[] files = directory.list();
+      if (files == null) {
+        throw new IOException("failed to list " + directory);
+      }
+      if (files.length > 0) {
+        throw new IOException(directory + " is not empty and is not a sharded cache");
+      }
+      writeLayout(directory, shardCount);
+    } else if (layout != shardCount) {
+      // Keys would hash to different shards; the old contents are unreachable.
+      Util.deleteContents(directory);
+      writeLayout(directory, shardCount);
+    }
+
+    boolean ownsScheduler = options.maintenanceScheduler == null;
+    if (ownsScheduler) {
+      options = options.copy().setMaintenanceScheduler(new MaintenanceScheduler());
+    }
+    DiskLruCache[] shards = new DiskLruCache[shardCount];
+    try {
+      for (int i = 0; i < shardCount; i++) {
+        // Each shard may grow up to the whole budget; the shared trim keeps the total in check.
+        shards[i] = DiskLruCache.open(new File(directory, Integer.toString(i)), appVersion,
+            valueCount, maxSize, options);
+      }
+    } catch (IOException e) {
+      for (DiskLruCache shard : shards) {
+        Util.closeQuietly(shard);
+      }
+      if (ownsScheduler) {
+        options.maintenanceScheduler.shutdown();
+      }
+      throw e;
+    }
+
+    ShardedDiskLruCache cache =
+        new ShardedDiskLruCache(directory, shards, maxSize, options, ownsScheduler);
+    for (DiskLruCache shard : shards) {
+      shard.setSizeListener(cache.sizeListener);
+      cache.size.addAndGet(shard.size());
+    }
+    if (cache.size.get() > cache.highWatermarkSize()) {
+      cache.scheduleTrim();
+    }
+    return cache;
+  }
+
+  /** Returns the shard count of the layout file, or -1 if there is none. */
+  private static int readLayout(File directory) throws IOException {
+    File layoutFile = new File(directory, LAYOUT_FILE);
+    if (!layoutFile.exists()) {
+      return -1;
+    }
+    String layout = Util.readFully(
+        new InputStreamReader(new FileInputStream(layoutFile), Util.US_ASCII));
+    try {
+      int shardCount = Integer.parseInt(layout.trim());
+      if (shardCount > 0) {
+        return shardCount;
+      }
+    } catch (NumberFormatException ignored) {
+    }
+    throw new IOException("unexpected shard layout in " + layoutFile + ": " + layout.trim());
+  }
+
+  /** Writes the layout file atomically, so that it is either absent or complete. */
+  private static void writeLayout(File directory, int shardCount) throws IOException {
+    File tmp = new File(directory, LAYOUT_FILE_TMP);
+    OutputStream out = new FileOutputStream(tmp);
+    try {
+      out.write((shardCount + "\n").getBytes(Util.US_ASCII));
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(new File(directory, LAYOUT_FILE))) {
+      throw new IOException("failed to rename " + tmp);
+    }
+  }
+
+  private DiskLruCache shardFor(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return shards[(h & 0x7fffffff) % shards.length];
+  }
+
+  /**
+   * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+   * exist is not currently readable.
+   */
+  public DiskLruCache.Snapshot get(String key) throws IOException {
+    return shardFor(key).get(key);
+  }
+
+  /**
+   * Returns an editor for the entry named {@code key}, or null if another
+   * edit is in progress.
+   */
+  public DiskLruCache.Editor edit(String key) throws IOException {
+    return shardFor(key).edit(key);
+  }
+
+  /**
+   * Drops the entry for {@code key} if it exists and can be removed. Entries
+   * actively being edited cannot be removed.
+   *
+   * @return true if an entry was removed.
+   */
+  public boolean remove(String key) throws IOException {
+    return shardFor(key).remove(key);
+  }
+
+  /** Returns the directory where this cache stores its data. */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /** Returns the number of shards this cache is split into. */
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * Returns the maximum number of bytes that this cache should use to store
+   * its data.
+   */
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Changes the maximum number of bytes the cache can store and queues a job
+   * to trim the existing store, if necessary.
+   */
+  public void setMaxSize(long maxSize) {
+    this.maxSize = maxSize;
+    for (DiskLruCache shard : shards) {
+      shard.setMaxSize(maxSize);
+    }
+    scheduleTrim();
+  }
+
+  /**
+   * Returns the number of bytes currently being used to store the values in
+   * this cache. This may be greater than the max size if a background
+   * deletion is pending.
+   */
+  public long size() {
+    return size.get();
+  }
+
+  /** Returns the sum of the statistics of the shards. */
+  public CacheStats stats() {
+    CacheStats stats = shards[0].stats();
+    for (int i = 1; i < shards.length; i++) {
+      stats = stats.plus(shards[i].stats());
+    }
+    return stats;
+  }
+
+  /** Returns true if this cache has been closed. */
+  public boolean isClosed() {
+    return shards[0].isClosed();
+  }
+
+  /** Force buffered operations to the filesystem. */
+  public void flush() throws IOException {
+    trimToSize();
+    for (DiskLruCache shard : shards) {
+      shard.flush();
+    }
+  }
+
+  /**
+   * Closes this cache and stops its background thread, unless the scheduler
+   * was supplied in the options. Stored values will remain on the filesystem.
+   */
+  public void close() throws IOException {
+    IOException thrown = null;
+    for (DiskLruCache shard : shards) {
+      try {
+        shard.close();
+      } catch (IOException e) {
+        if (thrown == null) {
+          thrown = e;
+        }
+      }
+    }
+    if (ownsScheduler) {
+      scheduler.shutdown();
+    }
+    if (thrown != null) {
+      throw thrown;
+    }
+  }
+
+  /**
+   * Closes the cache and deletes all of its stored values. This will delete
+   * all files in the cache directory including files that weren't created by
+   * the cache.
+   */
+  public void delete() throws IOException {
+    close();
+    Util.deleteContents(directory);
+  }
+
+  private void scheduleTrim() {
+    if (trimScheduled.compareAndSet(false, true)) {
+      scheduler.schedule(trimCallable);
+    }
+  }
+
+  private long highWatermarkSize() {
+    return (long) (maxSize * (double) highWatermark);
+  }
+
+  /**
+   * Evicts entries down to the low watermark once the shared budget's high
+   * watermark is exceeded. Each step locks only the shards it inspects, so
+   * foreground operations keep running meanwhile; the shards delete the
+   * evicted files in the background.
+   */
+  private void trimToSize() throws IOException {
+    if (size.get() <= highWatermarkSize()) {
+      return;
+    }
+    long target = (long) (maxSize * (double) lowWatermark);
+    while (size.get() > target) {
+      DiskLruCache victim = null;
+      long eldest = Long.MAX_VALUE;
+      for (DiskLruCache shard : shards) {
+        long accessTime = shard.eldestAccessTime();
+        if (accessTime < eldest) {
+          eldest = accessTime;
+          victim = shard;
+        }
+      }
+      if (victim == null || !victim.evictEldest()) {
+        return; // Closed, or everything left is being edited.
+      }
+    }
+  }
+}
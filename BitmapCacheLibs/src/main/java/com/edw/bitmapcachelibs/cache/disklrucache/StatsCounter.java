@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the statistics of one cache. Counters are striped by thread, each
+ * stripe on its own cache lines, so that threads recording outside the cache
+ * lock don't contend on one atomic; {@code LongAdder} isn't available on
+ * older Android versions. When disabled, every method returns right away and
+ * the clock isn't read.
+ */
+final class StatsCounter {
+  private static final int HITS = 0;
+  private static final int MISSES = 1;
+  private static final int BYTES_READ = 2;
+  private static final int BYTES_WRITTEN = 3;
+  private static final int ABORTS = 4;
+  private static final int EVICTIONS = 5;
+  private static final int EVICTED_BYTES = 6;
+  private static final int EXPIRATIONS = 7;
+  private static final int CORRUPT_RECORDS = 8;
+  private static final int DROPPED_ENTRIES = 9;
+  private static final int MIGRATED_FILES = 10;
+  private static final int DISCARDED_JOURNALS = 11;
+  /** Followed by the total nanoseconds of each operation. */
+  private static final int LATENCY_TOTALS = 12;
+  private static final int COUNTERS = LATENCY_TOTALS + CacheStats.Operation.values().length;
+  /** Counters per stripe, rounded up to whole 64-byte lines plus one line of padding. */
+  private static final int STRIDE = ((COUNTERS + 7) & ~7) + 8;
+  private static final int MAX_STRIPES = 8;
+
+  private final boolean enabled;
+  private final int stripeMask;
+  private final AtomicLongArray counters;
+  /** The latency buckets of all operations. Spread over many slots already, so not striped. */
+  private final AtomicLongArray buckets;
+
+  StatsCounter(boolean enabled) {
+    this.enabled = enabled;
+    int stripes = 1;
+    while (stripes < MAX_STRIPES && stripes < Runtime.getRuntime().availableProcessors()) {
+      stripes <<= 1;
+    }
+    this.stripeMask = stripes - 1;
+    this.counters = new AtomicLongArray(enabled ? stripes * STRIDE : 0);
+    this.buckets = new AtomicLongArray(
+        enabled ? CacheStats.Operation.values().length * CacheStats.Latency.BUCKET_COUNT : 0);
+  }
+
+  /** Returns the start time of an operation to pass to {@link #record}, or 0 if disabled. */
+  long start() {
+    return enabled ? System.nanoTime() : 0;
+  }
+
+  /** Records the latency of {@code operation}, which started at {@code start}. */
+  void record(CacheStats.Operation operation, long start) {
+    if (!enabled) {
+      return;
+    }
+    long nanos = System.nanoTime() - start;
+    int index = operation.ordinal();
+    buckets.incrementAndGet(index * CacheStats.Latency.BUCKET_COUNT + CacheStats.Latency.bucket(nanos));
+    add(LATENCY_TOTALS + index, nanos);
+  }
+
+  /** Records the wait for the cache lock of an operation that started at {@code start}. */
+  void lockAcquired(long start) {
+    record(CacheStats.Operation.LOCK_WAIT, start);
+  }
+
+  void hit() {
+    add(HITS, 1);
+  }
+
+  void miss() {
+    add(MISSES, 1);
+  }
+
+  void read(long bytes) {
+    add(BYTES_READ, bytes);
+  }
+
+  void written(long bytes) {
+    add(BYTES_WRITTEN, bytes);
+  }
+
+  void aborted() {
+    add(ABORTS, 1);
+  }
+
+  void evicted(long bytes, boolean expired) {
+    add(expired ? EXPIRATIONS : EVICTIONS, 1);
+    add(EVICTED_BYTES, bytes);
+  }
+
+  void salvaged(int corruptRecords, int droppedEntries) {
+    add(CORRUPT_RECORDS, corruptRecords);
+    add(DROPPED_ENTRIES, droppedEntries);
+  }
+
+  void migrated(int files) {
+    add(MIGRATED_FILES, files);
+  }
+
+  void journalDiscarded() {
+    add(DISCARDED_JOURNALS, 1);
+  }
+
+  private void add(int counter, long delta) {
+    if (!enabled) {
+      return;
+    }
+    int stripe = (int) Thread.currentThread().getId() & stripeMask;
+    counters.addAndGet(stripe * STRIDE + counter, delta);
+  }
+
+  private long sum(int counter) {
+    long sum = 0;
+    for (int i = counter; i < counters.length(); i += STRIDE) {
+      sum += counters.get(i);
+    }
+    return sum;
+  }
+
+  CacheStats snapshot() {
+    CacheStats.Operation[] operations = CacheStats.Operation.values();
+    CacheStats.Latency[] latencies = new CacheStats.Latency[operations.length];
+    for (int i = 0; i < operations.length; i++) {
+      long[] counts = new long[CacheStats.Latency.BUCKET_COUNT];
+      if (enabled) {
+        for (int b = 0; b < counts.length; b++) {
+          counts[b] = buckets.get(i * CacheStats.Latency.BUCKET_COUNT + b);
+        }
+      }
+      latencies[i] = new CacheStats.Latency(counts, sum(LATENCY_TOTALS + i));
+    }
+    return new CacheStats(sum(HITS), sum(MISSES), sum(BYTES_READ), sum(BYTES_WRITTEN),
+        sum(ABORTS), sum(EVICTIONS), sum(EVICTED_BYTES), sum(EXPIRATIONS), sum(CORRUPT_RECORDS),
+        sum(DROPPED_ENTRIES), sum(MIGRATED_FILES), sum(DISCARDED_JOURNALS), latencies);
+  }
+}
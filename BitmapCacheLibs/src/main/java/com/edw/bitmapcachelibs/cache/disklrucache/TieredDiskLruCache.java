@@ -0,0 +1,414 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link DiskLruCache} that spans a small fast directory, such as internal
+ * storage, and a large slow one, such as external storage, with a size
+ * budget each.
+ *
+ * <p>Each tier is a complete {@link DiskLruCache}, and an entry is stored in
+ * one of them. New entries are written to the slow tier. An entry that was
+ * used more than {@link #PROMOTION_USES} times there is moved to the fast
+ * tier in the background. When the fast tier exceeds its high watermark,
+ * the entries it would evict are moved back to the slow tier until it is
+ * under the low watermark, instead of being deleted. Only the slow tier
+ * deletes entries to stay within its budget.
+ *
+ * <p>Snapshots and editors are those of the tier holding the entry and
+ * behave as documented on {@link DiskLruCache}. An entry that is being moved
+ * counts as being edited: {@link #edit} returns null and {@link #remove}
+ * fails for it. Both tiers are opened with the same options; the fast tier
+ * deletes entries itself only if moving them back falls behind by its whole
+ * budget.
+ */
+public final class TieredDiskLruCache implements Closeable {
+  /** How often an entry in the slow tier must have been used before it is promoted. */
+  static final int PROMOTION_USES = 2;
+  /** The fast tier's own max size, as a multiple of its budget. */
+  static final int FAST_TIER_HEADROOM = 2;
+
+  private final DiskLruCache fast;
+  private final DiskLruCache slow;
+  private final AtomicLong fastSize = new AtomicLong();
+  private volatile long fastMaxSize;
+  private final float highWatermark;
+  private final float lowWatermark;
+
+  /** Stored keys of the slow tier's entries waiting to be promoted. Guarded by this. */
+  private final LinkedHashSet<String> promotions = new LinkedHashSet<String>();
+  private final AtomicBoolean demotionScheduled = new AtomicBoolean();
+
+  /** Moves entries between the tiers in the background; shared with the tiers. */
+  private final MaintenanceScheduler scheduler;
+  /** True if the scheduler was created for this cache and is shut down with it. */
+  private final boolean ownsScheduler;
+  private final Callable<Void> promotionCallable = new Callable<Void>() {
+    @Override
+    public Void call() throws Exception {
+      promote();
+      return null;
+    }
+  };
+  private final Callable<Void> demotionCallable = new Callable<Void>() {
+    @Override
+    public Void call() throws Exception {
+      demotionScheduled.set(false);
+      demoteToSize();
+      return null;
+    }
+  };
+
+  private final DiskLruCache.SizeListener sizeListener = new DiskLruCache.SizeListener() {
+    @Override
+    public void onSizeChanged(long delta) {
+      if (fastSize.addAndGet(delta) > highWatermarkSize()) {
+        scheduleDemotion();
+      }
+    }
+  };
+
+  private TieredDiskLruCache(DiskLruCache fast, DiskLruCache slow, long fastMaxSize,
+      DiskLruCache.Options options, boolean ownsScheduler) {
+    this.fast = fast;
+    this.slow = slow;
+    this.fastMaxSize = fastMaxSize;
+    this.highWatermark = options.highWatermark;
+    this.lowWatermark = options.lowWatermark;
+    this.scheduler = options.maintenanceScheduler;
+    this.ownsScheduler = ownsScheduler;
+  }
+
+  /**
+   * Opens the tiered cache in {@code fastDirectory} and {@code
+   * slowDirectory}, creating a cache if none exists there.
+   *
+   * @param fastDirectory a writable directory on the faster medium
+   * @param slowDirectory a writable directory on the larger medium
+   * @param valueCount the number of values per cache entry. Must be positive.
+   * @param fastMaxSize the maximum number of bytes the fast tier should use
+   * @param slowMaxSize the maximum number of bytes the slow tier should use
+   * @throws IOException if reading or writing a cache directory fails
+   */
+  public static TieredDiskLruCache open(File fastDirectory, File slowDirectory, int appVersion,
+      int valueCount, long fastMaxSize, long slowMaxSize) throws IOException {
+    return open(fastDirectory, slowDirectory, appVersion, valueCount, fastMaxSize, slowMaxSize,
+        new DiskLruCache.Options());
+  }
+
+  /**
+   * Opens the tiered cache in {@code fastDirectory} and {@code
+   * slowDirectory} with both tiers configured by {@code options}, creating a
+   * cache if none exists there.
+   *
+   * @param fastDirectory a writable directory on the faster medium
+   * @param slowDirectory a writable directory on the larger medium
+   * @param valueCount the number of values per cache entry. Must be positive.
+   * @param fastMaxSize the maximum number of bytes the fast tier should use
+   * @param slowMaxSize the maximum number of bytes the slow tier should use
+   * @param options how each tier stores its data
+   * @throws IOException if reading or writing a cache directory fails
+   */
+  public static TieredDiskLruCache open(File fastDirectory, File slowDirectory, int appVersion,
+      int valueCount, long fastMaxSize, long slowMaxSize, DiskLruCache.Options options)
+      throws IOException {
+    if (fastMaxSize <= 0) {
+      throw new IllegalArgumentException("fastMaxSize <= 0");
+    }
+    if (fastDirectory.getCanonicalFile().equals(slowDirectory.getCanonicalFile())) {
+      throw new IllegalArgumentException("the tiers must use different directories");
+    }
+
+    boolean ownsScheduler = options.maintenanceScheduler == null;
+    if (ownsScheduler) {
+      options = options.copy().setMaintenanceScheduler(new MaintenanceScheduler());
+    }
+    DiskLruCache slow = null;
+    DiskLruCache fast;
+    try {
+      slow = DiskLruCache.open(slowDirectory, appVersion, valueCount, slowMaxSize, options);
+      fast = DiskLruCache.open(fastDirectory, appVersion, valueCount,
+          fastTierMaxSize(fastMaxSize), options);
+    } catch (IOException e) {
+      Util.closeQuietly(slow);
+      if (ownsScheduler) {
+        options.maintenanceScheduler.shutdown();
+      }
+      throw e;
+    }
+
+    TieredDiskLruCache cache =
+        new TieredDiskLruCache(fast, slow, fastMaxSize, options, ownsScheduler);
+    fast.setSizeListener(cache.sizeListener);
+    cache.fastSize.addAndGet(fast.size());
+    if (cache.fastSize.get() > cache.highWatermarkSize()) {
+      cache.scheduleDemotion();
+    }
+    return cache;
+  }
+
+  private static long fastTierMaxSize(long fastMaxSize) {
+    return fastMaxSize > Long.MAX_VALUE / FAST_TIER_HEADROOM
+        ? Long.MAX_VALUE
+        : fastMaxSize * FAST_TIER_HEADROOM;
+  }
+
+  /**
+   * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+   * exist is not currently readable. The fast tier is looked at first.
+   */
+  public DiskLruCache.Snapshot get(String key) throws IOException {
+    String entryKey = fast.entryKey(key);
+    DiskLruCache.Snapshot snapshot = fast.getEntry(entryKey);
+    if (snapshot != null) {
+      return snapshot;
+    }
+    snapshot = slow.getEntry(entryKey);
+    if (snapshot != null && slow.frequency(entryKey) > PROMOTION_USES) {
+      schedulePromotion(entryKey);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Returns an editor for the entry named {@code key}, or null if another
+   * edit is in progress. The entry is edited in the tier holding it; new
+   * entries are created in the slow tier.
+   */
+  public DiskLruCache.Editor edit(String key) throws IOException {
+    String entryKey = fast.entryKey(key);
+    while (true) {
+      DiskLruCache.Editor editor;
+      if (fast.containsEntry(entryKey)) {
+        editor = fast.editEntry(entryKey);
+        // While the fast tier edits the entry it can't be demoted, but it may just have been.
+        if (editor == null || fast.containsEntry(entryKey)) {
+          return editor;
+        }
+      } else {
+        editor = slow.editEntry(entryKey);
+        // While the slow tier edits the entry it can't be promoted, but it may just have been.
+        if (editor == null || !fast.containsEntry(entryKey)) {
+          return editor;
+        }
+      }
+      editor.abort();
+    }
+  }
+
+  /**
+   * Drops the entry for {@code key} from both tiers if it exists and can be
+   * removed. Entries actively being edited or moved cannot be removed.
+   *
+   * @return true if an entry was removed.
+   */
+  public boolean remove(String key) throws IOException {
+    String entryKey = fast.entryKey(key);
+    boolean removed = fast.removeEntry(entryKey);
+    return slow.removeEntry(entryKey) | removed;
+  }
+
+  /** Returns the directory where the fast tier stores its data. */
+  public File getFastDirectory() {
+    return fast.getDirectory();
+  }
+
+  /** Returns the directory where the slow tier stores its data. */
+  public File getSlowDirectory() {
+    return slow.getDirectory();
+  }
+
+  /**
+   * Returns the maximum number of bytes that the fast tier should use to
+   * store its data.
+   */
+  public long getFastMaxSize() {
+    return fastMaxSize;
+  }
+
+  /**
+   * Returns the maximum number of bytes that the slow tier should use to
+   * store its data.
+   */
+  public long getSlowMaxSize() {
+    return slow.getMaxSize();
+  }
+
+  /**
+   * Changes the maximum number of bytes the fast tier can store and queues
+   * a job to move the excess to the slow tier, if necessary.
+   */
+  public void setFastMaxSize(long fastMaxSize) {
+    this.fastMaxSize = fastMaxSize;
+    fast.setMaxSize(fastTierMaxSize(fastMaxSize));
+    scheduleDemotion();
+  }
+
+  /**
+   * Changes the maximum number of bytes the slow tier can store and queues
+   * a job to trim it, if necessary.
+   */
+  public void setSlowMaxSize(long slowMaxSize) {
+    slow.setMaxSize(slowMaxSize);
+  }
+
+  /**
+   * Returns the number of bytes currently being used to store the values in
+   * both tiers. This may be greater than the max sizes if a background
+   * move or deletion is pending.
+   */
+  public long size() {
+    return fast.size() + slow.size();
+  }
+
+  /** Returns the number of bytes currently being used by the fast tier. */
+  public long fastSize() {
+    return fastSize.get();
+  }
+
+  /**
+   * Returns the statistics of both tiers together. A read is a miss only if
+   * the slow tier missed it too; the latencies are those of the tiers.
+   */
+  public CacheStats stats() {
+    return fast.stats().withoutMisses().plus(slow.stats());
+  }
+
+  /**
+   * Returns the statistics of the fast tier. Its hit rate is the share of
+   * reads served from the fast medium.
+   */
+  public CacheStats fastStats() {
+    return fast.stats();
+  }
+
+  /**
+   * Returns the statistics of the slow tier, which only sees the reads that
+   * the fast tier missed.
+   */
+  public CacheStats slowStats() {
+    return slow.stats();
+  }
+
+  /** Returns true if this cache has been closed. */
+  public boolean isClosed() {
+    return fast.isClosed();
+  }
+
+  /** Force buffered operations to the filesystem. */
+  public void flush() throws IOException {
+    fast.flush();
+    slow.flush();
+  }
+
+  /** Closes this cache. Stored values will remain on the filesystem. */
+  public void close() throws IOException {
+    try {
+      fast.close();
+    } finally {
+      try {
+        slow.close();
+      } finally {
+        if (ownsScheduler) {
+          scheduler.shutdown();
+        }
+      }
+    }
+  }
+
+  /**
+   * Closes the cache and deletes all of its stored values. This will delete
+   * all files in both cache directories including files that weren't
+   * created by the cache.
+   */
+  public void delete() throws IOException {
+    try {
+      fast.delete();
+    } finally {
+      slow.delete();
+    }
+  }
+
+  private void schedulePromotion(String entryKey) {
+    synchronized (this) {
+      if (!promotions.add(entryKey)) {
+        return;
+      }
+    }
+    scheduler.schedule(promotionCallable);
+  }
+
+  private void scheduleDemotion() {
+    if (demotionScheduled.compareAndSet(false, true)) {
+      scheduler.schedule(demotionCallable);
+    }
+  }
+
+  private long highWatermarkSize() {
+    return (long) (fastMaxSize * (double) highWatermark);
+  }
+
+  /**
+   * Moves the entries waiting for promotion to the fast tier, and makes room
+   * for each one first. Entries that are being edited, or were removed
+   * meanwhile, stay where they are.
+   */
+  private void promote() throws IOException {
+    while (!isClosed()) {
+      String entryKey;
+      synchronized (this) {
+        Iterator<String> i = promotions.iterator();
+        if (!i.hasNext()) {
+          return;
+        }
+        entryKey = i.next();
+        i.remove();
+      }
+      demoteToSize();
+      slow.transferEntry(entryKey, fast);
+    }
+  }
+
+  /**
+   * Moves the fast tier's entries to the slow tier in eviction order once
+   * its high watermark is exceeded, until it is under the low watermark. An
+   * entry that can't be moved is evicted instead, unless it is being edited
+   * now; the next entry in eviction order is moved then.
+   */
+  private void demoteToSize() throws IOException {
+    if (fastSize.get() <= highWatermarkSize()) {
+      return;
+    }
+    long target = (long) (fastMaxSize * (double) lowWatermark);
+    while (fastSize.get() > target && !isClosed()) {
+      String entryKey = fast.eldestEntryKey();
+      if (entryKey == null) {
+        return; // Closed, or everything left is being edited.
+      }
+      if (!fast.transferEntry(entryKey, slow)) {
+        fast.evictEntry(entryKey);
+      }
+    }
+  }
+}
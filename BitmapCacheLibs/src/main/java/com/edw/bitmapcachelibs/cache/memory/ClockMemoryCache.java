@@ -0,0 +1,479 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.memory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A memory cache with a weighted size budget, with the API and hooks of
+ * {@code android.util.LruCache} but without its single lock.
+ *
+ * <p>Entries are spread over independently locked segments by a 64-bit hash
+ * of their key. Each segment is an open-addressing table that keeps the
+ * hashes in a {@code long[]}, so a lookup compares primitive hashes and
+ * calls {@link Object#equals} only on a match, and a resize doesn't call
+ * {@link Object#hashCode} again. A hit only sets the entry's referenced bit
+ * instead of moving it to the head of a list.
+ *
+ * <p>Eviction approximates LRU with the CLOCK algorithm: a hand sweeps each
+ * segment, clearing referenced bits and evicting the first entry whose bit
+ * is clear. When the total size exceeds the budget, segments take turns
+ * evicting one entry each until it fits. An entry that was used since the
+ * hand last passed it survives, but the order among the others is
+ * arbitrary.
+ *
+ * <p>Like {@code LruCache}, {@link #sizeOf} weighs entries and {@link
+ * #entryRemoved} is called without holding any lock. Null keys and values
+ * are not allowed. This class is thread safe.
+ */
+public class ClockMemoryCache<K, V> {
+  private static final int MAX_SEGMENTS = 1 << 12;
+  private static final int MIN_SEGMENT_CAPACITY = 16;
+
+  private final Segment[] segments;
+  private final AtomicLong size = new AtomicLong();
+  private volatile int maxSize;
+  /** The segment that evicts next. */
+  private final AtomicInteger evictionCursor = new AtomicInteger();
+
+  /**
+   * @param maxSize the budget in the units of {@link #sizeOf}; the number of
+   *     entries unless it is overridden.
+   */
+  public ClockMemoryCache(int maxSize) {
+    this(maxSize, 4 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param maxSize the budget in the units of {@link #sizeOf}; the number of
+   *     entries unless it is overridden.
+   * @param concurrencyLevel the number of threads expected to use the cache
+   *     at once. It is rounded up to a power of two segments.
+   */
+  public ClockMemoryCache(int maxSize, int concurrencyLevel) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    if (concurrencyLevel <= 0) {
+      throw new IllegalArgumentException("concurrencyLevel <= 0");
+    }
+    this.maxSize = maxSize;
+    int segmentCount = 1;
+    while (segmentCount < Math.min(concurrencyLevel, MAX_SEGMENTS)) {
+      segmentCount <<= 1;
+    }
+    segments = new Segment[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  /** Returns a well-distributed 64-bit hash of {@code key}. */
+  static long hash(Object key) {
+    // The finalizer of MurmurHash3's 64-bit variant.
+    long h = key.hashCode() * 0x9e3779b97f4a7c15L;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private Segment segmentFor(long hash) {
+    // The table index uses the low bits.
+    return segments[(int) (hash >>> 32) & (segments.length - 1)];
+  }
+
+  /**
+   * Returns the value for {@code key} if it exists in the cache, and marks
+   * it as recently used. Returns null otherwise.
+   */
+  @SuppressWarnings("unchecked")
+  public final V get(K key) {
+    if (key == null) {
+      throw new NullPointerException("key == null");
+    }
+    long hash = hash(key);
+    Segment segment = segmentFor(hash);
+    synchronized (segment) {
+      int i = segment.indexOf(hash, key);
+      if (i < 0) {
+        segment.missCount++;
+        return null;
+      }
+      segment.referenced[i] = true;
+      segment.hitCount++;
+      return (V) segment.values[i];
+    }
+  }
+
+  /**
+   * Caches {@code value} for {@code key}, marks it as recently used, and
+   * evicts entries until the cache is within its budget.
+   *
+   * @return the previous value mapped by {@code key}.
+   */
+  @SuppressWarnings("unchecked")
+  public final V put(K key, V value) {
+    if (key == null || value == null) {
+      throw new NullPointerException("key == null || value == null");
+    }
+    int entrySize = safeSizeOf(key, value);
+    long hash = hash(key);
+    Segment segment = segmentFor(hash);
+    V previous;
+    synchronized (segment) {
+      segment.putCount++;
+      int i = segment.indexOf(hash, key);
+      if (i >= 0) {
+        previous = (V) segment.values[i];
+        size.addAndGet(entrySize - segment.sizes[i]);
+        segment.values[i] = value;
+        segment.sizes[i] = entrySize;
+        segment.referenced[i] = true;
+      } else {
+        previous = null;
+        size.addAndGet(entrySize);
+        // Referenced, so that the hand passes it once before evicting it.
+        segment.insert(-1 - i, hash, key, value, entrySize);
+      }
+    }
+    if (previous != null) {
+      entryRemoved(false, key, previous, value);
+    }
+    trimToSize(maxSize);
+    return previous;
+  }
+
+  /**
+   * Removes the entry for {@code key} if it exists.
+   *
+   * @return the previous value mapped by {@code key}.
+   */
+  @SuppressWarnings("unchecked")
+  public final V remove(K key) {
+    if (key == null) {
+      throw new NullPointerException("key == null");
+    }
+    long hash = hash(key);
+    Segment segment = segmentFor(hash);
+    V previous;
+    synchronized (segment) {
+      int i = segment.indexOf(hash, key);
+      if (i < 0) {
+        return null;
+      }
+      previous = (V) segment.values[i];
+      size.addAndGet(-segment.sizes[i]);
+      segment.removeAt(i);
+    }
+    entryRemoved(false, key, previous, null);
+    return previous;
+  }
+
+  /**
+   * Evicts entries until the total size is at most {@code maxSize}, or the
+   * cache is empty if it is -1.
+   */
+  @SuppressWarnings("unchecked")
+  public void trimToSize(int maxSize) {
+    int emptySegments = 0;
+    while (size.get() > maxSize && emptySegments < segments.length) {
+      Segment segment = segments[evictionCursor.getAndIncrement() & (segments.length - 1)];
+      K key;
+      V value;
+      synchronized (segment) {
+        int i = segment.nextVictim();
+        if (i < 0) {
+          emptySegments++;
+          continue;
+        }
+        emptySegments = 0;
+        key = (K) segment.keys[i];
+        value = (V) segment.values[i];
+        size.addAndGet(-segment.sizes[i]);
+        segment.removeAt(i);
+        segment.evictionCount++;
+      }
+      entryRemoved(true, key, value, null);
+    }
+  }
+
+  /** Sets the budget and evicts entries until the cache is within it. */
+  public void resize(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    this.maxSize = maxSize;
+    trimToSize(maxSize);
+  }
+
+  /** Evicts all entries, calling {@link #entryRemoved} for each. */
+  public final void evictAll() {
+    trimToSize(-1);
+  }
+
+  private int safeSizeOf(K key, V value) {
+    int result = sizeOf(key, value);
+    if (result < 0) {
+      throw new IllegalStateException("Negative size: " + key + "=" + value);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the size of the entry for {@code key} and {@code value} in
+   * user-defined units. The default returns 1, so that the budget is the
+   * number of entries. An entry's size must not change while it is cached.
+   */
+  protected int sizeOf(K key, V value) {
+    return 1;
+  }
+
+  /**
+   * Called for entries that have been evicted or removed, after the lock is
+   * released. {@code evicted} is true if the entry was removed to make space,
+   * and false if it was removed by {@link #remove} or replaced by {@link
+   * #put}, in which case {@code newValue} is the replacement.
+   */
+  protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+  }
+
+  /** Returns the sum of the sizes of the entries in this cache. */
+  public final int size() {
+    return (int) size.get();
+  }
+
+  /** Returns the budget in the units of {@link #sizeOf}. */
+  public final int maxSize() {
+    return maxSize;
+  }
+
+  public final long hitCount() {
+    long result = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        result += segment.hitCount;
+      }
+    }
+    return result;
+  }
+
+  public final long missCount() {
+    long result = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        result += segment.missCount;
+      }
+    }
+    return result;
+  }
+
+  /** Returns how many times {@link #put} was called. */
+  public final long putCount() {
+    long result = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        result += segment.putCount;
+      }
+    }
+    return result;
+  }
+
+  public final long evictionCount() {
+    long result = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        result += segment.evictionCount;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns a copy of the cache's entries: first those that weren't used
+   * since the clock hand last passed them, then those that were. This is
+   * roughly from least to most recently used.
+   */
+  @SuppressWarnings("unchecked")
+  public final Map<K, V> snapshot() {
+    ArrayList<Object> cold = new ArrayList<Object>();
+    ArrayList<Object> hot = new ArrayList<Object>();
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        for (int i = 0; i < segment.keys.length; i++) {
+          if (segment.keys[i] != null) {
+            ArrayList<Object> group = segment.referenced[i] ? hot : cold;
+            group.add(segment.keys[i]);
+            group.add(segment.values[i]);
+          }
+        }
+      }
+    }
+    Map<K, V> result = new LinkedHashMap<K, V>((cold.size() + hot.size()) / 2 * 4 / 3 + 1);
+    for (int i = 0; i < cold.size(); i += 2) {
+      result.put((K) cold.get(i), (V) cold.get(i + 1));
+    }
+    for (int i = 0; i < hot.size(); i += 2) {
+      result.put((K) hot.get(i), (V) hot.get(i + 1));
+    }
+    return result;
+  }
+
+  @Override public String toString() {
+    long hits = hitCount();
+    long accesses = hits + missCount();
+    int hitPercent = accesses != 0 ? (int) (100 * hits / accesses) : 0;
+    return String.format(Locale.US, "ClockMemoryCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+        maxSize, hits, accesses - hits, hitPercent);
+  }
+
+  /**
+   * An open-addressing table with linear probing, kept at most 3/4 full. A
+   * slot is empty if its key is null; removals shift the following entries
+   * back instead of leaving tombstones. Guarded by its own lock.
+   */
+  private static final class Segment {
+    long[] hashes;
+    Object[] keys;
+    Object[] values;
+    int[] sizes;
+    boolean[] referenced;
+    int count;
+    /** The slot the clock hand points at. */
+    int hand;
+
+    long hitCount;
+    long missCount;
+    long putCount;
+    long evictionCount;
+
+    Segment() {
+      allocate(MIN_SEGMENT_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+      hashes = new long[capacity];
+      keys = new Object[capacity];
+      values = new Object[capacity];
+      sizes = new int[capacity];
+      referenced = new boolean[capacity];
+    }
+
+    /**
+     * Returns the slot of {@code key}, or {@code -1 - slot} of the empty slot
+     * where it would be inserted.
+     */
+    int indexOf(long hash, Object key) {
+      int mask = keys.length - 1;
+      for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+        Object k = keys[i];
+        if (k == null) {
+          return -1 - i;
+        }
+        if (hashes[i] == hash && (k == key || k.equals(key))) {
+          return i;
+        }
+      }
+    }
+
+    void insert(int slot, long hash, Object key, Object value, int size) {
+      hashes[slot] = hash;
+      keys[slot] = key;
+      values[slot] = value;
+      sizes[slot] = size;
+      referenced[slot] = true;
+      if (++count > keys.length / 4 * 3) {
+        rehash(keys.length * 2);
+      }
+    }
+
+    private void rehash(int capacity) {
+      long[] oldHashes = hashes;
+      Object[] oldKeys = keys;
+      Object[] oldValues = values;
+      int[] oldSizes = sizes;
+      boolean[] oldReferenced = referenced;
+      allocate(capacity);
+      int mask = capacity - 1;
+      for (int j = 0; j < oldKeys.length; j++) {
+        if (oldKeys[j] == null) {
+          continue;
+        }
+        int i = (int) oldHashes[j] & mask;
+        while (keys[i] != null) {
+          i = (i + 1) & mask;
+        }
+        hashes[i] = oldHashes[j];
+        keys[i] = oldKeys[j];
+        values[i] = oldValues[j];
+        sizes[i] = oldSizes[j];
+        referenced[i] = oldReferenced[j];
+      }
+      hand = 0;
+    }
+
+    void removeAt(int slot) {
+      int mask = keys.length - 1;
+      int hole = slot;
+      for (int j = (slot + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+        int home = (int) hashes[j] & mask;
+        // The entry at j may fill the hole if the hole is between its home and j.
+        if (((j - home) & mask) >= ((j - hole) & mask)) {
+          hashes[hole] = hashes[j];
+          keys[hole] = keys[j];
+          values[hole] = values[j];
+          sizes[hole] = sizes[j];
+          referenced[hole] = referenced[j];
+          hole = j;
+        }
+      }
+      keys[hole] = null;
+      values[hole] = null;
+      referenced[hole] = false;
+      count--;
+    }
+
+    /**
+     * Advances the hand to the first entry that wasn't used since the hand
+     * last passed it, clearing the referenced bits on the way, and returns
+     * its slot. Returns -1 if the segment is empty.
+     */
+    int nextVictim() {
+      if (count == 0) {
+        return -1;
+      }
+      int mask = keys.length - 1;
+      while (true) {
+        int i = hand;
+        hand = (hand + 1) & mask;
+        if (keys[i] == null) {
+          continue;
+        }
+        if (referenced[i]) {
+          referenced[i] = false;
+          continue;
+        }
+        return i;
+      }
+    }
+  }
+}
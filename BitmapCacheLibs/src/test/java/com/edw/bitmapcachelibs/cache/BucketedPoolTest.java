@@ -0,0 +1,174 @@
+package com.edw.bitmapcachelibs.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BitmapPool的存储部分：最小合适对象查找、按字节上限回收最早放入的对象、命中和未命中计数
+ */
+public class BucketedPoolTest {
+    private final List<Item> mRecycled = new ArrayList<>();
+
+    @Test
+    public void getReturnsSmallestItemThatIsLargeEnough() {
+        BucketedPool<Item> pool = newPool(10000);
+        Item small = new Item("argb", 100);
+        Item large = new Item("argb", 400);
+        Item medium = new Item("argb", 200);
+        pool.put(small);
+        pool.put(large);
+        pool.put(medium);
+
+        assertSame(medium, pool.get("argb", 150, 1200, 0, 0));
+        assertSame(large, pool.get("argb", 150, 1200, 0, 0));
+        assertNull(pool.get("argb", 150, 1200, 0, 0));
+        assertSame(small, pool.get("argb", 50, 400, 0, 0));
+        assertEquals(0, pool.size());
+        assertEquals(0, pool.count());
+        assertEquals(3, pool.hitCount());
+        assertEquals(1, pool.missCount());
+    }
+
+    @Test
+    public void itemsMuchLargerThanNeededAreNotUsed() {
+        BucketedPool<Item> pool = newPool(10000);
+        Item item = new Item("argb", 1000);
+        pool.put(item);
+        assertNull(pool.get("argb", 100, 800, 0, 0));
+        assertSame(item, pool.get("argb", 100, 1000, 0, 0));
+    }
+
+    @Test
+    public void groupsDoNotReplaceEachOther() {
+        BucketedPool<Item> pool = newPool(10000);
+        Item rgb = new Item("rgb565", 400);
+        pool.put(rgb);
+        assertNull(pool.get("argb", 100, 800, 0, 0));
+        assertSame(rgb, pool.get("rgb565", 100, 800, 0, 0));
+    }
+
+    @Test
+    public void sameSizeItemsComeOutInPutOrder() {
+        BucketedPool<Item> pool = newPool(10000);
+        Item first = new Item("argb", 400);
+        Item second = new Item("argb", 400);
+        pool.put(first);
+        pool.put(second);
+        assertSame(first, pool.get("argb", 400, 400, 0, 0));
+        assertSame(second, pool.get("argb", 400, 400, 0, 0));
+    }
+
+    @Test
+    public void exactSizeLookupSkipsOtherShapes() {
+        BucketedPool<Item> pool = newPool(10000);
+        Item wide = new Item("argb", 40, 10);
+        Item square = new Item("argb", 20, 20);
+        pool.put(wide);
+        pool.put(square);
+        int byteCount = 20 * 20 * 4;
+        assertSame(square, pool.get("argb", byteCount, byteCount, 20, 20));
+        assertNull(pool.get("argb", byteCount, byteCount, 20, 20));
+        assertEquals(1, pool.count());
+    }
+
+    @Test
+    public void byteBudgetRecyclesEldestItems() {
+        BucketedPool<Item> pool = newPool(1000);
+        Item first = new Item("argb", 400);
+        Item second = new Item("rgb565", 400);
+        Item third = new Item("argb", 400);
+        pool.put(first);
+        pool.put(second);
+        assertEquals(800, pool.size());
+        assertTrue(mRecycled.isEmpty());
+
+        pool.put(third);
+        assertEquals(800, pool.size());
+        assertEquals(2, pool.count());
+        assertEquals(1, pool.evictionCount());
+        assertEquals(3, pool.putCount());
+        assertEquals(1, mRecycled.size());
+        assertSame(first, mRecycled.get(0));
+        assertSame(third, pool.get("argb", 400, 400, 0, 0));
+    }
+
+    @Test
+    public void itemIsStoredOnce() {
+        BucketedPool<Item> pool = newPool(1000);
+        Item item = new Item("argb", 400);
+        assertTrue(pool.put(item));
+        assertTrue(pool.put(item));
+        assertEquals(400, pool.size());
+        assertEquals(1, pool.count());
+        assertSame(item, pool.get("argb", 400, 400, 0, 0));
+        assertNull(pool.get("argb", 400, 400, 0, 0));
+    }
+
+    @Test
+    public void trimToZeroRecyclesEverything() {
+        BucketedPool<Item> pool = newPool(1000);
+        pool.put(new Item("argb", 100));
+        pool.put(new Item("rgb565", 200));
+        pool.trimToSize(0);
+        assertEquals(0, pool.size());
+        assertEquals(0, pool.count());
+        assertEquals(2, mRecycled.size());
+        assertEquals(2, pool.evictionCount());
+        assertNull(pool.get("argb", 1, 1000, 0, 0));
+    }
+
+    private BucketedPool<Item> newPool(long maxSize) {
+        return new BucketedPool<Item>(maxSize) {
+            @Override
+            int byteCountOf(Item item) {
+                return item.byteCount;
+            }
+
+            @Override
+            Object groupOf(Item item) {
+                return item.config;
+            }
+
+            @Override
+            boolean hasSize(Item item, int width, int height) {
+                return item.width == width && item.height == height;
+            }
+
+            @Override
+            void recycle(Item item) {
+                mRecycled.add(item);
+            }
+        };
+    }
+
+    /**
+     * 代替Bitmap：Config、宽高和占用内存
+     */
+    private static final class Item {
+        final String config;
+        final int width;
+        final int height;
+        final int byteCount;
+
+        Item(String config, int byteCount) {
+            this.config = config;
+            this.width = byteCount / 4;
+            this.height = 1;
+            this.byteCount = byteCount;
+        }
+
+        Item(String config, int width, int height) {
+            this.config = config;
+            this.width = width;
+            this.height = height;
+            this.byteCount = width * height * 4;
+        }
+    }
+}
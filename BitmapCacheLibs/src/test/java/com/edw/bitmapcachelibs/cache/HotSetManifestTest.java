@@ -0,0 +1,187 @@
+package com.edw.bitmapcachelibs.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 热点图片清单：读写、损坏检测，以及按时间和内存预算预热
+ */
+public class HotSetManifestTest {
+    @Rule
+    public final TemporaryFolder mTempDir = new TemporaryFolder();
+
+    private final List<String> mLoaded = new ArrayList<>();
+    private final Set<String> mCached = new HashSet<>();
+    private final Set<String> mMissingOnDisk = new HashSet<>();
+
+    @Test
+    public void writtenEntriesAreReadBackInOrder() throws Exception {
+        File file = new File(mTempDir.getRoot(), "hot_set");
+        List<HotSetManifest.Entry> entries = Arrays.asList(
+                new HotSetManifest.Entry("https://example.com/a.jpg", 100, 200, 80000),
+                new HotSetManifest.Entry("图片", 1, 1, 4),
+                new HotSetManifest.Entry("", 0, 0, 0));
+        HotSetManifest.write(file, entries);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        List<HotSetManifest.Entry> read = HotSetManifest.read(file);
+        assertEquals(3, read.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(entries.get(i).key, read.get(i).key);
+            assertEquals(entries.get(i).width, read.get(i).width);
+            assertEquals(entries.get(i).height, read.get(i).height);
+            assertEquals(entries.get(i).byteCount, read.get(i).byteCount);
+        }
+    }
+
+    @Test
+    public void writeReplacesTheOldManifest() throws Exception {
+        File file = new File(mTempDir.getRoot(), "hot_set");
+        HotSetManifest.write(file, Arrays.asList(entry("a", 1), entry("b", 1)));
+        HotSetManifest.write(file, Arrays.asList(entry("c", 1)));
+        List<HotSetManifest.Entry> read = HotSetManifest.read(file);
+        assertEquals(1, read.size());
+        assertEquals("c", read.get(0).key);
+    }
+
+    @Test
+    public void missingManifestIsEmpty() throws Exception {
+        assertTrue(HotSetManifest.read(new File(mTempDir.getRoot(), "missing")).isEmpty());
+    }
+
+    @Test
+    public void badHeaderIsRejected() throws Exception {
+        File file = mTempDir.newFile("hot_set");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(0x12345678);
+        out.writeInt(1);
+        out.writeInt(0);
+        out.close();
+        assertCorrupt(file);
+    }
+
+    @Test
+    public void negativeCountIsRejected() throws Exception {
+        File file = new File(mTempDir.getRoot(), "hot_set");
+        HotSetManifest.write(file, new ArrayList<HotSetManifest.Entry>());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(8);
+        raf.writeInt(-1);
+        raf.close();
+        assertCorrupt(file);
+    }
+
+    @Test
+    public void truncatedManifestIsRejected() throws Exception {
+        File file = new File(mTempDir.getRoot(), "hot_set");
+        HotSetManifest.write(file, Arrays.asList(entry("a", 1), entry("b", 1)));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 2);
+        raf.close();
+        assertCorrupt(file);
+    }
+
+    @Test
+    public void warmUpLoadsHottestFirstWithinByteBudget() {
+        List<HotSetManifest.Entry> entries = Arrays.asList(
+                entry("a", 400), entry("b", 400), entry("c", 400), entry("d", 100));
+        int loaded = HotSetManifest.warmUp(entries, 1000, Long.MAX_VALUE, newLoader());
+        //c超出剩余的200字节被跳过，后面更小的d仍然加载
+        assertEquals(3, loaded);
+        assertEquals(Arrays.asList("a", "b", "d"), mLoaded);
+    }
+
+    @Test
+    public void warmUpSkipsCachedAndFailedEntries() {
+        mCached.add("a");
+        mMissingOnDisk.add("b");
+        List<HotSetManifest.Entry> entries = Arrays.asList(
+                entry("a", 400), entry("b", 400), entry("c", 400), entry("d", 400));
+        int loaded = HotSetManifest.warmUp(entries, 800, Long.MAX_VALUE, newLoader());
+        //已缓存和加载失败的图片不占用预算
+        assertEquals(2, loaded);
+        assertEquals(Arrays.asList("c", "d"), mLoaded);
+    }
+
+    @Test
+    public void warmUpStopsWhenTimeBudgetIsUsed() {
+        List<HotSetManifest.Entry> entries = Arrays.asList(entry("a", 1), entry("b", 1), entry("c", 1));
+        final long timeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(20);
+        int loaded = HotSetManifest.warmUp(entries, Long.MAX_VALUE, timeBudgetNanos, new HotSetManifest.Loader() {
+            @Override
+            public boolean isCached(String key) {
+                return false;
+            }
+
+            @Override
+            public boolean load(HotSetManifest.Entry entry) {
+                mLoaded.add(entry.key);
+                //模拟一次很慢的解码，用完全部时间
+                try {
+                    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(timeBudgetNanos) + 5);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                return true;
+            }
+        });
+        assertEquals(1, loaded);
+        assertEquals(Arrays.asList("a"), mLoaded);
+    }
+
+    @Test
+    public void warmUpWithoutBudgetLoadsNothing() {
+        List<HotSetManifest.Entry> entries = Arrays.asList(entry("a", 1));
+        assertEquals(0, HotSetManifest.warmUp(entries, 0, Long.MAX_VALUE, newLoader()));
+        assertEquals(0, HotSetManifest.warmUp(entries, Long.MAX_VALUE, 0, newLoader()));
+        assertTrue(mLoaded.isEmpty());
+    }
+
+    private HotSetManifest.Loader newLoader() {
+        return new HotSetManifest.Loader() {
+            @Override
+            public boolean isCached(String key) {
+                return mCached.contains(key);
+            }
+
+            @Override
+            public boolean load(HotSetManifest.Entry entry) {
+                if (mMissingOnDisk.contains(entry.key)) {
+                    return false;
+                }
+                mLoaded.add(entry.key);
+                return true;
+            }
+        };
+    }
+
+    private static HotSetManifest.Entry entry(String key, int byteCount) {
+        return new HotSetManifest.Entry(key, byteCount / 4, 1, byteCount);
+    }
+
+    private static void assertCorrupt(File file) {
+        try {
+            HotSetManifest.read(file);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.edw.bitmapcachelibs.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * DiskWriteQueue的队列部分：相同键合并、三种溢出策略、flush等待和写入抛出Error后的恢复
+ */
+public class WriteBehindQueueTest {
+    private final List<String> mWritten = Collections.synchronizedList(new ArrayList<String>());
+    //写入这个键时抛出Error
+    private volatile String mFailingKey;
+
+    @Test
+    public void duplicateKeysAreWrittenOnce() {
+        ManualExecutor executor = new ManualExecutor();
+        WriteBehindQueue<String> queue = newQueue(executor, 4, DiskWriteQueue.OverflowPolicy.DROP_NEWEST);
+        assertTrue(queue.enqueue("a", "a1", 0));
+        assertTrue(queue.enqueue("b", "b1", 0));
+        assertTrue(queue.enqueue("a", "a2", 0));
+        assertEquals(2, queue.size());
+        assertEquals("a1", queue.getPending("a"));
+        //只调度了一个写入任务
+        assertEquals(1, executor.mTasks.size());
+
+        executor.runAll();
+        assertEquals(list("a", "b"), mWritten);
+        assertEquals(0, queue.size());
+        assertNull(queue.getPending("a"));
+    }
+
+    @Test
+    public void keyBeingWrittenIsPendingAndNotQueuedAgain() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        WriteBehindQueue<String> queue = new WriteBehindQueue<String>(executor, 4, DiskWriteQueue.OverflowPolicy.BLOCK) {
+            @Override
+            void write(String key, String value, long ttlMillis) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                mWritten.add(key);
+            }
+        };
+        queue.enqueue("a", "a1", 0);
+        writing.await();
+        assertEquals(0, queue.size());
+        assertEquals("a1", queue.getPending("a"));
+        assertTrue(queue.enqueue("a", "a2", 0));
+        assertEquals(0, queue.size());
+
+        release.countDown();
+        queue.flush();
+        assertEquals(list("a"), mWritten);
+        queue.shutdown();
+    }
+
+    @Test
+    public void dropNewestRejectsWhenFull() {
+        ManualExecutor executor = new ManualExecutor();
+        WriteBehindQueue<String> queue = newQueue(executor, 2, DiskWriteQueue.OverflowPolicy.DROP_NEWEST);
+        assertTrue(queue.enqueue("a", "a", 0));
+        assertTrue(queue.enqueue("b", "b", 0));
+        assertFalse(queue.enqueue("c", "c", 0));
+        assertEquals(1, queue.getDroppedCount());
+        assertNull(queue.getPending("c"));
+
+        executor.runAll();
+        assertEquals(list("a", "b"), mWritten);
+    }
+
+    @Test
+    public void dropOldestMakesRoomForNewWrites() {
+        ManualExecutor executor = new ManualExecutor();
+        WriteBehindQueue<String> queue = newQueue(executor, 2, DiskWriteQueue.OverflowPolicy.DROP_OLDEST);
+        queue.enqueue("a", "a", 0);
+        queue.enqueue("b", "b", 0);
+        assertTrue(queue.enqueue("c", "c", 0));
+        assertTrue(queue.enqueue("d", "d", 0));
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(2, queue.size());
+
+        executor.runAll();
+        assertEquals(list("c", "d"), mWritten);
+    }
+
+    @Test
+    public void blockWaitsForRoom() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final WriteBehindQueue<String> queue = new WriteBehindQueue<String>(executor, 1, DiskWriteQueue.OverflowPolicy.BLOCK) {
+            @Override
+            void write(String key, String value, long ttlMillis) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                mWritten.add(key);
+            }
+        };
+        queue.enqueue("a", "a", 0);
+        //等后台线程取走a，队列空出一个位置
+        while (queue.size() > 0) {
+            Thread.sleep(1);
+        }
+        queue.enqueue("b", "b", 0);
+
+        final AtomicBoolean enqueued = new AtomicBoolean();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                enqueued.set(queue.enqueue("c", "c", 0));
+            }
+        };
+        producer.start();
+        producer.join(100);
+        assertTrue("队列满时应该阻塞", producer.isAlive());
+
+        release.countDown();
+        producer.join();
+        assertTrue(enqueued.get());
+        queue.flush();
+        assertEquals(list("a", "b", "c"), mWritten);
+        assertEquals(0, queue.getDroppedCount());
+        queue.shutdown();
+    }
+
+    @Test
+    public void shutdownReleasesBlockedProducers() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        final WriteBehindQueue<String> queue = newQueue(executor, 1, DiskWriteQueue.OverflowPolicy.BLOCK);
+        queue.enqueue("a", "a", 0);
+        final AtomicBoolean enqueued = new AtomicBoolean(true);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                enqueued.set(queue.enqueue("b", "b", 0));
+            }
+        };
+        producer.start();
+        producer.join(100);
+        assertTrue(producer.isAlive());
+
+        queue.shutdown();
+        producer.join();
+        assertFalse(enqueued.get());
+        assertFalse(queue.enqueue("c", "c", 0));
+        //已在队列中的仍会写完
+        executor.runAll();
+        assertEquals(list("a"), mWritten);
+    }
+
+    @Test
+    public void flushWaitsForEveryWrite() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        WriteBehindQueue<String> queue = new WriteBehindQueue<String>(executor, 100, DiskWriteQueue.OverflowPolicy.BLOCK) {
+            @Override
+            void write(String key, String value, long ttlMillis) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                mWritten.add(key + "@" + ttlMillis);
+            }
+        };
+        for (int i = 0; i < 20; i++) {
+            queue.enqueue("k" + i, "v", i);
+        }
+        queue.flush();
+        assertEquals(20, mWritten.size());
+        assertEquals("k19@19", mWritten.get(19));
+        assertEquals(0, queue.size());
+        queue.shutdown();
+    }
+
+    @Test
+    public void errorInWriteReschedulesTheRest() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        WriteBehindQueue<String> queue = newQueue(executor, 4, DiskWriteQueue.OverflowPolicy.DROP_NEWEST);
+        mFailingKey = "b";
+        queue.enqueue("a", "a", 0);
+        queue.enqueue("b", "b", 0);
+        queue.enqueue("c", "c", 0);
+        try {
+            executor.runNext();
+            fail();
+        } catch (OutOfMemoryError expected) {
+        }
+        assertNull(queue.getPending("b"));
+        //剩下的c由新的任务继续写入
+        assertEquals(1, executor.mTasks.size());
+        executor.runAll();
+        assertEquals(list("a", "c"), mWritten);
+        queue.flush();
+
+        //之后的写入照常调度
+        queue.enqueue("d", "d", 0);
+        executor.runAll();
+        assertEquals(list("a", "c", "d"), mWritten);
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void errorAfterShutdownDropsTheRest() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        WriteBehindQueue<String> queue = newQueue(executor, 4, DiskWriteQueue.OverflowPolicy.DROP_NEWEST);
+        mFailingKey = "a";
+        queue.enqueue("a", "a", 0);
+        queue.enqueue("b", "b", 0);
+        queue.enqueue("c", "c", 0);
+        queue.shutdown();
+        try {
+            executor.runNext();
+            fail();
+        } catch (OutOfMemoryError expected) {
+        }
+        assertTrue(executor.mTasks.isEmpty());
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(0, queue.size());
+        //flush不会一直等待
+        queue.flush();
+        assertTrue(mWritten.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePositive() {
+        newQueue(new ManualExecutor(), 0, DiskWriteQueue.OverflowPolicy.BLOCK);
+    }
+
+    private WriteBehindQueue<String> newQueue(ExecutorService executor, int capacity,
+                                              DiskWriteQueue.OverflowPolicy overflowPolicy) {
+        return new WriteBehindQueue<String>(executor, capacity, overflowPolicy) {
+            @Override
+            void write(String key, String value, long ttlMillis) {
+                if (key.equals(mFailingKey)) {
+                    throw new OutOfMemoryError(key);
+                }
+                mWritten.add(key);
+            }
+        };
+    }
+
+    private static List<String> list(String... keys) {
+        List<String> result = new ArrayList<>();
+        Collections.addAll(result, keys);
+        return result;
+    }
+
+    /**
+     * 在测试线程中按顺序执行任务，用来控制后台写入的时机
+     */
+    private static final class ManualExecutor extends AbstractExecutorService {
+        final List<Runnable> mTasks = new ArrayList<>();
+        private boolean mShutdown;
+
+        void runNext() {
+            mTasks.remove(0).run();
+        }
+
+        void runAll() {
+            while (!mTasks.isEmpty()) {
+                runNext();
+            }
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (mShutdown) {
+                throw new IllegalStateException("shutdown");
+            }
+            mTasks.add(command);
+        }
+
+        @Override
+        public void shutdown() {
+            mShutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            mShutdown = true;
+            return new ArrayList<>(mTasks);
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return mShutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return mShutdown && mTasks.isEmpty();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return isTerminated();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class BatchedEvictionTest {
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  /** Kept busy so that evicted files stay until a test lets the deletion run. */
+  private final MaintenanceScheduler scheduler = new MaintenanceScheduler();
+  private File cacheDir;
+  private DiskLruCache cache;
+
+  @Before public void setUp() throws Exception {
+    cacheDir = tempDir.newFolder("BatchedEvictionTest");
+    scheduler.setBusy(true);
+    cache = DiskLruCache.open(cacheDir, 1, 1, 100, new DiskLruCache.Options()
+        .setEvictionWatermarks(0.8f, 0.5f)
+        .setMaintenanceScheduler(scheduler));
+  }
+
+  @After public void tearDown() throws Exception {
+    cache.close();
+    scheduler.setBusy(false);
+    scheduler.shutdown();
+  }
+
+  @Test public void evictsFromTheHighDownToTheLowWatermark() throws Exception {
+    for (int i = 0; i < 8; i++) {
+      set("k" + i, 10);
+    }
+    cache.flush();
+    assertEquals(80, cache.size()); // Not above the high watermark.
+
+    set("k8", 10);
+    cache.flush();
+    assertEquals(50, cache.size());
+    for (int i = 0; i < 4; i++) {
+      assertNull(cache.get("k" + i));
+    }
+    for (int i = 4; i < 9; i++) {
+      assertNotNull(cache.get("k" + i));
+    }
+  }
+
+  @Test public void victimsAreLoggedTogether() throws Exception {
+    for (int i = 0; i < 9; i++) {
+      set("k" + i, 10);
+    }
+    cache.flush();
+    assertTrue(readJournal().endsWith("REMOVE k0\nREMOVE k1\nREMOVE k2\nREMOVE k3\n"));
+    cache.close();
+
+    cache = DiskLruCache.open(cacheDir, 1, 1, 100);
+    assertEquals(50, cache.size());
+    assertNull(cache.get("k0"));
+    assertNotNull(cache.get("k4"));
+  }
+
+  @Test public void filesAreDeletedByTheScheduler() throws Exception {
+    for (int i = 0; i < 9; i++) {
+      set("k" + i, 10);
+    }
+    cache.flush();
+    File evicted = new File(cacheDir, "k0.0");
+    assertTrue(evicted.exists());
+
+    scheduler.setBusy(false);
+    awaitDeleted(evicted);
+    assertFalse(new File(cacheDir, "k3.0").exists());
+    assertTrue(new File(cacheDir, "k4.0").exists());
+  }
+
+  @Test public void closeDeletesPendingFiles() throws Exception {
+    for (int i = 0; i < 9; i++) {
+      set("k" + i, 10);
+    }
+    cache.flush();
+    assertTrue(new File(cacheDir, "k0.0").exists());
+    cache.close();
+    assertFalse(new File(cacheDir, "k0.0").exists());
+    assertTrue(new File(cacheDir, "k4.0").exists());
+  }
+
+  @Test public void editOfAnEvictedKeyKeepsItsNewFiles() throws Exception {
+    for (int i = 0; i < 9; i++) {
+      set("k" + i, 10);
+    }
+    cache.flush();
+    assertTrue(new File(cacheDir, "k0.0").exists());
+
+    set("k0", 5);
+    scheduler.setBusy(false);
+    awaitDeleted(new File(cacheDir, "k1.0"));
+    DiskLruCache.Snapshot snapshot = cache.get("k0");
+    assertNotNull(snapshot);
+    assertEquals(5, snapshot.getLength(0));
+    assertEquals("xxxxx", snapshot.getString(0));
+    snapshot.close();
+  }
+
+  @Test public void entriesBeingEditedAreSkipped() throws Exception {
+    set("a", 40);
+    DiskLruCache.Editor editor = cache.edit("a");
+    set("b", 30);
+    set("c", 30);
+    cache.flush();
+    assertEquals(40, cache.size());
+    assertNull(cache.get("b"));
+    assertNull(cache.get("c"));
+    editor.abort();
+    assertNotNull(cache.get("a"));
+  }
+
+  @Test public void watermarksAreValidated() {
+    DiskLruCache.Options options = new DiskLruCache.Options();
+    try {
+      options.setEvictionWatermarks(0.9f, 0.95f);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      options.setEvictionWatermarks(1.1f, 0.9f);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      options.setEvictionWatermarks(0.5f, 0f);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    options.setEvictionWatermarks(1f, 1f);
+  }
+
+  private void set(String key, int length) throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    assertNotNull(editor);
+    StringBuilder value = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      value.append('x');
+    }
+    editor.set(0, value.toString());
+    editor.commit();
+  }
+
+  private String readJournal() throws Exception {
+    File journal = new File(cacheDir, DiskLruCache.JOURNAL_FILE);
+    return Util.readFully(new InputStreamReader(new FileInputStream(journal), Util.US_ASCII));
+  }
+
+  private static void awaitDeleted(File file) throws Exception {
+    long deadline = System.currentTimeMillis() + 10 * 1000;
+    while (file.exists()) {
+      assertFalse(file + " not deleted", System.currentTimeMillis() > deadline);
+      Thread.sleep(20);
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class BinaryJournalTest {
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private File cacheDir;
+  private File journalFile;
+
+  @Before public void setUp() throws Exception {
+    cacheDir = tempDir.newFolder("BinaryJournalTest");
+    journalFile = new File(cacheDir, DiskLruCache.JOURNAL_FILE);
+  }
+
+  @Test public void recordsRoundTrip() throws Exception {
+    DiskLruCache cache = open(DiskLruCache.JournalFormat.BINARY);
+    for (int i = 0; i < 100; i++) {
+      set(cache, "k" + i, "v" + i);
+    }
+    set(cache, "k5", "replaced");
+    assertTrue(cache.remove("k7"));
+    cache.get("k0").close();
+    long size = cache.size();
+    cache.close();
+    assertTrue(BinaryJournal.isBinary(journalFile));
+
+    cache = open(DiskLruCache.JournalFormat.BINARY);
+    assertEquals(size, cache.size());
+    assertValue(cache, "k5", "replaced");
+    assertNull(cache.get("k7"));
+    for (int i = 0; i < 100; i++) {
+      if (i != 5 && i != 7) {
+        assertValue(cache, "k" + i, "v" + i);
+      }
+    }
+    cache.close();
+  }
+
+  @Test public void recordsAppendedAfterReopenRoundTrip() throws Exception {
+    // The second session appends to the journal with the key ids of the first.
+    DiskLruCache cache = open(DiskLruCache.JournalFormat.BINARY);
+    set(cache, "a", "a1");
+    set(cache, "b", "b1");
+    cache.close();
+
+    cache = open(DiskLruCache.JournalFormat.BINARY);
+    set(cache, "a", "a2");
+    set(cache, "c", "c1");
+    assertTrue(cache.remove("b"));
+    cache.close();
+
+    cache = open(DiskLruCache.JournalFormat.BINARY);
+    assertValue(cache, "a", "a2");
+    assertNull(cache.get("b"));
+    assertValue(cache, "c", "c1");
+    assertEquals(4, cache.size());
+    cache.close();
+  }
+
+  @Test public void journalIsConvertedBetweenFormats() throws Exception {
+    DiskLruCache cache = open(DiskLruCache.JournalFormat.TEXT);
+    set(cache, "a", "a1");
+    set(cache, "b", "b1");
+    cache.close();
+    assertFalse(BinaryJournal.isBinary(journalFile));
+
+    cache = open(DiskLruCache.JournalFormat.BINARY);
+    assertTrue(BinaryJournal.isBinary(journalFile));
+    assertValue(cache, "a", "a1");
+    set(cache, "c", "c1");
+    cache.close();
+
+    cache = open(DiskLruCache.JournalFormat.TEXT);
+    assertFalse(BinaryJournal.isBinary(journalFile));
+    assertTrue(readJournal().startsWith(DiskLruCache.MAGIC + "\n"));
+    assertValue(cache, "a", "a1");
+    assertValue(cache, "b", "b1");
+    assertValue(cache, "c", "c1");
+    cache.close();
+  }
+
+  @Test public void expiryAndPackedLocationsRoundTrip() throws Exception {
+    long expiresAt = System.currentTimeMillis() + 1000;
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE, options()
+        .setPackThreshold(1024));
+    set(cache, "a", "packed");
+    DiskLruCache.Editor editor = cache.edit("b");
+    editor.set(0, "expires");
+    editor.setExpiresAt(expiresAt);
+    editor.commit();
+    cache.close();
+
+    cache = DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE, options().setPackThreshold(1024));
+    DiskLruCache.Snapshot snapshot = cache.get("a");
+    assertNotNull(snapshot);
+    assertTrue(snapshot.isPacked(0));
+    assertEquals("packed", snapshot.getString(0));
+    snapshot.close();
+    assertValue(cache, "b", "expires");
+    Thread.sleep(Math.max(0, expiresAt - System.currentTimeMillis() + 50));
+    assertNull(cache.get("b"));
+    cache.close();
+  }
+
+  private DiskLruCache open(DiskLruCache.JournalFormat format) throws Exception {
+    return DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE, options().setJournalFormat(format));
+  }
+
+  private static DiskLruCache.Options options() {
+    return new DiskLruCache.Options().setJournalFormat(DiskLruCache.JournalFormat.BINARY);
+  }
+
+  private String readJournal() throws Exception {
+    return Util.readFully(new InputStreamReader(new FileInputStream(journalFile), Util.US_ASCII));
+  }
+
+  private static void set(DiskLruCache cache, String key, String value) throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    assertNotNull(editor);
+    editor.set(0, value);
+    editor.commit();
+  }
+
+  private static void assertValue(DiskLruCache cache, String key, String value) throws Exception {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    assertNotNull(key, snapshot);
+    assertEquals(value, snapshot.getString(0));
+    snapshot.close();
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class CacheStatsTest {
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private File cacheDir;
+
+  @Before public void setUp() throws Exception {
+    cacheDir = tempDir.newFolder("CacheStatsTest");
+  }
+
+  @Test public void nothingIsRecordedByDefault() throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE);
+    set(cache, "a", "aaa");
+    cache.get("a").close();
+    cache.get("b");
+    CacheStats stats = cache.stats();
+    assertEquals(0, stats.requestCount());
+    assertEquals(0, stats.bytesWritten());
+    assertEquals(0, stats.latency(CacheStats.Operation.GET).count());
+    cache.close();
+  }
+
+  @Test public void hitsMissesAndBytes() throws Exception {
+    DiskLruCache cache = open(Long.MAX_VALUE);
+    set(cache, "a", "aaa");
+    set(cache, "b", "bbbbb");
+    cache.get("a").close();
+    cache.get("a").close();
+    assertNull(cache.get("c"));
+    cache.edit("d").abort();
+
+    CacheStats stats = cache.stats();
+    assertEquals(2, stats.hitCount());
+    assertEquals(1, stats.missCount());
+    assertEquals(3, stats.requestCount());
+    assertEquals(2.0 / 3, stats.hitRate(), 1e-9);
+    assertEquals(6, stats.bytesRead());
+    assertEquals(8, stats.bytesWritten());
+    assertEquals(1, stats.abortCount());
+    cache.close();
+  }
+
+  @Test public void evictionsAndExpirations() throws Exception {
+    DiskLruCache cache = open(10);
+    set(cache, "a", "aaaa");
+    set(cache, "b", "bbbb");
+    DiskLruCache.Editor editor = cache.edit("c");
+    editor.set(0, "cc");
+    editor.setExpiresAt(1);
+    editor.commit();
+    assertNull(cache.get("c"));
+    set(cache, "d", "dddd");
+    cache.flush();
+
+    CacheStats stats = cache.stats();
+    assertEquals(1, stats.expirationCount());
+    assertEquals(1, stats.evictionCount());
+    assertEquals(2 + 4, stats.evictedBytes());
+    cache.close();
+  }
+
+  @Test public void latenciesAreRecordedPerOperation() throws Exception {
+    DiskLruCache cache = open(Long.MAX_VALUE);
+    for (int i = 0; i < 10; i++) {
+      set(cache, "k" + i, "v");
+    }
+    for (int i = 0; i < 20; i++) {
+      DiskLruCache.Snapshot snapshot = cache.get("k" + (i % 10));
+      snapshot.close();
+    }
+    assertTrue(cache.remove("k0"));
+
+    CacheStats stats = cache.stats();
+    assertEquals(10, stats.latency(CacheStats.Operation.EDIT).count());
+    assertEquals(10, stats.latency(CacheStats.Operation.COMMIT).count());
+    assertEquals(20, stats.latency(CacheStats.Operation.GET).count());
+    assertEquals(1, stats.latency(CacheStats.Operation.REMOVE).count());
+    assertTrue(stats.latency(CacheStats.Operation.LOCK_WAIT).count() >= 41);
+    CacheStats.Latency get = stats.latency(CacheStats.Operation.GET);
+    assertTrue(get.totalNanos() > 0);
+    assertTrue(get.percentileNanos(50) <= get.percentileNanos(99));
+    assertTrue(get.percentileNanos(100) > 0);
+    cache.close();
+  }
+
+  @Test public void countsFromManyThreadsAddUp() throws Exception {
+    final DiskLruCache cache = open(Long.MAX_VALUE);
+    set(cache, "a", "aaa");
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 8; t++) {
+      Thread thread = new Thread() {
+        @Override public void run() {
+          try {
+            for (int i = 0; i < 500; i++) {
+              cache.get("a").close();
+              cache.get("b");
+            }
+          } catch (Exception e) {
+            throw new AssertionError(e);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    CacheStats stats = cache.stats();
+    assertEquals(4000, stats.hitCount());
+    assertEquals(4000, stats.missCount());
+    assertEquals(8000, stats.latency(CacheStats.Operation.GET).count());
+    cache.close();
+  }
+
+  @Test public void latencyBucketsBoundTheirValues() {
+    long[] samples = {0, 1, 63, 64, 65, 100, 1000, 12345, 1000000, 999999999, 1L << 39};
+    for (long nanos : samples) {
+      int bucket = CacheStats.Latency.bucket(nanos);
+      long upper = CacheStats.Latency.upperBound(bucket);
+      assertTrue(nanos + " < " + upper, nanos < upper);
+      if (bucket > 0) {
+        long lower = CacheStats.Latency.upperBound(bucket - 1);
+        assertTrue(nanos + " >= " + lower, nanos >= lower);
+        assertTrue(upper <= lower * 5 / 4 + 1); // Within 25%.
+      }
+    }
+    assertEquals(CacheStats.Latency.BUCKET_COUNT - 1, CacheStats.Latency.bucket(Long.MAX_VALUE));
+  }
+
+  @Test public void percentileIsValidated() throws Exception {
+    DiskLruCache cache = open(Long.MAX_VALUE);
+    CacheStats.Latency latency = cache.stats().latency(CacheStats.Operation.GET);
+    assertEquals(0, latency.percentileNanos(50));
+    try {
+      latency.percentileNanos(101);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    cache.close();
+  }
+
+  @Test public void shardStatsAreSummed() throws Exception {
+    ShardedDiskLruCache cache = ShardedDiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE, 4,
+        new DiskLruCache.Options().setRecordStats(true));
+    for (int i = 0; i < 20; i++) {
+      DiskLruCache.Editor editor = cache.edit("k" + i);
+      editor.set(0, "v");
+      editor.commit();
+    }
+    for (int i = 0; i < 30; i++) {
+      DiskLruCache.Snapshot snapshot = cache.get("k" + i);
+      if (snapshot != null) {
+        snapshot.close();
+      }
+    }
+    CacheStats stats = cache.stats();
+    assertEquals(20, stats.hitCount());
+    assertEquals(10, stats.missCount());
+    assertEquals(20, stats.bytesWritten());
+    assertEquals(30, stats.latency(CacheStats.Operation.GET).count());
+    cache.close();
+  }
+
+  @Test public void plusAddsEveryCounter() throws Exception {
+    DiskLruCache cache = open(Long.MAX_VALUE);
+    set(cache, "a", "aaa");
+    cache.get("a").close();
+    cache.get("b");
+    CacheStats stats = cache.stats();
+    CacheStats sum = stats.plus(stats);
+    assertEquals(2, sum.hitCount());
+    assertEquals(2, sum.missCount());
+    assertEquals(6, sum.bytesWritten());
+    assertEquals(6, sum.bytesRead());
+    assertEquals(4, sum.latency(CacheStats.Operation.GET).count());
+    assertEquals(2 * stats.latency(CacheStats.Operation.GET).totalNanos(),
+        sum.latency(CacheStats.Operation.GET).totalNanos());
+    cache.close();
+  }
+
+  private DiskLruCache open(long maxSize) throws Exception {
+    return DiskLruCache.open(cacheDir, 1, 1, maxSize, new DiskLruCache.Options()
+        .setRecordStats(true)
+        .setEvictionWatermarks(1f, 1f)
+        .setExpirySweepIntervalMillis(0));
+  }
+
+  private static void set(DiskLruCache cache, String key, String value) throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    assertNotNull(editor);
+    editor.set(0, value);
+    editor.commit();
+  }
+}
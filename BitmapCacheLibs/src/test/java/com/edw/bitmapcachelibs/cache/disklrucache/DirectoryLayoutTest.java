@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class DirectoryLayoutTest {
+  private static final int ENTRY_COUNT = 40;
+
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private File cacheDir;
+
+  @Before public void setUp() throws Exception {
+    cacheDir = tempDir.newFolder("DirectoryLayoutTest");
+  }
+
+  @Test public void valueFilesAreStoredInBucketSubdirectories() throws Exception {
+    DiskLruCache cache = open(2);
+    populate(cache);
+    cache.close();
+
+    List<File> valueFiles = valueFiles(cacheDir);
+    assertEquals(ENTRY_COUNT, valueFiles.size());
+    for (File file : valueFiles) {
+      File bucket = file.getParentFile();
+      assertEquals(1, bucket.getName().length());
+      assertEquals(1, bucket.getParentFile().getName().length());
+      assertEquals(cacheDir, bucket.getParentFile().getParentFile());
+    }
+    assertTrue(new File(cacheDir, DiskLruCache.JOURNAL_FILE).isFile());
+    assertEquals("2", readLayout());
+
+    cache = open(2);
+    assertValues(cache);
+    assertEquals(0, cache.stats().migratedFileCount());
+    cache.close();
+  }
+
+  @Test public void flatCacheIsMigratedOnOpen() throws Exception {
+    DiskLruCache cache = open(0);
+    populate(cache);
+    cache.close();
+    assertFalse(new File(cacheDir, DiskLruCache.LAYOUT_FILE).exists());
+
+    cache = open(2);
+    assertEquals(ENTRY_COUNT, cache.stats().migratedFileCount());
+    assertValues(cache);
+    cache.close();
+    for (File file : valueFiles(cacheDir)) {
+      assertFalse(file.getPath(), file.getParentFile().equals(cacheDir));
+    }
+    assertEquals("2", readLayout());
+  }
+
+  @Test public void nestedCacheIsMigratedBackToFlat() throws Exception {
+    DiskLruCache cache = open(2);
+    populate(cache);
+    cache.close();
+
+    cache = open(0);
+    assertEquals(ENTRY_COUNT, cache.stats().migratedFileCount());
+    assertValues(cache);
+    cache.close();
+    for (File file : valueFiles(cacheDir)) {
+      assertEquals(cacheDir, file.getParentFile());
+    }
+    for (File file : cacheDir.listFiles()) {
+      assertFalse("Empty bucket left: " + file, file.isDirectory());
+    }
+  }
+
+  @Test public void unfinishedTempFilesAreDroppedByTheMove() throws Exception {
+    DiskLruCache cache = open(0);
+    populate(cache);
+    cache.close();
+    File dirty = new File(cacheDir, "k0.0" + DiskLruCache.DIRTY_SUFFIX);
+    FileOutputStream out = new FileOutputStream(dirty);
+    out.write('x');
+    out.close();
+
+    cache = open(1);
+    assertFalse(dirty.exists());
+    assertEquals(ENTRY_COUNT, cache.stats().migratedFileCount());
+    assertValues(cache);
+    cache.close();
+  }
+
+  @Test public void directoryLevelsAreValidated() {
+    DiskLruCache.Options options = new DiskLruCache.Options();
+    try {
+      options.setDirectoryLevels(-1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      options.setDirectoryLevels(DiskLruCache.MAX_DIRECTORY_LEVELS + 1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    options.setDirectoryLevels(DiskLruCache.MAX_DIRECTORY_LEVELS);
+  }
+
+  private DiskLruCache open(int directoryLevels) throws Exception {
+    return DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE, new DiskLruCache.Options()
+        .setDirectoryLevels(directoryLevels)
+        .setRecordStats(true));
+  }
+
+  private static void populate(DiskLruCache cache) throws Exception {
+    for (int i = 0; i < ENTRY_COUNT; i++) {
+      DiskLruCache.Editor editor = cache.edit("k" + i);
+      editor.set(0, "v" + i);
+      editor.commit();
+    }
+  }
+
+  private static void assertValues(DiskLruCache cache) throws Exception {
+    for (int i = 0; i < ENTRY_COUNT; i++) {
+      DiskLruCache.Snapshot snapshot = cache.get("k" + i);
+      assertNotNull("k" + i, snapshot);
+      assertEquals("v" + i, snapshot.getString(0));
+      snapshot.close();
+    }
+  }
+
+  /** Returns the value files in {@code dir} and its subdirectories. */
+  private static List<File> valueFiles(File dir) {
+    List<File> result = new ArrayList<File>();
+    for (File file : dir.listFiles()) {
+      if (file.isDirectory()) {
+        result.addAll(valueFiles(file));
+      } else if (file.getName().endsWith(".0")) {
+        result.add(file);
+      }
+    }
+    return result;
+  }
+
+  private String readLayout() throws Exception {
+    File layout = new File(cacheDir, DiskLruCache.LAYOUT_FILE);
+    return Util.readFully(new InputStreamReader(new FileInputStream(layout), Util.US_ASCII)).trim();
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Opens a copy of the cache directory taken while the cache is still open,
+ * which sees what a crash at that point would leave behind.
+ */
+public final class DurabilityTest {
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private File cacheDir;
+
+  @Before public void setUp() throws Exception {
+    cacheDir = tempDir.newFolder("DurabilityTest");
+  }
+
+  @Test public void commitReturnsAfterItsRecordIsInTheJournal() throws Exception {
+    DiskLruCache cache = open(DiskLruCache.Durability.COMMIT);
+    set(cache, "a", "a1");
+    set(cache, "b", "b1");
+
+    DiskLruCache copy = openCopy();
+    assertValue(copy, "a", "a1");
+    assertValue(copy, "b", "b1");
+    copy.close();
+    cache.close();
+  }
+
+  @Test public void removeReturnsAfterItsRecordIsInTheJournal() throws Exception {
+    DiskLruCache cache = open(DiskLruCache.Durability.COMMIT);
+    set(cache, "a", "a1");
+    set(cache, "b", "b1");
+    cache.remove("a");
+
+    DiskLruCache copy = openCopy();
+    assertNull(copy.get("a"));
+    assertValue(copy, "b", "b1");
+    copy.close();
+    cache.close();
+  }
+
+  @Test public void concurrentCommitsAreAllDurable() throws Exception {
+    final DiskLruCache cache = open(DiskLruCache.Durability.COMMIT);
+    final int threadCount = 8;
+    final int commitsPerThread = 25;
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < threadCount; t++) {
+      final int id = t;
+      Thread thread = new Thread() {
+        @Override public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < commitsPerThread; i++) {
+              set(cache, "k" + id + "_" + i, "v" + i);
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+
+    DiskLruCache copy = openCopy();
+    for (int t = 0; t < threadCount; t++) {
+      for (int i = 0; i < commitsPerThread; i++) {
+        assertValue(copy, "k" + t + "_" + i, "v" + i);
+      }
+    }
+    assertEquals(cache.size(), copy.size());
+    copy.close();
+    cache.close();
+  }
+
+  @Test public void flushWritesBufferedRecords() throws Exception {
+    DiskLruCache cache = open(DiskLruCache.Durability.NONE);
+    set(cache, "a", "a1");
+    set(cache, "b", "b1");
+    cache.flush();
+
+    DiskLruCache copy = openCopy();
+    assertValue(copy, "a", "a1");
+    assertValue(copy, "b", "b1");
+    copy.close();
+    cache.close();
+  }
+
+  private DiskLruCache open(DiskLruCache.Durability durability) throws Exception {
+    return DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE,
+        new DiskLruCache.Options().setDurability(durability));
+  }
+
+  /** Copies the files of the open cache and opens the copy. */
+  private DiskLruCache openCopy() throws Exception {
+    File copyDir = tempDir.newFolder();
+    for (File file : cacheDir.listFiles()) {
+      if (file.isFile()) {
+        copy(file, new File(copyDir, file.getName()));
+      }
+    }
+    return DiskLruCache.open(copyDir, 1, 1, Long.MAX_VALUE);
+  }
+
+  private static void copy(File from, File to) throws Exception {
+    InputStream in = new FileInputStream(from);
+    OutputStream out = new FileOutputStream(to);
+    try {
+      byte[] buffer = new byte[8192];
+      for (int count; (count = in.read(buffer)) != -1; ) {
+        out.write(buffer, 0, count);
+      }
+    } finally {
+      out.close();
+      in.close();
+    }
+  }
+
+  private static void set(DiskLruCache cache, String key, String value) throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    assertNotNull(editor);
+    editor.set(0, value);
+    editor.commit();
+  }
+
+  private static void assertValue(DiskLruCache cache, String key, String value) throws Exception {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    assertNotNull(key, snapshot);
+    assertEquals(value, snapshot.getString(0));
+    snapshot.close();
+  }
+}
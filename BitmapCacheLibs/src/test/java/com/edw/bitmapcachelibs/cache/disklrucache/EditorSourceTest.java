@@ -0,0 +1,231 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Values handed to an editor as buffers, channels and files. */
+public final class EditorSourceTest {
+  private static final int PACK_THRESHOLD = 1024;
+
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private File cacheDir;
+  private DiskLruCache cache;
+
+  @Before public void setUp() throws Exception {
+    cacheDir = tempDir.newFolder("EditorSourceTest");
+    cache = DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE,
+        new DiskLruCache.Options().setPackThreshold(PACK_THRESHOLD));
+  }
+
+  @After public void tearDown() throws Exception {
+    cache.close();
+  }
+
+  @Test public void setWritesTheRemainingBytesOfHeapAndDirectBuffers() throws Exception {
+    byte[] bytes = bytes(10000);
+    ByteBuffer heap = ByteBuffer.wrap(bytes);
+    heap.position(100);
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes).flip();
+
+    DiskLruCache.Editor editor = cache.edit("heap");
+    editor.set(0, heap);
+    editor.commit();
+    editor = cache.edit("direct");
+    editor.set(0, direct);
+    editor.commit();
+
+    assertFalse(heap.hasRemaining());
+    assertFalse(direct.hasRemaining());
+    assertValue("heap", Arrays.copyOfRange(bytes, 100, bytes.length), false);
+    assertValue("direct", bytes, false);
+  }
+
+  @Test public void smallBuffersArePacked() throws Exception {
+    byte[] bytes = bytes(PACK_THRESHOLD);
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes).flip();
+    DiskLruCache.Editor editor = cache.edit("a");
+    editor.set(0, direct);
+    editor.commit();
+    assertValue("a", bytes, true);
+  }
+
+  @Test public void transferFromFileChannel() throws Exception {
+    byte[] bytes = bytes(100000);
+    File source = writeFile(bytes);
+    FileInputStream in = new FileInputStream(source);
+    DiskLruCache.Editor editor = cache.edit("a");
+    assertEquals(bytes.length, editor.transferFrom(0, in.getChannel()));
+    in.close();
+    editor.commit();
+    assertValue("a", bytes, false);
+  }
+
+  @Test public void transferFromStreamChannel() throws Exception {
+    byte[] large = bytes(100000);
+    byte[] small = bytes(PACK_THRESHOLD);
+    byte[] justTooLarge = bytes(PACK_THRESHOLD + 1);
+    transfer("large", large);
+    transfer("small", small);
+    transfer("just_too_large", justTooLarge);
+    assertValue("large", large, false);
+    assertValue("small", small, true);
+    assertValue("just_too_large", justTooLarge, false);
+  }
+
+  @Test public void failedTransferAbortsTheEditOnCommit() throws Exception {
+    setString("a", "previous");
+    ReadableByteChannel failing = Channels.newChannel(new InputStream() {
+      private int remaining = 5000;
+
+      @Override public int read() throws IOException {
+        if (remaining == 0) {
+          throw new IOException("boom");
+        }
+        remaining--;
+        return 'x';
+      }
+    });
+    DiskLruCache.Editor editor = cache.edit("a");
+    try {
+      editor.transferFrom(0, failing);
+      fail();
+    } catch (IOException expected) {
+    }
+    editor.commit();
+    assertNull(cache.get("a"));
+    assertNotNull(cache.edit("a")); // The edit was released.
+  }
+
+  @Test public void copyFromKeepsTheSource() throws Exception {
+    byte[] bytes = bytes(5000);
+    File source = writeFile(bytes);
+    DiskLruCache.Editor editor = cache.edit("a");
+    editor.copyFrom(0, source);
+    editor.commit();
+    assertValue("a", bytes, false);
+    assertTrue(source.exists());
+  }
+
+  @Test public void copyFromMissingFileAbortsTheEditOnCommit() throws Exception {
+    DiskLruCache.Editor editor = cache.edit("a");
+    try {
+      editor.copyFrom(0, new File(tempDir.getRoot(), "missing"));
+      fail();
+    } catch (FileNotFoundException expected) {
+    }
+    editor.commit();
+    assertNull(cache.get("a"));
+  }
+
+  @Test public void moveFromRenamesLargeFilesAndCopiesSmallOnes() throws Exception {
+    byte[] large = bytes(5000);
+    byte[] small = bytes(100);
+    File largeSource = writeFile(large);
+    File smallSource = writeFile(small);
+
+    DiskLruCache.Editor editor = cache.edit("large");
+    editor.moveFrom(0, largeSource);
+    editor.commit();
+    editor = cache.edit("small");
+    editor.moveFrom(0, smallSource);
+    editor.commit();
+
+    assertFalse(largeSource.exists());
+    assertFalse(smallSource.exists());
+    assertValue("large", large, false);
+    assertValue("small", small, true);
+  }
+
+  @Test public void valuesSurviveReopen() throws Exception {
+    byte[] bytes = bytes(5000);
+    DiskLruCache.Editor editor = cache.edit("a");
+    editor.set(0, ByteBuffer.wrap(bytes));
+    editor.commit();
+    cache.close();
+
+    cache = DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE,
+        new DiskLruCache.Options().setPackThreshold(PACK_THRESHOLD));
+    assertValue("a", bytes, false);
+  }
+
+  private void transfer(String key, byte[] bytes) throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    ReadableByteChannel source = Channels.newChannel(new ByteArrayInputStream(bytes));
+    assertEquals(bytes.length, editor.transferFrom(0, source));
+    editor.commit();
+  }
+
+  private void setString(String key, String value) throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    editor.set(0, value);
+    editor.commit();
+  }
+
+  private void assertValue(String key, byte[] expected, boolean packed) throws Exception {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    assertNotNull(key, snapshot);
+    assertEquals(packed, snapshot.isPacked(0));
+    assertEquals(expected.length, snapshot.getLength(0));
+    byte[] actual = new byte[expected.length];
+    InputStream in = snapshot.getInputStream(0);
+    new DataInputStream(in).readFully(actual);
+    assertEquals(-1, in.read());
+    snapshot.close();
+    assertArrayEquals(expected, actual);
+  }
+
+  private File writeFile(byte[] bytes) throws Exception {
+    File file = tempDir.newFile();
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(bytes);
+    out.close();
+    return file;
+  }
+
+  private static byte[] bytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+}
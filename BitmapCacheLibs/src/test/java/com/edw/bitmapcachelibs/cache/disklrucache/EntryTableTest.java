@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class EntryTableTest {
+  @Test public void hashedKeysAreFoundByTheirHash() {
+    EntryTable<EntryTable.Node> table = new EntryTable<EntryTable.Node>(true);
+    List<EntryTable.Node> nodes = new ArrayList<EntryTable.Node>();
+    for (int i = 0; i < 1000; i++) {
+      EntryTable.Node node = new EntryTable.Node(Murmur3.hash128Hex("key" + i), true);
+      nodes.add(node);
+      assertNull(table.put(node));
+    }
+    for (int i = 0; i < 1000; i++) {
+      long[] hash = Murmur3.hash128("key" + i);
+      assertSame(nodes.get(i), table.peek(hash[0], hash[1]));
+      assertSame(nodes.get(i), table.peek(Murmur3.hash128Hex("key" + i)));
+    }
+    long[] absent = Murmur3.hash128("absent");
+    assertNull(table.peek(absent[0], absent[1]));
+  }
+
+  @Test public void hexRoundTrips() {
+    for (int i = 0; i < 100; i++) {
+      long[] hash = Murmur3.hash128("key" + i);
+      String hex = Murmur3.hash128Hex("key" + i);
+      assertTrue(Murmur3.isHex(hex));
+      assertEquals(hash[0], Murmur3.fromHex(hex, 0));
+      assertEquals(hash[1], Murmur3.fromHex(hex, 16));
+      assertEquals(hex, Murmur3.toHex(hash[0], hash[1]));
+    }
+    assertFalse(Murmur3.isHex("key"));
+    assertFalse(Murmur3.isHex("0123456789ABCDEF0123456789abcdef"));
+  }
+
+  @Test public void keysStoredBeforeHashingStayReachable() {
+    EntryTable<EntryTable.Node> table = new EntryTable<EntryTable.Node>(true);
+    EntryTable.Node plain = new EntryTable.Node("plain_key", true);
+    EntryTable.Node hashed = new EntryTable.Node(Murmur3.hash128Hex("plain_key"), true);
+    table.put(plain);
+    table.put(hashed);
+    assertEquals(2, table.size());
+    assertSame(plain, table.peek("plain_key"));
+    assertSame(hashed, table.peek(Murmur3.hash128Hex("plain_key")));
+    assertSame(plain, table.remove("plain_key"));
+    assertSame(hashed, table.peek(Murmur3.hash128Hex("plain_key")));
+  }
+
+  @Test public void putReplacesAndGetReorders() {
+    for (boolean hashed : new boolean[] {false, true}) {
+      EntryTable<EntryTable.Node> table = new EntryTable<EntryTable.Node>(hashed);
+      EntryTable.Node a = node("a", hashed);
+      EntryTable.Node b = node("b", hashed);
+      table.put(a);
+      table.put(b);
+      EntryTable.Node a2 = node("a", hashed);
+      assertSame(a, table.put(a2));
+      assertEquals(2, table.size());
+      assertEquals(list(b, a2), table.toList());
+      assertSame(b, table.get(b.key));
+      assertEquals(list(a2, b), table.toList());
+    }
+  }
+
+  @Test public void removeKeepsProbeRunsIntact() {
+    for (boolean hashed : new boolean[] {false, true}) {
+      EntryTable<EntryTable.Node> table = new EntryTable<EntryTable.Node>(hashed);
+      List<EntryTable.Node> nodes = new ArrayList<EntryTable.Node>();
+      for (int i = 0; i < 500; i++) {
+        nodes.add(node("k" + i, hashed));
+        table.put(nodes.get(i));
+      }
+      for (int i = 0; i < 500; i += 2) {
+        assertTrue(table.remove(nodes.get(i)));
+        assertFalse(table.remove(nodes.get(i)));
+      }
+      for (Iterator<EntryTable.Node> i = table.iterator(); i.hasNext(); ) {
+        if (i.next().key.endsWith("1")) {
+          i.remove();
+        }
+      }
+      for (int i = 0; i < 500; i++) {
+        boolean present = i % 2 == 1 && !nodes.get(i).key.endsWith("1");
+        assertEquals(present ? nodes.get(i) : null, table.peek(nodes.get(i).key));
+      }
+    }
+  }
+
+  private static EntryTable.Node node(String key, boolean hashed) {
+    return new EntryTable.Node(hashed ? Murmur3.hash128Hex(key) : key, hashed);
+  }
+
+  private static List<EntryTable.Node> list(EntryTable.Node... nodes) {
+    List<EntryTable.Node> result = new ArrayList<EntryTable.Node>();
+    for (EntryTable.Node node : nodes) {
+      result.add(node);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class EvictionPolicyTest {
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private File cacheDir;
+  private DivergingPolicy policy;
+  private DiskLruCache cache;
+
+  @Before public void setUp() throws Exception {
+    cacheDir = tempDir.newFolder("EvictionPolicyTest");
+    cache = DiskLruCache.open(cacheDir, 1, 1, 100, new DiskLruCache.Options()
+        .setEvictionWatermarks(1f, 1f)
+        .setEvictionPolicy(new EvictionPolicy.Factory() {
+          @Override public EvictionPolicy create() {
+            policy = new DivergingPolicy(GdsfPolicy.FACTORY.create());
+            return policy;
+          }
+        }));
+  }
+
+  @After public void tearDown() throws Exception {
+    cache.close();
+  }
+
+  @Test public void trimSkipsVictimsTheCacheDoesNotHold() throws Exception {
+    set("a", 40);
+    set("b", 40);
+    policy.ghosts.add("ghost");
+    set("c", 40);
+    cache.flush();
+    assertTrue(cache.size() <= 100);
+    assertEquals(2, readableCount("a", "b", "c"));
+    assertNotNull(cache.get("c"));
+    assertTrue(policy.forgotten.contains("ghost"));
+    assertTrue(policy.ghosts.isEmpty());
+  }
+
+  @Test public void eldestSkipsVictimsTheCacheDoesNotHold() throws Exception {
+    set("a", 10);
+    policy.ghosts.add("ghost");
+    String eldest = cache.eldestEntryKey();
+    assertEquals(cache.entryKey("a"), eldest);
+    assertTrue(cache.evictEldest());
+    assertNull(cache.get("a"));
+    assertFalse(cache.evictEldest());
+    assertTrue(policy.ghosts.isEmpty());
+  }
+
+  @Test public void editedEntriesAreNotEvicted() throws Exception {
+    set("a", 60);
+    DiskLruCache.Editor editor = cache.edit("a");
+    policy.ghosts.add("ghost");
+    set("b", 60);
+    cache.flush();
+    assertNull(cache.get("b"));
+    editor.abort();
+    assertNotNull(cache.get("a"));
+  }
+
+  private void set(String key, int length) throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    StringBuilder value = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      value.append('x');
+    }
+    editor.set(0, value.toString());
+    editor.commit();
+  }
+
+  private int readableCount(String... keys) throws Exception {
+    int count = 0;
+    for (String key : keys) {
+      DiskLruCache.Snapshot snapshot = cache.get(key);
+      if (snapshot != null) {
+        snapshot.close();
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * A policy that has fallen out of step with the cache: it reports keys the
+   * cache never added ahead of the real victims, until told to forget them.
+   */
+  private static final class DivergingPolicy implements EvictionPolicy {
+    final EvictionPolicy delegate;
+    final List<String> ghosts = new ArrayList<String>();
+    final List<String> forgotten = new ArrayList<String>();
+
+    DivergingPolicy(EvictionPolicy delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public void setMaxSize(long maxSize) {
+      delegate.setMaxSize(maxSize);
+    }
+
+    @Override public void onAdd(String key, long size, int frequency) {
+      delegate.onAdd(key, size, frequency);
+    }
+
+    @Override public void onAccess(String key) {
+      delegate.onAccess(key);
+    }
+
+    @Override public void onUpdate(String key, long size) {
+      delegate.onUpdate(key, size);
+    }
+
+    @Override public void onRemove(String key) {
+      if (ghosts.remove(key)) {
+        forgotten.add(key);
+      } else {
+        delegate.onRemove(key);
+      }
+    }
+
+    @Override public void onEvict(String key) {
+      delegate.onEvict(key);
+    }
+
+    @Override public Iterator<String> victims() {
+      final Iterator<String> ghostKeys = new ArrayList<String>(ghosts).iterator();
+      final Iterator<String> keys = delegate.victims();
+      return new Iterator<String>() {
+        @Override public boolean hasNext() {
+          return ghostKeys.hasNext() || keys.hasNext();
+        }
+
+        @Override public String next() {
+          return ghostKeys.hasNext() ? ghostKeys.next() : keys.next();
+        }
+
+        @Override public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class ExpiryTest {
+  /** Long enough to write and read an entry before it expires. */
+  private static final long TTL_MILLIS = 300;
+
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private File cacheDir;
+
+  @Before public void setUp() throws Exception {
+    cacheDir = tempDir.newFolder("ExpiryTest");
+  }
+
+  @Test public void expiredEntryIsEvictedWhenRead() throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE,
+        new DiskLruCache.Options().setExpirySweepIntervalMillis(0));
+    set(cache, "a", "aaa", 1);
+    set(cache, "b", "bbb", 0);
+    assertEquals(6, cache.size());
+
+    assertNull(cache.get("a"));
+    assertEquals(3, cache.size());
+    assertValue(cache, "b", "bbb");
+    cache.close();
+  }
+
+  @Test public void entryIsReturnedUntilItExpires() throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE);
+    DiskLruCache.Editor editor = cache.edit("a");
+    editor.set(0, "a1");
+    editor.setTimeToLive(TTL_MILLIS, TimeUnit.MILLISECONDS);
+    editor.commit();
+    assertValue(cache, "a", "a1");
+
+    Thread.sleep(TTL_MILLIS + 50);
+    assertNull(cache.get("a"));
+    cache.close();
+  }
+
+  @Test public void laterEditKeepsTheExpiryUnlessItChangesIt() throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE);
+    long expiresAt = System.currentTimeMillis() + TTL_MILLIS;
+    set(cache, "kept", "v1", expiresAt);
+    set(cache, "cleared", "v1", expiresAt);
+    set(cache, "kept", "v2", -1);
+    set(cache, "cleared", "v2", 0);
+
+    Thread.sleep(TTL_MILLIS + 50);
+    assertNull(cache.get("kept"));
+    assertValue(cache, "cleared", "v2");
+    cache.close();
+  }
+
+  @Test public void editOfAnExpiredEntryStartsAFreshEntry() throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 2, Long.MAX_VALUE);
+    DiskLruCache.Editor editor = cache.edit("a");
+    editor.set(0, "a0");
+    editor.set(1, "a1");
+    editor.setExpiresAt(1);
+    editor.commit();
+
+    // The stale value 1 is not carried over, so it must be written again.
+    editor = cache.edit("a");
+    assertNotNull(editor);
+    assertNull(editor.getString(0));
+    editor.set(0, "b0");
+    try {
+      editor.commit();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    assertNull(cache.get("a"));
+    cache.close();
+  }
+
+  @Test public void expiryIsPersistedInTheTextJournal() throws Exception {
+    expiryIsPersisted(new DiskLruCache.Options());
+    File journal = new File(cacheDir, DiskLruCache.JOURNAL_FILE);
+    String contents = Util.readFully(
+        new InputStreamReader(new FileInputStream(journal), Util.US_ASCII));
+    assertTrue(contents, contents.contains(" " + DiskLruCache.EXPIRES));
+  }
+
+  @Test public void expiryIsPersistedInTheIndex() throws Exception {
+    expiryIsPersisted(new DiskLruCache.Options().setIndexCheckpointBytes(1));
+    assertTrue(new File(cacheDir, JournalIndex.INDEX_FILE).exists());
+  }
+
+  private void expiryIsPersisted(DiskLruCache.Options options) throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE, options);
+    set(cache, "a", "a1", System.currentTimeMillis() + TTL_MILLIS);
+    set(cache, "b", "b1", 0);
+    cache.close();
+
+    cache = DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE, options);
+    assertValue(cache, "a", "a1");
+    Thread.sleep(TTL_MILLIS + 50);
+    assertNull(cache.get("a"));
+    assertValue(cache, "b", "b1");
+    cache.close();
+  }
+
+  @Test public void sweepRemovesExpiredEntriesThatAreNotRead() throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE,
+        new DiskLruCache.Options().setExpirySweepIntervalMillis(1));
+    long expiresAt = System.currentTimeMillis() + TTL_MILLIS;
+    for (int i = 0; i < 10; i++) {
+      set(cache, "k" + i, "v", expiresAt);
+    }
+    set(cache, "kept", "v", 0);
+    Thread.sleep(TTL_MILLIS + 50);
+
+    set(cache, "trigger", "v", 0); // Schedules the sweep.
+    long deadline = System.currentTimeMillis() + 10 * 1000;
+    while (cache.size() != 2) {
+      assertFalse("No sweep", System.currentTimeMillis() > deadline);
+      Thread.sleep(20);
+    }
+    assertValue(cache, "kept", "v");
+    cache.close();
+  }
+
+  @Test public void expiredEntriesAreEvictedBeforeOthers() throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, 10, new DiskLruCache.Options()
+        .setEvictionWatermarks(1f, 1f)
+        .setExpirySweepIntervalMillis(0));
+    set(cache, "old", "aaaa", 0);
+    set(cache, "young", "bbbb", System.currentTimeMillis() + TTL_MILLIS);
+    Thread.sleep(TTL_MILLIS + 50);
+
+    set(cache, "new", "cccc", 0);
+    cache.flush();
+    assertEquals(8, cache.size());
+    assertValue(cache, "old", "aaaa");
+    assertValue(cache, "new", "cccc");
+    cache.close();
+  }
+
+  @Test public void timeToLiveMustBePositive() throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE);
+    DiskLruCache.Editor editor = cache.edit("a");
+    try {
+      editor.setTimeToLive(0, TimeUnit.SECONDS);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      editor.setExpiresAt(-1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    editor.abort();
+    cache.close();
+  }
+
+  /** Sets the value of {@code key}, and its expiry unless {@code expiresAt} is negative. */
+  private static void set(DiskLruCache cache, String key, String value, long expiresAt)
+      throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    assertNotNull(editor);
+    editor.set(0, value);
+    if (expiresAt >= 0) {
+      editor.setExpiresAt(expiresAt);
+    }
+    editor.commit();
+  }
+
+  private static void assertValue(DiskLruCache cache, String key, String value) throws Exception {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    assertNotNull(key, snapshot);
+    assertEquals(value, snapshot.getString(0));
+    snapshot.close();
+  }
+}
@@ -0,0 +1,273 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(Parameterized.class)
+public final class JournalIndexTest {
+  @Parameterized.Parameters(name = "{0}")
+  public static Collection<Object[]> formats() {
+    return Arrays.asList(new Object[][] {
+        {DiskLruCache.JournalFormat.TEXT},
+        {DiskLruCache.JournalFormat.BINARY},
+    });
+  }
+
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private final DiskLruCache.JournalFormat format;
+  private final Map<String, String> expected = new LinkedHashMap<String, String>();
+  private File cacheDir;
+  private File indexFile;
+  private File journalFile;
+
+  public JournalIndexTest(DiskLruCache.JournalFormat format) {
+    this.format = format;
+  }
+
+  @Before public void setUp() throws Exception {
+    cacheDir = tempDir.newFolder("JournalIndexTest");
+    indexFile = new File(cacheDir, JournalIndex.INDEX_FILE);
+    journalFile = new File(cacheDir, DiskLruCache.JOURNAL_FILE);
+  }
+
+  @Test public void closeLeavesCheckpointOfWholeJournal() throws Exception {
+    DiskLruCache cache = open(cacheDir);
+    for (int i = 0; i < 20; i++) {
+      set(cache, "k" + i, "v" + i);
+    }
+    cache.close();
+
+    JournalIndex.Reader index = readIndex(cacheDir);
+    assertNotNull(index);
+    assertEquals(journalFile.length(), index.journalOffset);
+    assertEquals(20, index.entryCount);
+
+    cache = open(cacheDir);
+    assertValues(cache);
+    cache.close();
+  }
+
+  @Test public void checkpointIsWrittenWhileOpen() throws Exception {
+    DiskLruCache cache = open(cacheDir);
+    for (int i = 0; i < 600; i++) {
+      set(cache, "k" + i, "v" + i);
+    }
+    awaitIndex();
+    cache.flush();
+    File crashed = copyOf(cacheDir);
+    cache.close();
+
+    JournalIndex.Reader index = readIndex(crashed);
+    assertNotNull(index);
+    assertTrue(index.journalOffset > 0);
+
+    cache = open(crashed);
+    assertValues(cache);
+    cache.close();
+  }
+
+  @Test public void crashReplaysTailAfterCheckpoint() throws Exception {
+    DiskLruCache cache = open(cacheDir);
+    for (int i = 0; i < 100; i++) {
+      set(cache, "k" + i, "v" + i);
+    }
+    cache.close();
+    cache = open(cacheDir);
+
+    // Records after the checkpoint: replaced, removed and unfinished entries.
+    set(cache, "k0", "replaced");
+    assertTrue(cache.remove("k1"));
+    expected.remove("k1");
+    set(cache, "new", "value");
+    DiskLruCache.Editor unfinished = cache.edit("k2");
+    unfinished.set(0, "lost");
+    expected.remove("k2");
+    cache.flush();
+
+    // The process dies: the directory is left as it is on disk.
+    File crashed = copyOf(cacheDir);
+    unfinished.abort();
+    cache.close();
+
+    JournalIndex.Reader index = readIndex(crashed);
+    assertNotNull(index);
+    assertEquals(100, index.entryCount);
+    assertTrue(index.journalOffset < new File(crashed, DiskLruCache.JOURNAL_FILE).length());
+
+    cache = open(crashed);
+    assertValues(cache);
+    assertNull(cache.get("k1"));
+    assertNull(cache.get("k2"));
+    set(cache, "k2", "again");
+    cache.close();
+    cache = open(crashed);
+    assertValues(cache);
+    cache.close();
+  }
+
+  @Test public void corruptIndexFallsBackToFullReplay() throws Exception {
+    DiskLruCache cache = open(cacheDir);
+    for (int i = 0; i < 20; i++) {
+      set(cache, "k" + i, "v" + i);
+    }
+    cache.close();
+
+    RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+    long middle = file.length() / 2;
+    file.seek(middle);
+    int b = file.read();
+    file.seek(middle);
+    file.write(b ^ 0x55);
+    file.close();
+    assertNull(readIndex(cacheDir));
+
+    cache = open(cacheDir);
+    assertValues(cache);
+    cache.close();
+  }
+
+  @Test public void truncatedIndexFallsBackToFullReplay() throws Exception {
+    DiskLruCache cache = open(cacheDir);
+    for (int i = 0; i < 20; i++) {
+      set(cache, "k" + i, "v" + i);
+    }
+    cache.close();
+
+    RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+    file.setLength(file.length() / 2);
+    file.close();
+    assertNull(readIndex(cacheDir));
+
+    cache = open(cacheDir);
+    assertValues(cache);
+    cache.close();
+  }
+
+  @Test public void staleIndexIsIgnored() throws Exception {
+    DiskLruCache cache = open(cacheDir);
+    for (int i = 0; i < 20; i++) {
+      set(cache, "k" + i, "v" + i);
+    }
+    cache.close();
+    File stale = copyOf(cacheDir);
+
+    // The journal is rebuilt, but an index of the old journal is left behind.
+    cache = open(cacheDir);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(cache.remove("k" + i));
+      expected.remove("k" + i);
+    }
+    set(cache, "k10", "replaced");
+    cache.rebuildJournal();
+    cache.close();
+    copy(new File(stale, JournalIndex.INDEX_FILE), indexFile);
+    assertNull(readIndex(cacheDir));
+
+    cache = open(cacheDir);
+    assertValues(cache);
+    for (int i = 0; i < 10; i++) {
+      assertNull(cache.get("k" + i));
+    }
+    cache.close();
+  }
+
+  private DiskLruCache open(File directory) throws Exception {
+    return DiskLruCache.open(directory, 1, 2, Integer.MAX_VALUE, new DiskLruCache.Options()
+        .setJournalFormat(format)
+        .setIndexCheckpointBytes(4096));
+  }
+
+  private JournalIndex.Reader readIndex(File directory) throws Exception {
+    return JournalIndex.Reader.open(new File(directory, JournalIndex.INDEX_FILE),
+        new File(directory, DiskLruCache.JOURNAL_FILE), 1, 2);
+  }
+
+  private void set(DiskLruCache cache, String key, String value) throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    assertNotNull(editor);
+    editor.set(0, value);
+    editor.set(1, value + "!");
+    editor.commit();
+    expected.put(key, value);
+  }
+
+  private void assertValues(DiskLruCache cache) throws Exception {
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      DiskLruCache.Snapshot snapshot = cache.get(entry.getKey());
+      assertNotNull(entry.getKey(), snapshot);
+      assertEquals(entry.getValue(), snapshot.getString(0));
+      assertEquals(entry.getValue() + "!", snapshot.getString(1));
+      snapshot.close();
+    }
+  }
+
+  /** Checkpoints are written in the background; waits for the first one. */
+  private void awaitIndex() throws Exception {
+    for (int i = 0; i < 500 && !indexFile.exists(); i++) {
+      Thread.sleep(10);
+    }
+    if (!indexFile.exists()) {
+      fail("no index checkpoint was written");
+    }
+  }
+
+  private File copyOf(File directory) throws Exception {
+    File result = tempDir.newFolder();
+    for (File file : directory.listFiles()) {
+      copy(file, new File(result, file.getName()));
+    }
+    return result;
+  }
+
+  private static void copy(File from, File to) throws Exception {
+    InputStream in = new FileInputStream(from);
+    try {
+      OutputStream out = new FileOutputStream(to);
+      try {
+        byte[] buffer = new byte[8192];
+        for (int count; (count = in.read(buffer)) != -1; ) {
+          out.write(buffer, 0, count);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,301 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class JournalRecoveryTest {
+  private static final int ENTRY_COUNT = 50;
+
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private File cacheDir;
+  private File journalFile;
+
+  @Before public void setUp() throws Exception {
+    cacheDir = tempDir.newFolder("JournalRecoveryTest");
+    journalFile = new File(cacheDir, DiskLruCache.JOURNAL_FILE);
+  }
+
+  @Test public void truncatedBinaryJournalKeepsCompleteRecords() throws Exception {
+    DiskLruCache cache = open();
+    writeEntries(cache);
+    cache.close();
+
+    // The journal lost its tail, cutting a record in two: the entries that
+    // were published before the cut survive, and the files of the others go.
+    RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+    file.setLength(file.length() / 2 + 1);
+    file.close();
+
+    cache = open();
+    List<String> readable = readableKeys(cache);
+    assertTrue(readable.size() > 0 && readable.size() < ENTRY_COUNT);
+    for (int i = 0; i < readable.size(); i++) {
+      assertEquals("k" + i, readable.get(i));
+    }
+    String lost = "k" + readable.size();
+    awaitDeleted(lost + ".0", lost + ".1");
+    set(cache, "after", "value");
+    cache.close();
+
+    cache = open();
+    List<String> reopened = readableKeys(cache);
+    assertTrue(reopened.remove("after"));
+    assertEquals(readable, reopened);
+    cache.close();
+  }
+
+  @Test public void corruptRecordsAreSkippedAndEntriesFoundByTheirFiles() throws Exception {
+    DiskLruCache cache = open();
+    writeEntries(cache);
+    cache.close();
+
+    // Garbage in the middle of the journal breaks the length prefixes there.
+    RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+    file.seek(file.length() / 2);
+    for (int i = 0; i < 30; i++) {
+      file.write(0xff);
+    }
+    file.close();
+
+    cache = open();
+    assertTrue(cache.stats().corruptRecordCount() > 0);
+    List<String> readable = readableKeys(cache);
+    assertTrue(readable.size() >= ENTRY_COUNT - 2);
+    long size = 0;
+    for (String key : readable) {
+      size += 2 * value(key).length() + 1;
+    }
+    assertEquals(size, cache.size());
+    set(cache, "after", "value");
+    cache.close();
+
+    // The salvaged journal was rebuilt, so the next open finds the same entries.
+    cache = open();
+    assertEquals(0, cache.stats().corruptRecordCount());
+    List<String> reopened = readableKeys(cache);
+    assertTrue(reopened.remove("after"));
+    assertEquals(readable, reopened);
+    cache.close();
+  }
+
+  @Test public void packedValuesOfSalvagedRecordsStayReadable() throws Exception {
+    DiskLruCache cache = open(1024);
+    writeEntries(cache);
+    cache.close();
+
+    RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+    file.seek(file.length() / 2);
+    for (int i = 0; i < 30; i++) {
+      file.write(0xff);
+    }
+    file.close();
+
+    // Entries whose records were lost have no files to be found by.
+    cache = open(1024);
+    assertTrue(cache.stats().corruptRecordCount() > 0);
+    List<String> readable = readableKeys(cache);
+    assertTrue(readable.size() > 0 && readable.size() < ENTRY_COUNT);
+    long size = 0;
+    for (String key : readable) {
+      size += 2 * value(key).length() + 1;
+    }
+    assertEquals(size, cache.size());
+    cache.close();
+  }
+
+  @Test public void entriesOfMissingPackSegmentsAreCountedAsDropped() throws Exception {
+    DiskLruCache cache = open(1024);
+    writeEntries(cache);
+    cache.close();
+
+    for (File file : cacheDir.listFiles()) {
+      if (file.getName().startsWith(PackStore.PREFIX)) {
+        assertTrue(file.delete());
+      }
+    }
+    cache = open(1024);
+    assertEquals(ENTRY_COUNT, cache.stats().droppedEntryCount());
+    assertTrue(readableKeys(cache).isEmpty());
+    assertEquals(0, cache.size());
+    cache.close();
+  }
+
+  @Test public void unreadableHeaderIsCountedNotPrinted() throws Exception {
+    DiskLruCache cache = open();
+    set(cache, "k0", value("k0"));
+    cache.close();
+
+    PrintStream out = System.out;
+    ByteArrayOutputStream printed = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(printed, true));
+    try {
+      cache = DiskLruCache.open(cacheDir, 2, 2, Integer.MAX_VALUE,
+          new DiskLruCache.Options().setRecordStats(true));
+    } finally {
+      System.setOut(out);
+    }
+    assertEquals("", printed.toString());
+    assertEquals(1, cache.stats().discardedJournalCount());
+    assertNull(cache.get("k0"));
+    assertEquals(0, cache.size());
+    cache.close();
+
+    cache = DiskLruCache.open(cacheDir, 2, 2, Integer.MAX_VALUE,
+        new DiskLruCache.Options().setRecordStats(true));
+    assertEquals(0, cache.stats().discardedJournalCount());
+    cache.close();
+  }
+
+  @Test public void orphanFilesAreSwept() throws Exception {
+    DiskLruCache cache = open();
+    set(cache, "kept", "value");
+    cache.close();
+
+    touch("ghost.0");
+    touch("ghost.1");
+    touch("ghost.0" + DiskLruCache.DIRTY_SUFFIX);
+    touch("kept.1" + DiskLruCache.DIRTY_SUFFIX); // Left by an edit that never finished.
+    touch("notes.txt");
+    touch("kept.2"); // Not a value index of this cache.
+
+    cache = open();
+    awaitDeleted("ghost.0", "ghost.1", "ghost.0" + DiskLruCache.DIRTY_SUFFIX,
+        "kept.1" + DiskLruCache.DIRTY_SUFFIX);
+    assertTrue(new File(cacheDir, "kept.0").exists());
+    assertTrue(new File(cacheDir, "kept.1").exists());
+    assertTrue(new File(cacheDir, "notes.txt").exists());
+    assertTrue(new File(cacheDir, "kept.2").exists());
+    assertValue(cache, "kept", "value");
+    cache.close();
+  }
+
+  @Test public void filesOfDroppedEntriesAreSwept() throws Exception {
+    DiskLruCache cache = open();
+    writeEntries(cache);
+    cache.close();
+
+    // A value file of k3 was lost: the entry is dropped and its other file swept.
+    assertTrue(new File(cacheDir, "k3.1").delete());
+    RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+    file.seek(file.length() / 2);
+    file.write(0xff);
+    file.write(0xff);
+    file.close();
+
+    cache = open();
+    assertTrue(cache.stats().corruptRecordCount() > 0);
+    assertEquals(1, cache.stats().droppedEntryCount());
+    assertNull(cache.get("k3"));
+    awaitDeleted("k3.0");
+    cache.close();
+  }
+
+  private DiskLruCache open() throws Exception {
+    return open(0);
+  }
+
+  private DiskLruCache open(int packThreshold) throws Exception {
+    return DiskLruCache.open(cacheDir, 1, 2, Integer.MAX_VALUE, new DiskLruCache.Options()
+        .setJournalFormat(DiskLruCache.JournalFormat.BINARY)
+        .setPackThreshold(packThreshold)
+        .setRecordStats(true));
+  }
+
+  private void writeEntries(DiskLruCache cache) throws Exception {
+    for (int i = 0; i < ENTRY_COUNT; i++) {
+      set(cache, "k" + i, value("k" + i));
+    }
+    for (int i = 0; i < ENTRY_COUNT; i += 3) {
+      cache.get("k" + i).close();
+    }
+  }
+
+  private List<String> readableKeys(DiskLruCache cache) throws Exception {
+    List<String> result = new ArrayList<String>();
+    for (int i = 0; i < ENTRY_COUNT; i++) {
+      String key = "k" + i;
+      DiskLruCache.Snapshot snapshot = cache.get(key);
+      if (snapshot != null) {
+        assertEquals(value(key), snapshot.getString(0));
+        assertEquals(value(key) + "!", snapshot.getString(1));
+        snapshot.close();
+        result.add(key);
+      }
+    }
+    DiskLruCache.Snapshot after = cache.get("after");
+    if (after != null) {
+      after.close();
+      result.add("after");
+    }
+    return result;
+  }
+
+  private static void set(DiskLruCache cache, String key, String value) throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    assertNotNull(editor);
+    editor.set(0, value);
+    editor.set(1, value + "!");
+    editor.commit();
+  }
+
+  private static void assertValue(DiskLruCache cache, String key, String value) throws Exception {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    assertNotNull(key, snapshot);
+    assertEquals(value, snapshot.getString(0));
+    assertEquals(value + "!", snapshot.getString(1));
+    snapshot.close();
+  }
+
+  private static String value(String key) {
+    return key + "=" + key.hashCode();
+  }
+
+  private void touch(String name) throws Exception {
+    FileOutputStream out = new FileOutputStream(new File(cacheDir, name));
+    out.write('x');
+    out.close();
+  }
+
+  /** The orphan sweep runs in the background; waits for it to delete the files. */
+  private void awaitDeleted(String... names) throws Exception {
+    for (String name : names) {
+      File file = new File(cacheDir, name);
+      for (int i = 0; i < 500 && file.exists(); i++) {
+        Thread.sleep(10);
+      }
+      if (file.exists()) {
+        fail(name + " was not swept");
+      }
+    }
+  }
+}
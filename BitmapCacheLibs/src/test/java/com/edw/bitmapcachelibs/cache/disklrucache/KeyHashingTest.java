@@ -0,0 +1,162 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class KeyHashingTest {
+  private static final String[] KEYS = {
+      "https://example.com/images/photo.jpg?w=100&h=200",
+      "Upper Case With Spaces",
+      "\u56fe\u7247",
+      "",
+      repeat('k', 500),
+  };
+
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private File cacheDir;
+
+  @Before public void setUp() throws Exception {
+    cacheDir = tempDir.newFolder("KeyHashingTest");
+  }
+
+  @Test public void anyKeyIsAcceptedAndSurvivesReopen() throws Exception {
+    DiskLruCache cache = open(true);
+    for (int i = 0; i < KEYS.length; i++) {
+      set(cache, KEYS[i], "v" + i);
+    }
+    for (int i = 0; i < KEYS.length; i++) {
+      assertValue(cache, KEYS[i], "v" + i);
+    }
+    assertTrue(cache.remove(KEYS[0]));
+    cache.close();
+
+    cache = open(true);
+    assertNull(cache.get(KEYS[0]));
+    for (int i = 1; i < KEYS.length; i++) {
+      assertValue(cache, KEYS[i], "v" + i);
+    }
+    cache.close();
+  }
+
+  @Test public void filesAndJournalHoldOnlyHashes() throws Exception {
+    DiskLruCache cache = open(true);
+    String key = KEYS[0];
+    set(cache, key, "v");
+    cache.close();
+
+    String hash = Murmur3.hash128Hex(key);
+    assertTrue(new File(cacheDir, hash + ".0").exists());
+    String journal = Util.readFully(new InputStreamReader(
+        new FileInputStream(new File(cacheDir, DiskLruCache.JOURNAL_FILE)), Util.US_ASCII));
+    assertTrue(journal.contains(hash));
+    assertFalse(journal.contains("example.com"));
+  }
+
+  @Test public void hashedEntriesAreNotFoundByRawKey() throws Exception {
+    DiskLruCache cache = open(true);
+    set(cache, "a", "hashed");
+    cache.close();
+
+    cache = open(false);
+    assertNull(cache.get("a"));
+    set(cache, "a", "raw");
+    cache.close();
+
+    cache = open(true);
+    assertValue(cache, "a", "hashed");
+    cache.close();
+  }
+
+  @Test public void illegalKeysAreRejectedWithoutHashing() throws Exception {
+    DiskLruCache cache = open(false);
+    String[] illegal = {"", "A", "a b", "a/b", "a.0", "\u00e9", repeat('k', 121)};
+    for (String key : illegal) {
+      try {
+        cache.edit(key);
+        fail(key);
+      } catch (IllegalArgumentException expected) {
+      }
+      try {
+        cache.get(key);
+        fail(key);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+    set(cache, "a-z_0-9", "v");
+    set(cache, repeat('k', 120), "v");
+    cache.close();
+  }
+
+  @Test public void isLegalKey() {
+    assertTrue(DiskLruCache.isLegalKey("abc-123_"));
+    assertTrue(DiskLruCache.isLegalKey(repeat('a', DiskLruCache.MAX_KEY_LENGTH)));
+    assertFalse(DiskLruCache.isLegalKey(""));
+    assertFalse(DiskLruCache.isLegalKey(repeat('a', DiskLruCache.MAX_KEY_LENGTH + 1)));
+    assertFalse(DiskLruCache.isLegalKey("a\n"));
+    assertFalse(DiskLruCache.isLegalKey("Z"));
+  }
+
+  @Test public void nullKeyIsRejected() throws Exception {
+    DiskLruCache cache = open(true);
+    try {
+      cache.get(null);
+      fail();
+    } catch (NullPointerException expected) {
+    }
+    cache.close();
+  }
+
+  private DiskLruCache open(boolean hashKeys) throws Exception {
+    return DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE,
+        new DiskLruCache.Options().setHashKeys(hashKeys));
+  }
+
+  private static String repeat(char c, int count) {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      result.append(c);
+    }
+    return result.toString();
+  }
+
+  private static void set(DiskLruCache cache, String key, String value) throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    assertNotNull(key, editor);
+    editor.set(0, value);
+    editor.commit();
+  }
+
+  private static void assertValue(DiskLruCache cache, String key, String value) throws Exception {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    assertNotNull(key, snapshot);
+    assertEquals(value, snapshot.getString(0));
+    snapshot.close();
+  }
+}
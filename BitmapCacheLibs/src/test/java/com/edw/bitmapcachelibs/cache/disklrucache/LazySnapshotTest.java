@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class LazySnapshotTest {
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private File cacheDir;
+
+  @Before public void setUp() throws Exception {
+    cacheDir = tempDir.newFolder("LazySnapshotTest");
+  }
+
+  @Test public void snapshotReadsItsEditAfterACommit() throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 2, Long.MAX_VALUE);
+    set(cache, "a", "a0", "a1");
+    DiskLruCache.Snapshot snapshot = cache.get("a");
+    assertEquals("a0", snapshot.getString(0));
+
+    set(cache, "a", "b0", "b1");
+    assertEquals("a1", snapshot.getString(1));
+    snapshot.close();
+    assertValues(cache, "a", "b0", "b1");
+    cache.close();
+  }
+
+  @Test public void unreadSnapshotReadsItsEditAfterACommit() throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 2, Long.MAX_VALUE);
+    set(cache, "a", "a0", "a1");
+    DiskLruCache.Snapshot snapshot = cache.get("a");
+    set(cache, "a", "b0", "b1");
+    set(cache, "a", "c0", "c1");
+    assertEquals("a0", snapshot.getString(0));
+    assertEquals("a1", snapshot.getString(1));
+    snapshot.close();
+    cache.close();
+  }
+
+  @Test public void snapshotReadsItsEditAfterARemove() throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 2, Long.MAX_VALUE);
+    set(cache, "a", "a0", "a1");
+    DiskLruCache.Snapshot snapshot = cache.get("a");
+    assertTrue(cache.remove("a"));
+    assertEquals("a0", snapshot.getString(0));
+    assertEquals("a1", snapshot.getString(1));
+    snapshot.close();
+    assertNull(cache.get("a"));
+    cache.close();
+  }
+
+  @Test public void snapshotReadsItsEditAfterAnEviction() throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 2, 10,
+        new DiskLruCache.Options().setEvictionWatermarks(1f, 1f));
+    set(cache, "a", "a0", "a1");
+    DiskLruCache.Snapshot snapshot = cache.get("a");
+    set(cache, "b", "bbbb", "bbbb");
+    set(cache, "c", "cccc", "cccc");
+    cache.flush();
+    assertNull(cache.get("a"));
+    assertEquals("a0", snapshot.getString(0));
+    assertEquals("a1", snapshot.getString(1));
+    snapshot.close();
+    cache.close();
+  }
+
+  @Test public void valuesAreOpenedWhenRead() throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 2, Long.MAX_VALUE);
+    set(cache, "a", "a0", "a1");
+    assertTrue(new File(cacheDir, "a.1").delete());
+
+    DiskLruCache.Snapshot snapshot = cache.get("a");
+    assertNotNull(snapshot);
+    assertEquals("a0", snapshot.getString(0));
+    try {
+      snapshot.getString(1);
+      fail();
+    } catch (FileNotFoundException expected) {
+    }
+    snapshot.close();
+    cache.close();
+  }
+
+  @Test public void singleValueIsOpenedByGet() throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE);
+    DiskLruCache.Editor editor = cache.edit("a");
+    editor.set(0, "a0");
+    editor.commit();
+    assertTrue(new File(cacheDir, "a.0").delete());
+    assertNull(cache.get("a"));
+    cache.close();
+  }
+
+  @Test public void closedSnapshotIsNotPinned() throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 2, Long.MAX_VALUE);
+    set(cache, "a", "a0", "a1");
+    DiskLruCache.Snapshot snapshot = cache.get("a");
+    snapshot.close();
+    set(cache, "a", "b0", "b1");
+    assertTrue(cache.remove("a"));
+    set(cache, "a", "c0", "c1");
+    assertValues(cache, "a", "c0", "c1");
+    cache.close();
+  }
+
+  private static void set(DiskLruCache cache, String key, String value0, String value1)
+      throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    assertNotNull(editor);
+    editor.set(0, value0);
+    editor.set(1, value1);
+    editor.commit();
+  }
+
+  private static void assertValues(DiskLruCache cache, String key, String value0,
+      String value1) throws Exception {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    assertNotNull(key, snapshot);
+    assertEquals(value0, snapshot.getString(0));
+    assertEquals(value1, snapshot.getString(1));
+    snapshot.close();
+  }
+}
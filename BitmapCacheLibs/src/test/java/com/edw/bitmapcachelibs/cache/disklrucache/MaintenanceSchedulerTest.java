@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class MaintenanceSchedulerTest {
+  private final MaintenanceScheduler scheduler = new MaintenanceScheduler();
+
+  @After public void tearDown() {
+    scheduler.setMaxBytesPerSecond(0);
+    scheduler.setBusy(false);
+    scheduler.shutdown();
+  }
+
+  @Test public void urgentTaskDoesNotWaitForThrottledMaintenance() throws Exception {
+    scheduler.setMaxBytesPerSecond(1000);
+    final CountDownLatch throttling = new CountDownLatch(1);
+    scheduler.schedule(new Callable<Void>() {
+      @Override public Void call() throws Exception {
+        throttling.countDown();
+        scheduler.throttle(60 * 1000); // About a minute at the cap.
+        return null;
+      }
+    });
+    assertTrue(throttling.await(5, TimeUnit.SECONDS));
+
+    CountDownLatch flushed = new CountDownLatch(1);
+    scheduler.execute(countDown(flushed));
+    assertTrue(flushed.await(5, TimeUnit.SECONDS));
+    assertTrue(scheduler.isMaintenanceRunning());
+  }
+
+  @Test public void busyDefersMaintenanceButNotUrgentTasks() throws Exception {
+    scheduler.setBusy(true);
+    CountDownLatch maintained = new CountDownLatch(1);
+    CountDownLatch flushed = new CountDownLatch(1);
+    scheduler.schedule(countDown(maintained));
+    scheduler.execute(countDown(flushed));
+    assertTrue(flushed.await(5, TimeUnit.SECONDS));
+    assertFalse(maintained.await(200, TimeUnit.MILLISECONDS));
+    assertEquals(1, scheduler.pendingMaintenanceCount());
+
+    scheduler.setBusy(false);
+    assertTrue(maintained.await(5, TimeUnit.SECONDS));
+    assertEquals(0, scheduler.pendingMaintenanceCount());
+  }
+
+  @Test public void threadsAreDaemonsAndStopOnShutdown() throws Exception {
+    final AtomicReference<Thread> urgent = new AtomicReference<Thread>();
+    final AtomicReference<Thread> maintenance = new AtomicReference<Thread>();
+    CountDownLatch done = new CountDownLatch(2);
+    scheduler.execute(recordThread(urgent, done));
+    scheduler.schedule(recordThread(maintenance, done));
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(urgent.get().isDaemon());
+    assertTrue(maintenance.get().isDaemon());
+
+    scheduler.shutdown();
+    urgent.get().join(5000);
+    maintenance.get().join(5000);
+    assertFalse(urgent.get().isAlive());
+    assertFalse(maintenance.get().isAlive());
+
+    // Work submitted after a shutdown still runs.
+    CountDownLatch flushed = new CountDownLatch(1);
+    scheduler.execute(countDown(flushed));
+    assertTrue(flushed.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test public void shutdownDropsWaitingMaintenance() throws Exception {
+    scheduler.setBusy(true);
+    CountDownLatch maintained = new CountDownLatch(1);
+    scheduler.schedule(countDown(maintained));
+    scheduler.shutdown();
+    assertEquals(0, scheduler.pendingMaintenanceCount());
+    scheduler.setBusy(false);
+    assertFalse(maintained.await(200, TimeUnit.MILLISECONDS));
+  }
+
+  private static Callable<Void> countDown(final CountDownLatch latch) {
+    return new Callable<Void>() {
+      @Override public Void call() {
+        latch.countDown();
+        return null;
+      }
+    };
+  }
+
+  private static Callable<Void> recordThread(final AtomicReference<Thread> thread,
+      final CountDownLatch latch) {
+    return new Callable<Void>() {
+      @Override public Void call() {
+        thread.set(Thread.currentThread());
+        latch.countDown();
+        return null;
+      }
+    };
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Shares a cache directory between this process and child processes that
+ * run {@link Child}, since a process may open the directory only once.
+ */
+public final class MultiProcessTest {
+  /** The exit status of a child that died without closing its cache. */
+  private static final int CRASHED = 3;
+  private static final int FAILED = 1;
+
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private File cacheDir;
+  private DiskLruCache cache;
+  private final List<Process> children = new ArrayList<Process>();
+
+  @Before public void setUp() throws Exception {
+    cacheDir = tempDir.newFolder("MultiProcessTest");
+    cache = open(cacheDir);
+  }
+
+  @After public void tearDown() throws Exception {
+    for (Process child : children) {
+      child.destroy();
+    }
+    cache.close();
+  }
+
+  @Test public void writesAreSeenByTheOtherProcess() throws Exception {
+    set(cache, "parent", "p");
+    assertEquals(0, exitCode(start("put", "child", "c")));
+    assertEquals("c", get(cache, "child"));
+
+    Process reader = start("get", "parent");
+    assertEquals("p", new BufferedReader(new InputStreamReader(reader.getInputStream())).readLine());
+    assertEquals(0, exitCode(reader));
+
+    assertEquals(0, exitCode(start("remove", "parent")));
+    assertNull(get(cache, "parent"));
+    assertEquals(1 + 2, cache.size());
+
+    // Reopening without sharing sees the same entries.
+    cache.close();
+    cache = DiskLruCache.open(cacheDir, 1, 2, Integer.MAX_VALUE);
+    assertNull(get(cache, "parent"));
+    assertEquals("c", get(cache, "child"));
+  }
+
+  @Test public void editsAreExclusiveAcrossProcesses() throws Exception {
+    Process child = start("hold", "k", "child");
+    BufferedReader in = new BufferedReader(new InputStreamReader(child.getInputStream()));
+    PrintStream out = new PrintStream(child.getOutputStream(), true);
+    assertEquals("editing", in.readLine());
+    assertNull(cache.edit("k"));
+
+    out.println("commit");
+    assertEquals(0, exitCode(child));
+    assertEquals("child", get(cache, "k"));
+    set(cache, "k", "parent");
+    assertEquals("parent", get(cache, "k"));
+  }
+
+  @Test public void crashedProcessLeavesItsCommitsAndBlocksOnlyItsEdit() throws Exception {
+    set(cache, "parent", "p");
+    assertEquals(CRASHED, exitCode(start("crash", "committed", "c", "unfinished")));
+
+    assertEquals("c", get(cache, "committed"));
+    assertEquals("p", get(cache, "parent"));
+    assertNull(get(cache, "unfinished"));
+    assertNull(cache.edit("unfinished")); // Until no other process has the cache open.
+
+    cache.close();
+    cache = open(cacheDir);
+    assertEquals("c", get(cache, "committed"));
+    assertEquals("p", get(cache, "parent"));
+    set(cache, "unfinished", "u");
+    assertEquals("u", get(cache, "unfinished"));
+  }
+
+  private Process start(String... args) throws Exception {
+    List<String> command = new ArrayList<String>();
+    command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+    command.add("-cp");
+    command.add(location(DiskLruCache.class) + File.pathSeparator + location(Child.class));
+    command.add(Child.class.getName());
+    command.add(cacheDir.getPath());
+    command.addAll(Arrays.asList(args));
+    Process process = new ProcessBuilder(command)
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+    children.add(process);
+    return process;
+  }
+
+  private static int exitCode(Process process) throws Exception {
+    assertTrue("child did not exit", process.waitFor(30, TimeUnit.SECONDS));
+    return process.exitValue();
+  }
+
+  private static String location(Class<?> type) throws Exception {
+    return new File(type.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+  }
+
+  private static DiskLruCache open(File directory) throws Exception {
+    return DiskLruCache.open(directory, 1, 2, Integer.MAX_VALUE, new DiskLruCache.Options()
+        .setMultiProcess(true));
+  }
+
+  private static void set(DiskLruCache cache, String key, String value) throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    assertNotNull(editor);
+    Child.set(editor, value);
+  }
+
+  private static String get(DiskLruCache cache, String key) throws Exception {
+    return Child.get(cache, key);
+  }
+
+  /**
+   * The other process: opens the cache, runs one command and exits. It runs
+   * without JUnit on its class path.
+   */
+  public static final class Child {
+    public static void main(String[] args) {
+      try {
+        DiskLruCache cache = open(new File(args[0]));
+        run(cache, args);
+        cache.close();
+        System.exit(0);
+      } catch (Throwable e) {
+        e.printStackTrace();
+        Runtime.getRuntime().halt(FAILED); // The cache's threads would keep the process alive.
+      }
+    }
+
+    private static void run(DiskLruCache cache, String[] args) throws Exception {
+      String command = args[1];
+      if (command.equals("put")) {
+        set(cache.edit(args[2]), args[3]);
+      } else if (command.equals("get")) {
+        System.out.println(get(cache, args[2]));
+      } else if (command.equals("remove")) {
+        cache.remove(args[2]);
+      } else if (command.equals("hold")) {
+        DiskLruCache.Editor editor = cache.edit(args[2]);
+        editor.set(0, args[3]);
+        System.out.println("editing");
+        System.out.flush();
+        new BufferedReader(new InputStreamReader(System.in)).readLine();
+        editor.set(1, args[3] + args[3]);
+        editor.commit();
+      } else if (command.equals("crash")) {
+        set(cache.edit(args[2]), args[3]);
+        cache.edit(args[4]).set(0, "lost");
+        Runtime.getRuntime().halt(CRASHED);
+      } else {
+        throw new IllegalArgumentException(command);
+      }
+    }
+
+    static void set(DiskLruCache.Editor editor, String value) throws Exception {
+      editor.set(0, value);
+      editor.set(1, value + value);
+      editor.commit();
+    }
+
+    /** Returns value 0 of {@code key} after checking that value 1 belongs to it. */
+    static String get(DiskLruCache cache, String key) throws Exception {
+      DiskLruCache.Snapshot snapshot = cache.get(key);
+      if (snapshot == null) {
+        return null;
+      }
+      try {
+        String value = snapshot.getString(0);
+        if (!snapshot.getString(1).equals(value + value)) {
+          throw new IllegalStateException("torn entry " + key);
+        }
+        return value;
+      } finally {
+        snapshot.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class Murmur3Test {
+  /**
+   * Hashes of the UTF-16LE bytes with the reference MurmurHash3_x64_128,
+   * which is what Guava's hashUnencodedChars() computes. The strings cover
+   * no block, a tail in one and in both halves, and whole blocks only.
+   */
+  @Test public void matchesReferenceImplementation() {
+    assertEquals("00000000000000000000000000000000", Murmur3.hash128Hex(""));
+    assertEquals("bd984e0b5098a6967d6754c7bfc978b2", Murmur3.hash128Hex("a"));
+    assertEquals("87d3bfe18fe12eeec436c3d86272927b", Murmur3.hash128Hex("hello"));
+    assertEquals("a9c380ce7a6bf8c09e040c33aa8ad742", Murmur3.hash128Hex("abcdefghijklm"));
+    assertEquals("696eeab5c5c4793c1f5c2d15e41a7ecc",
+        Murmur3.hash128Hex("https://example.com/images/photo.jpg?w=100&h=200"));
+    assertEquals("4a19d441ddad547a8b3b7c79078e0d42", Murmur3.hash128Hex("\u56fe\u7247"));
+  }
+
+  @Test public void halvesAreReadBackFromHex() {
+    long[] hash = Murmur3.hash128("https://example.com/a.png");
+    String hex = Murmur3.toHex(hash[0], hash[1]);
+    assertTrue(Murmur3.isHex(hex));
+    assertEquals(hash[0], Murmur3.fromHex(hex, 0));
+    assertEquals(hash[1], Murmur3.fromHex(hex, 16));
+  }
+
+  @Test public void isHex() {
+    assertTrue(Murmur3.isHex("0123456789abcdef0123456789abcdef"));
+    assertFalse(Murmur3.isHex("0123456789abcdef0123456789abcde"));
+    assertFalse(Murmur3.isHex("0123456789ABCDEF0123456789ABCDEF"));
+    assertFalse(Murmur3.isHex("0123456789abcdef0123456789abcdeg"));
+  }
+}
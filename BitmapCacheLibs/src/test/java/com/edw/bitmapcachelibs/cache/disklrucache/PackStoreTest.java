@@ -0,0 +1,240 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class PackStoreTest {
+  private static final long SEGMENT_SIZE = 4096;
+
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private File cacheDir;
+  private final Map<String, String> expected = new LinkedHashMap<String, String>();
+
+  @Before public void setUp() throws Exception {
+    cacheDir = tempDir.newFolder("PackStoreTest");
+  }
+
+  @Test public void valuesSurviveReopen() throws Exception {
+    DiskLruCache cache = open(DiskLruCache.Durability.NONE);
+    for (int i = 0; i < 60; i++) {
+      set(cache, "k" + i, value(i, 100));
+    }
+    cache.close();
+    assertTrue(segmentCount() > 1);
+    assertEquals(0, looseFileCount());
+
+    cache = open(DiskLruCache.Durability.NONE);
+    assertValues(cache);
+    cache.close();
+  }
+
+  @Test public void compactionRelocatesLiveValues() throws Exception {
+    DiskLruCache cache = open(DiskLruCache.Durability.COMMIT);
+    for (int i = 0; i < 60; i++) {
+      set(cache, "k" + i, value(i, 100));
+    }
+    // Leave one value in the first segment; the rest of it becomes dead space.
+    for (int i = 1; i < 20; i++) {
+      assertTrue(cache.remove("k" + i));
+      expected.remove("k" + i);
+    }
+    set(cache, "k20", value(20, 120)); // Any write notices the sparse segment.
+    awaitDeleted(new File(cacheDir, PackStore.PREFIX + 0));
+    assertValues(cache);
+    long size = cache.size();
+    cache.close();
+
+    cache = open(DiskLruCache.Durability.COMMIT);
+    assertFalse(new File(cacheDir, PackStore.PREFIX + 0).exists());
+    assertValues(cache);
+    assertEquals(size, cache.size());
+    cache.close();
+  }
+
+  @Test public void editKeepsUnchangedPackedValue() throws Exception {
+    DiskLruCache cache = open(DiskLruCache.Durability.NONE);
+    set(cache, "k", "first");
+    DiskLruCache.Editor editor = cache.edit("k");
+    editor.set(0, "replaced");
+    editor.commit();
+    cache.close();
+
+    cache = open(DiskLruCache.Durability.NONE);
+    DiskLruCache.Snapshot snapshot = cache.get("k");
+    assertEquals("replaced", snapshot.getString(0));
+    assertEquals("first!", snapshot.getString(1));
+    snapshot.close();
+    cache.close();
+  }
+
+  @Test public void truncatedSegmentDropsOnlyTheValuesItLost() throws Exception {
+    DiskLruCache cache = open(DiskLruCache.Durability.NONE);
+    for (int i = 0; i < 10; i++) {
+      set(cache, "k" + i, value(i, 100));
+    }
+    cache.close();
+    assertEquals(1, segmentCount());
+
+    // A crash lost the tail of the segment after the journal recorded it.
+    File segment = new File(cacheDir, PackStore.PREFIX + 0);
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    file.setLength(file.length() - 50);
+    file.close();
+
+    cache = open(DiskLruCache.Durability.NONE);
+    assertNull(cache.get("k9"));
+    expected.remove("k9");
+    assertValues(cache);
+    long size = 0;
+    for (String value : expected.values()) {
+      size += 2 * value.length() + 1;
+    }
+    assertEquals(size, cache.size());
+
+    // The cache keeps appending after the bytes that are gone.
+    set(cache, "k9", value(9, 100));
+    cache.close();
+    cache = open(DiskLruCache.Durability.NONE);
+    assertValues(cache);
+    cache.close();
+  }
+
+  @Test public void missingSegmentDropsItsEntries() throws Exception {
+    DiskLruCache cache = open(DiskLruCache.Durability.NONE);
+    for (int i = 0; i < 60; i++) {
+      set(cache, "k" + i, value(i, 100));
+    }
+    cache.close();
+    assertTrue(new File(cacheDir, PackStore.PREFIX + 0).delete());
+
+    cache = open(DiskLruCache.Durability.NONE);
+    assertNull(cache.get("k0"));
+    int readable = 0;
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      DiskLruCache.Snapshot snapshot = cache.get(entry.getKey());
+      if (snapshot != null) {
+        assertEquals(entry.getValue(), snapshot.getString(0));
+        snapshot.close();
+        readable++;
+      }
+    }
+    assertTrue(readable > 0 && readable < expected.size());
+    cache.close();
+  }
+
+  @Test public void packedValuesAreReportedAndStreamsStopAtTheirEnd() throws Exception {
+    DiskLruCache cache = open(DiskLruCache.Durability.NONE);
+    set(cache, "k0", value(0, 100));
+    set(cache, "k1", value(1, 100));
+    set(cache, "big", value(2, 2000));
+
+    DiskLruCache.Snapshot snapshot = cache.get("k0");
+    assertTrue(snapshot.isPacked(0));
+    assertEquals(100, snapshot.getLength(0));
+    // The descriptor and channel continue into the next value; the stream doesn't.
+    assertTrue(snapshot.getChannel(0).size() > snapshot.getOffset(0) + 100);
+    assertEquals(value(0, 100), snapshot.getString(0));
+    assertEquals(-1, snapshot.getInputStream(0).read());
+    snapshot.close();
+
+    snapshot = cache.get("big");
+    assertFalse(snapshot.isPacked(0));
+    assertEquals(0, snapshot.getOffset(0));
+    assertEquals(2000, snapshot.getChannel(0).size());
+    snapshot.close();
+    cache.close();
+  }
+
+  private DiskLruCache open(DiskLruCache.Durability durability) throws Exception {
+    return DiskLruCache.open(cacheDir, 1, 2, Integer.MAX_VALUE, new DiskLruCache.Options()
+        .setJournalFormat(DiskLruCache.JournalFormat.BINARY)
+        .setDurability(durability)
+        .setPackThreshold(1000)
+        .setPackSegmentSize(SEGMENT_SIZE));
+  }
+
+  private void set(DiskLruCache cache, String key, String value) throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    assertNotNull(editor);
+    editor.set(0, value);
+    editor.set(1, value + "!");
+    editor.commit();
+    expected.put(key, value);
+  }
+
+  private void assertValues(DiskLruCache cache) throws Exception {
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      DiskLruCache.Snapshot snapshot = cache.get(entry.getKey());
+      assertNotNull(entry.getKey(), snapshot);
+      assertEquals(entry.getValue(), snapshot.getString(0));
+      assertEquals(entry.getValue() + "!", snapshot.getString(1));
+      snapshot.close();
+    }
+  }
+
+  private int segmentCount() {
+    int count = 0;
+    for (String name : cacheDir.list()) {
+      if (name.startsWith(PackStore.PREFIX)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private int looseFileCount() {
+    int count = 0;
+    for (String name : cacheDir.list()) {
+      if (name.startsWith("k")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** Compaction runs in the background; waits for it to delete {@code file}. */
+  private static void awaitDeleted(File file) throws Exception {
+    for (int i = 0; i < 500 && file.exists(); i++) {
+      Thread.sleep(10);
+    }
+    if (file.exists()) {
+      fail(file + " was not compacted");
+    }
+  }
+
+  private static String value(int seed, int length) {
+    StringBuilder result = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      result.append((char) ('a' + (seed + i) % 26));
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public final class ReadCheckpointTest {
+  private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private File cacheDir;
+  private File journalFile;
+
+  @Before public void setUp() throws Exception {
+    cacheDir = tempDir.newFolder("ReadCheckpointTest");
+    journalFile = new File(cacheDir, DiskLruCache.JOURNAL_FILE);
+  }
+
+  @Test public void readsAreJournaledByDefault() throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE);
+    set(cache, "a", "a1");
+    cache.flush();
+    long length = journalFile.length();
+    cache.get("a").close();
+    cache.flush();
+    assertTrue(journalFile.length() > length);
+    cache.close();
+  }
+
+  @Test public void readsDoNotGrowTheJournal() throws Exception {
+    readsDoNotGrowTheJournal(DiskLruCache.JournalFormat.TEXT);
+  }
+
+  @Test public void readsDoNotGrowTheBinaryJournal() throws Exception {
+    readsDoNotGrowTheJournal(DiskLruCache.JournalFormat.BINARY);
+  }
+
+  private void readsDoNotGrowTheJournal(DiskLruCache.JournalFormat format) throws Exception {
+    DiskLruCache cache = open(format);
+    set(cache, "a", "a1");
+    set(cache, "b", "b1");
+    // flush() would checkpoint the reads, so wait for the background journal flush instead.
+    long length = awaitStableJournalLength();
+    for (int i = 0; i < 100; i++) {
+      cache.get("a").close();
+      cache.get("b").close();
+    }
+    assertEquals(length, awaitStableJournalLength());
+    cache.close();
+  }
+
+  @Test public void readOrderIsCheckpointedOnClose() throws Exception {
+    readOrderIsCheckpointedOnClose(DiskLruCache.JournalFormat.TEXT);
+  }
+
+  @Test public void readOrderIsCheckpointedOnCloseInBinaryJournal() throws Exception {
+    readOrderIsCheckpointedOnClose(DiskLruCache.JournalFormat.BINARY);
+  }
+
+  private void readOrderIsCheckpointedOnClose(DiskLruCache.JournalFormat format) throws Exception {
+    DiskLruCache cache = open(format);
+    set(cache, "a", "a1");
+    set(cache, "b", "b1");
+    set(cache, "c", "c1");
+    cache.get("a").close();
+    assertEquals("b", cache.eldestEntryKey());
+    cache.close();
+
+    cache = open(format);
+    assertEquals("b", cache.eldestEntryKey());
+    cache.close();
+  }
+
+  @Test public void flushWritesPendingReadsAsReadRecords() throws Exception {
+    DiskLruCache cache = open(DiskLruCache.JournalFormat.TEXT);
+    set(cache, "a", "a1");
+    set(cache, "b", "b1");
+    cache.get("b").close();
+    cache.get("a").close();
+    cache.get("b").close();
+    cache.flush();
+    // One record per key, least recently used first.
+    assertTrue(readJournal().endsWith("READ a\nREAD b\n"));
+    cache.close();
+  }
+
+  @Test public void checkpointRunsInTheBackgroundOnceTheIntervalHasPassed() throws Exception {
+    DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE,
+        new DiskLruCache.Options().setJournalReads(false).setReadCheckpointIntervalMillis(0));
+    set(cache, "a", "a1");
+    set(cache, "b", "b1");
+    cache.get("a").close();
+    long deadline = System.currentTimeMillis() + 10 * 1000;
+    while (!readJournal().endsWith("READ a\n")) {
+      assertFalse("No checkpoint", System.currentTimeMillis() > deadline);
+      Thread.sleep(50);
+    }
+    cache.close();
+  }
+
+  private DiskLruCache open(DiskLruCache.JournalFormat format) throws Exception {
+    return DiskLruCache.open(cacheDir, 1, 1, Long.MAX_VALUE, new DiskLruCache.Options()
+        .setJournalFormat(format)
+        .setJournalReads(false)
+        .setReadCheckpointIntervalMillis(HOUR_MILLIS));
+  }
+
+  /** Returns the journal length once the background flush has stopped changing it. */
+  private long awaitStableJournalLength() throws Exception {
+    long length = journalFile.length();
+    while (true) {
+      Thread.sleep(200);
+      long next = journalFile.length();
+      if (next == length) {
+        return length;
+      }
+      length = next;
+    }
+  }
+
+  private String readJournal() throws Exception {
+    return Util.readFully(new InputStreamReader(new FileInputStream(journalFile), Util.US_ASCII));
+  }
+
+  private static void set(DiskLruCache cache, String key, String value) throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    assertNotNull(editor);
+    editor.set(0, value);
+    editor.commit();
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class ShardedDiskLruCacheTest {
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  @Test public void valuesSurviveReopen() throws Exception {
+    File directory = tempDir.newFolder("sharded");
+    ShardedDiskLruCache cache = ShardedDiskLruCache.open(directory, 1, 1, 100000, 4);
+    for (int i = 0; i < 20; i++) {
+      set(cache, "k" + i, "v" + i);
+    }
+    cache.close();
+
+    cache = ShardedDiskLruCache.open(directory, 1, 1, 100000, 4);
+    for (int i = 0; i < 20; i++) {
+      assertEquals("v" + i, get(cache, "k" + i));
+    }
+    assertEquals(4, cache.getShardCount());
+    cache.close();
+  }
+
+  @Test public void otherShardCountDiscardsContents() throws Exception {
+    File directory = tempDir.newFolder("sharded");
+    ShardedDiskLruCache cache = ShardedDiskLruCache.open(directory, 1, 1, 100000, 4);
+    set(cache, "a", "a");
+    cache.close();
+
+    cache = ShardedDiskLruCache.open(directory, 1, 1, 100000, 2);
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+    assertFalse(new File(directory, "3").exists());
+    cache.close();
+  }
+
+  @Test public void plainCacheDirectoryIsNotWiped() throws Exception {
+    File directory = tempDir.newFolder("plain");
+    DiskLruCache plain = DiskLruCache.open(directory, 1, 1, 100000);
+    DiskLruCache.Editor editor = plain.edit("a");
+    editor.set(0, "a");
+    editor.commit();
+    plain.close();
+
+    try {
+      ShardedDiskLruCache.open(directory, 1, 1, 100000, 4);
+      fail();
+    } catch (IOException expected) {
+    }
+    assertFalse(new File(directory, ShardedDiskLruCache.LAYOUT_FILE).exists());
+
+    plain = DiskLruCache.open(directory, 1, 1, 100000);
+    DiskLruCache.Snapshot snapshot = plain.get("a");
+    assertNotNull(snapshot);
+    assertEquals("a", snapshot.getString(0));
+    snapshot.close();
+    plain.close();
+  }
+
+  @Test public void corruptLayoutIsNotTakenForAnotherShardCount() throws Exception {
+    File directory = tempDir.newFolder("sharded");
+    ShardedDiskLruCache cache = ShardedDiskLruCache.open(directory, 1, 1, 100000, 4);
+    set(cache, "a", "a");
+    cache.close();
+    OutputStream out = new FileOutputStream(new File(directory, ShardedDiskLruCache.LAYOUT_FILE));
+    out.write("x\n".getBytes(Util.US_ASCII));
+    out.close();
+
+    try {
+      ShardedDiskLruCache.open(directory, 1, 1, 100000, 4);
+      fail();
+    } catch (IOException expected) {
+    }
+    assertTrue(new File(directory, "0").exists());
+  }
+
+  @Test public void shardsShareOneThreadThatCloseStops() throws Exception {
+    // Caches of earlier tests may still have idle threads of their own.
+    Set<Thread> before = maintenanceThreads();
+    File directory = tempDir.newFolder("sharded");
+    ShardedDiskLruCache cache = ShardedDiskLruCache.open(directory, 1, 1, 100000, 4,
+        new DiskLruCache.Options().setDurability(DiskLruCache.Durability.PERIODIC));
+    for (int i = 0; i < 20; i++) {
+      set(cache, "k" + i, "v" + i);
+    }
+    Set<Thread> started = maintenanceThreads();
+    started.removeAll(before);
+    assertTrue(started.toString(), started.size() <= 2); // A journal and a maintenance thread.
+
+    cache.close();
+    for (Thread thread : started) {
+      thread.join(2000);
+      assertFalse(thread.isAlive());
+    }
+  }
+
+  private static Set<Thread> maintenanceThreads() {
+    Set<Thread> threads = new HashSet<Thread>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.isAlive() && thread.getName().startsWith("DiskLruCache ")) {
+        threads.add(thread);
+      }
+    }
+    return threads;
+  }
+
+  private static void set(ShardedDiskLruCache cache, String key, String value) throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    assertNotNull(editor);
+    editor.set(0, value);
+    editor.commit();
+  }
+
+  private static String get(ShardedDiskLruCache cache, String key) throws Exception {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    assertNotNull(key, snapshot);
+    try {
+      return snapshot.getString(0);
+    } finally {
+      snapshot.close();
+    }
+  }
+}
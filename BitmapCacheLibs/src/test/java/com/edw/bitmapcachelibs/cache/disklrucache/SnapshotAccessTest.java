@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class SnapshotAccessTest {
+  private static final int PACK_THRESHOLD = 1000;
+
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private File cacheDir;
+
+  @Before public void setUp() throws Exception {
+    cacheDir = tempDir.newFolder("SnapshotAccessTest");
+  }
+
+  @Test public void mappedLooseValueOutlivesSnapshotAndEdits() throws Exception {
+    DiskLruCache cache = open();
+    set(cache, "k", value('a', 2000));
+    DiskLruCache.Snapshot snapshot = cache.get("k");
+    assertFalse(snapshot.isPacked(0));
+    MappedByteBuffer buffer = snapshot.map(0);
+    snapshot.close();
+    set(cache, "k", value('b', 2000));
+
+    assertEquals(value('a', 2000), string(buffer));
+    cache.close();
+    assertEquals(value('a', 2000), string(buffer));
+  }
+
+  @Test public void mappedPackedValueCoversOnlyItsBytes() throws Exception {
+    DiskLruCache cache = open();
+    set(cache, "k0", value('a', 100));
+    set(cache, "k1", value('b', 100));
+    set(cache, "k2", value('c', 100));
+
+    DiskLruCache.Snapshot snapshot = cache.get("k1");
+    assertTrue(snapshot.isPacked(0));
+    assertTrue(snapshot.getOffset(0) > 0);
+    MappedByteBuffer buffer = snapshot.map(0);
+    assertEquals(100, buffer.remaining());
+    assertEquals(value('b', 100), string(buffer));
+    snapshot.close();
+    cache.close();
+  }
+
+  @Test public void fileDescriptorIsPositionedAtTheValue() throws Exception {
+    DiskLruCache cache = open();
+    set(cache, "k0", value('a', 100));
+    set(cache, "k1", value('b', 100));
+    set(cache, "big", value('c', 2000));
+
+    for (String key : new String[] {"k1", "big"}) {
+      DiskLruCache.Snapshot snapshot = cache.get(key);
+      int length = (int) snapshot.getLength(0);
+      // A second stream over the descriptor shares its position.
+      InputStream in = new FileInputStream(snapshot.getFileDescriptor(0));
+      byte[] bytes = new byte[length];
+      int read = 0;
+      while (read < length) {
+        int count = in.read(bytes, read, length - read);
+        assertTrue(count > 0);
+        read += count;
+      }
+      assertEquals(snapshot.getOffset(0) + length, snapshot.getChannel(0).position());
+      snapshot.close();
+      assertEquals(key.equals("big") ? value('c', 2000) : value('b', 100),
+          new String(bytes, Util.US_ASCII));
+    }
+    cache.close();
+  }
+
+  @Test public void channelSharesThePositionOfTheStream() throws Exception {
+    DiskLruCache cache = open();
+    set(cache, "big", value('c', 2000));
+    DiskLruCache.Snapshot snapshot = cache.get("big");
+    InputStream in = snapshot.getInputStream(0);
+    assertEquals('c', in.read());
+    assertEquals(1, snapshot.getChannel(0).position());
+    ByteBuffer buffer = ByteBuffer.allocate(10);
+    snapshot.getChannel(0).read(buffer);
+    assertEquals(11, snapshot.getChannel(0).position());
+    snapshot.close();
+    assertFalse(snapshot.getChannel(0).isOpen());
+    cache.close();
+  }
+
+  private DiskLruCache open() throws Exception {
+    return DiskLruCache.open(cacheDir, 1, 1, Integer.MAX_VALUE, new DiskLruCache.Options()
+        .setJournalFormat(DiskLruCache.JournalFormat.BINARY)
+        .setPackThreshold(PACK_THRESHOLD));
+  }
+
+  private static void set(DiskLruCache cache, String key, String value) throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    editor.set(0, value);
+    editor.commit();
+  }
+
+  private static String value(char c, int length) {
+    char[] chars = new char[length];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+
+  private static String string(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return new String(bytes, Util.US_ASCII);
+  }
+}
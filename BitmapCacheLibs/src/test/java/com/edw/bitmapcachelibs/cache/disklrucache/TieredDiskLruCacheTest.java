@@ -0,0 +1,177 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class TieredDiskLruCacheTest {
+  @Rule public final TemporaryFolder tempDir = new TemporaryFolder();
+
+  private File fastDir;
+  private File slowDir;
+  private TieredDiskLruCache cache;
+
+  @Before public void setUp() throws Exception {
+    fastDir = tempDir.newFolder("fast");
+    slowDir = tempDir.newFolder("slow");
+    cache = TieredDiskLruCache.open(fastDir, slowDir, 1, 1, 1000, 100000,
+        new DiskLruCache.Options().setEvictionPolicy(new EvictionPolicy.Factory() {
+          @Override public EvictionPolicy create() {
+            return new RotatingPolicy();
+          }
+        }));
+  }
+
+  @After public void tearDown() throws Exception {
+    cache.close();
+  }
+
+  @Test public void usedEntriesArePromotedAndDemotedAgain() throws Exception {
+    set("a", "aaaaaaaaaa");
+    promote("a");
+    assertEquals(10, cache.fastSize());
+    assertEquals(10, cache.size());
+
+    cache.setFastMaxSize(5);
+    awaitFastSize(0);
+    assertEquals("aaaaaaaaaa", get("a"));
+    assertEquals(10, cache.size());
+  }
+
+  @Test public void failedTransferEvictsOnlyThatEntry() throws Exception {
+    set("a", "aaaaaaaaaa");
+    set("b", "bbbbbbbbbb");
+    promote("a");
+    promote("b");
+    assertEquals(20, cache.fastSize());
+
+    // The value of a is lost, so it can't be moved. Meanwhile b has become
+    // the eldest entry, which must still be moved rather than deleted.
+    assertTrue(new File(fastDir, "a.0").delete());
+    cache.setFastMaxSize(15);
+    awaitFastSize(10);
+    assertNull(cache.get("a"));
+    assertEquals("bbbbbbbbbb", get("b"));
+    assertEquals(10, cache.size());
+  }
+
+  @Test public void editOfPromotedEntryStaysInFastTier() throws Exception {
+    set("a", "aaaaaaaaaa");
+    promote("a");
+    set("a", "a2");
+    assertEquals(2, cache.fastSize());
+    assertEquals(2, cache.size());
+    assertEquals("a2", get("a"));
+  }
+
+  @Test public void removeDropsEntryFromEitherTier() throws Exception {
+    set("a", "aaaaaaaaaa");
+    set("b", "bbbbbbbbbb");
+    promote("a");
+    assertTrue(cache.remove("a"));
+    assertTrue(cache.remove("b"));
+    assertNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals(0, cache.size());
+  }
+
+  private void set(String key, String value) throws Exception {
+    DiskLruCache.Editor editor = cache.edit(key);
+    assertNotNull(editor);
+    editor.set(0, value);
+    editor.commit();
+  }
+
+  private String get(String key) throws Exception {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    assertNotNull(key, snapshot);
+    try {
+      return snapshot.getString(0);
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  /** Reads {@code key} until it is moved to the fast tier in the background. */
+  private void promote(String key) throws Exception {
+    long before = cache.fastSize();
+    for (int i = 0; i < 500 && cache.fastSize() == before; i++) {
+      get(key);
+      Thread.sleep(10);
+    }
+    if (cache.fastSize() == before) {
+      fail(key + " was not promoted");
+    }
+  }
+
+  private void awaitFastSize(long size) throws Exception {
+    for (int i = 0; i < 500 && cache.fastSize() != size; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(size, cache.fastSize());
+  }
+
+  /**
+   * Evicts in insertion order, but each time it is asked the eldest key goes
+   * to the back, as if that entry had just been read.
+   */
+  static final class RotatingPolicy implements EvictionPolicy {
+    private final List<String> keys = new ArrayList<String>();
+
+    @Override public void setMaxSize(long maxSize) {
+    }
+
+    @Override public void onAdd(String key, long size, int frequency) {
+      keys.remove(key);
+      keys.add(key);
+    }
+
+    @Override public void onAccess(String key) {
+    }
+
+    @Override public void onUpdate(String key, long size) {
+    }
+
+    @Override public void onRemove(String key) {
+      keys.remove(key);
+    }
+
+    @Override public void onEvict(String key) {
+      keys.remove(key);
+    }
+
+    @Override public Iterator<String> victims() {
+      List<String> order = new ArrayList<String>(keys);
+      if (!keys.isEmpty()) {
+        keys.add(keys.remove(0));
+      }
+      return order.iterator();
+    }
+  }
+}
@@ -0,0 +1,290 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class ClockMemoryCacheTest {
+  private final List<String> removals = new ArrayList<String>();
+
+  @Test public void putGetAndRemove() {
+    ClockMemoryCache<String, String> cache = newCache(10, 4);
+    assertNull(cache.put("a", "A"));
+    assertEquals("A", cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals("A", cache.put("a", "BB"));
+    assertEquals("BB", cache.get("a"));
+    assertEquals(2, cache.size());
+
+    assertEquals("BB", cache.remove("a"));
+    assertNull(cache.remove("a"));
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+    assertEquals(Arrays.asList("replaced a=A->BB", "removed a=BB"), removals);
+
+    assertEquals(2, cache.hitCount());
+    assertEquals(2, cache.missCount());
+    assertEquals(2, cache.putCount());
+    assertEquals("ClockMemoryCache[maxSize=10,hits=2,misses=2,hitRate=50%]", cache.toString());
+  }
+
+  @Test public void nullsAreRejected() {
+    ClockMemoryCache<String, String> cache = newCache(10, 1);
+    try {
+      cache.get(null);
+      fail();
+    } catch (NullPointerException expected) {
+    }
+    try {
+      cache.put("a", null);
+      fail();
+    } catch (NullPointerException expected) {
+    }
+    try {
+      cache.remove(null);
+      fail();
+    } catch (NullPointerException expected) {
+    }
+  }
+
+  @Test public void argumentsAreValidated() {
+    try {
+      new ClockMemoryCache<String, String>(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new ClockMemoryCache<String, String>(1, 0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    ClockMemoryCache<String, String> cache = new ClockMemoryCache<String, String>(10) {
+      @Override protected int sizeOf(String key, String value) {
+        return -1;
+      }
+    };
+    try {
+      cache.put("a", "A");
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    assertEquals(0, cache.size());
+  }
+
+  @Test public void sizeOfWeighsEntriesAgainstTheBudget() {
+    ClockMemoryCache<String, String> cache = newCache(10, 1);
+    cache.put("a", "aaaa");
+    cache.put("b", "bbbb");
+    assertEquals(8, cache.size());
+    cache.put("c", "cccc");
+    assertEquals(8, cache.size());
+    assertEquals(1, cache.evictionCount());
+    assertEquals(1, removals.size());
+    assertTrue(removals.get(0), removals.get(0).startsWith("evicted "));
+
+    // Growing an entry in place also evicts.
+    cache.put("c", "cccccccc");
+    assertTrue(cache.size() <= 10);
+    assertEquals("cccccccc", cache.get("c"));
+  }
+
+  @Test public void entryUsedSinceTheHandPassedSurvives() {
+    ClockMemoryCache<String, String> cache = newCache(3, 1);
+    cache.put("a", "a");
+    cache.put("b", "b");
+    cache.put("c", "c");
+    // The first eviction sweeps every entry, clearing their referenced bits.
+    cache.put("d", "d");
+    assertEquals(3, cache.size());
+    List<String> survivors = new ArrayList<String>();
+    for (String key : Arrays.asList("a", "b", "c")) {
+      if (cache.get(key) != null) {
+        survivors.add(key);
+      }
+    }
+    assertEquals(2, survivors.size());
+    // The gets above referenced both survivors again; only d is cold.
+    cache.put("e", "e");
+    assertNull(cache.get("d"));
+    for (String key : survivors) {
+      assertEquals(key, cache.get(key));
+    }
+  }
+
+  @Test public void snapshotListsColdEntriesBeforeHotOnes() {
+    ClockMemoryCache<String, String> cache = newCache(3, 1);
+    cache.put("a", "a");
+    cache.put("b", "b");
+    cache.put("c", "c");
+    cache.put("d", "d");
+    // The eviction swept every entry cold.
+    List<String> keys = new ArrayList<String>(cache.snapshot().keySet());
+    assertEquals(3, keys.size());
+    assertTrue(keys.contains("d"));
+
+    String used = keys.get(0);
+    cache.get(used);
+    keys = new ArrayList<String>(cache.snapshot().keySet());
+    assertEquals(3, keys.size());
+    assertEquals(used, keys.get(2));
+    assertFalse(cache.snapshot().containsKey("x"));
+  }
+
+  @Test public void resizeAndEvictAll() {
+    ClockMemoryCache<String, String> cache = newCache(100, 4);
+    for (int i = 0; i < 50; i++) {
+      cache.put("k" + i, "v");
+    }
+    cache.resize(10);
+    assertEquals(10, cache.maxSize());
+    assertEquals(10, cache.size());
+    assertEquals(40, cache.evictionCount());
+    cache.put("x", "v");
+    assertEquals(10, cache.size());
+
+    removals.clear();
+    cache.evictAll();
+    assertEquals(0, cache.size());
+    assertEquals(10, removals.size());
+    assertTrue(cache.snapshot().isEmpty());
+    try {
+      cache.resize(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test public void tableSurvivesGrowthAndRemovals() {
+    ClockMemoryCache<Integer, Integer> cache = new ClockMemoryCache<Integer, Integer>(100000, 1);
+    for (int i = 0; i < 5000; i++) {
+      cache.put(i, i);
+    }
+    for (int i = 0; i < 5000; i += 3) {
+      assertEquals(Integer.valueOf(i), cache.remove(i));
+    }
+    for (int i = 0; i < 5000; i++) {
+      assertEquals(i % 3 == 0 ? null : Integer.valueOf(i), cache.get(i));
+    }
+    assertEquals(5000 - 1667, cache.size());
+    assertEquals(5000 - 1667, cache.snapshot().size());
+  }
+
+  @Test public void keysWithEqualHashCodesAreKeptApart() {
+    ClockMemoryCache<Key, String> cache = new ClockMemoryCache<Key, String>(100, 1);
+    List<Key> keys = new ArrayList<Key>();
+    for (int i = 0; i < 20; i++) {
+      Key key = new Key(i);
+      keys.add(key);
+      cache.put(key, "v" + i);
+    }
+    // Removing from the middle of the probe chain shifts the rest back.
+    for (int i = 0; i < 20; i += 2) {
+      assertEquals("v" + i, cache.remove(new Key(i)));
+    }
+    for (int i = 0; i < 20; i++) {
+      assertEquals(i % 2 == 0 ? null : "v" + i, cache.get(new Key(i)));
+    }
+    assertEquals(10, cache.size());
+  }
+
+  @Test public void concurrentUseKeepsTheBookkeeping() throws Exception {
+    final ClockMemoryCache<Integer, Integer> cache = new ClockMemoryCache<Integer, Integer>(500, 8) {
+      @Override protected int sizeOf(Integer key, Integer value) {
+        return value;
+      }
+    };
+    final int operations = 20000;
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 8; t++) {
+      final Random random = new Random(t);
+      Thread thread = new Thread() {
+        @Override public void run() {
+          for (int i = 0; i < operations; i++) {
+            int key = random.nextInt(1000);
+            int choice = random.nextInt(10);
+            if (choice < 3) {
+              cache.put(key, 1 + key % 4);
+            } else if (choice < 4) {
+              cache.remove(key);
+            } else {
+              cache.get(key);
+            }
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(cache.size() <= 500);
+    int total = 0;
+    for (Map.Entry<Integer, Integer> entry : cache.snapshot().entrySet()) {
+      assertEquals(Integer.valueOf(1 + entry.getKey() % 4), entry.getValue());
+      total += entry.getValue();
+    }
+    assertEquals(total, cache.size());
+    assertTrue(cache.hitCount() + cache.missCount() > 0);
+    assertTrue(cache.putCount() > 0);
+  }
+
+  private ClockMemoryCache<String, String> newCache(int maxSize, int concurrencyLevel) {
+    return new ClockMemoryCache<String, String>(maxSize, concurrencyLevel) {
+      @Override protected int sizeOf(String key, String value) {
+        return value.length();
+      }
+
+      @Override protected void entryRemoved(boolean evicted, String key, String oldValue,
+          String newValue) {
+        if (evicted) {
+          removals.add("evicted " + key + "=" + oldValue);
+        } else if (newValue != null) {
+          removals.add("replaced " + key + "=" + oldValue + "->" + newValue);
+        } else {
+          removals.add("removed " + key + "=" + oldValue);
+        }
+      }
+    };
+  }
+
+  /** A key whose hash code is shared by every instance. */
+  private static final class Key {
+    final int id;
+
+    Key(int id) {
+      this.id = id;
+    }
+
+    @Override public boolean equals(Object o) {
+      return o instanceof Key && ((Key) o).id == id;
+    }
+
+    @Override public int hashCode() {
+      return 42;
+    }
+  }
+}
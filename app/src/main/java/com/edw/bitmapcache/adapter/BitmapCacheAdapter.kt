@@ -1,5 +1,6 @@
 package com.edw.bitmapcache.adapter
 
+import android.graphics.Bitmap
 import com.edw.bitmapcache.entry.BitmapCatch
 import com.edw.bitmapcache.R
 import com.edw.bitmapcache.base.BaseAdapter
@@ -33,7 +34,13 @@ class BitmapCacheAdapter : BaseAdapter<BitmapCatch, ItemBitmapCacheBinding>() {
         binding?.apply {
             //在三级缓存中加载图片
             val bitmap = BitmapCache.getInstance().pullBitmap(curData, position, 280, 280)
+            val previous = ivItem.tag as? Bitmap
             ivItem.setImageBitmap(bitmap!!)
+            ivItem.tag = bitmap
+            //条目换成新图片后，旧图片不再显示，交还缓存以便被挤出内存缓存后复用
+            if (previous != null) {
+                BitmapCache.getInstance().releaseBitmap(previous)
+            }
         }
     }
 
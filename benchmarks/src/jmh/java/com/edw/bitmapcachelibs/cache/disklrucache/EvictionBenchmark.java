@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The cost of eviction, by eviction policy. {@link #churn} writes new
+ * entries into a full cache, so that every commit makes room for itself.
+ * {@link #storm} shrinks a full cache to a tenth of its size at once and
+ * measures the trim, which holds the cache lock; the evicted files are
+ * deleted later in the background.
+ */
+@State(Scope.Benchmark)
+public class EvictionBenchmark {
+  static final int VALUE_SIZE = 4096;
+  static final int CAPACITY = 10000;
+
+  @Param({"LRU", "SLRU", "ARC", "GDSF"})
+  public String policy;
+
+  private File directory;
+  private DiskLruCache cache;
+  private Random random;
+  private byte[] value;
+  private int nextKey;
+
+  @Setup(Level.Trial)
+  public void createValue() {
+    value = Fixtures.value(VALUE_SIZE, Fixtures.SEED);
+  }
+
+  /** Fills a new cache, reading some entries again so that frequencies differ. */
+  @Setup(Level.Iteration)
+  public void fill() throws IOException {
+    directory = Fixtures.newDirectory("eviction");
+    random = new Random(Fixtures.SEED);
+    cache = DiskLruCache.open(directory, 1, 1, (long) CAPACITY * VALUE_SIZE,
+        new DiskLruCache.Options()
+            .setJournalFormat(DiskLruCache.JournalFormat.BINARY)
+            .setJournalReads(false)
+            .setPackThreshold(VALUE_SIZE)
+            .setEvictionPolicy(policyFactory()));
+    Fixtures.populate(cache, CAPACITY, VALUE_SIZE);
+    for (int i = 0; i < CAPACITY; i++) {
+      // Skewed towards low keys, like a feed scrolled back to its top.
+      int key = (int) (CAPACITY * Math.pow(random.nextDouble(), 3));
+      cache.get(Fixtures.key(key)).close();
+    }
+    nextKey = CAPACITY;
+  }
+
+  @TearDown(Level.Iteration)
+  public void close() throws IOException {
+    cache.close();
+    Fixtures.delete(directory);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public boolean churn() throws IOException {
+    return Fixtures.write(cache, Fixtures.key(nextKey++), value);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public long storm() throws IOException {
+    cache.setMaxSize((long) CAPACITY * VALUE_SIZE / 10);
+    cache.flush(); // Trims on this thread, if the background cleanup hasn't yet.
+    return cache.size();
+  }
+
+  private EvictionPolicy.Factory policyFactory() {
+    if (policy.equals("LRU")) {
+      return null;
+    } else if (policy.equals("SLRU")) {
+      return SegmentedLruPolicy.factory(0.8f);
+    } else if (policy.equals("ARC")) {
+      return ArcPolicy.FACTORY;
+    } else if (policy.equals("GDSF")) {
+      return GdsfPolicy.FACTORY;
+    }
+    throw new IllegalArgumentException(policy);
+  }
+}
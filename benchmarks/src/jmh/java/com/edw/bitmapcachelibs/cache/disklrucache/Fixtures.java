@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Builds the caches the benchmarks run against. Everything is derived from
+ * fixed seeds, so that every run and every fork works on the same keys,
+ * values and journals.
+ */
+final class Fixtures {
+  static final long SEED = 0x5eed;
+
+  private Fixtures() {
+  }
+
+  /** Returns a new empty directory under the system temporary directory. */
+  static File newDirectory(String prefix) throws IOException {
+    File directory = File.createTempFile(prefix, "");
+    if (!directory.delete() || !directory.mkdirs()) {
+      throw new IOException("failed to create " + directory);
+    }
+    return directory;
+  }
+
+  static void delete(File directory) throws IOException {
+    if (directory != null && directory.exists()) {
+      Util.deleteContents(directory);
+      directory.delete();
+    }
+  }
+
+  static String key(int i) {
+    return "k" + i;
+  }
+
+  static byte[] value(int size, long seed) {
+    byte[] value = new byte[size];
+    new Random(seed).nextBytes(value);
+    return value;
+  }
+
+  /** Adds {@code count} entries of {@code valueSize} bytes, keyed {@link #key}. */
+  static void populate(DiskLruCache cache, int count, int valueSize) throws IOException {
+    Random random = new Random(SEED);
+    byte[] value = new byte[valueSize];
+    for (int i = 0; i < count; i++) {
+      random.nextBytes(value);
+      write(cache, key(i), value);
+    }
+  }
+
+  /** Replaces the value of {@code key}; returns false if another edit is in progress. */
+  static boolean write(DiskLruCache cache, String key, byte[] value) throws IOException {
+    DiskLruCache.Editor editor = cache.edit(key);
+    if (editor == null) {
+      return false;
+    }
+    OutputStream out = editor.newOutputStream(0);
+    try {
+      out.write(value);
+    } finally {
+      out.close();
+    }
+    editor.commit();
+    return true;
+  }
+
+  /** Copies the files of {@code from}, without subdirectories, into the empty {@code to}. */
+  static void copyDirectory(File from, File to) throws IOException {
+    byte[] buffer = new byte[64 * 1024];
+    for (File file : from.listFiles()) {
+      if (!file.isFile()) {
+        continue;
+      }
+      InputStream in = new FileInputStream(file);
+      try {
+        OutputStream out = new FileOutputStream(new File(to, file.getName()));
+        try {
+          for (int count; (count = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, count);
+          }
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The heap an open cache retains per entry, reported as the {@code
+ * bytesPerEntry} counter next to the time. Each invocation opens the same
+ * cache of {@code entries} loose values, reads every entry {@code reads}
+ * times, and measures the used heap after a full collection against the heap
+ * before the open. The time is that of opening and reading.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class FootprintBenchmark {
+  @Param({"50000"})
+  public int entries;
+
+  @Param({"0", "1", "8"})
+  public int reads;
+
+  @Param({"false", "true"})
+  public boolean hashKeys;
+
+  private File directory;
+  private DiskLruCache cache;
+  private long heapBefore;
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Footprint {
+    public long bytesPerEntry;
+
+    @Setup(Level.Invocation)
+    public void reset() {
+      bytesPerEntry = 0;
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void createCache() throws IOException {
+    directory = Fixtures.newDirectory("footprint");
+    DiskLruCache cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE, options());
+    Fixtures.populate(cache, entries, 16);
+    cache.close();
+  }
+
+  @Setup(Level.Invocation)
+  public void measureBaseline() {
+    heapBefore = usedHeap();
+  }
+
+  @Benchmark
+  public void openAndRead(Footprint footprint) throws IOException {
+    cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE, options());
+    for (int r = 0; r < reads; r++) {
+      for (int i = 0; i < entries; i++) {
+        DiskLruCache.Snapshot snapshot = cache.get(Fixtures.key(i));
+        snapshot.getInputStream(0).close();
+        snapshot.close();
+      }
+    }
+    footprint.bytesPerEntry = (usedHeap() - heapBefore) / entries;
+  }
+
+  @TearDown(Level.Invocation)
+  public void closeCache() throws IOException {
+    cache.close();
+    cache = null;
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteCache() throws IOException {
+    Fixtures.delete(directory);
+  }
+
+  private DiskLruCache.Options options() {
+    // No read records, so that the journal buffer doesn't grow with the reads.
+    return new DiskLruCache.Options().setHashKeys(hashKeys).setJournalReads(false);
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * How long opening a cache takes, by the number of entries and the size of
+ * its journal. The journal holds {@code entries} entries, and after them
+ * {@code redundancy} times as many redundant records from reads and
+ * rewrites, which replay has to skip. Every invocation opens a fresh copy of
+ * the same directory, so that a rebuild or checkpoint of one open doesn't
+ * make the next one cheaper.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OpenBenchmark {
+  @Param({"1000", "10000", "100000"})
+  public int entries;
+
+  @Param({"0", "1"})
+  public int redundancy;
+
+  @Param({"TEXT", "BINARY"})
+  public DiskLruCache.JournalFormat format;
+
+  /** Replays only the records after the last index checkpoint when positive. */
+  @Param({"0", "262144"})
+  public long indexCheckpointBytes;
+
+  private File template;
+  private File directory;
+  private DiskLruCache cache;
+
+  @Setup(Level.Trial)
+  public void createTemplate() throws IOException {
+    template = Fixtures.newDirectory("open-template");
+    // Packed values keep a cache of 100000 entries down to a few files to copy.
+    DiskLruCache cache = DiskLruCache.open(template, 1, 1, Long.MAX_VALUE, options());
+    Fixtures.populate(cache, entries, 64);
+    Random random = new Random(Fixtures.SEED);
+    byte[] value = Fixtures.value(64, Fixtures.SEED);
+    for (int i = 0; i < entries * redundancy; i++) {
+      String key = Fixtures.key(random.nextInt(entries));
+      if (random.nextBoolean()) {
+        cache.get(key).close();
+      } else {
+        Fixtures.write(cache, key, value);
+      }
+    }
+    cache.close();
+  }
+
+  @Setup(Level.Invocation)
+  public void copyTemplate() throws IOException {
+    directory = Fixtures.newDirectory("open");
+    Fixtures.copyDirectory(template, directory);
+  }
+
+  @Benchmark
+  public DiskLruCache open() throws IOException {
+    cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE, options());
+    return cache;
+  }
+
+  @TearDown(Level.Invocation)
+  public void closeCopy() throws IOException {
+    cache.close();
+    Fixtures.delete(directory);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteTemplate() throws IOException {
+    Fixtures.delete(template);
+  }
+
+  private DiskLruCache.Options options() {
+    return new DiskLruCache.Options()
+        .setJournalFormat(format)
+        .setPackThreshold(1024)
+        .setIndexCheckpointBytes(indexCheckpointBytes);
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Throughput of reading and of replacing values of a warm cache, by value
+ * size and by how values are stored, with one thread and with several
+ * contending for the cache lock. The cache is large enough that nothing is
+ * evicted; see {@link EvictionBenchmark} for that.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReadWriteBenchmark {
+  static final int KEY_COUNT = 1000;
+
+  @Param({"1024", "32768", "262144"})
+  public int valueSize;
+
+  /** 0 stores every value in its own file; otherwise values up to 32 KiB are packed. */
+  @Param({"0", "32768"})
+  public int packThreshold;
+
+  private File directory;
+  private DiskLruCache cache;
+
+  @Setup(Level.Trial)
+  public void open() throws IOException {
+    directory = Fixtures.newDirectory("readwrite");
+    cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE, new DiskLruCache.Options()
+        .setJournalFormat(DiskLruCache.JournalFormat.BINARY)
+        .setJournalReads(false)
+        .setPackThreshold(packThreshold));
+    Fixtures.populate(cache, KEY_COUNT, valueSize);
+  }
+
+  @TearDown(Level.Trial)
+  public void close() throws IOException {
+    cache.close();
+    Fixtures.delete(directory);
+  }
+
+  /** The keys and buffers of one benchmark thread. */
+  @State(Scope.Thread)
+  public static class ThreadState {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    /** Seeded by thread number, so that each run reads the same key sequence. */
+    final Random random = new Random(Fixtures.SEED + threadCount.getAndIncrement());
+    byte[] buffer;
+    byte[] value;
+
+    @Setup(Level.Trial)
+    public void setUp(ReadWriteBenchmark benchmark) {
+      buffer = new byte[64 * 1024];
+      value = Fixtures.value(benchmark.valueSize, random.nextLong());
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public long get(ThreadState state) throws IOException {
+    return read(state);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public long get4Threads(ThreadState state) throws IOException {
+    return read(state);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean editCommit(ThreadState state) throws IOException {
+    return write(state);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public boolean editCommit4Threads(ThreadState state) throws IOException {
+    return write(state);
+  }
+
+  /** Reads a whole value, returning its byte count. */
+  private long read(ThreadState state) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(Fixtures.key(state.random.nextInt(KEY_COUNT)));
+    if (snapshot == null) {
+      throw new AssertionError("not warm");
+    }
+    try {
+      InputStream in = snapshot.getInputStream(0);
+      long total = 0;
+      for (int count; (count = in.read(state.buffer)) != -1; ) {
+        total += count;
+      }
+      return total;
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  /** Replaces a value; two threads editing the same key make one of them fail. */
+  private boolean write(ThreadState state) throws IOException {
+    return Fixtures.write(cache, Fixtures.key(state.random.nextInt(KEY_COUNT)), state.value);
+  }
+}
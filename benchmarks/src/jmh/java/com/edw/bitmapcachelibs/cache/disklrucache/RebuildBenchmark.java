@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * How long compacting the journal takes, by the number of entries. The
+ * cache lock is held throughout, so this is how long every reader and
+ * writer stalls when the journal is rebuilt.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RebuildBenchmark {
+  @Param({"1000", "10000", "100000"})
+  public int entries;
+
+  @Param({"TEXT", "BINARY"})
+  public DiskLruCache.JournalFormat format;
+
+  @Param({"NONE", "COMMIT"})
+  public DiskLruCache.Durability durability;
+
+  private File directory;
+  private DiskLruCache cache;
+
+  @Setup(Level.Trial)
+  public void open() throws IOException {
+    directory = Fixtures.newDirectory("rebuild");
+    cache = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE, new DiskLruCache.Options()
+        .setJournalFormat(format)
+        .setDurability(durability)
+        .setPackThreshold(1024));
+    Fixtures.populate(cache, entries, 64);
+  }
+
+  @Benchmark
+  public void rebuild() throws IOException {
+    cache.rebuildJournal();
+  }
+
+  @TearDown(Level.Trial)
+  public void close() throws IOException {
+    cache.close();
+    Fixtures.delete(directory);
+  }
+}
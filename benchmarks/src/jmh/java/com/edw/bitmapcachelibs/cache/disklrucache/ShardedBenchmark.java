@@ -0,0 +1,195 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Throughput of {@link ShardedDiskLruCache} against a single {@link
+ * DiskLruCache}, whose one lock every thread contends for, reading and
+ * replacing values of a warm cache with one, four and eight threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ShardedBenchmark {
+  static final int KEY_COUNT = 1000;
+  static final int VALUE_SIZE = 4096;
+
+  /** 0 opens a plain DiskLruCache; otherwise a sharded cache with this many shards. */
+  @Param({"0", "8"})
+  public int shardCount;
+
+  private File directory;
+  private Cache cache;
+
+  /** The operations the benchmarks use, implemented by both caches. */
+  interface Cache extends Closeable {
+    DiskLruCache.Snapshot get(String key) throws IOException;
+
+    DiskLruCache.Editor edit(String key) throws IOException;
+  }
+
+  @Setup(Level.Trial)
+  public void open() throws IOException {
+    directory = Fixtures.newDirectory("sharded");
+    DiskLruCache.Options options = new DiskLruCache.Options()
+        .setJournalFormat(DiskLruCache.JournalFormat.BINARY)
+        .setJournalReads(false);
+    if (shardCount == 0) {
+      final DiskLruCache single = DiskLruCache.open(directory, 1, 1, Long.MAX_VALUE, options);
+      cache = new Cache() {
+        @Override public DiskLruCache.Snapshot get(String key) throws IOException {
+          return single.get(key);
+        }
+
+        @Override public DiskLruCache.Editor edit(String key) throws IOException {
+          return single.edit(key);
+        }
+
+        @Override public void close() throws IOException {
+          single.close();
+        }
+      };
+    } else {
+      final ShardedDiskLruCache sharded =
+          ShardedDiskLruCache.open(directory, 1, 1, Long.MAX_VALUE, shardCount, options);
+      cache = new Cache() {
+        @Override public DiskLruCache.Snapshot get(String key) throws IOException {
+          return sharded.get(key);
+        }
+
+        @Override public DiskLruCache.Editor edit(String key) throws IOException {
+          return sharded.edit(key);
+        }
+
+        @Override public void close() throws IOException {
+          sharded.close();
+        }
+      };
+    }
+    Random random = new Random(Fixtures.SEED);
+    byte[] value = new byte[VALUE_SIZE];
+    for (int i = 0; i < KEY_COUNT; i++) {
+      random.nextBytes(value);
+      write(Fixtures.key(i), value);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void close() throws IOException {
+    cache.close();
+    Fixtures.delete(directory);
+  }
+
+  /** The keys and buffers of one benchmark thread. */
+  @State(Scope.Thread)
+  public static class ThreadState {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    /** Seeded by thread number, so that each run uses the same key sequence. */
+    final Random random = new Random(Fixtures.SEED + threadCount.getAndIncrement());
+    final byte[] buffer = new byte[VALUE_SIZE];
+    final byte[] value = Fixtures.value(VALUE_SIZE, random.nextLong());
+  }
+
+  @Benchmark
+  @Threads(1)
+  public long get(ThreadState state) throws IOException {
+    return read(state);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public long get4Threads(ThreadState state) throws IOException {
+    return read(state);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public long get8Threads(ThreadState state) throws IOException {
+    return read(state);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public boolean editCommit(ThreadState state) throws IOException {
+    return write(Fixtures.key(state.random.nextInt(KEY_COUNT)), state.value);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public boolean editCommit4Threads(ThreadState state) throws IOException {
+    return write(Fixtures.key(state.random.nextInt(KEY_COUNT)), state.value);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public boolean editCommit8Threads(ThreadState state) throws IOException {
+    return write(Fixtures.key(state.random.nextInt(KEY_COUNT)), state.value);
+  }
+
+  /** Reads a whole value, returning its byte count. */
+  private long read(ThreadState state) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(Fixtures.key(state.random.nextInt(KEY_COUNT)));
+    if (snapshot == null) {
+      throw new AssertionError("not warm");
+    }
+    try {
+      InputStream in = snapshot.getInputStream(0);
+      long total = 0;
+      for (int count; (count = in.read(state.buffer)) != -1; ) {
+        total += count;
+      }
+      return total;
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  /** Replaces a value; two threads editing the same key make one of them fail. */
+  private boolean write(String key, byte[] value) throws IOException {
+    DiskLruCache.Editor editor = cache.edit(key);
+    if (editor == null) {
+      return false;
+    }
+    OutputStream out = editor.newOutputStream(0);
+    try {
+      out.write(value);
+    } finally {
+      out.close();
+    }
+    editor.commit();
+    return true;
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Reading the lines of a text journal from memory, which bounds how fast a
+ * text journal can be replayed regardless of the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StrictLineReaderBenchmark {
+  static final int LINE_COUNT = 10000;
+
+  /** The keys of hashed caches are 32 characters; a CLEAN record adds the lengths. */
+  @Param({"16", "48", "160"})
+  public int lineLength;
+
+  private byte[] journal;
+
+  @Setup(Level.Trial)
+  public void createJournal() {
+    Random random = new Random(Fixtures.SEED);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < LINE_COUNT; i++) {
+      for (int j = 0; j < lineLength; j++) {
+        out.write('a' + random.nextInt(26));
+      }
+      out.write('\n');
+    }
+    journal = out.toByteArray();
+  }
+
+  @Benchmark
+  public int readLines() throws IOException {
+    StrictLineReader reader =
+        new StrictLineReader(new ByteArrayInputStream(journal), Util.US_ASCII);
+    int length = 0;
+    try {
+      while (true) {
+        length += reader.readLine().length();
+      }
+    } catch (EOFException endOfJournal) {
+      return length;
+    } finally {
+      reader.close();
+    }
+  }
+}
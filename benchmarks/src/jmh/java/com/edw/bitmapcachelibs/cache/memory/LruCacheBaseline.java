@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.memory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The locking and bookkeeping of {@code android.util.LruCache}, which isn't
+ * available on the desktop JVM: one lock around an access-ordered {@link
+ * LinkedHashMap}, so that every hit relinks an entry, and eviction of the
+ * eldest entries after each put.
+ */
+class LruCacheBaseline<K, V> {
+  private final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(0, 0.75f, true);
+  private final int maxSize;
+  private int size;
+  private int putCount;
+  private int evictionCount;
+  private int hitCount;
+  private int missCount;
+
+  LruCacheBaseline(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  final V get(K key) {
+    synchronized (this) {
+      V value = map.get(key);
+      if (value != null) {
+        hitCount++;
+        return value;
+      }
+      missCount++;
+      return null;
+    }
+  }
+
+  final V put(K key, V value) {
+    V previous;
+    synchronized (this) {
+      putCount++;
+      size += sizeOf(key, value);
+      previous = map.put(key, value);
+      if (previous != null) {
+        size -= sizeOf(key, previous);
+      }
+    }
+    if (previous != null) {
+      entryRemoved(false, key, previous, value);
+    }
+    trimToSize(maxSize);
+    return previous;
+  }
+
+  private void trimToSize(int maxSize) {
+    while (true) {
+      K key;
+      V value;
+      synchronized (this) {
+        if (size <= maxSize || map.isEmpty()) {
+          break;
+        }
+        Map.Entry<K, V> toEvict = map.entrySet().iterator().next();
+        key = toEvict.getKey();
+        value = toEvict.getValue();
+        map.remove(key);
+        size -= sizeOf(key, value);
+        evictionCount++;
+      }
+      entryRemoved(true, key, value, null);
+    }
+  }
+
+  int sizeOf(K key, V value) {
+    return 1;
+  }
+
+  void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+  }
+}
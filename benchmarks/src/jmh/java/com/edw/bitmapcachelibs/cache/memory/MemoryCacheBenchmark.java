@@ -0,0 +1,163 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.memory;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Throughput of {@link ClockMemoryCache} and of the single-locked {@link
+ * LruCacheBaseline} it replaces, under a skewed mix of reads and writes with
+ * a byte budget that holds about half of the keys, with one thread and with
+ * several contending for the cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MemoryCacheBenchmark {
+  static final long SEED = 0x5eed;
+  static final int KEY_COUNT = 10000;
+  /** Each value weighs 1 to 64 units; the budget holds about half of them. */
+  static final int MAX_WEIGHT = 64;
+  static final int MAX_SIZE = KEY_COUNT / 2 * (MAX_WEIGHT / 2);
+  /** The length of each thread's operation sequence; a power of two. */
+  static final int SEQUENCE_LENGTH = 1 << 16;
+
+  @Param({"clock", "lruCache"})
+  public String cacheType;
+
+  /** The percentage of operations that are puts. */
+  @Param({"10"})
+  public int putPercent;
+
+  private Cache cache;
+  private String[] keys;
+  private Integer[] values;
+
+  /** The operations the benchmarks use, implemented by both caches. */
+  interface Cache {
+    Integer get(String key);
+
+    void put(String key, Integer value);
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    keys = new String[KEY_COUNT];
+    values = new Integer[KEY_COUNT];
+    Random random = new Random(SEED);
+    for (int i = 0; i < KEY_COUNT; i++) {
+      // URL-like keys, as the bitmap cache uses.
+      keys[i] = "https://example.com/images/" + Long.toHexString(random.nextLong()) + ".jpg";
+      values[i] = 1 + random.nextInt(MAX_WEIGHT);
+    }
+    if (cacheType.equals("clock")) {
+      final ClockMemoryCache<String, Integer> clock =
+          new ClockMemoryCache<String, Integer>(MAX_SIZE) {
+            @Override protected int sizeOf(String key, Integer value) {
+              return value;
+            }
+          };
+      cache = new Cache() {
+        @Override public Integer get(String key) {
+          return clock.get(key);
+        }
+
+        @Override public void put(String key, Integer value) {
+          clock.put(key, value);
+        }
+      };
+    } else {
+      final LruCacheBaseline<String, Integer> lru = new LruCacheBaseline<String, Integer>(MAX_SIZE) {
+        @Override int sizeOf(String key, Integer value) {
+          return value;
+        }
+      };
+      cache = new Cache() {
+        @Override public Integer get(String key) {
+          return lru.get(key);
+        }
+
+        @Override public void put(String key, Integer value) {
+          lru.put(key, value);
+        }
+      };
+    }
+    for (int i = 0; i < KEY_COUNT; i++) {
+      cache.put(keys[i], values[i]);
+    }
+  }
+
+  /** The operation sequence of one benchmark thread. */
+  @State(Scope.Thread)
+  public static class ThreadState {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    /** Key indexes, negative for puts. */
+    int[] operations;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp(MemoryCacheBenchmark benchmark) {
+      // Seeded by thread number, so that each run performs the same operations.
+      Random random = new Random(SEED + threadCount.incrementAndGet());
+      operations = new int[SEQUENCE_LENGTH];
+      for (int i = 0; i < SEQUENCE_LENGTH; i++) {
+        // Skewed towards low indexes, like the items near the top of a list.
+        int key = (int) (KEY_COUNT * Math.pow(random.nextDouble(), 3));
+        operations[i] = random.nextInt(100) < benchmark.putPercent ? -1 - key : key;
+      }
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Integer mixed(ThreadState state) {
+    return operate(state);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Integer mixed4Threads(ThreadState state) {
+    return operate(state);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public Integer mixed8Threads(ThreadState state) {
+    return operate(state);
+  }
+
+  private Integer operate(ThreadState state) {
+    int operation = state.operations[state.next++ & (SEQUENCE_LENGTH - 1)];
+    if (operation < 0) {
+      int key = -1 - operation;
+      cache.put(keys[key], values[key]);
+      return null;
+    }
+    return cache.get(keys[operation]);
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.disklrucache;
+
+import java.io.File;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the setup, one invocation and the teardown of each benchmark with its
+ * smallest parameters, the way JMH calls them, so that a broken benchmark
+ * fails the build instead of a long benchmark run.
+ */
+public final class BenchmarkSmokeTest {
+  @Test public void fixturesAreReproducible() throws Exception {
+    File first = Fixtures.newDirectory("fixtures");
+    File second = Fixtures.newDirectory("fixtures");
+    try {
+      DiskLruCache a = DiskLruCache.open(first, 1, 1, Long.MAX_VALUE);
+      DiskLruCache b = DiskLruCache.open(second, 1, 1, Long.MAX_VALUE);
+      Fixtures.populate(a, 10, 32);
+      Fixtures.populate(b, 10, 32);
+      for (int i = 0; i < 10; i++) {
+        DiskLruCache.Snapshot snapshotA = a.get(Fixtures.key(i));
+        DiskLruCache.Snapshot snapshotB = b.get(Fixtures.key(i));
+        assertEquals(snapshotA.getString(0), snapshotB.getString(0));
+        snapshotA.close();
+        snapshotB.close();
+      }
+      a.close();
+      b.close();
+    } finally {
+      Fixtures.delete(first);
+      Fixtures.delete(second);
+    }
+    assertFalse(first.exists());
+  }
+
+  @Test public void openBenchmark() throws Exception {
+    for (DiskLruCache.JournalFormat format : DiskLruCache.JournalFormat.values()) {
+      OpenBenchmark benchmark = new OpenBenchmark();
+      benchmark.entries = 1000;
+      benchmark.redundancy = 1;
+      benchmark.format = format;
+      benchmark.indexCheckpointBytes = 262144;
+      benchmark.createTemplate();
+      benchmark.copyTemplate();
+      DiskLruCache cache = benchmark.open();
+      assertNotNull(cache.get(Fixtures.key(999)));
+      benchmark.closeCopy();
+      benchmark.deleteTemplate();
+    }
+  }
+
+  @Test public void readWriteBenchmark() throws Exception {
+    ReadWriteBenchmark benchmark = new ReadWriteBenchmark();
+    benchmark.valueSize = 1024;
+    benchmark.packThreshold = 32768;
+    benchmark.open();
+    ReadWriteBenchmark.ThreadState state = new ReadWriteBenchmark.ThreadState();
+    state.setUp(benchmark);
+    assertEquals(1024, benchmark.get(state));
+    assertTrue(benchmark.editCommit(state));
+    benchmark.close();
+  }
+
+  @Test public void evictionBenchmark() throws Exception {
+    for (String policy : new String[] {"LRU", "SLRU", "ARC", "GDSF"}) {
+      EvictionBenchmark benchmark = new EvictionBenchmark();
+      benchmark.policy = policy;
+      benchmark.createValue();
+      benchmark.fill();
+      assertTrue(policy, benchmark.churn());
+      long capacity = (long) EvictionBenchmark.CAPACITY * EvictionBenchmark.VALUE_SIZE;
+      assertTrue(policy, benchmark.storm() <= capacity / 10);
+      benchmark.close();
+    }
+  }
+
+  @Test public void rebuildBenchmark() throws Exception {
+    RebuildBenchmark benchmark = new RebuildBenchmark();
+    benchmark.entries = 1000;
+    benchmark.format = DiskLruCache.JournalFormat.BINARY;
+    benchmark.durability = DiskLruCache.Durability.COMMIT;
+    benchmark.open();
+    benchmark.rebuild();
+    benchmark.close();
+  }
+
+  @Test public void shardedBenchmark() throws Exception {
+    for (int shardCount : new int[] {0, 8}) {
+      ShardedBenchmark benchmark = new ShardedBenchmark();
+      benchmark.shardCount = shardCount;
+      benchmark.open();
+      ShardedBenchmark.ThreadState state = new ShardedBenchmark.ThreadState();
+      assertEquals(ShardedBenchmark.VALUE_SIZE, benchmark.get(state));
+      assertTrue(benchmark.editCommit(state));
+      benchmark.close();
+    }
+  }
+
+  @Test public void footprintBenchmark() throws Exception {
+    FootprintBenchmark benchmark = new FootprintBenchmark();
+    benchmark.entries = 1000;
+    benchmark.reads = 1;
+    benchmark.hashKeys = true;
+    benchmark.createCache();
+    FootprintBenchmark.Footprint footprint = new FootprintBenchmark.Footprint();
+    footprint.reset();
+    benchmark.measureBaseline();
+    benchmark.openAndRead(footprint);
+    benchmark.closeCache();
+    benchmark.deleteCache();
+  }
+
+  @Test public void strictLineReaderBenchmark() throws Exception {
+    StrictLineReaderBenchmark benchmark = new StrictLineReaderBenchmark();
+    benchmark.lineLength = 16;
+    benchmark.createJournal();
+    assertEquals(16 * StrictLineReaderBenchmark.LINE_COUNT, benchmark.readLines());
+  }
+}
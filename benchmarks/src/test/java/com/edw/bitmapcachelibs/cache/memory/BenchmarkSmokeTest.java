@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.edw.bitmapcachelibs.cache.memory;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the setup and a full operation sequence of {@link MemoryCacheBenchmark}
+ * for each cache, the way JMH calls them, and checks that both caches see
+ * about the same hits, so that the comparison measures the same workload.
+ */
+public final class BenchmarkSmokeTest {
+  @Test public void memoryCacheBenchmark() {
+    double clockHitRate = hitRate("clock");
+    double lruHitRate = hitRate("lruCache");
+    assertTrue(clockHitRate > 0.4);
+    assertTrue(lruHitRate > 0.4);
+    // CLOCK approximates LRU; a large gap means one of the caches is broken.
+    assertTrue(clockHitRate + " vs " + lruHitRate, Math.abs(clockHitRate - lruHitRate) < 0.1);
+  }
+
+  @Test public void lruCacheBaselineStaysWithinBudget() {
+    LruCacheBaseline<String, Integer> cache = new LruCacheBaseline<String, Integer>(10) {
+      @Override int sizeOf(String key, Integer value) {
+        return value;
+      }
+    };
+    cache.put("a", 4);
+    cache.put("b", 4);
+    cache.get("a");
+    cache.put("c", 4);
+    assertEquals(Integer.valueOf(4), cache.get("a"));
+    assertEquals(null, cache.get("b"));
+  }
+
+  /** Returns the hit rate of the gets in one pass over a thread's operation sequence. */
+  private static double hitRate(String cacheType) {
+    MemoryCacheBenchmark benchmark = new MemoryCacheBenchmark();
+    benchmark.cacheType = cacheType;
+    benchmark.putPercent = 10;
+    benchmark.setUp();
+    MemoryCacheBenchmark.ThreadState state = new MemoryCacheBenchmark.ThreadState();
+    state.setUp(benchmark);
+    int gets = 0;
+    int hits = 0;
+    for (int i = 0; i < MemoryCacheBenchmark.SEQUENCE_LENGTH; i++) {
+      boolean get = state.operations[i] >= 0;
+      Integer value = benchmark.mixed(state);
+      if (get) {
+        gets++;
+        if (value != null) {
+          hits++;
+        }
+      }
+    }
+    return (double) hits / gets;
+  }
+}